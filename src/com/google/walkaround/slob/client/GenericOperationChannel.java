@@ -142,7 +142,9 @@ public class GenericOperationChannel<M> {
         return;
       }
 
-      logger.log(Level.DEBUG, "my sid=", sessionId, ", incoming sid=", sid);
+      if (logger.shouldLog(Level.DEBUG)) {
+        logger.log(Level.DEBUG, "my sid=", sessionId, ", incoming sid=", sid);
+      }
       if (sessionId.equals(sid)) {
         onAckOwnOperation(resultingRevision, operation);
       } else {
@@ -267,6 +269,7 @@ public class GenericOperationChannel<M> {
   private final FuzzingBackOffGenerator backoffGenerator;
   private final Log logger;
   private final TimerService scheduler;
+  private final int sendDelayMillis;
   private final ReceiveOpChannel<M> channel;
   private final SendOpService<M> submitService;
   private final Listener<M> listener;
@@ -279,18 +282,33 @@ public class GenericOperationChannel<M> {
   private DiscardableCallback submitCallback; // mutable to discard out of date ones
   private DiscardableCallback versionCallback;
 
-  public GenericOperationChannel(TimerService scheduler, Transformer<M> transformer,
-      ReceiveOpChannel<M> channel, SendOpService<M> submitService,
+  /**
+   * @param sendDelayMillis how long to hold on to client ops before sending
+   *        them, so that ops made in quick succession (e.g. marking blips as
+   *        read while scrolling) are compacted and submitted together.  Zero
+   *        sends them as soon as the current event has been handled.
+   */
+  public GenericOperationChannel(TimerService scheduler, int sendDelayMillis,
+      Transformer<M> transformer, ReceiveOpChannel<M> channel, SendOpService<M> submitService,
       Listener<M> listener, Log logger) {
-    this(new FuzzingBackOffGenerator(1500, 1800 * 1000, 0.5),
-        scheduler, transformer, channel, submitService, listener, logger);
+    this(new FuzzingBackOffGenerator(1500, 1800 * 1000, 0.5), scheduler, sendDelayMillis,
+        transformer, channel, submitService, listener, logger);
   }
 
   public GenericOperationChannel(FuzzingBackOffGenerator generator, TimerService scheduler,
       Transformer<M> transformer, ReceiveOpChannel<M> channel, SendOpService<M> submitService,
       Listener<M> listener, Log logger) {
+    this(generator, scheduler, 0, transformer, channel, submitService, listener, logger);
+  }
+
+  public GenericOperationChannel(FuzzingBackOffGenerator generator, TimerService scheduler,
+      int sendDelayMillis, Transformer<M> transformer, ReceiveOpChannel<M> channel,
+      SendOpService<M> submitService, Listener<M> listener, Log logger) {
+    Preconditions.checkArgument(sendDelayMillis >= 0, "Negative sendDelayMillis: %s",
+        sendDelayMillis);
     this.backoffGenerator = generator;
     this.scheduler = scheduler;
+    this.sendDelayMillis = sendDelayMillis;
     this.queue = new TransformQueue<M>(transformer);
     this.channel = channel;
     this.submitService = submitService;
@@ -322,6 +340,7 @@ public class GenericOperationChannel<M> {
   public void disconnect() {
     checkConnected();
     channel.disconnect();
+    scheduler.cancel(maybeSendTask);
     sessionId = null;
     setState(State.UNINITIALISED);
   }
@@ -346,7 +365,7 @@ public class GenericOperationChannel<M> {
     // go further and avoid doing the transform inside the queue.
     if (!queue.hasUnacknowledgedClientOps()) {
       assert state == State.ALL_ACKED;
-      scheduler.schedule(maybeSendTask);
+      scheduleSend();
     }
   }
 
@@ -434,6 +453,19 @@ public class GenericOperationChannel<M> {
     setState(State.WAITING_SYNC);
   }
 
+  /**
+   * Schedules a send of the queued ops.  With a send delay, a send that is
+   * already scheduled is left alone rather than pushed back, so that a steady
+   * stream of ops still goes out once per interval.
+   */
+  private void scheduleSend() {
+    if (sendDelayMillis == 0) {
+      scheduler.schedule(maybeSendTask);
+    } else if (!scheduler.isScheduled(maybeSendTask)) {
+      scheduler.scheduleDelayed(maybeSendTask, sendDelayMillis);
+    }
+  }
+
   private void maybeSend() {
     if (queue.hasUnacknowledgedClientOps()) {
       logger.log(Level.INFO, state, ", Has ", queue.unackedClientOpsCount(), " unacked...");
@@ -522,7 +554,7 @@ public class GenericOperationChannel<M> {
 
     setState(State.ALL_ACKED);
     if (queue.hasQueuedClientOps()) {
-      scheduler.schedule(maybeSendTask);
+      scheduleSend();
     }
   }
 
@@ -31,7 +31,9 @@ import java.util.List;
  *
  * <p>
  * For efficiency, client ops are also compacted before transforming and before
- * sending.
+ * sending, and whenever enough of them have queued up since the last
+ * compaction (e.g. while waiting for a slow submit to be acknowledged), so
+ * that fewer ops are transformed against incoming server ops and submitted.
  *
  * @author danilatos@google.com (Daniel Danilatos)
  */
@@ -42,6 +44,13 @@ public class TransformQueue<M> {
     List<M> compact(List<M> clientOps);
   }
 
+  /**
+   * Queued client ops are compacted in {@link #clientOp} once there are this
+   * many, and then again each time their number doubles, so that compaction
+   * cost is amortized.
+   */
+  private static final int MIN_QUEUED_OPS_TO_COMPACT = 16;
+
   private final Transformer<M> transformer;
 
   private int revision = -1;
@@ -51,6 +60,7 @@ public class TransformQueue<M> {
   @VisibleForTesting List<M> unackedClientOps = Collections.emptyList();
   @VisibleForTesting List<M> queuedClientOps = new LinkedList<M>();
   boolean newClientOpSinceTransform = false;
+  private int queuedOpsAfterCompaction = 0;
 
   public TransformQueue(Transformer<M> transformer) {
     this.transformer = transformer;
@@ -85,6 +95,7 @@ public class TransformQueue<M> {
     if (!queuedClientOps.isEmpty()) {
       if (newClientOpSinceTransform) {
         queuedClientOps = transformer.compact(queuedClientOps);
+        queuedOpsAfterCompaction = queuedClientOps.size();
       }
       newClientOpSinceTransform = false;
 
@@ -113,6 +124,14 @@ public class TransformQueue<M> {
 
     queuedClientOps.add(clientOp);
     newClientOpSinceTransform = true;
+
+    if (queuedClientOps.size()
+        >= Math.max(MIN_QUEUED_OPS_TO_COMPACT, 2 * queuedOpsAfterCompaction)) {
+      // compact() may return an immutable list.
+      queuedClientOps = new LinkedList<M>(transformer.compact(queuedClientOps));
+      queuedOpsAfterCompaction = queuedClientOps.size();
+      newClientOpSinceTransform = false;
+    }
   }
 
   public boolean expectedAck(int resultingRevision) {
@@ -158,6 +177,7 @@ public class TransformQueue<M> {
 
     unackedClientOps = new LinkedList<M>(transformer.compact(queuedClientOps));
     queuedClientOps = new LinkedList<M>();
+    queuedOpsAfterCompaction = 0;
 
     return unackedClientOps();
   }
@@ -33,9 +33,12 @@ import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
 import com.google.common.net.UriEscapers;
 import com.google.inject.BindingAnnotation;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.walkaround.proto.ServerMutateRequest;
 import com.google.walkaround.proto.ServerMutateResponse;
 import com.google.walkaround.proto.gson.ServerMutateResponseGsonImpl;
@@ -48,13 +51,14 @@ import com.google.walkaround.util.server.auth.DigestUtils2.Secret;
 import com.google.walkaround.util.server.servlet.TryAgainLaterException;
 import com.google.walkaround.util.shared.RandomBase64Generator;
 
-import org.waveprotocol.wave.communication.gson.GsonSerializable;
 import org.waveprotocol.wave.model.util.Pair;
 
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -69,8 +73,14 @@ import javax.annotation.Nullable;
  * the same object hit one backend. Falls back to writing on the frondend under
  * certain circumstances.
  *
+ * New objects are placed on backends according to their observed health (see
+ * {@link BackendHealth}).
+ *
+ * Singleton (per store) so that batching and health tracking span requests.
+ *
  * @author danilatos@google.com (Daniel Danilatos)
  */
+@Singleton
 public class AffinityMutationProcessor {
 
   @SuppressWarnings("unused")
@@ -80,30 +90,28 @@ public class AffinityMutationProcessor {
   public @interface StoreBackendName {}
   @BindingAnnotation @Target({ FIELD, PARAMETER, METHOD }) @Retention(RUNTIME)
   public @interface StoreBackendInstanceCount {}
+  @BindingAnnotation @Target({ FIELD, PARAMETER, METHOD }) @Retention(RUNTIME)
+  public @interface StoreBackendOutlierEjection {}
 
   private class PostRequest {
     private final StringBuilder urlBuilder = new StringBuilder();
-    private final StringBuilder contentBuilder = new StringBuilder();
 
     void urlParam(String key, String value) {
       urlBuilder.append((urlBuilder.length() == 0 ? "?" : "&") + key + "=" + urlEncode(value));
     }
 
-    void postParam(String key, String value) {
-      contentBuilder.append(key + "=" + urlEncode(value) + "&");
-    }
-
     /**
-     * @return the response body as a String.
+     * Sends {@code payload} as the request body.
+     *
+     * @return the response body.
      * @throws IOException for 500 or above or general connection problems.
      * @throws InvalidStoreRequestException for any response code not 200.
      */
-    String send(String base) throws IOException {
+    byte[] send(String base, String contentType, byte[] payload) throws IOException {
       URL url = new URL(base + urlBuilder.toString());
       HTTPRequest req = new HTTPRequest(url, HTTPMethod.POST, getFetchOptions());
 
-      // TODO(ohler): use multipart/form-data for efficiency
-      req.setHeader(new HTTPHeader("Content-Type", "application/x-www-form-urlencoded"));
+      req.setHeader(new HTTPHeader("Content-Type", contentType));
       req.setHeader(new HTTPHeader(WALKAROUND_TRUSTED_HEADER, secret.getHexData()));
       // NOTE(danilatos): Appengine will send 503 if the backend is at the
       // max number of concurrent requests. We might come up with a use for
@@ -113,10 +121,10 @@ public class AffinityMutationProcessor {
       // Therefore, the code in this class treats all 5xx responses as an
       // indication of possible overload.
       req.setHeader(new HTTPHeader("X-AppEngine-FailFast", "true"));
-      req.setPayload(contentBuilder.toString().getBytes(Charsets.UTF_8));
+      req.setPayload(payload);
 
       log.info("Sending to " + url);
-      String ret = fetch(req);
+      byte[] ret = fetch(req);
       log.info("Request completed");
       return ret;
     }
@@ -138,7 +146,7 @@ public class AffinityMutationProcessor {
       return "" + b;
     }
 
-    private String fetch(HTTPRequest req) throws IOException {
+    private byte[] fetch(HTTPRequest req) throws IOException {
       HTTPResponse response = fetchService.fetch(req);
       int responseCode = response.getResponseCode();
 
@@ -148,16 +156,13 @@ public class AffinityMutationProcessor {
       }
 
       byte[] rawResponseBody = response.getContent();
-      String responseBody;
       if (rawResponseBody == null) {
-        responseBody = "";
-      } else {
-        responseBody = new String(rawResponseBody, Charsets.UTF_8);
+        rawResponseBody = new byte[0];
       }
 
       if (responseCode != 200) {
         String msg = req.getURL() + " gave response code " + responseCode
-            + ", body: " + responseBody;
+            + ", body: " + new String(rawResponseBody, Charsets.UTF_8);
         if (responseCode >= 500) {
           throw new IOException(msg);
         } else {
@@ -165,7 +170,7 @@ public class AffinityMutationProcessor {
         }
       }
 
-      return responseBody;
+      return rawResponseBody;
     }
 
     private String urlEncode(String s) {
@@ -173,8 +178,181 @@ public class AffinityMutationProcessor {
     }
   }
 
+  /**
+   * A mutation waiting to be sent to a backend, or waiting for its result.
+   * Guarded by the {@link BackendBatcher} it belongs to.
+   */
+  private static class PendingMutation {
+    private final ServerMutateRequest request;
+    private boolean taken = false;
+    private boolean done = false;
+    @Nullable private ServerMutateResponse response = null;
+    @Nullable private Exception failure = null;
+
+    PendingMutation(ServerMutateRequest request) {
+      this.request = request;
+    }
+
+    void succeed(ServerMutateResponse response) {
+      this.response = response;
+      done = true;
+    }
+
+    void fail(Exception failure) {
+      this.failure = failure;
+      done = true;
+    }
+
+    ServerMutateResponse getResponse() throws IOException {
+      if (failure == null) {
+        return response;
+      }
+      // Wrap so that the stack trace shows this thread, too.
+      if (failure instanceof IOException) {
+        throw new IOException(failure.getMessage(), failure);
+      } else if (failure instanceof InvalidStoreRequestException) {
+        throw new InvalidStoreRequestException(failure.getMessage(), failure);
+      } else {
+        throw new RuntimeException(failure.getMessage(), failure);
+      }
+    }
+  }
+
+  /**
+   * Sends the mutations bound for one backend.  Up to
+   * {@link #MAX_BATCHES_IN_FLIGHT} requests to the backend are outstanding at a
+   * time; mutations that arrive while that many are outstanding queue up, and
+   * the first of them to get a turn sends them all in one request.
+   */
+  private class BackendBatcher {
+    private final int serverId;
+    // Guarded by this.
+    private final LinkedList<PendingMutation> queue = Lists.newLinkedList();
+    // Guarded by this.
+    private int batchesInFlight = 0;
+
+    BackendBatcher(int serverId) {
+      this.serverId = serverId;
+    }
+
+    ServerMutateResponse mutate(ServerMutateRequest req) throws IOException {
+      PendingMutation mutation = new PendingMutation(req);
+      synchronized (this) {
+        queue.add(mutation);
+      }
+      while (true) {
+        List<PendingMutation> batch = Lists.newArrayList();
+        synchronized (this) {
+          while (!mutation.done
+              && (mutation.taken || batchesInFlight >= MAX_BATCHES_IN_FLIGHT)) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              queue.remove(mutation);
+              throw new IOException("Interrupted waiting for backend " + serverId, e);
+            }
+          }
+          if (mutation.done) {
+            return mutation.getResponse();
+          }
+          while (!queue.isEmpty() && batch.size() < MAX_BATCH_SIZE) {
+            PendingMutation next = queue.removeFirst();
+            next.taken = true;
+            batch.add(next);
+          }
+          batchesInFlight++;
+        }
+        // Results are recorded here rather than in the pending mutations, to
+        // keep all writes to the mutations under the lock.
+        List<ServerMutateResponse> responses = null;
+        List<Exception> failures = null;
+        try {
+          Pair<List<ServerMutateResponse>, List<Exception>> results = sendBatch(batch);
+          responses = results.getFirst();
+          failures = results.getSecond();
+        } finally {
+          synchronized (this) {
+            batchesInFlight--;
+            for (int i = 0; i < batch.size(); i++) {
+              if (responses == null) {
+                batch.get(i).fail(new IOException("Batch to backend " + serverId + " failed"));
+              } else if (failures.get(i) != null) {
+                batch.get(i).fail(failures.get(i));
+              } else {
+                batch.get(i).succeed(responses.get(i));
+              }
+            }
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns, for each mutation in the batch, either a response or a failure
+     * (the other is null).
+     */
+    private Pair<List<ServerMutateResponse>, List<Exception>> sendBatch(
+        List<PendingMutation> batch) {
+      List<ServerMutateResponse> responses = Lists.newArrayList();
+      List<Exception> failures = Lists.newArrayList();
+      List<ServerMutateRequest> requests = Lists.newArrayList();
+      for (PendingMutation mutation : batch) {
+        requests.add(mutation.request);
+      }
+      List<StoreMutateBatch.Result> results;
+      try {
+        results = processBatchOnBackend(serverId, requests);
+      } catch (IOException e) {
+        results = null;
+        for (int i = 0; i < batch.size(); i++) {
+          responses.add(null);
+          failures.add(e);
+        }
+      } catch (RuntimeException e) {
+        results = null;
+        for (int i = 0; i < batch.size(); i++) {
+          responses.add(null);
+          failures.add(e);
+        }
+      }
+      if (results != null) {
+        for (StoreMutateBatch.Result result : results) {
+          switch (result.getStatus()) {
+            case OK:
+              try {
+                responses.add(GsonProto.fromGson(new ServerMutateResponseGsonImpl(),
+                    result.getData()));
+                failures.add(null);
+              } catch (MessageException e) {
+                responses.add(null);
+                failures.add(new RuntimeException(
+                    "Backend gave incompatible JSON: " + result.getData(), e));
+              }
+              break;
+            case INVALID:
+              responses.add(null);
+              failures.add(new InvalidStoreRequestException(result.getData()));
+              break;
+            case FAILED:
+              responses.add(null);
+              failures.add(new IOException(result.getData()));
+              break;
+            default:
+              throw new AssertionError("Unknown status: " + result);
+          }
+        }
+      }
+      return Pair.of(responses, failures);
+    }
+  }
+
   private static final String MEMCACHE_TAG = "OSM";
 
+  private static final int MAX_BATCHES_IN_FLIGHT = 4;
+  private static final int MAX_BATCH_SIZE = 50;
+
   // TODO(danilatos): Make these flags.
   private static final int AFFINITY_MIN_EXPIRATION_SECONDS = 30;
   private static final int AFFINITY_MAX_EXPIRATION_SECONDS = 45;
@@ -192,6 +370,8 @@ public class AffinityMutationProcessor {
   private final int numStoreServers;
   private final String storeServerName;
   private final MonitoringVars monitoring;
+  private final BackendBatcher[] batchers;
+  private final BackendHealth health;
 
   @Inject
   public AffinityMutationProcessor(
@@ -204,6 +384,7 @@ public class AffinityMutationProcessor {
       Secret secret,
       @StoreBackendInstanceCount int numStoreServers,
       @StoreBackendName String storeServer,
+      @StoreBackendOutlierEjection boolean outlierEjection,
       MonitoringVars monitoring) {
     this.random = random;
     this.random64 = random64;
@@ -215,6 +396,11 @@ public class AffinityMutationProcessor {
     this.numStoreServers = numStoreServers;
     this.storeServerName = storeServer;
     this.monitoring = monitoring;
+    this.batchers = new BackendBatcher[numStoreServers];
+    for (int i = 0; i < numStoreServers; i++) {
+      batchers[i] = new BackendBatcher(i);
+    }
+    this.health = new BackendHealth(numStoreServers, outlierEjection);
   }
 
   public ServerMutateResponse mutateObject(ServerMutateRequest req) throws IOException {
@@ -294,12 +480,25 @@ public class AffinityMutationProcessor {
     int serverId;
 
     Integer maybeServerId = objectServerMappings.get(objectId);
-    if (maybeServerId != null) {
+    if (maybeServerId != null && health.isEjected(maybeServerId)) {
+      // Move the object, even though another frontend might still be sending
+      // mutations to the old backend; they would only contend on the entity
+      // group until their mapping expires or they notice the ejection, too.
+      int newServerId = health.chooseBackend(random);
+      log.info("Mapping for " + objectId + " is to ejected backend " + maybeServerId
+          + ", moving to " + newServerId + "; " + health);
+      monitoring.incrementCounter("affinity-mapping-moved-from-ejected-backend");
+      objectServerMappings.put(objectId, newServerId,
+          Expiration.byDeltaSeconds(AFFINITY_MIN_EXPIRATION_SECONDS), SetPolicy.SET_ALWAYS);
+      // Treat it as a new mapping, so that we fall back to processing
+      // locally rather than backing off if the new backend fails, too.
+      return Pair.of(false, newServerId);
+    } else if (maybeServerId != null) {
       wasMapped = true;
       serverId = maybeServerId;
       monitoring.incrementCounter("affinity-mapping-found");
     } else {
-      int newServerId = random.nextInt(numStoreServers);
+      int newServerId = health.chooseBackend(random);
       int expiration = AFFINITY_MIN_EXPIRATION_SECONDS
           + random.nextInt(AFFINITY_EXPIRATION_SPREAD_SECONDS);
       log.info("No mapping for " + objectId + ", generated " + newServerId +
@@ -331,25 +530,50 @@ public class AffinityMutationProcessor {
 
   private ServerMutateResponse processOnBackend(int serverId, ServerMutateRequest req)
       throws IOException {
+    return batchers[serverId].mutate(req);
+  }
+
+  private List<StoreMutateBatch.Result> processBatchOnBackend(int serverId,
+      List<ServerMutateRequest> requests) throws IOException {
     String base = "http://" + backends.getBackendAddress(storeServerName, serverId);
     // For debugging, to match up requests in the logs.
-    String requestId = random64.next(10) + "____" + req.getSession().getObjectId();
+    String requestId = random64.next(10) + "____" + requests.size();
     log.info("Using backend " + base + " for requestId " + requestId);
+    monitoring.incrementCounter("affinity-backend-batches");
+    monitoring.incrementCounter("affinity-backend-batched-mutations", requests.size());
 
     PostRequest post = new PostRequest();
     post.urlParam("requestId", requestId);
-    post.postParam("req", GsonProto.toJson((GsonSerializable) req));
-
-    String response = post.send(Util.pathCat(base, "store/mutate"));
-    if (!response.startsWith("OK")) {
-      throw new RuntimeException("Backend gave junk " + response);
-    }
-
+    Stopwatch stopwatch = new Stopwatch().start();
+    // Transport errors, 5xx responses and junk fail the whole request; after
+    // that, only the fraction of mutations that failed counts against the
+    // backend, so one bad mutation doesn't look like a broken backend.
+    double failedFraction = 1;
+    health.requestStarted(serverId);
     try {
-      return GsonProto.fromGson(new ServerMutateResponseGsonImpl(),
-          response.substring(2));
-    } catch (MessageException e) {
-      throw new RuntimeException("Backend gave incompatible JSON: " + response, e);
+      byte[] response = post.send(Util.pathCat(base, "store/mutatebatch"),
+          StoreMutateBatch.CONTENT_TYPE, StoreMutateBatch.encodeRequests(requests));
+
+      List<StoreMutateBatch.Result> results;
+      try {
+        results = StoreMutateBatch.decodeResults(response);
+      } catch (IOException e) {
+        throw new RuntimeException("Backend gave junk: " + response.length + " bytes", e);
+      }
+      if (results.size() != requests.size()) {
+        throw new RuntimeException("Backend gave " + results.size() + " results for "
+            + requests.size() + " requests");
+      }
+      int failedCount = 0;
+      for (StoreMutateBatch.Result result : results) {
+        if (result.getStatus() == StoreMutateBatch.Status.FAILED) {
+          failedCount++;
+        }
+      }
+      failedFraction = results.isEmpty() ? 0 : (double) failedCount / results.size();
+      return results;
+    } finally {
+      health.requestFinished(serverId, stopwatch.elapsedMillis(), failedFraction);
     }
   }
 
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * What this instance has observed about the health of each store backend:
+ * exponentially weighted moving averages of latency and error rate, and the
+ * number of requests currently in flight.  Used to place new objects on
+ * backends that are doing well, and optionally to stop placing objects on
+ * backends that are doing much worse than the others for a while.
+ *
+ * Each frontend instance learns on its own; nothing is shared.
+ *
+ * Thread-safe.
+ */
+public class BackendHealth {
+
+  private static final Logger log = Logger.getLogger(BackendHealth.class.getName());
+
+  /** Weight of each new sample in the moving averages. */
+  private static final double ALPHA = 0.2;
+  /** Latency assumed for backends we have no samples for. */
+  private static final double INITIAL_LATENCY_MILLIS = 100;
+
+  /** A backend whose error rate exceeds this is ejected... */
+  private static final double EJECTION_ERROR_RATE = 0.5;
+  /** ...as is one whose latency exceeds the median by this factor... */
+  private static final double EJECTION_LATENCY_FACTOR = 5;
+  /** ...and this absolute amount. */
+  private static final double EJECTION_MIN_LATENCY_MILLIS = 1000;
+  private static final long EJECTION_MILLIS = 30 * 1000;
+  /** At most this fraction of backends is ejected at any time. */
+  private static final double MAX_EJECTED_FRACTION = 0.5;
+
+  private final int numBackends;
+  private final boolean outlierEjection;
+
+  // All guarded by this.
+  private final double[] latencyMillis;
+  private final double[] errorRate;
+  private final int[] inFlight;
+  private final long[] ejectedUntilMillis;
+
+  public BackendHealth(int numBackends, boolean outlierEjection) {
+    Preconditions.checkArgument(numBackends >= 0, "numBackends = %s", numBackends);
+    this.numBackends = numBackends;
+    this.outlierEjection = outlierEjection;
+    latencyMillis = new double[numBackends];
+    Arrays.fill(latencyMillis, INITIAL_LATENCY_MILLIS);
+    errorRate = new double[numBackends];
+    inFlight = new int[numBackends];
+    ejectedUntilMillis = new long[numBackends];
+  }
+
+  /** To be called when a request to {@code backend} starts. */
+  public synchronized void requestStarted(int backend) {
+    inFlight[backend]++;
+  }
+
+  /** To be called when a request to {@code backend} completes or fails. */
+  public void requestFinished(int backend, long latency, boolean failed) {
+    requestFinished(backend, latency, failed ? 1 : 0);
+  }
+
+  /**
+   * To be called when a request to {@code backend} completes.
+   *
+   * @param failedFraction the fraction of the work in the request that
+   *          failed: 1 if the request as a whole failed, otherwise e.g. the
+   *          fraction of failed items in a batch.
+   */
+  public synchronized void requestFinished(int backend, long latency, double failedFraction) {
+    Preconditions.checkArgument(failedFraction >= 0 && failedFraction <= 1,
+        "failedFraction = %s", failedFraction);
+    inFlight[backend]--;
+    latencyMillis[backend] = (1 - ALPHA) * latencyMillis[backend] + ALPHA * latency;
+    errorRate[backend] = (1 - ALPHA) * errorRate[backend] + ALPHA * failedFraction;
+    if (outlierEjection) {
+      maybeEject(backend, System.currentTimeMillis());
+    }
+  }
+
+  private boolean isEjected(int backend, long now) {
+    return ejectedUntilMillis[backend] > now;
+  }
+
+  private double medianLatency() {
+    double[] sorted = latencyMillis.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  private void maybeEject(int backend, long now) {
+    if (isEjected(backend, now)) {
+      return;
+    }
+    boolean erroring = errorRate[backend] > EJECTION_ERROR_RATE;
+    boolean slow = latencyMillis[backend] > EJECTION_MIN_LATENCY_MILLIS
+        && latencyMillis[backend] > EJECTION_LATENCY_FACTOR * medianLatency();
+    if (!erroring && !slow) {
+      return;
+    }
+    int ejected = 0;
+    for (int i = 0; i < numBackends; i++) {
+      if (isEjected(i, now)) {
+        ejected++;
+      }
+    }
+    if (ejected + 1 > MAX_EJECTED_FRACTION * numBackends) {
+      log.warning("Not ejecting backend " + backend + ", " + ejected + " already ejected");
+      return;
+    }
+    log.warning("Ejecting backend " + backend + " for " + EJECTION_MILLIS + "ms: "
+        + describe(backend));
+    ejectedUntilMillis[backend] = now + EJECTION_MILLIS;
+    // Give it a fresh start when it comes back; otherwise, it would be
+    // ejected again on its first request.
+    errorRate[backend] = 0;
+    latencyMillis[backend] = medianLatency();
+  }
+
+  public synchronized boolean isEjected(int backend) {
+    return isEjected(backend, System.currentTimeMillis());
+  }
+
+  /** Lower is better. */
+  private double score(int backend) {
+    return latencyMillis[backend] * (1 + inFlight[backend]) / (1.001 - errorRate[backend]);
+  }
+
+  /**
+   * Picks a backend for a new object: the better of two random backends that
+   * aren't ejected.  (Always picking the best one would make every frontend
+   * send all new objects to the same backend until its numbers caught up.)
+   */
+  public synchronized int chooseBackend(Random random) {
+    Preconditions.checkState(numBackends > 0, "No backends");
+    long now = System.currentTimeMillis();
+    int first = randomBackend(random, now);
+    int second = randomBackend(random, now);
+    return score(first) <= score(second) ? first : second;
+  }
+
+  private int randomBackend(Random random, long now) {
+    // Ejection is capped, so this terminates quickly with high probability;
+    // bound it anyway.
+    for (int attempt = 0; attempt < 10; attempt++) {
+      int backend = random.nextInt(numBackends);
+      if (!isEjected(backend, now)) {
+        return backend;
+      }
+    }
+    return random.nextInt(numBackends);
+  }
+
+  private String describe(int backend) {
+    return "latency " + Math.round(latencyMillis[backend]) + "ms, error rate "
+        + Math.round(100 * errorRate[backend]) + "%, " + inFlight[backend] + " in flight";
+  }
+
+  @Override public synchronized String toString() {
+    StringBuilder b = new StringBuilder("BackendHealth(");
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < numBackends; i++) {
+      b.append((i == 0 ? "" : "; ") + i + ": " + describe(i)
+          + (isEjected(i, now) ? ", ejected" : ""));
+    }
+    return b + ")";
+  }
+
+}
@@ -16,11 +16,11 @@
 
 package com.google.walkaround.slob.server;
 
-import com.google.common.base.Function;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapMaker;
 import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -45,19 +45,25 @@ import com.google.walkaround.util.server.writebatch.BatchingUpdateProcessor;
 import com.google.walkaround.util.server.writebatch.TransactionFactory;
 import com.google.walkaround.util.server.writebatch.UpdateResult;
 import com.google.walkaround.util.server.writebatch.UpdateTransaction;
-import com.google.walkaround.util.shared.ConcatenatingList;
+import com.google.walkaround.util.shared.Assert;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * Accepts mutations on objects.
  *
@@ -79,6 +85,18 @@ public class LocalMutationProcessor {
   /** A soft limit on the number of ops the server is willing save in a single batch */
   private static final long MAX_BATCH_SIZE = 99;
 
+  /**
+   * Soft limit on the number of objects we keep actors for; actors that are in
+   * use are never evicted.
+   */
+  private static final int DEFAULT_MAX_LIVE_ACTORS = 500;
+  /** Actors that haven't been used for this long are evicted. */
+  private static final long DEFAULT_MAX_IDLE_MILLIS = 10 * 60 * 1000;
+  /** Number of recent deltas kept in an actor's warm state, for transforms. */
+  private static final int WARM_TAIL_SIZE = 100;
+  /** Warm states larger than this are dropped, to bound memory use. */
+  private static final long MAX_WARM_STATE_BYTES = 256 * 1000;
+
   // TODO(danilatos): Give these inner classes a bit of a manicure, after
   // figuring out exactly what it is that bugs me about them.
 
@@ -168,58 +186,119 @@ public class LocalMutationProcessor {
   }
 
   /**
-   * A subsequence of the delta history that can be extended in both directions.
+   * A list backed by a circular array that can grow at both ends, with
+   * constant-time random access.  (ArrayDeque doesn't expose get(int).)
    */
-  private class TransformDeltaCache {
-    private final DeltaIterator reverseDeltaIterator;
-    // Too bad ArrayDeque does not expose get(int) or perhaps even an
-    // unmodifiable subList(); we could use that rather than doing all this.
-    private final List<ChangeData<String>> onDiskDeltasReverse = Lists.newArrayList();
-    /** Deltas added during this transaction. */
-    private final List<ChangeData<String>> newDeltas = Lists.newArrayList();
-    /**
-     * A view over the reverse and forward deltas for conveniently allowing
-     * uniform access and traversal.
-     */
-    private final List<ChangeData<String>> deltas = ConcatenatingList.of(
-        Lists.reverse(onDiskDeltasReverse), newDeltas);
-    private final long onDiskVersion;
+  private static class DeltaRing extends AbstractList<ChangeData<String>> {
+    private Object[] elements = new Object[16];
+    private int head = 0;
+    private int size = 0;
 
-    /** @param reverseTailDeltas must start at onDiskVersion (and then go back). */
-    TransformDeltaCache(long onDiskVersion,
-        List<ChangeData<String>> reverseTailDeltas,
-        DeltaIterator reverseDeltaIterator) {
-      this.onDiskVersion = onDiskVersion;
-      onDiskDeltasReverse.addAll(reverseTailDeltas);
-      this.reverseDeltaIterator = reverseDeltaIterator;
+    private void ensureCapacity(int needed) {
+      if (needed <= elements.length) {
+        return;
+      }
+      Object[] grown = new Object[Math.max(needed, elements.length * 2)];
+      for (int i = 0; i < size; i++) {
+        grown[i] = elements[(head + i) % elements.length];
+      }
+      elements = grown;
+      head = 0;
+    }
+
+    void addFirst(ChangeData<String> delta) {
+      ensureCapacity(size + 1);
+      head = (head - 1 + elements.length) % elements.length;
+      elements[head] = Preconditions.checkNotNull(delta, "Null delta");
+      size++;
+    }
+
+    void addLast(ChangeData<String> delta) {
+      ensureCapacity(size + 1);
+      elements[(head + size) % elements.length] = Preconditions.checkNotNull(delta, "Null delta");
+      size++;
     }
 
-    private long minVersion() {
-      return onDiskVersion - onDiskDeltasReverse.size();
+    @SuppressWarnings("unchecked")
+    @Override public ChangeData<String> get(int index) {
+      Preconditions.checkElementIndex(index, size);
+      return (ChangeData<String>) elements[(head + index) % elements.length];
+    }
+
+    @Override public int size() {
+      return size;
+    }
+  }
+
+  /**
+   * A subsequence of the delta history, ending at the staged version, that can
+   * be extended in both directions.  Older deltas are loaded with one bounded
+   * query per extension rather than one datastore batch at a time.
+   */
+  private class TransformDeltaCache {
+    private final MutationLog mutationLog;
+    private final DeltaRing deltas = new DeltaRing();
+    /** The version that the first delta in {@code deltas} applies to. */
+    private long minVersion;
+    /** Number of deltas added during this transaction. */
+    private int newDeltaCount = 0;
+
+    /** @param reverseTailDeltas must start at onDiskVersion (and then go back). */
+    TransformDeltaCache(MutationLog mutationLog, long onDiskVersion,
+        List<ChangeData<String>> reverseTailDeltas) {
+      this.mutationLog = mutationLog;
+      for (ChangeData<String> delta : reverseTailDeltas) {
+        deltas.addFirst(delta);
+      }
+      minVersion = onDiskVersion - reverseTailDeltas.size();
     }
 
     public List<ChangeData<String>> getNewDeltas() {
-      return Collections.unmodifiableList(newDeltas);
+      return Collections.unmodifiableList(
+          deltas.subList(deltas.size() - newDeltaCount, deltas.size()));
     }
 
     public void append(ChangeData<String> delta) {
-      newDeltas.add(delta);
+      deltas.addLast(delta);
+      newDeltaCount++;
     }
 
-    private void ensureDeltasLoadedFrom(long version) throws PermanentFailure, RetryableFailure {
-      while (version < minVersion()) {
-        onDiskDeltasReverse.add(reverseDeltaIterator.next());
+    public boolean isLoadedFrom(long version) {
+      return version >= minVersion;
+    }
+
+    /** Loads the deltas from {@code version} up to what we have, in one query. */
+    public void loadFrom(long version) throws PermanentFailure, RetryableFailure {
+      if (isLoadedFrom(version)) {
+        return;
       }
+      int count = Ints.checkedCast(minVersion - version);
+      log.info("Loading " + count + " deltas from " + version);
+      DeltaIterator it = mutationLog.reverseHistory(version, minVersion,
+          FetchOptions.Builder.withLimit(count).chunkSize(count).prefetchSize(count));
+      while (it.hasNext()) {
+        deltas.addFirst(it.next());
+        minVersion--;
+      }
+      Assert.check(minVersion == version, "Loading from %s ended at %s", version, minVersion);
+    }
+
+    /** Returns up to {@code max} of the most recent deltas, most recent first. */
+    public List<ChangeData<String>> recentReverse(int max) {
+      return ImmutableList.copyOf(Lists.reverse(
+          deltas.subList(Math.max(0, deltas.size() - max), deltas.size())));
     }
 
     public List<ChangeData<String>> suffix(long fromVersion)
         throws PermanentFailure, RetryableFailure {
-      ensureDeltasLoadedFrom(fromVersion);
-      return deltas.subList(Ints.checkedCast(fromVersion - minVersion()), deltas.size());
+      loadFrom(fromVersion);
+      return Collections.unmodifiableList(
+          deltas.subList(Ints.checkedCast(fromVersion - minVersion), deltas.size()));
     }
- }
+  }
 
   private class Tx implements UpdateTransaction<Update, UpResult> {
+    private final ObjectActor actor;
     private final SlobId objectId;
     private final CheckedTransaction tx;
     private final MutationLog.Appender appender;
@@ -230,28 +309,48 @@ public class LocalMutationProcessor {
      * that carries extra info. See MutateResult.
      */
     private UpResult lastResult = null;
+    /** Number of updates passed to processUpdate(), including rejected ones. */
+    private int updatesSeen = 0;
 
-    Tx(SlobId objectId, CheckedTransaction tx) throws PermanentFailure, RetryableFailure {
-      this.objectId = objectId;
+    Tx(ObjectActor actor, CheckedTransaction tx) throws PermanentFailure, RetryableFailure {
+      this.actor = actor;
+      this.objectId = actor.objectId;
       this.tx = tx;
       MutationLog mutationLog = mutationLogFactory.create(tx, objectId);
-      MutationLog.AppenderAndCachedDeltas prepared = mutationLog.prepareAppender();
+      MutationLog.WarmState warmState = actor.warmState;
+      MutationLog.AppenderAndCachedDeltas prepared = mutationLog.prepareAppender(warmState);
+      monitoring.incrementCounter(warmState == null ? "object-actor-warm-state-absent"
+          : prepared.isFromWarmState() ? "object-actor-warm-state-hit"
+          : "object-actor-warm-state-stale");
       appender = prepared.getAppender();
       onDiskVersion = appender.getStagedVersion();
-      deltaCache = new TransformDeltaCache(onDiskVersion,
-          prepared.getReverseDeltasRead(),
-          prepared.getReverseDeltaIterator());
+      deltaCache = new TransformDeltaCache(mutationLog, onDiskVersion,
+          prepared.getReverseDeltasRead());
+      prefetchDeltas();
+    }
+
+    /**
+     * Loads, in one query, the deltas that the updates currently waiting on
+     * this object will be transformed against, up to MAX_TAIL_SIZE.
+     */
+    private void prefetchDeltas() throws PermanentFailure, RetryableFailure {
+      long minBaseVersion = onDiskVersion;
+      for (Update update : actor.pendingUpdates) {
+        minBaseVersion = Math.min(minBaseVersion, update.version);
+      }
+      long from = Math.max(minBaseVersion, Math.max(0, onDiskVersion - MAX_TAIL_SIZE));
+      if (!deltaCache.isLoadedFrom(from)) {
+        monitoring.incrementCounter("object-update-delta-prefetch");
+        deltaCache.loadFrom(from);
+      }
     }
 
     @Override
     public UpResult processUpdate(Update update)
-        throws BatchTooLargeException,
-        // TODO(danilatos): also throw BatchTooLargeException for updates that both
-        // 1) were not in the waiting items when the transaction started.
-        // 2) end up requiring an actual rpc to the datastore to fetch more data.
-        // But also: can use memcache to fetch more data.
-        RetryableFailure, PermanentFailure {
+        throws BatchTooLargeException, RetryableFailure, PermanentFailure {
       log.info("processUpdate " + update.toString(false));
+      boolean firstUpdate = updatesSeen == 0;
+      updatesSeen++;
       Preconditions.checkArgument(objectId.equals(update.objectId),
           "Object id %s does not match update %s", objectId, update);
 
@@ -276,6 +375,15 @@ public class LocalMutationProcessor {
         monitoring.incrementCounter("submitdelta-update-too-far-in-the-past");
       }
 
+      if (!firstUpdate && !deltaCache.isLoadedFrom(update.version)) {
+        // The update wasn't waiting when we prefetched, and would need another
+        // datastore round trip in the middle of everyone else's batch.  Leave
+        // it for the next batch, where it will come first.
+        monitoring.incrementCounter("object-update-deferred-for-delta-fetch");
+        throw new BatchTooLargeException("Update " + update.toString(false)
+            + " needs deltas from before " + appender.getStagedVersion());
+      }
+
       log.info("Getting suffix..."); // Log on either side to time possible RPC.
       List<ChangeData<String>> concurrent = deltaCache.suffix(update.version);
       log.info("Got suffix of size " + concurrent.size());
@@ -344,6 +452,11 @@ public class LocalMutationProcessor {
         throw e;
       }
       log.info("Commit successful");
+      MutationLog.WarmState warmState =
+          appender.getWarmState(deltaCache.recentReverse(WARM_TAIL_SIZE));
+      actor.warmState = warmState.estimatedBytes() <= MAX_WARM_STATE_BYTES ? warmState : null;
+      snapshotCache.put(objectId, new SlobSnapshotCache.VersionedSnapshot(
+          warmState.getVersion(), warmState.getSnapshot()));
 
       if (lastResult != null) {
         List<ChangeData<String>> deltasToBroadcast = deltaCache.getNewDeltas();
@@ -373,30 +486,129 @@ public class LocalMutationProcessor {
   private final CheckedDatastore datastore;
   private final MonitoringVars monitoring;
   private final PreCommitHook preCommitHook;
-  private final Map<SlobId, Processor> processors = new MapMaker()
-      .weakValues()
-      .makeComputingMap(new Function<SlobId, Processor>() {
-        @Override public Processor apply(final SlobId id) {
-          log.info("Creating new Processor for " + id);
-          return new Processor(
-              new TransactionFactory<UpResult, Tx>() {
-                @Override public Tx beginTransaction() throws RetryableFailure, PermanentFailure {
-                  return new Tx(id, datastore.beginTransaction());
-                }
-              }, new RetryHelper());
-        }
-      });
+  private final SlobSnapshotCache snapshotCache;
+  private final int maxLiveActors;
+  private final long maxIdleMillis;
+  /**
+   * Everything we keep in memory about an object between requests: the
+   * processor that batches concurrent mutations, and the object's state and
+   * recent deltas as of the last commit we made.
+   */
+  private class ObjectActor {
+    private final SlobId objectId;
+    private final Processor processor;
+    // Only accessed by the processor's combiner thread, but that changes.
+    @Nullable private volatile MutationLog.WarmState warmState = null;
+    /** Updates that have been submitted to the processor and are not done yet. */
+    private final Set<Update> pendingUpdates =
+        Collections.newSetFromMap(new ConcurrentHashMap<Update, Boolean>());
+    // Guarded by actors.
+    private int users = 0;
+    private long lastUsedMillis;
+
+    ObjectActor(final SlobId objectId) {
+      this.objectId = objectId;
+      this.processor = new Processor(
+          new TransactionFactory<UpResult, Tx>() {
+            @Override public Tx beginTransaction() throws RetryableFailure, PermanentFailure {
+              return new Tx(ObjectActor.this, datastore.beginTransaction());
+            }
+          }, new RetryHelper());
+    }
+
+    @Override public String toString() {
+      return "ObjectActor(" + objectId + ", " + warmState + ", " + users + " users)";
+    }
+  }
+
+  // Access order, so that iteration starts with the least recently used actor.
+  // Guarded by itself.
+  private final LinkedHashMap<SlobId, ObjectActor> actors =
+      new LinkedHashMap<SlobId, ObjectActor>(16, 0.75f, true);
 
   @Inject
   public LocalMutationProcessor(SlobModel model,
       MutationLogFactory mutationLogFactory, CheckedDatastore datastore,
       MonitoringVars monitoring,
-      PreCommitHook preCommitHook) {
+      PreCommitHook preCommitHook,
+      SlobSnapshotCache snapshotCache) {
+    this(model, mutationLogFactory, datastore, monitoring, preCommitHook, snapshotCache,
+        DEFAULT_MAX_LIVE_ACTORS, DEFAULT_MAX_IDLE_MILLIS);
+  }
+
+  @VisibleForTesting
+  LocalMutationProcessor(SlobModel model,
+      MutationLogFactory mutationLogFactory, CheckedDatastore datastore,
+      MonitoringVars monitoring,
+      PreCommitHook preCommitHook,
+      SlobSnapshotCache snapshotCache,
+      int maxLiveActors, long maxIdleMillis) {
     this.model = model;
     this.mutationLogFactory = mutationLogFactory;
     this.datastore = datastore;
     this.monitoring = monitoring;
     this.preCommitHook = preCommitHook;
+    this.snapshotCache = snapshotCache;
+    this.maxLiveActors = maxLiveActors;
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  private ObjectActor acquireActor(SlobId objectId) {
+    long now = System.currentTimeMillis();
+    synchronized (actors) {
+      ObjectActor actor = actors.get(objectId);
+      if (actor == null) {
+        monitoring.incrementCounter("object-actor-miss");
+        actor = new ObjectActor(objectId);
+        actors.put(objectId, actor);
+      } else {
+        monitoring.incrementCounter("object-actor-hit");
+      }
+      actor.users++;
+      actor.lastUsedMillis = now;
+      evictActors(now);
+      return actor;
+    }
+  }
+
+  private void releaseActor(ObjectActor actor) {
+    synchronized (actors) {
+      actor.users--;
+      actor.lastUsedMillis = System.currentTimeMillis();
+    }
+  }
+
+  private void discardActor(ObjectActor actor) {
+    synchronized (actors) {
+      if (actors.get(actor.objectId) == actor) {
+        actors.remove(actor.objectId);
+      }
+    }
+  }
+
+  // Caller must hold actors.
+  private void evictActors(long now) {
+    Iterator<ObjectActor> it = actors.values().iterator();
+    while (it.hasNext()) {
+      ObjectActor actor = it.next();
+      boolean idle = now - actor.lastUsedMillis > maxIdleMillis;
+      if (!idle && actors.size() <= maxLiveActors) {
+        // The remaining actors were used more recently.
+        break;
+      }
+      if (actor.users == 0) {
+        log.info("Evicting " + actor + (idle ? ", idle" : ", over capacity"));
+        monitoring.incrementCounter("object-actor-evicted");
+        it.remove();
+      }
+    }
+  }
+
+  /** The number of objects we currently keep actors for. */
+  public int getLiveActorCount() {
+    synchronized (actors) {
+      return actors.size();
+    }
   }
 
   private String jsonBroadcastData(SlobId objectId, JSONArray broadcastData) {
@@ -422,10 +634,19 @@ public class LocalMutationProcessor {
     log.info("mutateObject, update=" + update);
 
     UpResult result;
+    ObjectActor actor = acquireActor(objectId);
+    actor.pendingUpdates.add(update);
     try {
-      result = processors.get(objectId).processUpdate(update);
+      result = actor.processor.processUpdate(update);
     } catch (PermanentFailure e) {
       throw new IOException(e);
+    } catch (Error e) {
+      // The processor is unusable now.
+      discardActor(actor);
+      throw e;
+    } finally {
+      actor.pendingUpdates.remove(update);
+      releaseActor(actor);
     }
 
     if (result.isRejected()) {
@@ -16,6 +16,7 @@
 
 package com.google.walkaround.slob.server;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
@@ -37,6 +38,7 @@ import com.google.walkaround.slob.shared.InvalidSnapshot;
 import com.google.walkaround.slob.shared.SlobId;
 import com.google.walkaround.slob.shared.SlobModel;
 import com.google.walkaround.slob.shared.SlobModel.ReadableSlob;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
 import com.google.walkaround.slob.shared.StateAndVersion;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
@@ -78,6 +80,8 @@ public class MutationLog {
   @VisibleForTesting static final String DELTA_CLIENT_ID_PROPERTY = "sid";
   @VisibleForTesting static final String SNAPSHOT_DATA_PROPERTY = "Data";
   private static final String METADATA_PROPERTY = "Metadata";
+  // Indexed so that objects whose creation never finished can be found.
+  private static final String INCOMPLETE_PROPERTY = "Incomplete";
 
   // Datastore does not allow ids to be 0.
 
@@ -302,13 +306,17 @@ public class MutationLog {
     private long estimatedBytesStaged = 0;
     private long mostRecentSnapshotBytes;
     private long totalDeltaBytesSinceSnapshot;
+    // Snapshot of state, if known; append() computes it anyway.
+    @Nullable private String stagedSnapshot;
 
     private Appender(StateAndVersion state,
         long mostRecentSnapshotBytes,
-        long totalDeltaBytesSinceSnapshot) {
+        long totalDeltaBytesSinceSnapshot,
+        @Nullable String stagedSnapshot) {
       this.state = state;
       this.mostRecentSnapshotBytes = mostRecentSnapshotBytes;
       this.totalDeltaBytesSinceSnapshot = totalDeltaBytesSinceSnapshot;
+      this.stagedSnapshot = stagedSnapshot;
     }
 
     /**
@@ -329,6 +337,7 @@ public class MutationLog {
       // implement size limits.
       SnapshotEntry snapshotEntry = new SnapshotEntry(
           objectId, state.getVersion(), state.getState().snapshot());
+      stagedSnapshot = snapshotEntry.snapshot;
       long snapshotBytes = estimateSizeBytes(snapshotEntry);
       log.info("Object now at version " + state.getVersion() + "; snapshotBytes=" + snapshotBytes
           + ", mostRecentSnapshotBytes=" + mostRecentSnapshotBytes
@@ -388,6 +397,26 @@ public class MutationLog {
       return !stagedDeltaEntries.isEmpty();
     }
 
+    /**
+     * Returns the staged state in a form that can be passed to
+     * {@link MutationLog#prepareAppender(WarmState)} in a later transaction.
+     * Only meaningful once the staged deltas have been committed.  The live
+     * model object goes with it, so this appender must not be used to append
+     * any more.
+     *
+     * @param reverseTail the most recent deltas, most recent first, ending
+     *     with the delta that produced the staged version
+     */
+    public WarmState getWarmState(List<ChangeData<String>> reverseTail) {
+      Preconditions.checkArgument(reverseTail.size() <= state.getVersion(),
+          "Tail of %s deltas longer than history: %s", reverseTail.size(), state.getVersion());
+      if (stagedSnapshot == null) {
+        stagedSnapshot = state.getState().snapshot();
+      }
+      return new WarmState(state.getVersion(), stagedSnapshot, state.getState(),
+          mostRecentSnapshotBytes, totalDeltaBytesSinceSnapshot, reverseTail);
+    }
+
     /**
      * Returns the index data of the model at head state (including staged mutations).
      */
@@ -490,16 +519,19 @@ public class MutationLog {
     private final Appender appender;
     private final List<ChangeData<String>> reverseDeltasRead;
     private final DeltaIterator reverseDeltaIterator;
+    private final boolean fromWarmState;
 
     public AppenderAndCachedDeltas(Appender appender,
         List<ChangeData<String>> reverseDeltasRead,
-        DeltaIterator reverseDeltaIterator) {
+        DeltaIterator reverseDeltaIterator,
+        boolean fromWarmState) {
       Preconditions.checkNotNull(appender, "Null appender");
       Preconditions.checkNotNull(reverseDeltasRead, "Null reverseDeltasRead");
       Preconditions.checkNotNull(reverseDeltaIterator, "Null reverseDeltaIterator");
       this.appender = appender;
       this.reverseDeltasRead = reverseDeltasRead;
       this.reverseDeltaIterator = reverseDeltaIterator;
+      this.fromWarmState = fromWarmState;
     }
 
     public Appender getAppender() {
@@ -514,15 +546,87 @@ public class MutationLog {
       return reverseDeltaIterator;
     }
 
+    /** Whether the appender was prepared from a {@link WarmState}. */
+    public boolean isFromWarmState() {
+      return fromWarmState;
+    }
+
     @Override public String toString() {
       return "AppenderAndCachedDeltas("
           + appender + ", "
           + reverseDeltasRead + ", "
-          + reverseDeltaIterator
+          + reverseDeltaIterator + ", "
+          + fromWarmState
           + ")";
     }
   }
 
+  /**
+   * An object's state at some version, as left behind by an {@link Appender}
+   * whose transaction committed.  Lets a later {@link #prepareAppender} for the
+   * same object skip reading the snapshot and the deltas since, as long as
+   * nobody else has modified the object in the meantime.
+   *
+   * The model object itself is kept too, together with whatever it caches,
+   * and handed to the first appender that uses this state; appenders after
+   * that (e.g. if the first one's transaction failed) start from the
+   * snapshot.
+   *
+   * Thread-safe.
+   */
+  public static final class WarmState {
+    private final long version;
+    private final String snapshot;
+    // Guarded by this.
+    @Nullable private Slob liveState;
+    private final long mostRecentSnapshotBytes;
+    private final long totalDeltaBytesSinceSnapshot;
+    private final ImmutableList<ChangeData<String>> reverseTail;
+
+    private WarmState(long version, String snapshot, Slob liveState,
+        long mostRecentSnapshotBytes, long totalDeltaBytesSinceSnapshot,
+        List<ChangeData<String>> reverseTail) {
+      this.version = version;
+      this.snapshot = Preconditions.checkNotNull(snapshot, "Null snapshot");
+      this.liveState = Preconditions.checkNotNull(liveState, "Null liveState");
+      this.mostRecentSnapshotBytes = mostRecentSnapshotBytes;
+      this.totalDeltaBytesSinceSnapshot = totalDeltaBytesSinceSnapshot;
+      this.reverseTail = ImmutableList.copyOf(reverseTail);
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getSnapshot() {
+      return snapshot;
+    }
+
+    /** Returns the live model object, or null if it has been taken before. */
+    @Nullable private synchronized Slob takeLiveState() {
+      Slob taken = liveState;
+      liveState = null;
+      return taken;
+    }
+
+    /**
+     * A rough estimate of the memory this state takes up.  The live model
+     * object is assumed to take about as much as its snapshot.
+     */
+    public long estimatedBytes() {
+      long bytes = 2 * snapshot.length();
+      for (ChangeData<String> delta : reverseTail) {
+        bytes += delta.getPayload().length();
+      }
+      return bytes;
+    }
+
+    @Override public String toString() {
+      return "WarmState(" + version + ", " + snapshot.length() + " chars, "
+          + reverseTail.size() + " deltas)";
+    }
+  }
+
   private void checkDeltaDoesNotExist(long version) throws RetryableFailure, PermanentFailure {
     // This check is not necessary but let's be paranoid.
     // TODO(danilatos): Make this async and check the result on flush() to
@@ -540,14 +644,68 @@ public class MutationLog {
    * {@code Appender}, to avoid redudant datastore reads.
    */
   public AppenderAndCachedDeltas prepareAppender() throws PermanentFailure, RetryableFailure {
+    return prepareAppender(null);
+  }
+
+  /**
+   * Like {@link #prepareAppender()}, but starts from {@code warmState} rather
+   * than from what is on disk if the object is still at the warm state's
+   * version.  In that case, only the most recent delta is read; the deltas
+   * before the warm state's tail are read lazily, if the caller asks the
+   * returned iterator for them.
+   */
+  public AppenderAndCachedDeltas prepareAppender(@Nullable WarmState warmState)
+      throws PermanentFailure, RetryableFailure {
+    if (warmState != null) {
+      long currentVersion = getVersion();
+      if (currentVersion == warmState.version) {
+        log.info("Prepared appender from warm state " + warmState);
+        checkDeltaDoesNotExist(currentVersion);
+        final long tailStartVersion = warmState.version - warmState.reverseTail.size();
+        Slob liveState = warmState.takeLiveState();
+        return new AppenderAndCachedDeltas(
+            new Appender(
+                liveState != null ? new StateAndVersion(liveState, warmState.version)
+                    : createObject(
+                        new SnapshotEntry(objectId, warmState.version, warmState.snapshot)),
+                warmState.mostRecentSnapshotBytes, warmState.totalDeltaBytesSinceSnapshot,
+                warmState.snapshot),
+            warmState.reverseTail,
+            new DeltaIterator(new CheckedIterator() {
+                private CheckedIterator delegate = null;
+
+                private CheckedIterator delegate() throws PermanentFailure, RetryableFailure {
+                  if (delegate == null) {
+                    delegate = queryDeltas(0, tailStartVersion,
+                        FetchOptions.Builder.withDefaults(), false);
+                  }
+                  return delegate;
+                }
+
+                @Override public boolean hasNext() throws PermanentFailure, RetryableFailure {
+                  return delegate().hasNext();
+                }
+
+                @Override public Entity next() throws PermanentFailure, RetryableFailure {
+                  return delegate().next();
+                }
+
+                @Override public Cursor getCursor() throws PermanentFailure, RetryableFailure {
+                  return delegate().getCursor();
+                }
+              }, false),
+            true);
+      }
+      log.info("Warm state " + warmState + " is stale, object is at " + currentVersion);
+    }
     DeltaIterator deltaIterator = getDeltaIterator(
         0, null, FetchOptions.Builder.withDefaults(), false);
     if (!deltaIterator.hasNext()) {
       log.info("Prepared appender at version 0");
       checkDeltaDoesNotExist(0);
       return new AppenderAndCachedDeltas(
-          new Appender(createObject(null), 0, 0),
-          ImmutableList.<ChangeData<String>>of(), deltaIterator);
+          new Appender(createObject(null), 0, 0, null),
+          ImmutableList.<ChangeData<String>>of(), deltaIterator, false);
     } else {
       SnapshotEntry snapshotEntry = getSnapshotEntryAtOrBefore(null);
       StateAndVersion state = createObject(snapshotEntry);
@@ -567,8 +725,9 @@ public class MutationLog {
         log.info("Prepared appender; snapshotVersion=currentVersion=" + currentVersion);
         checkDeltaDoesNotExist(snapshotVersion);
         return new AppenderAndCachedDeltas(
-            new Appender(state, snapshotBytes, 0),
-            ImmutableList.of(finalDelta.data), deltaIterator);
+            new Appender(state, snapshotBytes, 0,
+                snapshotEntry == null ? null : snapshotEntry.snapshot),
+            ImmutableList.of(finalDelta.data), deltaIterator, false);
       } else {
         // We need to apply the delta, and perhaps others.  Collect them.
         ImmutableList.Builder<ChangeData<String>> deltaAccu = ImmutableList.builder();
@@ -596,18 +755,24 @@ public class MutationLog {
             + ", " + reverseDeltas.size() + " deltas");
         checkDeltaDoesNotExist(state.getVersion());
         return new AppenderAndCachedDeltas(
-            new Appender(state, snapshotBytes, totalDeltaBytesSinceSnapshot),
-            reverseDeltas, deltaIterator);
+            new Appender(state, snapshotBytes, totalDeltaBytesSinceSnapshot, null),
+            reverseDeltas, deltaIterator, false);
       }
     }
   }
 
   private DeltaIterator getDeltaIterator(long startVersion, @Nullable Long endVersion,
       FetchOptions fetchOptions, boolean forward) throws PermanentFailure, RetryableFailure {
+    return new DeltaIterator(queryDeltas(startVersion, endVersion, fetchOptions, forward),
+        forward);
+  }
+
+  private CheckedIterator queryDeltas(long startVersion, @Nullable Long endVersion,
+      FetchOptions fetchOptions, boolean forward) throws PermanentFailure, RetryableFailure {
     checkRange(startVersion, endVersion);
 
     if (endVersion != null && startVersion == endVersion) {
-      return new DeltaIterator(CheckedIterator.EMPTY, forward);
+      return CheckedIterator.EMPTY;
     }
 
     Query q = new Query(deltaEntityKind)
@@ -622,8 +787,7 @@ public class MutationLog {
           FilterOperator.LESS_THAN, makeDeltaKey(objectId, endVersion));
     }
 
-    CheckedIterator result = tx.prepare(q).asIterator(fetchOptions);
-    return new DeltaIterator(result, forward);
+    return tx.prepare(q).asIterator(fetchOptions);
   }
 
   /**
@@ -743,11 +907,38 @@ public class MutationLog {
 
   // TODO(ohler): eliminate; PreCommitHook should be enough
   public void putMetadata(String metadata) throws RetryableFailure, PermanentFailure {
+    putMetadata(metadata, false);
+  }
+
+  /**
+   * Writes metadata that marks the object as still being created, for objects
+   * whose initial history takes more than one transaction to write.  A later
+   * {@link #putMetadata(String)} completes the object.
+   */
+  public void putIncompleteMetadata(String metadata) throws RetryableFailure, PermanentFailure {
+    putMetadata(metadata, true);
+  }
+
+  private void putMetadata(String metadata, boolean incomplete)
+      throws RetryableFailure, PermanentFailure {
     Key key = makeRootEntityKey(objectId);
     Entity e = new Entity(key);
     DatastoreUtil.setNonNullUnindexedProperty(e, METADATA_PROPERTY, new Text(metadata));
+    if (incomplete) {
+      DatastoreUtil.setNonNullIndexedProperty(e, INCOMPLETE_PROPERTY, true);
+    }
     log.info("Writing metadata: " + e);
     tx.put(e);
   }
 
+  /**
+   * Returns true if the object's metadata was written with
+   * {@link #putIncompleteMetadata} and the object hasn't been completed since.
+   */
+  public boolean isIncomplete() throws RetryableFailure, PermanentFailure {
+    Entity result = tx.get(makeRootEntityKey(objectId));
+    return result != null
+        && DatastoreUtil.getOptionalProperty(result, INCOMPLETE_PROPERTY, Boolean.class) != null;
+  }
+
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.slob.shared.StateAndVersion;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the most recent known snapshot of recently used objects in memory, so
+ * that readers of the same object on this instance can share one immutable
+ * snapshot string rather than each reconstructing the object from the
+ * datastore.  Writers publish the state they just committed, so the head
+ * version of an object that is being edited on this instance is usually
+ * available without any reconstruction.
+ *
+ * Only one version per object is kept, and a snapshot only ever replaces an
+ * older one, so reading old versions doesn't displace the head.
+ *
+ * Concurrent loads of the same version of the same object wait for a single
+ * reconstruction rather than each doing their own.
+ *
+ * One instance per store (bound in the store's private module), since object
+ * ids are only unique within a store.
+ */
+public class SlobSnapshotCache {
+
+  private static final Logger log = Logger.getLogger(SlobSnapshotCache.class.getName());
+
+  @VisibleForTesting static final int MAX_OBJECTS = 1000;
+  @VisibleForTesting static final long MAX_TOTAL_CHARS = 20 * 1000 * 1000;
+  @VisibleForTesting static final int MAX_SNAPSHOT_CHARS = 1000 * 1000;
+
+  /** An immutable snapshot of an object at a given version. */
+  public static final class VersionedSnapshot {
+    private final long version;
+    private final String snapshot;
+
+    public VersionedSnapshot(long version, String snapshot) {
+      this.version = version;
+      this.snapshot = Preconditions.checkNotNull(snapshot, "Null snapshot");
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getSnapshot() {
+      return snapshot;
+    }
+
+    @Override public String toString() {
+      return "VersionedSnapshot(" + version + ", " + snapshot.length() + " chars)";
+    }
+  }
+
+  private static final class LoadKey {
+    private final SlobId objectId;
+    private final long version;
+
+    LoadKey(SlobId objectId, long version) {
+      this.objectId = objectId;
+      this.version = version;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (o == this) { return true; }
+      if (!(o instanceof LoadKey)) { return false; }
+      LoadKey other = (LoadKey) o;
+      return version == other.version && objectId.equals(other.objectId);
+    }
+
+    @Override public int hashCode() {
+      return Objects.hashCode(objectId, version);
+    }
+
+    @Override public String toString() {
+      return objectId + "@" + version;
+    }
+  }
+
+  /** A reconstruction in progress, which other threads can wait for. */
+  private static final class InFlightLoad {
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Written before done is counted down.  Null if the load failed.
+    @Nullable private volatile VersionedSnapshot result = null;
+  }
+
+  private final MonitoringVars monitoring;
+
+  private final ConcurrentMap<LoadKey, InFlightLoad> inFlightLoads = Maps.newConcurrentMap();
+
+  // Guarded by itself.  Access order.
+  private final LinkedHashMap<SlobId, VersionedSnapshot> snapshots =
+      new LinkedHashMap<SlobId, VersionedSnapshot>(16, 0.75f, true);
+  // Guarded by snapshots.
+  private long totalChars = 0;
+
+  @Inject
+  public SlobSnapshotCache(MonitoringVars monitoring) {
+    this.monitoring = monitoring;
+  }
+
+  @Nullable public VersionedSnapshot get(SlobId objectId, long version) {
+    VersionedSnapshot cached;
+    synchronized (snapshots) {
+      cached = snapshots.get(objectId);
+    }
+    if (cached != null && cached.getVersion() == version) {
+      monitoring.incrementCounter("slob-snapshot-cache-hit");
+      return cached;
+    } else {
+      monitoring.incrementCounter(cached == null ? "slob-snapshot-cache-miss"
+          : "slob-snapshot-cache-other-version");
+      return null;
+    }
+  }
+
+  public void put(SlobId objectId, VersionedSnapshot snapshot) {
+    Preconditions.checkNotNull(objectId, "Null objectId");
+    if (snapshot.getSnapshot().length() > MAX_SNAPSHOT_CHARS) {
+      return;
+    }
+    synchronized (snapshots) {
+      VersionedSnapshot existing = snapshots.get(objectId);
+      if (existing != null) {
+        if (existing.getVersion() >= snapshot.getVersion()) {
+          return;
+        }
+        totalChars -= existing.getSnapshot().length();
+      }
+      snapshots.put(objectId, snapshot);
+      totalChars += snapshot.getSnapshot().length();
+      for (Iterator<Map.Entry<SlobId, VersionedSnapshot>> it = snapshots.entrySet().iterator();
+          it.hasNext() && (snapshots.size() > MAX_OBJECTS || totalChars > MAX_TOTAL_CHARS); ) {
+        totalChars -= it.next().getValue().getSnapshot().length();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns the object at {@code version}, or at its current version if
+   * {@code version} is null, from the cache if possible, or else by
+   * reconstructing it with {@code mutationLog}.  Returns null if the object
+   * doesn't exist.
+   */
+  @Nullable public VersionedSnapshot load(SlobId objectId, MutationLog mutationLog,
+      @Nullable Long version) throws PermanentFailure, RetryableFailure {
+    long requestedVersion = version != null ? version : mutationLog.getVersion();
+    if (requestedVersion == 0) {
+      return null;
+    }
+    VersionedSnapshot cached = get(objectId, requestedVersion);
+    if (cached != null) {
+      return cached;
+    }
+    LoadKey key = new LoadKey(objectId, requestedVersion);
+    InFlightLoad ours = new InFlightLoad();
+    InFlightLoad theirs = inFlightLoads.putIfAbsent(key, ours);
+    if (theirs != null) {
+      VersionedSnapshot result = await(key, theirs);
+      if (result != null) {
+        return result;
+      }
+      // The other load failed or we were interrupted; do our own, without
+      // coalescing, to avoid waiting in a chain of failures.
+      return reconstruct(objectId, mutationLog, requestedVersion);
+    }
+    try {
+      ours.result = reconstruct(objectId, mutationLog, requestedVersion);
+      return ours.result;
+    } finally {
+      inFlightLoads.remove(key, ours);
+      ours.done.countDown();
+    }
+  }
+
+  @Nullable private VersionedSnapshot await(LoadKey key, InFlightLoad load) {
+    monitoring.incrementCounter("slob-snapshot-load-coalesced");
+    log.info("Waiting for concurrent load of " + key);
+    try {
+      load.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (load.result == null) {
+      monitoring.incrementCounter("slob-snapshot-load-coalesced-failure");
+    }
+    return load.result;
+  }
+
+  private VersionedSnapshot reconstruct(SlobId objectId, MutationLog mutationLog, long version)
+      throws PermanentFailure, RetryableFailure {
+    StateAndVersion state = mutationLog.reconstruct(version);
+    VersionedSnapshot result = new VersionedSnapshot(state.getVersion(),
+        state.getState().snapshot());
+    put(objectId, result);
+    return result;
+  }
+
+}
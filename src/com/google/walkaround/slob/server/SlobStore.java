@@ -78,6 +78,12 @@ public interface SlobStore {
 
   /**
    * Creates a new object.
+   *
+   * Large initial histories may be written in several transactions.  Until
+   * the last one commits, the object's metadata is marked as incomplete (see
+   * {@link MutationLog#isIncomplete}), which is also how an object whose
+   * creation failed half-way is left.  Callers should not make the object
+   * reachable (e.g. by registering it in a directory) before this returns.
    */
   void newObject(SlobId objectId, String metadata, List<ChangeData<String>> initialHistory)
       throws SlobAlreadyExistsException, IOException, AccessDeniedException;
@@ -19,17 +19,18 @@ package com.google.walkaround.slob.server;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
 import com.google.inject.Inject;
 import com.google.walkaround.proto.ServerMutateRequest;
 import com.google.walkaround.proto.ServerMutateResponse;
 import com.google.walkaround.slob.server.MutationLog.DeltaIterator;
 import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
 import com.google.walkaround.slob.server.SlobMessageRouter.TooManyListenersException;
+import com.google.walkaround.slob.server.SlobSnapshotCache.VersionedSnapshot;
 import com.google.walkaround.slob.shared.ChangeData;
 import com.google.walkaround.slob.shared.ChangeRejected;
 import com.google.walkaround.slob.shared.ClientId;
 import com.google.walkaround.slob.shared.SlobId;
-import com.google.walkaround.slob.shared.StateAndVersion;
 import com.google.walkaround.util.server.RetryHelper;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
@@ -57,12 +58,21 @@ public class SlobStoreImpl implements SlobStore {
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(SlobStoreImpl.class.getName());
 
+  /**
+   * Upper bound on the estimated size of the data that {@link #newObject}
+   * writes per transaction.  Larger initial histories (such as those of
+   * imported waves) are written in several transactions, to stay clear of the
+   * datastore's limit on the size of a transaction.
+   */
+  private static final long MAX_NEW_OBJECT_BYTES_PER_TRANSACTION = 1000 * 1000;
+
   private final CheckedDatastore datastore;
   private final MutationLogFactory mutationLogFactory;
   private final SlobMessageRouter messageRouter;
   private final AffinityMutationProcessor defaultProcessor;
   private final AccessChecker accessChecker;
   private final PreCommitHook preCommitHook;
+  private final SlobSnapshotCache snapshotCache;
 
   @Inject
   public SlobStoreImpl(CheckedDatastore datastore,
@@ -72,13 +82,15 @@ public class SlobStoreImpl implements SlobStore {
       AffinityMutationProcessor defaultProcessor,
       LocalMutationProcessor localProcessor,
       AccessChecker accessChecker,
-      PreCommitHook preCommitHook) {
+      PreCommitHook preCommitHook,
+      SlobSnapshotCache snapshotCache) {
     this.datastore = datastore;
     this.mutationLogFactory = mutationLogFactory;
     this.messageRouter = messageRouter;
     this.defaultProcessor = defaultProcessor;
     this.accessChecker = accessChecker;
     this.preCommitHook = preCommitHook;
+    this.snapshotCache = snapshotCache;
   }
 
   @Override
@@ -104,9 +116,9 @@ public class SlobStoreImpl implements SlobStore {
       try {
         MutationLog mutationLog = mutationLogFactory.create(tx, objectId);
         if (withSnapshot) {
-          StateAndVersion x = mutationLog.reconstruct(null);
-          version = x.getVersion();
-          snapshot = x.getState().snapshot();
+          VersionedSnapshot x = snapshotCache.load(objectId, mutationLog, null);
+          version = x == null ? 0 : x.getVersion();
+          snapshot = x == null ? null : x.getSnapshot();
         } else {
           version = mutationLog.getVersion();
           snapshot = null;
@@ -144,7 +156,13 @@ public class SlobStoreImpl implements SlobStore {
       CheckedTransaction tx = datastore.beginTransaction();
       try {
         MutationLog l = mutationLogFactory.create(tx, objectId);
-        return l.reconstruct(version).getState().snapshot();
+        VersionedSnapshot x = snapshotCache.load(objectId, l, version);
+        if (x == null) {
+          // Previously, reconstruct() would give us the snapshot of an empty
+          // object.
+          return l.reconstruct(version).getState().snapshot();
+        }
+        return x.getSnapshot();
       } finally {
         tx.rollback();
       }
@@ -214,51 +232,108 @@ public class SlobStoreImpl implements SlobStore {
     Preconditions.checkNotNull(initialHistory, "Null initialHistory");
     accessChecker.checkCanCreate(objectId);
     try {
-      boolean alreadyExists = new RetryHelper().run(new RetryHelper.Body<Boolean>() {
-        @Override public Boolean run() throws RetryableFailure, PermanentFailure {
-          CheckedTransaction tx = datastore.beginTransaction();
-          try {
-            MutationLog l = mutationLogFactory.create(tx, objectId);
+      // Each change bumps the version by one, so the version is also the
+      // number of changes from initialHistory written so far.
+      long version = 0;
+      int chunks = 0;
+      do {
+        Long newVersion = writeHistoryChunk(objectId, metadata, initialHistory, version);
+        if (newVersion == null) {
+          throw new SlobAlreadyExistsException(objectId + " already exists");
+        }
+        version = newVersion;
+        chunks++;
+      } while (version < initialHistory.size());
+      if (chunks > 1) {
+        log.info("Wrote " + initialHistory.size() + " changes of " + objectId
+            + " in " + chunks + " transactions");
+      }
+    } catch (PermanentFailure e) {
+      throw new IOException(e);
+    }
+  }
 
-            String existingMetadata = l.getMetadata();
-            if (existingMetadata != null) {
-              log.info("Object " + objectId + " already exists: found metadata: "
-                  + existingMetadata);
-              return true;
-            }
-            // Check for the existence of deltas as well because legacy conv
-            // wavelets have no metadata entity.
-            long version = l.getVersion();
-            if (version != 0) {
-              log.info("Object " + objectId + " already exists at version " + version);
-              return true;
+  /**
+   * Appends the changes of {@code initialHistory} that follow
+   * {@code startVersion}, in one transaction, for as long as the staged data
+   * stays under {@link #MAX_NEW_OBJECT_BYTES_PER_TRANSACTION}.
+   *
+   * If more transactions are going to follow, the first one writes the
+   * metadata marked as incomplete, so that the object is never without
+   * metadata and an object whose creation failed half-way can be told apart
+   * from a complete one.  The transaction that appends the last change writes
+   * the final metadata and runs the pre-commit hook.
+   *
+   * @return the object's version after the commit, or null if the object
+   *     already existed before we started writing it
+   */
+  @Nullable private Long writeHistoryChunk(final SlobId objectId, final String metadata,
+      final List<ChangeData<String>> initialHistory, final long startVersion)
+      throws PermanentFailure {
+    return new RetryHelper().run(new RetryHelper.Body<Long>() {
+      // Once we have tried to commit, finding data beyond startVersion means
+      // that the commit went through even though it reported a failure.
+      boolean commitAttempted = false;
+
+      @Override public Long run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          MutationLog l = mutationLogFactory.create(tx, objectId);
+
+          String existingMetadata = l.getMetadata();
+          boolean incomplete = existingMetadata != null && l.isIncomplete();
+          // Check for the existence of deltas as well because legacy conv
+          // wavelets have no metadata entity.
+          long version = l.getVersion();
+          if (commitAttempted
+              && (version > startVersion || (existingMetadata != null && !incomplete))) {
+            log.info("Earlier commit for " + objectId + " succeeded after all; now at version "
+                + version);
+            return version;
+          }
+          if (startVersion == 0) {
+            if (existingMetadata != null || version != 0) {
+              log.info("Object " + objectId + " already exists at version " + version
+                  + ", metadata: " + existingMetadata + ", incomplete: " + incomplete);
+              return null;
             }
+          } else if (!incomplete || version != startVersion) {
+            throw new PermanentFailure("Object " + objectId + " modified while being created: "
+                + "expected version " + startVersion + ", found " + version
+                + ", metadata: " + existingMetadata + ", incomplete: " + incomplete);
+          }
 
-            MutationLog.Appender appender = l.prepareAppender().getAppender();
-            for (ChangeData<String> change : initialHistory) {
-              try {
-                appender.append(change);
-              } catch (ChangeRejected e) {
-                throw new IllegalArgumentException("Invalid initial history with change "
-                    + change + " in history " + initialHistory);
-              }
+          MutationLog.Appender appender = l.prepareAppender().getAppender();
+          int next = Ints.checkedCast(startVersion);
+          // Always append at least one change so that we make progress.
+          while (next < initialHistory.size()
+              && (next == startVersion
+                  || appender.estimatedBytesStaged() < MAX_NEW_OBJECT_BYTES_PER_TRANSACTION)) {
+            ChangeData<String> change = initialHistory.get(next);
+            try {
+              appender.append(change);
+            } catch (ChangeRejected e) {
+              throw new IllegalArgumentException("Invalid initial history with change "
+                  + change + " at version " + next + " of " + objectId);
             }
-            appender.flush();
+            next++;
+          }
+          appender.flush();
+          if (next == initialHistory.size()) {
             l.putMetadata(metadata);
-            preCommitHook.run(tx, objectId, appender.getStagedVersion(), appender.getStagedState());
-            tx.commit();
-            return false;
-          } finally {
-            tx.close();
+            preCommitHook.run(tx, objectId, appender.getStagedVersion(),
+                appender.getStagedState());
+          } else if (startVersion == 0) {
+            l.putIncompleteMetadata(metadata);
           }
+          commitAttempted = true;
+          tx.commit();
+          return appender.getStagedVersion();
+        } finally {
+          tx.close();
         }
-      });
-      if (alreadyExists) {
-        throw new SlobAlreadyExistsException(objectId + " already exists");
       }
-    } catch (PermanentFailure e) {
-      throw new IOException(e);
-    }
+    });
   }
 
 }
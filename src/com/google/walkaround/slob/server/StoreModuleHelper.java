@@ -19,6 +19,7 @@ package com.google.walkaround.slob.server;
 import com.google.inject.Module;
 import com.google.inject.PrivateBinder;
 import com.google.inject.PrivateModule;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
 
@@ -46,14 +47,18 @@ public class StoreModuleHelper {
       Class<? extends Annotation> annotation) {
     binder.bind(SlobStore.class).to(SlobStoreImpl.class);
     binder.install(factoryModule(MutationLogFactory.class, MutationLog.class));
+    // Bound explicitly so that each store gets its own.
+    binder.bind(SlobSnapshotCache.class).in(Singleton.class);
 
     binder.bind(MutationLogFactory.class).annotatedWith(annotation).to(MutationLogFactory.class);
     binder.bind(SlobStore.class).annotatedWith(annotation).to(SlobStore.class);
     binder.bind(LocalMutationProcessor.class).annotatedWith(annotation)
         .to(LocalMutationProcessor.class);
+    binder.bind(SlobSnapshotCache.class).annotatedWith(annotation).to(SlobSnapshotCache.class);
     binder.expose(MutationLogFactory.class).annotatedWith(annotation);
     binder.expose(SlobStore.class).annotatedWith(annotation);
     binder.expose(LocalMutationProcessor.class).annotatedWith(annotation);
+    binder.expose(SlobSnapshotCache.class).annotatedWith(annotation);
   }
 
   public static void bindEntityKinds(PrivateBinder binder, String prefix) {
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.walkaround.proto.ServerMutateRequest;
+import com.google.walkaround.proto.gson.ServerMutateRequestGsonImpl;
+import com.google.walkaround.slob.shared.MessageException;
+
+import org.waveprotocol.wave.communication.gson.GsonSerializable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Wire format for sending several mutations from a frontend to a store
+ * backend in one request, and for the per-mutation results.
+ *
+ * Both directions are a format version followed by a count and that many
+ * length-prefixed entries.  Requests are the JSON form of
+ * {@link ServerMutateRequest}, without any further escaping; results are a
+ * status byte followed by either the JSON form of the response or an error
+ * message.
+ */
+public class StoreMutateBatch {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(StoreMutateBatch.class.getName());
+
+  public static final String CONTENT_TYPE = "application/octet-stream";
+
+  private static final int FORMAT_VERSION = 1;
+  // Sanity limit so that a corrupt count or length doesn't make us allocate
+  // huge arrays.
+  private static final int MAX_ENTRY_BYTES = 32 * 1024 * 1024;
+
+  public enum Status {
+    /** Mutation processed; data is the JSON response. */
+    OK,
+    /** Mutation rejected as invalid; data is an error message. */
+    INVALID,
+    /** Mutation failed, possibly transiently; data is an error message. */
+    FAILED;
+  }
+
+  public static final class Result {
+    private final Status status;
+    private final String data;
+
+    public Result(Status status, String data) {
+      this.status = Preconditions.checkNotNull(status, "Null status");
+      this.data = Preconditions.checkNotNull(data, "Null data");
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public String getData() {
+      return data;
+    }
+
+    @Override public String toString() {
+      return "Result(" + status + ", " + data + ")";
+    }
+  }
+
+  private StoreMutateBatch() {}
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_ENTRY_BYTES) {
+      throw new IOException("Bad entry length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static int readHeader(DataInputStream in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown format version: " + version);
+    }
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Bad count: " + count);
+    }
+    return count;
+  }
+
+  public static byte[] encodeRequests(List<ServerMutateRequest> requests) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(requests.size());
+      for (ServerMutateRequest request : requests) {
+        writeString(out, GsonProto.toJson((GsonSerializable) request));
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("ByteArrayOutputStream threw IOException", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static List<ServerMutateRequest> decodeRequests(InputStream input)
+      throws IOException, MessageException {
+    DataInputStream in = new DataInputStream(input);
+    int count = readHeader(in);
+    ImmutableList.Builder<ServerMutateRequest> out = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      out.add(GsonProto.fromGson(new ServerMutateRequestGsonImpl(), readString(in)));
+    }
+    return out.build();
+  }
+
+  public static byte[] encodeResults(List<Result> results) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(results.size());
+      for (Result result : results) {
+        out.writeByte(result.getStatus().ordinal());
+        writeString(out, result.getData());
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("ByteArrayOutputStream threw IOException", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static List<Result> decodeResults(byte[] input) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(input));
+    int count = readHeader(in);
+    ImmutableList.Builder<Result> out = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      int status = in.readUnsignedByte();
+      if (status >= Status.values().length) {
+        throw new IOException("Bad status: " + status);
+      }
+      out.add(new Result(Status.values()[status], readString(in)));
+    }
+    return out.build();
+  }
+
+}
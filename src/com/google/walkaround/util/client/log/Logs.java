@@ -32,9 +32,15 @@ import java.util.Collection;
  * and levels).
  *
  * The implementation is designed to be efficient when expensive log rendering
- * is turned off, by avoiding unnecessary object creation. Handlers are
- * asynchronously notified that log events are available, and may choose to
- * ignore them (if they are inactive) or have all events pushed to them.
+ * is turned off, by avoiding unnecessary object creation. Entries are kept in
+ * a fixed-size ring buffer of reused objects. Handlers are asynchronously
+ * notified that log events are available, and may choose to ignore them (if
+ * they are inactive) or have all events pushed to them, e.g. when a log panel
+ * is first opened.
+ *
+ * Entries less important than the current level (see {@link #setLevel}) are
+ * dropped immediately. Call sites on hot paths can check
+ * {@link Log#shouldLog} first to also avoid building the argument array.
  *
  * The {@link Logs.Log} interface omits the stream name in its interface,
  * because it is intended to be a simple wrapper with the stream name curried in
@@ -65,8 +71,12 @@ public class Logs {
   public interface Log {
     public void log(Level level, Object... objects);
 
+    /** Returns false if entries at the given level would be dropped. */
+    public boolean shouldLog(Level level);
+
     public static final Log DEV_NULL = new Log() {
       @Override public void log(Level level, Object... objects) { }
+      @Override public boolean shouldLog(Level level) { return false; }
     };
   }
 
@@ -132,6 +142,11 @@ public class Logs {
       public void log(Level level, Object... objects) {
         INSTANCE.log(streamName, level, objects);
       }
+
+      @Override
+      public boolean shouldLog(Level level) {
+        return INSTANCE.isLoggable(level);
+      }
     };
   }
 
@@ -148,6 +163,11 @@ public class Logs {
    * Buffer for entries, so we can batch notifications to handlers.
    */
   private final Entry[] entries = new Entry[MAX_ENTRIES_BUFFERED];
+  /**
+   * Least important level that is recorded. Verbose entries are only worth
+   * their cost when someone is going to look at them.
+   */
+  private Level level = Level.INFO;
   /**
    * Optimization for notifier
    */
@@ -173,6 +193,19 @@ public class Logs {
     }
   }
 
+  /**
+   * Sets the least important level that is recorded. Entries logged at less
+   * important levels are dropped, so handlers added later won't see them
+   * either.
+   */
+  public void setLevel(Level level) {
+    this.level = level;
+  }
+
+  public boolean isLoggable(Level level) {
+    return level.compareTo(this.level) <= 0;
+  }
+
   public void addHandler(Handler h) {
     flush();
 
@@ -202,6 +235,10 @@ public class Logs {
    * @param objects
    */
   public void log(String stream, Level level, Object... objects) {
+    if (!isLoggable(level)) {
+      return;
+    }
+
     // We do not want to lose log entries, so flush synchronously if the
     // buffer is full.
     if (unflushed == entries.length) {
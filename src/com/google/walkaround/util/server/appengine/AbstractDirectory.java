@@ -23,6 +23,9 @@ import com.google.appengine.api.datastore.Query;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.walkaround.util.server.RetryHelper;
 import com.google.walkaround.util.server.RetryHelper.Body;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
@@ -30,7 +33,9 @@ import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -98,6 +103,68 @@ public abstract class AbstractDirectory<T, I> {
     }
   }
 
+  /**
+   * Looks up many entries with a single non-transactional batch get.  Ids that
+   * have no entry are absent from the result.
+   */
+  public Map<I, T> getAll(Collection<I> ids) throws IOException {
+    final Map<Key, I> keys = Maps.newLinkedHashMap();
+    for (I id : ids) {
+      keys.put(makeKey(id), id);
+    }
+    if (keys.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    Map<Key, Entity> entities;
+    try {
+      entities = new RetryHelper().run(new RetryHelper.Body<Map<Key, Entity>>() {
+        @Override public Map<Key, Entity> run() throws RetryableFailure, PermanentFailure {
+          return datastore.getNontransactional(keys.keySet());
+        }
+      });
+    } catch (PermanentFailure e) {
+      log.log(Level.SEVERE, "Failed to look up " + keys.size() + " entries", e);
+      throw new IOException(e);
+    }
+    log.info("Looked up " + keys.size() + " entries of kind " + entityKind
+        + ", found " + entities.size());
+    Map<I, T> result = Maps.newHashMapWithExpectedSize(entities.size());
+    for (Map.Entry<Key, Entity> entry : entities.entrySet()) {
+      result.put(keys.get(entry.getKey()), parse(entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Writes all given entries with a single non-transactional batch put,
+   * overwriting any existing entries with the same ids.
+   *
+   * Unlike {@link #getOrAdd}, this does not check for an existing entry, so it
+   * is only appropriate for directories whose entries are fully determined by
+   * their id, where concurrent writers can never disagree.
+   */
+  public void putAllIdempotent(Collection<T> entries) throws IOException {
+    if (entries.isEmpty()) {
+      return;
+    }
+    final List<Entity> entities = Lists.newArrayListWithCapacity(entries.size());
+    for (T entry : entries) {
+      Entity entity = new Entity(makeKey(getId(entry)));
+      populateEntity(entry, entity);
+      entities.add(entity);
+    }
+    try {
+      new RetryHelper().run(new RetryHelper.VoidBody() {
+        @Override public void run() throws RetryableFailure, PermanentFailure {
+          datastore.putNontransactional(entities);
+        }
+      });
+    } catch (PermanentFailure e) {
+      throw new IOException(e);
+    }
+    log.info("Put " + entities.size() + " entries of kind " + entityKind);
+  }
+
   /**
    * Transactionally checks if an entry with the same key as newEntry exists,
    * and adds newEntry if not.  If an entry already exists, returns the existing
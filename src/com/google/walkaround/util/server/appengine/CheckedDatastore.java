@@ -67,7 +67,7 @@ public class CheckedDatastore {
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(CheckedDatastore.class.getName());
 
-  private interface Evaluater<T> {
+  interface Evaluater<T> {
     T run() throws RetryableFailure, PermanentFailure;
   }
 
@@ -238,10 +238,12 @@ public class CheckedDatastore {
     void close();
   }
 
-  private class CheckedTransactionImpl implements CheckedTransaction {
+  private static class CheckedTransactionImpl implements CheckedTransaction {
+    private final DatastoreService datastore;
     private final Transaction transaction;
 
-    CheckedTransactionImpl(Transaction transaction) {
+    CheckedTransactionImpl(DatastoreService datastore, Transaction transaction) {
+      this.datastore = datastore;
       this.transaction = transaction;
     }
 
@@ -374,60 +376,150 @@ public class CheckedDatastore {
     }
   }
 
-  private final DatastoreService datastore;
+  /**
+   * The storage that a {@link CheckedDatastore} operates on.  In production,
+   * this is App Engine's datastore; tests can substitute a local
+   * implementation.
+   */
+  public interface Backend {
+    CheckedTransaction beginTransaction() throws PermanentFailure, RetryableFailure;
+    CheckedPreparedQuery prepareNontransactionalQuery(Query q);
+    Map<Key, Entity> getNontransactional(Iterable<Key> keys)
+        throws PermanentFailure, RetryableFailure;
+    List<Key> putNontransactional(Iterable<Entity> entities)
+        throws PermanentFailure, RetryableFailure;
+    /**
+     * @throws UnsupportedOperationException if the backend is not App Engine's
+     *     datastore
+     */
+    DatastoreService unsafe();
+  }
+
+  private static class AppEngineBackend implements Backend {
+    private final DatastoreService datastore;
+
+    AppEngineBackend(DatastoreService datastore) {
+      this.datastore = Preconditions.checkNotNull(datastore, "Null datastore");
+    }
+
+    @Override public CheckedTransaction beginTransaction()
+        throws PermanentFailure, RetryableFailure {
+      return safeRun(new Evaluater<CheckedTransaction>() {
+        @Override public CheckedTransaction run() {
+          Transaction rawTransaction = datastore.beginTransaction();
+          // NOTE(ohler): Calling rawTransaction.getId() forces TransactionImpl to
+          // wait for the result of the beginTransaction RPC.  We do this here to
+          // get the DatastoreTimeoutException (in the case of a timeout) right
+          // away rather than at some surprising time later in
+          // TransactionImpl.toString() or similar.
+          //
+          // Hopefully, TransactionImpl will be fixed to eliminate the need for
+          // this.
+          try {
+            rawTransaction.getId();
+          } catch (DatastoreTimeoutException e) {
+            // We don't log transaction itself because I'm worried its toString()
+            // might fail.  TODO(ohler): confirm this.
+            log.log(Level.WARNING, "Failed to begin transaction", e);
+            // Now we need to roll back the transaction (even though it doesn't
+            // actually exist), otherwise TransactionCleanupFilter will try to
+            // roll it back, which is bad because it's not prepared for the crash
+            // that we catch below.
+            try {
+              rawTransaction.rollback();
+              throw new Error("Rollback of nonexistent transaction did not fail");
+            } catch (DatastoreTimeoutException e2) {
+              log.log(Level.INFO, "Rollback of nonexistent transaction failed as expected", e2);
+            }
+            throw e;
+          }
+          CheckedTransaction checkedTransaction =
+              new CheckedTransactionImpl(datastore, rawTransaction);
+          log.info("Begun transaction " + checkedTransaction);
+          return checkedTransaction;
+        }
+      });
+    }
+
+    @Override public CheckedPreparedQuery prepareNontransactionalQuery(Query q) {
+      // TODO(ohler): confirm that this doesn't need safeRun, and document why not
+      return new CheckedPreparedQueryImpl(datastore.prepare(q));
+    }
+
+    @Override public Map<Key, Entity> getNontransactional(final Iterable<Key> keys)
+        throws PermanentFailure, RetryableFailure {
+      return safeRun(new Evaluater<Map<Key, Entity>>() {
+        @Override public Map<Key, Entity> run() {
+          return datastore.get(keys);
+        }
+      });
+    }
+
+    @Override public List<Key> putNontransactional(final Iterable<Entity> entities)
+        throws PermanentFailure, RetryableFailure {
+      return safeRun(new Evaluater<List<Key>>() {
+        @Override public List<Key> run() {
+          return datastore.put(entities);
+        }
+      });
+    }
+
+    @Override public DatastoreService unsafe() {
+      return datastore;
+    }
+
+    @Override public String toString() {
+      return "AppEngineBackend(" + datastore + ")";
+    }
+  }
+
+  private final Backend backend;
 
   @Inject
   public CheckedDatastore(DatastoreService datastore) {
-    this.datastore = datastore;
+    this(new AppEngineBackend(datastore));
+  }
+
+  public CheckedDatastore(Backend backend) {
+    this.backend = Preconditions.checkNotNull(backend, "Null backend");
   }
 
   public CheckedTransaction beginTransaction() throws PermanentFailure, RetryableFailure {
-    return safeRun(new Evaluater<CheckedTransaction>() {
-      @Override public CheckedTransaction run() {
-        Transaction rawTransaction = datastore.beginTransaction();
-        // NOTE(ohler): Calling rawTransaction.getId() forces TransactionImpl to
-        // wait for the result of the beginTransaction RPC.  We do this here to
-        // get the DatastoreTimeoutException (in the case of a timeout) right
-        // away rather than at some surprising time later in
-        // TransactionImpl.toString() or similar.
-        //
-        // Hopefully, TransactionImpl will be fixed to eliminate the need for
-        // this.
-        try {
-          rawTransaction.getId();
-        } catch (DatastoreTimeoutException e) {
-          // We don't log transaction itself because I'm worried its toString()
-          // might fail.  TODO(ohler): confirm this.
-          log.log(Level.WARNING, "Failed to begin transaction", e);
-          // Now we need to roll back the transaction (even though it doesn't
-          // actually exist), otherwise TransactionCleanupFilter will try to
-          // roll it back, which is bad because it's not prepared for the crash
-          // that we catch below.
-          try {
-            rawTransaction.rollback();
-            throw new Error("Rollback of nonexistent transaction did not fail");
-          } catch (DatastoreTimeoutException e2) {
-            log.log(Level.INFO, "Rollback of nonexistent transaction failed as expected", e2);
-          }
-          throw e;
-        }
-        CheckedTransaction checkedTransaction = new CheckedTransactionImpl(rawTransaction);
-        log.info("Begun transaction " + checkedTransaction);
-        return checkedTransaction;
-      }
-    });
+    return backend.beginTransaction();
   }
 
   public CheckedPreparedQuery prepareNontransactionalQuery(Query q) {
-    // TODO(ohler): confirm that this doesn't need safeRun, and document why not
-    return new CheckedPreparedQueryImpl(datastore.prepare(q));
+    return backend.prepareNontransactionalQuery(q);
+  }
+
+  /**
+   * Batch get outside of any transaction.  The keys may span any number of
+   * entity groups.  Keys with no entity are absent from the result.
+   */
+  public Map<Key, Entity> getNontransactional(Iterable<Key> keys)
+      throws PermanentFailure, RetryableFailure {
+    return backend.getNontransactional(keys);
+  }
+
+  /**
+   * Batch put outside of any transaction.  The entities may span any number of
+   * entity groups; each group is written atomically but the batch as a whole
+   * is not.
+   */
+  public List<Key> putNontransactional(Iterable<Entity> entities)
+      throws PermanentFailure, RetryableFailure {
+    return backend.putNontransactional(entities);
   }
 
   public DatastoreService unsafe() {
-    return datastore;
+    return backend.unsafe();
+  }
+
+  @Override public String toString() {
+    return "CheckedDatastore(" + backend + ")";
   }
 
-  private static <T> T safeRun(Evaluater<T> runnable) throws PermanentFailure, RetryableFailure {
+  static <T> T safeRun(Evaluater<T> runnable) throws PermanentFailure, RetryableFailure {
     try {
       return runnable.run();
     } catch (DatastoreTimeoutException e) {
@@ -51,6 +51,22 @@ public class DigestUtils2 {
 
     private final byte[] data;
     private final String asHex;
+    // Built once rather than on every HMAC computation.  Mac instances are
+    // stateful and not thread-safe, so each thread gets its own.
+    private final SecretKeySpec hmacKey;
+    private final ThreadLocal<Mac> hmac = new ThreadLocal<Mac>() {
+      @Override protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+          mac.init(hmacKey);
+          return mac;
+        } catch (InvalidKeyException e) {
+          throw new RuntimeException("Failed to initialize HMAC", e);
+        } catch (NoSuchAlgorithmException e) {
+          throw new RuntimeException("Failed to initialize HMAC", e);
+        }
+      }
+    };
 
     // NOTE(danilatos) This is not safe to be a public constructor
     // as it does not copy the byte array.
@@ -63,6 +79,7 @@ public class DigestUtils2 {
       }
       data = bytes;
       asHex = Hex.encodeHexString(data);
+      hmacKey = new SecretKeySpec(data, HMAC_SHA1_ALGORITHM);
     }
 
     public String getHexData() {
@@ -83,25 +100,10 @@ public class DigestUtils2 {
    * @param message the data to compute the digest of
    */
   public static byte[] sha1hmac(Secret key, byte[] message) {
-    try {
-
-      // get an hmac_sha1 key from the raw key bytes
-      SecretKeySpec signingKey = new SecretKeySpec(key.data, HMAC_SHA1_ALGORITHM);
-
-      // get an hmac_sha1 Mac instance and initialize with the signing key
-      Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-      mac.init(signingKey);
-
-      // compute the hmac on input data bytes
-      byte[] ret = mac.doFinal(message);
-      assert ret.length == SHA1_BLOCK_SIZE;
-      return ret;
-
-    } catch (InvalidKeyException e) {
-      throw new RuntimeException("Failed to generate HMAC", e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("Failed to generate HMAC", e);
-    }
+    // doFinal() resets the Mac, so it is ready for the next message.
+    byte[] ret = key.hmac.get().doFinal(message);
+    assert ret.length == SHA1_BLOCK_SIZE;
+    return ret;
   }
 
   public static String hexHmac(Secret key, String str) {
@@ -18,23 +18,21 @@ package com.google.walkaround.util.server.gwt;
 
 import com.google.common.base.Function;
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 /**
  * Adapted from {@link com.google.gwt.logging.server.StackTraceDeobfuscator}
  * with some changes.
@@ -51,6 +49,13 @@ public class StackTraceDeobfuscator {
   /** Retrieves symbol maps. */
   public interface SymbolMapsDirectory {
     InputStream getSymbolMapInputStream(String permutationStrongName) throws IOException;
+
+    /**
+     * Returns the precompiled {@link SymbolIndex} for the given permutation,
+     * or null if there is none and the symbol map should be used instead.
+     */
+    @Nullable InputStream getSymbolIndexInputStream(String permutationStrongName)
+        throws IOException;
   }
 
   // From JsniRef class, which is in gwt-dev and so can't be accessed here
@@ -60,35 +65,31 @@ public class StackTraceDeobfuscator {
 
   private SymbolMapsDirectory symbolMapsDirectory;
 
-  private final Map<String, Map<String, String>> symbolMaps =
+  // Each index is a single byte array, so keeping many of them is cheap, and
+  // a computing map makes concurrent requests for the same permutation wait
+  // for one load rather than each loading it.
+  private final Map<String, SymbolIndex> symbolMaps =
     new MapMaker()
         .maximumSize(100)
         .makeComputingMap(
-            new Function<String, Map<String, String>>() {
-              @Override public Map<String, String> apply(String strongName) {
+            new Function<String, SymbolIndex>() {
+              @Override public SymbolIndex apply(String strongName) {
                 try {
-                  // Can't use ImmutableMap.Builder since we may have duplicate keys like $clinit.
-                  Map<String, String> out = new HashMap<String, String>();
-                  BufferedReader bin = new BufferedReader(
-                      new InputStreamReader(
-                          symbolMapsDirectory.getSymbolMapInputStream(strongName)));
-                  try {
-                    String line;
-                    while ((line = bin.readLine()) != null) {
-                      if (line.charAt(0) == '#') {
-                        continue;
-                      }
-                      int idx = line.indexOf(',');
-                      out.put(line.substring(0, idx), line.substring(idx + 1));
-                    }
-                  } finally {
-                    bin.close();
+                  InputStream index = symbolMapsDirectory.getSymbolIndexInputStream(strongName);
+                  SymbolIndex out;
+                  if (index != null) {
+                    out = SymbolIndex.read(index);
+                  } else {
+                    log.info("No symbol index for " + strongName + ", using symbol map");
+                    out = SymbolIndex.fromSymbolMap(
+                        symbolMapsDirectory.getSymbolMapInputStream(strongName));
                   }
-                  return ImmutableMap.copyOf(out);
+                  log.info("Loaded " + out + " for " + strongName);
+                  return out;
                 } catch (IOException e) {
                   log.log(Level.WARNING, "Symbol map not found: " + strongName, e);
                   // use empty symbol map to avoid repeated loads
-                  return ImmutableMap.of();
+                  return SymbolIndex.EMPTY;
                 }
               }
             });
@@ -129,8 +130,8 @@ public class StackTraceDeobfuscator {
    */
   public StackTraceElement resymbolize(String ste,
       String strongName) {
-    Map<String, String> map = symbolMaps.get(strongName);
-    String symbolData = map == null ? null : map.get(ste);
+    SymbolIndex index = symbolMaps.get(strongName);
+    String symbolData = index == null ? null : index.get(ste);
 
     if (symbolData != null) {
       // jsniIdent, className, memberName, sourceUri, sourceLine
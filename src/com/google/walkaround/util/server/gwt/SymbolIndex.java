@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.gwt;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A GWT symbol map in a compact, sorted binary form that can be searched in
+ * place: one byte buffer per permutation rather than a map with several
+ * objects per symbol.
+ *
+ * The format is a format version and an entry count, followed by the offset
+ * of each entry, followed by the entries.  An entry is a length-prefixed
+ * UTF-8 key (the obfuscated symbol) followed by a length-prefixed UTF-8 value
+ * (the rest of the symbol map line).  Entries are sorted by key bytes.
+ *
+ * {@link #main} converts the {@code .symbolMap} files that the GWT compiler
+ * writes into {@code .symbolIndex} files at build time.
+ */
+public class SymbolIndex {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(SymbolIndex.class.getName());
+
+  public static final String SYMBOL_MAP_SUFFIX = ".symbolMap";
+  public static final String SYMBOL_INDEX_SUFFIX = ".symbolIndex";
+
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+
+  public static final SymbolIndex EMPTY =
+      new SymbolIndex(ByteBuffer.wrap(write(newEntryMap())), 0);
+
+  private final ByteBuffer data;
+  private final int size;
+
+  private SymbolIndex(ByteBuffer data, int size) {
+    this.data = data;
+    this.size = size;
+  }
+
+  /** Wraps an index in the format written by {@link #fromSymbolMap}. */
+  public static SymbolIndex fromBuffer(ByteBuffer data) throws IOException {
+    ByteBuffer buf = data.slice();
+    if (buf.remaining() < HEADER_BYTES) {
+      throw new IOException("Symbol index truncated: " + buf.remaining() + " bytes");
+    }
+    int version = buf.getInt(0);
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown symbol index format version: " + version);
+    }
+    int size = buf.getInt(4);
+    if (size < 0 || size > (buf.remaining() - HEADER_BYTES) / 4) {
+      throw new IOException("Bad symbol index size: " + size);
+    }
+    return new SymbolIndex(buf, size);
+  }
+
+  /** Reads an index in the format written by {@link #fromSymbolMap}. */
+  public static SymbolIndex read(InputStream in) throws IOException {
+    try {
+      return fromBuffer(ByteBuffer.wrap(ByteStreams.toByteArray(in)));
+    } finally {
+      in.close();
+    }
+  }
+
+  private static SortedMap<byte[], byte[]> newEntryMap() {
+    return new TreeMap<byte[], byte[]>(UnsignedBytes.lexicographicalComparator());
+  }
+
+  private static SortedMap<byte[], byte[]> parseSymbolMap(InputStream in) throws IOException {
+    SortedMap<byte[], byte[]> entries = newEntryMap();
+    BufferedReader bin = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+    try {
+      String line;
+      while ((line = bin.readLine()) != null) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        int idx = line.indexOf(',');
+        if (idx == -1) {
+          throw new IOException("Malformed symbol map line: " + line);
+        }
+        // Later lines win for duplicate keys like $clinit.
+        entries.put(line.substring(0, idx).getBytes(Charsets.UTF_8),
+            line.substring(idx + 1).getBytes(Charsets.UTF_8));
+      }
+    } finally {
+      bin.close();
+    }
+    return entries;
+  }
+
+  private static byte[] write(SortedMap<byte[], byte[]> entries) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(entries.size());
+      int offset = HEADER_BYTES + 4 * entries.size();
+      for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+        out.writeInt(offset);
+        offset += 8 + entry.getKey().length + entry.getValue().length;
+      }
+      for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+        out.writeInt(entry.getKey().length);
+        out.write(entry.getKey());
+        out.writeInt(entry.getValue().length);
+        out.write(entry.getValue());
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("ByteArrayOutputStream threw IOException", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Converts a symbol map in the text format written by the GWT compiler into
+   * an index.  Closes {@code in}.
+   */
+  public static SymbolIndex fromSymbolMap(InputStream in) throws IOException {
+    return fromBuffer(ByteBuffer.wrap(write(parseSymbolMap(in))));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int sizeInBytes() {
+    return data.capacity();
+  }
+
+  private int entryOffset(int i) {
+    return data.getInt(HEADER_BYTES + 4 * i);
+  }
+
+  /** Compares the key of the entry at {@code offset} with {@code key}. */
+  private int compareKey(int offset, byte[] key) {
+    int length = data.getInt(offset);
+    int start = offset + 4;
+    for (int i = 0; i < Math.min(length, key.length); i++) {
+      int cmp = UnsignedBytes.compare(data.get(start + i), key[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Returns the symbol map data for the given obfuscated symbol (the part of
+   * the symbol map line after the first comma), or null if there is none.
+   */
+  @Nullable public String get(String symbol) {
+    Preconditions.checkNotNull(symbol, "Null symbol");
+    byte[] key = symbol.getBytes(Charsets.UTF_8);
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int offset = entryOffset(mid);
+      int cmp = compareKey(offset, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        int valueOffset = offset + 4 + key.length;
+        byte[] value = new byte[data.getInt(valueOffset)];
+        for (int i = 0; i < value.length; i++) {
+          value[i] = data.get(valueOffset + 4 + i);
+        }
+        return new String(value, Charsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  @Override public String toString() {
+    return "SymbolIndex(" + size + " symbols, " + sizeInBytes() + " bytes)";
+  }
+
+  /**
+   * Writes a {@code .symbolIndex} file next to each {@code .symbolMap} file in
+   * the directories given as arguments.
+   */
+  public static void main(String[] args) throws IOException {
+    for (String dirName : args) {
+      File dir = new File(dirName);
+      File[] files = dir.listFiles();
+      if (files == null) {
+        throw new IOException("Not a directory: " + dir);
+      }
+      for (File file : files) {
+        String name = file.getName();
+        if (!name.endsWith(SYMBOL_MAP_SUFFIX)) {
+          continue;
+        }
+        File indexFile = new File(dir,
+            name.substring(0, name.length() - SYMBOL_MAP_SUFFIX.length()) + SYMBOL_INDEX_SUFFIX);
+        byte[] index = write(parseSymbolMap(new FileInputStream(file)));
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+          out.write(index);
+        } finally {
+          out.close();
+        }
+        System.out.println("Wrote " + indexFile + " (" + index.length + " bytes)");
+      }
+    }
+  }
+
+}
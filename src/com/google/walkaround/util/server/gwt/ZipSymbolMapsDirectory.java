@@ -22,6 +22,8 @@ import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import javax.annotation.Nullable;
+
 /**
  * @author ohler@google.com (Christian Ohler)
  */
@@ -38,15 +40,28 @@ public class ZipSymbolMapsDirectory implements StackTraceDeobfuscator.SymbolMaps
     this.rootDir = rootDir;
   }
 
-  @Override
-  public InputStream getSymbolMapInputStream(String permutationStrongName) throws IOException {
-    String fileName = rootDir + "/" + permutationStrongName + ".symbolMap";
+  @Nullable private ZipEntry getEntry(String fileName) {
     ZipEntry entry = zip.getEntry(fileName);
     log.info("ZipEntry for " + fileName + " is " + entry);
+    return entry;
+  }
+
+  @Override
+  public InputStream getSymbolMapInputStream(String permutationStrongName) throws IOException {
+    String fileName = rootDir + "/" + permutationStrongName + SymbolIndex.SYMBOL_MAP_SUFFIX;
+    ZipEntry entry = getEntry(fileName);
     if (entry == null) {
       throw new IOException(fileName + " not found in " + zip);
     }
     return zip.getInputStream(entry);
   }
 
+  @Override
+  @Nullable public InputStream getSymbolIndexInputStream(String permutationStrongName)
+      throws IOException {
+    ZipEntry entry =
+        getEntry(rootDir + "/" + permutationStrongName + SymbolIndex.SYMBOL_INDEX_SUFFIX);
+    return entry == null ? null : zip.getInputStream(entry);
+  }
+
 }
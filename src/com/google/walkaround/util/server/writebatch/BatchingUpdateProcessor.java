@@ -25,15 +25,19 @@ import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.writebatch.Messages.Message;
 import com.google.walkaround.util.server.writebatch.Messages.PermanentFailureMessage;
 import com.google.walkaround.util.server.writebatch.Messages.ResultMessage;
-import com.google.walkaround.util.server.writebatch.Messages.YourTurnMessage;
 import com.google.walkaround.util.server.writebatch.UpdateTransaction.BatchTooLargeException;
 
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * Processes updates in a way that batches transactions whenever there are
  * multiple concurrent requests from different threads.
@@ -66,6 +70,11 @@ import java.util.logging.Logger;
  * TransactionFactory.beginTransaction() and repeating the above procedure.
  * Rejected updates may not be retried.
  *
+ * There is no lock: each request thread enqueues its update and tries to
+ * become the combiner with a compare-and-set.  The combiner runs batches from
+ * the head of the queue, completing each request's item with its result, until
+ * its own request is done, and then steps down.  The other threads park until
+ * their item is completed or they are woken up to take over.
  *
  * If any method on an object of this type throws a RuntimeException, the object
  * must be discarded as its internal state may be corrupted.  If any method
@@ -86,8 +95,10 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
 
   private class QueueItem {
     private final Thread thread;
-    private final RestrictedChannel<R> channel = new RestrictedChannel<R>();
     private final U update;
+    // Completion of this item; written once, by the combiner, after removing
+    // the item from waitingItems.
+    private volatile Message<R> result = null;
 
     public QueueItem(Thread thread, U update) {
       Preconditions.checkNotNull(thread, "Null thread");
@@ -96,40 +107,52 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       this.update = update;
     }
 
-    public Thread getThread() {
-      return thread;
+    public U getUpdate() {
+      return update;
     }
 
-    public RestrictedChannel<R> getChannel() {
-      return channel;
+    @Nullable public Message<R> getResult() {
+      return result;
     }
 
-    public U getUpdate() {
-      return update;
+    public void complete(Message<R> m) {
+      Preconditions.checkNotNull(m, "Null message");
+      Preconditions.checkState(result == null, "%s: Second completion %s", this, m);
+      result = m;
+      LockSupport.unpark(thread);
+    }
+
+    /** Makes the item's thread re-check whether it can become the combiner. */
+    public void wake() {
+      LockSupport.unpark(thread);
     }
 
     @Override public String toString() {
-      return "QueueItem(" + thread + ", " + channel + ", " + update + ")";
+      return "QueueItem(" + thread.getName() + ", " + (result == null ? "pending" : result)
+          + ", " + update + ")";
     }
   }
 
   // A nontrivial invariant that we maintain is
   //
-  //   worker == null implies waitingItems.isEmpty()
+  //   combiner == null implies waitingItems.isEmpty(), or the thread of the
+  //   first waiting item has been woken up to try to become the combiner
   //
-  // or, reading it the other way, "if there are waiting items, then worker is
-  // non-null".  This invariant guarantees that we don't end up with waiting
-  // items with no worker to take care of them.
+  // which guarantees that we don't end up with waiting items with no thread
+  // to take care of them.  A thread that fails to become the combiner after
+  // enqueueing its item parks; the combiner wakes the first waiting item's
+  // thread whenever it steps down (see releaseCombiner()).  Since the failed
+  // compareAndSet() is ordered before the combiner's release, the combiner is
+  // guaranteed to see the item.
 
   private final TransactionFactory<R, T> txFactory;
   private final RetryHelper retryHelper;
-  private final Object lock = new Object();
-  // Concurrent so that we can remove rejected requests with no synchronization.
-  // Additions have to happen under the lock.  (The invariant also implies that
-  // synchronization is needed for additions but not removals.)
+  // Only the combiner removes items, always from the head.  Anyone may add.
   private final ConcurrentLinkedQueue<QueueItem> waitingItems =
       new ConcurrentLinkedQueue<QueueItem>();
-  private Thread worker = null;
+  // Tracks waitingItems.size(), which is O(n), for logging.
+  private final AtomicInteger waitingCount = new AtomicInteger();
+  private final AtomicReference<Thread> combiner = new AtomicReference<Thread>();
   // If this is non-null, the updater is unusable because its state may be corrupted.
   private volatile Throwable corrupted = null;
 
@@ -141,19 +164,38 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     this.retryHelper = retryHelper;
   }
 
+  // Must be O(1) since we log it on every step.
   @Override public String toString() {
     return "BatchingUpdateProcessor(" + (corrupted == null ? "" : corrupted + ", ")
-        + worker + ", " + waitingItems.size() + " waiting, " + waitingItems.peek() + ")";
+        + combiner.get() + ", " + waitingCount.get() + " waiting)";
   }
 
   private void setCorrupted(Throwable t) {
     log.log(Level.SEVERE, this + ": Corrupted", t);
-    corrupted = t;
+    if (corrupted == null) {
+      corrupted = t;
+    }
+    // Nobody will process the waiting items any more.  Wake all their threads
+    // so that they notice and fail rather than park forever.  Threads that
+    // enqueue after this see the corruption before they park.
+    for (QueueItem item : waitingItems) {
+      item.wake();
+    }
+  }
+
+  private void checkNotCorrupted() {
+    if (corrupted != null) {
+      // This should be unnecessary for new requests since the contract says
+      // that we shouldn't be called any more after a RuntimeException, but
+      // that's easy to get wrong, so let's be defensive.  For requests that
+      // were waiting when the combiner failed, this is what gets them out.
+      throw new Error("Updater is corrupted: " + this, corrupted);
+    }
   }
 
-  private void assertWorker() {
-    Preconditions.checkState(worker == Thread.currentThread(),
-        "%s: Thread %s assumed it was the worker", this, Thread.currentThread());
+  private void assertCombiner() {
+    Preconditions.checkState(combiner.get() == Thread.currentThread(),
+        "%s: Thread %s assumed it was the combiner", this, Thread.currentThread());
   }
 
   public R processUpdate(U update) throws PermanentFailure {
@@ -161,15 +203,11 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       return doProcessUpdate(update);
     } catch (RuntimeException e) {
       // It's possible that this RuntimeException left the processor in a state
-      // where no thread feels responsible for doing any work any more, thus
-      // leaving the threads that are currently waiting deadlocked.  (Future
+      // where some of the waiting items will never be processed.  Marking it
+      // corrupted wakes the waiting threads so that they fail too.  (Future
       // requests won't have this problem because our contract says that the
-      // caller has to discard the updater after a RuntimeException.)  We could
-      // try to resolve the deadlock by sending a corruption notification
-      // message to all waitingItems.  A simpler alternative would be to rely on
-      // App Engine's 30-second timeout to kill the hanging threads, but I don't
-      // think that works for servers.  For now, we throw an Error, in the hope
-      // that this will terminate the JVM.
+      // caller has to discard the updater after a RuntimeException.)  We
+      // throw an Error, in the hope that this will terminate the JVM.
       setCorrupted(e);
       throw new Error("RuntimeException from doProcessUpdate()", e);
     } catch (Error e) {
@@ -180,71 +218,94 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
 
   private R doProcessUpdate(U update) throws PermanentFailure {
     // TODO(ohler): reject if queue is too long
-    log.info(this + ": processUpdate(" + update + ")");
+    checkNotCorrupted();
     QueueItem item = new QueueItem(Thread.currentThread(), update);
-    synchronized (lock) {
-      if (corrupted != null) {
-        // This should be unnecessary since the contract says that we shouldn't be called any more
-        // after a RuntimeException, but that's easy to get wrong, so let's be defensive.
-        throw new Error("Updater is corrupted: " + this, corrupted);
+    waitingItems.add(item);
+    waitingCount.incrementAndGet();
+    log.fine(this + ": doProcessUpdate(" + update + ")");
+    boolean interrupted = false;
+    try {
+      while (true) {
+        Message<R> result = item.getResult();
+        if (result != null) {
+          log.fine(this + ": doProcessUpdate(): got result " + result);
+          return handleResultMessage(result);
+        }
+        checkNotCorrupted();
+        if (combiner.compareAndSet(null, Thread.currentThread())) {
+          combine(item);
+        } else {
+          LockSupport.park(this);
+          // Waiting for the result is not interruptible, since the update may
+          // be committed regardless; we preserve the interrupt for the caller.
+          interrupted |= Thread.interrupted();
+        }
       }
-      log.info(this + ": doProcessUpdate(): waitingItems=" + waitingItems);
-      if (worker == null) {
-        log.info(this + ": doProcessUpdate(): no worker active, will become worker");
-        worker = Thread.currentThread();
-        item.getChannel().send(YourTurnMessage.<R>of());
-      } else {
-        log.info(this + ": doProcessUpdate(): will wait for current worker: " + worker);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
       }
-      waitingItems.add(item);
     }
-    log.info(this + ": doProcessUpdate(): waiting for message");
-    Message<R> message = item.getChannel().receive();
-    log.info(this + ": doProcessUpdate(): message=" + message);
-    if (message.isYourTurnMessage()) {
-      log.info(this + ": doProcessUpdate(): became worker");
-      assertWorker();
-      return doWorkAndReturnResult(item);
-    } else {
-      log.info(this + ": doProcessUpdate(): piggybacked, got result " + message);
-      return handleResultMessage(message);
+  }
+
+  /**
+   * Processes batches as the combiner, until this thread's own item has a
+   * result, then steps down.
+   */
+  private void combine(QueueItem ownItem) {
+    try {
+      while (ownItem.getResult() == null) {
+        try {
+          doWork();
+        } catch (PermanentFailure e) {
+          // doWork() has delivered the failure to the items of the batch; our
+          // own item may not have been one of them.
+          log.log(Level.INFO, this + ": combine(): batch failed", e);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Mark ourselves corrupted before stepping down, so that the next thread
+      // doesn't take over.
+      setCorrupted(e);
+      throw e;
+    } catch (Error e) {
+      setCorrupted(e);
+      throw e;
+    } finally {
+      releaseCombiner();
+    }
+  }
+
+  private void releaseCombiner() {
+    assertCombiner();
+    combiner.set(null);
+    QueueItem next = waitingItems.peek();
+    if (next != null) {
+      log.fine(this + ": releaseCombiner(): waking " + next);
+      next.wake();
     }
   }
 
   private R handleResultMessage(Message<R> message) throws PermanentFailure {
-    log.info(this + ": handleResultMessage(" + message + ")");
-    if (message.isYourTurnMessage()) {
-      throw new AssertionError(this + ": Expected result message, not " + message);
-    } else if (message.isResultMessage()) {
+    if (message.isResultMessage()) {
       return message.asResultMessage().getResult();
     } else if (message.isPermanentFailureMessage()) {
-      throw new PermanentFailure("Worker thread reported PermanentFailure",
+      throw new PermanentFailure("Combiner thread reported PermanentFailure",
           message.asPermanentFailureMessage().getFailure());
     } else {
       throw new AssertionError(this + ": Unexpected message type: " + message);
     }
   }
 
-  private R doWorkAndReturnResult(QueueItem item) throws PermanentFailure {
-    doWork();
-    Preconditions.checkState(!item.getChannel().isEmpty(), "%s", item);
-    log.info(this + ": doWorkAndReturnResult(): getting message");
-    Message<R> message = item.getChannel().receive();
-    log.info(this + ": doWorkAndReturnResult(): message=" + message);
-    return handleResultMessage(message);
-  }
-
   private List<QueueItem> removeWaitingItems(int count) {
     ImmutableList.Builder<QueueItem> b = ImmutableList.builder();
-    log.info(this + ": removeWaitingItems(): removing " + count + " waiting items from "
-        + waitingItems);
     for (int i = 0; i < count; i++) {
-      assertWorker();
+      assertCombiner();
       b.add(waitingItems.remove());
+      waitingCount.decrementAndGet();
     }
     List<QueueItem> removedItems = b.build();
-    log.info(this + ": removeWaitingItems(): removed: " + removedItems);
-    log.info(this + ": removeWaitingItems(): remaining: " + waitingItems);
+    log.fine(this + ": removeWaitingItems(): removed " + count);
     return removedItems;
   }
 
@@ -260,18 +321,19 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
     }
 
     private void dropRequest(Iterator<QueueItem> iterator, QueueItem item, Message<R> m) {
-      log.info("doWork(): dropping request " + item + " with message " + m);
+      log.fine("doWork(): dropping request " + item + " with message " + m);
       iterator.remove();
-      item.getChannel().send(m);
+      waitingCount.decrementAndGet();
+      item.complete(m);
     }
 
     private void processItems(T tx) throws RetryableFailure, PermanentFailure {
       Iterator<QueueItem> iterator = waitingItems.iterator();
-      Preconditions.checkState(iterator.hasNext(), "%s", waitingItems);
+      Preconditions.checkState(iterator.hasNext(), "%s", BatchingUpdateProcessor.this);
       int rejected = 0;
       while (iterator.hasNext()) {
         QueueItem next = iterator.next();
-        log.info("doWork(): next=" + next);
+        log.fine("doWork(): next=" + next);
         R result;
         try {
           result = tx.processUpdate(next.getUpdate());
@@ -290,14 +352,12 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
               new PermanentFailure("processUpdate() threw RuntimeException", e)));
           throw e;
         }
-        log.info("doWork(): result=" + result);
-        assertWorker();
+        log.fine("doWork(): result=" + result);
+        assertCombiner();
         if (result.isRejected()) {
-          log.info("doWork(): rejected");
           dropRequest(iterator, next, ResultMessage.<R>of(result));
           rejected++;
         } else {
-          log.info("doWork(): accepted");
           messagesToSend.add(ResultMessage.<R>of(result));
         }
       }
@@ -315,13 +375,7 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       T tx = txFactory.beginTransaction();
       log.info("doWork(): tx=" + tx);
       try {
-        log.info("doWork(): waitingItems at start: " + waitingItems);
         processItems(tx);
-        // We log waitingItems before and after to be able to see if anyone
-        // modified it concurrently.
-        log.info("doWork(): waitingItems at end but before removing: "
-            + waitingItems);
-        log.info("doWork(): messagesToSend=" + messagesToSend);
         log.info("doWork(): calling commit()");
         commitCalled = true;
         tx.commit();
@@ -391,24 +445,12 @@ public class BatchingUpdateProcessor<U, R extends UpdateResult, T extends Update
       // Note that it is possible that messagesToSend is empty: If the batch succeeded and
       // all results were rejections.
       List<QueueItem> removed = removeWaitingItems(messagesToSend.size());
-      synchronized (lock) {
-        assertWorker();
-        // NOTE(ohler): It is essential that this executes even if we throw PermanentFailure;
-        // otherwise, no thread will feel responsible for doing any work any more.
-        if (!waitingItems.isEmpty()) {
-          QueueItem item = waitingItems.element();
-          worker = item.getThread();
-          item.getChannel().send(YourTurnMessage.<R>of());
-        } else {
-          worker = null;
-        }
-      }
       Preconditions.checkState(removed.size() == messagesToSend.size(), "%s %s",
           removed.size(), messagesToSend.size());
       for (int i = 0; i < removed.size(); i++) {
-        log.info(this + ": doWork(): sending result " + i);
-        removed.get(i).getChannel().send(messagesToSend.get(i));
+        removed.get(i).complete(messagesToSend.get(i));
       }
+      log.info(this + ": doWork(): completed " + removed.size());
     }
   }
 
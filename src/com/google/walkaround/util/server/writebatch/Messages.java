@@ -32,12 +32,10 @@ class Messages {
 
   /* (ohler-java-generate-union-type "<R>"
        '(Message nil
-         ((YourTurnMessage nil nil)
-          (ResultMessage ((R result nil)) nil)
+         ((ResultMessage ((R result nil)) nil)
           (PermanentFailureMessage ((PermanentFailure failure nil)) nil)))) */
 
   public enum MessageType {
-    YOUR_TURN,
     RESULT,
     PERMANENT_FAILURE;
   }
@@ -49,10 +47,6 @@ class Messages {
 
     public abstract MessageType getType();
 
-    public boolean isYourTurnMessage() {
-      return false;
-    }
-
     public boolean isResultMessage() {
       return false;
     }
@@ -61,10 +55,6 @@ class Messages {
       return false;
     }
 
-    public YourTurnMessage<R> asYourTurnMessage() {
-      throw new ClassCastException("Attempt to call asYourTurnMessage() on " + this);
-    }
-
     public ResultMessage<R> asResultMessage() {
       throw new ClassCastException("Attempt to call asResultMessage() on " + this);
     }
@@ -74,40 +64,6 @@ class Messages {
     }
   }
 
-  public static class YourTurnMessage<R> extends Message<R> {
-    // Package-private so that no subclasses can be added outside this package.
-    YourTurnMessage() {
-    }
-
-    @Override public String toString() {
-      return "YourTurnMessage()";
-    }
-
-    @Override public boolean equals(Object o) {
-      return o != null && o.getClass() == YourTurnMessage.class;
-    }
-
-    @Override public int hashCode() {
-      return Objects.hashCode(YourTurnMessage.class);
-    }
-
-    @Override public MessageType getType() {
-      return MessageType.YOUR_TURN;
-    }
-
-    @Override public boolean isYourTurnMessage() {
-      return true;
-    }
-
-    @Override public YourTurnMessage<R> asYourTurnMessage() {
-      return this;
-    }
-
-    public static <R> YourTurnMessage<R> of() {
-      return new YourTurnMessage<R>();
-    }
-  }
-
   public static class ResultMessage<R> extends Message<R> {
     private final R result;
 
@@ -35,6 +35,8 @@ import org.waveprotocol.wave.client.scheduler.TimerService;
 import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.util.IntMap;
 
+import java.util.Queue;
+
 import javax.annotation.Nullable;
 
 /**
@@ -44,6 +46,11 @@ import javax.annotation.Nullable;
  * Converts a stream of possibly-missing, possibly-unordered, possibly-duplicated
  * messages into a stream of in-order, consecutive, no-dup messages.
  *
+ * Ordered messages are queued and delivered to the listener from an incremental
+ * task, so that a burst of messages (e.g. a catchup of many revisions, or a
+ * busy wave) is parsed and applied in time slices rather than in one long
+ * event handler that freezes the UI.
+ *
  * @author danilatos@google.com (Daniel Danilatos)
  */
 // TODO(danilatos): Move the flaky layer into a separate class - possibly
@@ -61,6 +68,13 @@ public abstract class GaeReceiveOpChannel<M>
     }
   };
 
+  private final Scheduler.IncrementalTask deliveryTask = new Scheduler.IncrementalTask() {
+    @Override
+    public boolean execute() {
+      return deliverNext();
+    }
+  };
+
   private final Scheduler.Task catchupTask = new Scheduler.Task() {
     @Override
     public void execute() {
@@ -118,12 +132,20 @@ public abstract class GaeReceiveOpChannel<M>
   private final GaeChannelDemuxer demuxer = GaeChannelDemuxer.get();
   private final TimerService scheduler = SchedulerInstance.getMediumPriorityTimer();
   private final IntMap<ChangeData<JavaScriptObject>> pending = CollectionUtils.createIntMap();
+  /**
+   * Messages for revisions {@code deliveredRevision + 1} through
+   * {@code currentRevision}, in order, not yet passed to the listener.
+   */
+  private final Queue<ChangeData<JavaScriptObject>> ready = CollectionUtils.createQueue();
   private final SlobId objectId;
   private final String signedSessionString;
   private final ChannelConnectService service;
   private final Log log;
   private ReceiveOpChannel.Listener<M> listener;
+  /** Highest revision received such that all earlier ones have been, too. */
   private int currentRevision = 0;
+  /** Highest revision passed to the listener. */
+  private int deliveredRevision = 0;
   private int knownHeadRevision = 0;
   private int catchupRevision = 0;
 
@@ -149,7 +171,7 @@ public abstract class GaeReceiveOpChannel<M>
   public void connect(int revision, ReceiveOpChannel.Listener<M> listener) {
     Preconditions.checkState(this.listener == null && initialToken != null);
     this.listener = listener;
-    this.currentRevision = this.knownHeadRevision = revision;
+    this.currentRevision = this.deliveredRevision = this.knownHeadRevision = revision;
 
     log.log(Level.DEBUG, "connect, rev=", revision, ", token=", initialToken);
 
@@ -166,6 +188,7 @@ public abstract class GaeReceiveOpChannel<M>
   @Override
   public void disconnect() {
     scheduler.cancel(heartbeatTask);
+    scheduler.cancel(deliveryTask);
     demuxer.deregisterChannel(objectId.getId());
   }
 
@@ -224,17 +247,10 @@ public abstract class GaeReceiveOpChannel<M>
     assert resultingRevision == currentRevision + 1 : "other cases should have been caught";
 
     while (true) {
-      M data;
-      try {
-        data = parse(message);
-      } catch (MessageException e) {
-        listener.onError(e);
-        return;
+      if (log.shouldLog(Level.DEBUG)) {
+        log.log(Level.DEBUG, "Ordered op @", currentRevision + 1, " sid=", message.getClientId());
       }
-
-      log.log(Level.DEBUG, "Ordered op @", resultingRevision, " sid=", message.getClientId(),
-          ", payload=", message.getPayload());
-      listener.onMessage(currentRevision + 1, message.getClientId().getId(), data);
+      ready.add(message);
       currentRevision++;
 
       int next = currentRevision + 1;
@@ -247,6 +263,50 @@ public abstract class GaeReceiveOpChannel<M>
     }
 
     assert !pending.containsKey(currentRevision + 1);
+    assert deliveredRevision + ready.size() == currentRevision;
+    if (!scheduler.isScheduled(deliveryTask)) {
+      scheduler.schedule(deliveryTask);
+    }
+  }
+
+  /**
+   * Parses and delivers the next ready message.
+   *
+   * @return true if there are more to deliver
+   */
+  private boolean deliverNext() {
+    Preconditions.checkState(!corruptedByException, "deliverNext called while corrupted");
+    if (ready.isEmpty()) {
+      return false;
+    }
+    ChangeData<JavaScriptObject> message = ready.remove();
+    int resultingRevision = deliveredRevision + 1;
+    M data;
+    try {
+      data = parse(message);
+    } catch (MessageException e) {
+      // Forget this message and everything after it, so that the next
+      // catchup or heartbeat fetches them again.
+      log.log(Level.WARNING, "Failed to parse op @", resultingRevision, ": ", e);
+      ready.clear();
+      currentRevision = deliveredRevision;
+      listener.onError(e);
+      return false;
+    }
+
+    if (log.shouldLog(Level.DEBUG)) {
+      log.log(Level.DEBUG, "Delivering op @", resultingRevision, " sid=", message.getClientId(),
+          ", payload=", message.getPayload());
+    }
+    deliveredRevision = resultingRevision;
+    try {
+      listener.onMessage(resultingRevision, message.getClientId().getId(), data);
+    } catch (RuntimeException e) {
+      corruptedByException = true;
+      log.log(Level.WARNING, "Op channel is now corrupted", e);
+      throw e;
+    }
+    return !ready.isEmpty();
   }
 
   private void scheduleCatchup() {
@@ -276,7 +336,9 @@ public abstract class GaeReceiveOpChannel<M>
       int resultingRevision = (int) jso.getNumber("revision");
       ChangeData<JavaScriptObject> message = ChangeDataParser.fromJson(jso);
 
-      log.log(Level.INFO, "Store message: ", message);
+      if (log.shouldLog(Level.DEBUG)) {
+        log.log(Level.DEBUG, "Store message: ", message);
+      }
       receiveUnorderedData(resultingRevision, message);
     }
   }
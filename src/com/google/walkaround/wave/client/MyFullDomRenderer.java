@@ -85,12 +85,24 @@ public class MyFullDomRenderer implements RenderingRules<UiBuilder> {
     };
   }
 
+  /**
+   * Conversations with at least this many blips are rendered with their fully
+   * read inline threads collapsed.  The browser then doesn't lay out or paint
+   * those threads until the user expands them, which is most of the time it
+   * takes to open a very large wave.
+   */
+  private static final int LARGE_CONVERSATION_BLIP_COUNT = 300;
+
   private final ShallowBlipRenderer blipPopulator;
   private final DocRefRenderer docRenderer;
   private final ViewIdMapper viewIdMapper;
   private final ViewFactory viewFactory;
   private final ProfileManager profileManager;
   private final ThreadReadStateMonitor readMonitor;
+  // Decided once per conversation, at initial render; it doesn't matter much
+  // if a conversation crosses the threshold later.
+  private final IdentityMap<Conversation, Boolean> largeConversations =
+      CollectionUtils.createIdentityMap();
 
   public MyFullDomRenderer(ShallowBlipRenderer blipPopulator, DocRefRenderer docRenderer,
       ProfileManager profileManager, ViewIdMapper viewIdMapper, ViewFactory viewFactory,
@@ -181,11 +193,36 @@ public class MyFullDomRenderer implements RenderingRules<UiBuilder> {
       int unread = readMonitor.getUnreadCount(thread);
       inlineBuilder.setTotalBlipCount(read + unread);
       inlineBuilder.setUnreadBlipCount(unread);
+      // The counts above keep the collapsed thread's indicator accurate, and
+      // threads with anything unread stay expanded.
+      if (unread == 0 && isLarge(thread.getConversation())) {
+        inlineBuilder.setCollapsed(true);
+      }
       builder = inlineBuilder;
     }
     return builder;
   }
 
+  private static int countBlips(ConversationThread thread) {
+    int count = 0;
+    for (ConversationBlip blip : thread.getBlips()) {
+      count++;
+      for (ConversationThread reply : blip.getReplyThreads()) {
+        count += countBlips(reply);
+      }
+    }
+    return count;
+  }
+
+  private boolean isLarge(Conversation conversation) {
+    Boolean large = largeConversations.get(conversation);
+    if (large == null) {
+      large = countBlips(conversation.getRootThread()) >= LARGE_CONVERSATION_BLIP_COUNT;
+      largeConversations.put(conversation, large);
+    }
+    return large;
+  }
+
   @Override
   public UiBuilder render(final ConversationBlip blip, UiBuilder document,
       final IdentityMap<ConversationThread, UiBuilder> anchorUis,
@@ -202,6 +239,10 @@ public class MyFullDomRenderer implements RenderingRules<UiBuilder> {
     UiBuilder convsUi = new UiBuilder() {
       @Override
       public void outputHtml(SafeHtmlBuilder out) {
+        // Almost all blips have none.
+        if (nestedConversations.isEmpty()) {
+          return;
+        }
         // Order by conversation id. Ideally, the sort key would be creation
         // time, but that is not exposed in the conversation API.
         final List<Conversation> ordered = CollectionUtils.newArrayList();
@@ -217,7 +258,6 @@ public class MyFullDomRenderer implements RenderingRules<UiBuilder> {
             return o1.getId().compareTo(o2.getId());
           }
         });
-        List<UiBuilder> orderedUis = CollectionUtils.newArrayList();
         for (Conversation conv : ordered) {
           nestedConversations.get(conv).outputHtml(out);
         }
@@ -21,6 +21,7 @@ import com.google.walkaround.wave.client.rpc.Rpc;
 import com.google.walkaround.wave.client.rpc.Rpc.ConnectionState;
 import com.google.walkaround.wave.client.rpc.Rpc.Method;
 import com.google.walkaround.wave.client.rpc.Rpc.RpcCallback;
+import com.google.walkaround.wave.shared.SharedConstants.Services;
 
 import org.waveprotocol.wave.client.scheduler.Scheduler.IncrementalTask;
 import org.waveprotocol.wave.model.util.CollectionUtils;
@@ -40,7 +41,7 @@ public class VersionChecker implements IncrementalTask {
 
   @Override
   public boolean execute() {
-    rpc.makeRequest(Method.GET, "version",
+    rpc.makeRequest(Method.GET, Services.VERSION,
         CollectionUtils.newStringMap("version", "" + thisClientVersion),
         new RpcCallback() {
           @Override
@@ -138,6 +138,10 @@ public class Walkaround implements EntryPoint {
   private static final String WAVEPANEL_PLACEHOLDER = "initialHtml";
   // TODO(danilatos): flag
   private static final int VERSION_CHECK_INTERVAL_MS = 15 * 1000;
+  // Changes to the user data wavelet are mostly read state, which changes
+  // with every blip scrolled past; this sends it as one submit per interval
+  // rather than one per blip.  Nobody else is waiting for these ops.
+  private static final int UDW_SEND_DELAY_MILLIS = 3 * 1000;
 
   private static final String OOPHM_SUFFIX = "&gwt.codesvr=127.0.0.1:9997";
 
@@ -406,6 +410,7 @@ public class Walkaround implements EntryPoint {
                     createSubmitService(objectId),
                     storeChannel, Versions.truncate(wavelet.getVersion()),
                     data.getSession().getClientId(),
+                    objectId.equals(udwObjectId) ? UDW_SEND_DELAY_MILLIS : 0,
                     indicator);
                 String id = ModernIdSerialiser.INSTANCE.serialiseWaveletId(waveletId);
                 binder.bind(id, channel);
@@ -579,6 +584,10 @@ public class Walkaround implements EntryPoint {
   }
 
   private void setupLogging() {
+    if (Window.Location.getParameter("debug") != null
+        || "debug".equals(Window.Location.getParameter("ll"))) {
+      Logs.get().setLevel(Level.DEBUG);
+    }
     Logs.get().addHandler(new ErrorReportingLogHandler("/gwterr") {
       @Override protected void onSevere(String stream) {
         alertDomLog(stream);
@@ -598,9 +607,13 @@ public class Walkaround implements EntryPoint {
   }
 
   /**
-   * If ths DOM log has not been created yet, creates it.
+   * If ths DOM log has not been created yet, creates it.  Called when the user
+   * asks for the log, so also starts recording debug entries.
    */
   private static void ensureDomLog() {
+    // Not done by LogPanel itself, since it is also created when a severe
+    // error is logged, and nobody may be watching then.
+    Logs.get().setLevel(Level.DEBUG);
     if (domLogger == null) {
       domLogger = LogPanel.create(Logs.get());
       attachLogPanel();
@@ -123,7 +123,8 @@ public class WalkaroundOperationChannel implements OperationChannel {
   public WalkaroundOperationChannel(Log logger,
       SendOpService<WaveletOperation> sendService,
       ReceiveOpChannel<WaveletOperation> receiveChannel,
-      int startVersion, String sessionId, SavedStateListener savedStateListener) {
+      int startVersion, String sessionId, int sendDelayMillis,
+      SavedStateListener savedStateListener) {
     Preconditions.checkNotNull(sendService, "Null sendService");
     Preconditions.checkNotNull(receiveChannel, "Null channel");
     Preconditions.checkNotNull(sessionId, "Null sessionId");
@@ -134,7 +135,7 @@ public class WalkaroundOperationChannel implements OperationChannel {
     this.savedStateListener = savedStateListener;
 
     this.channel = new GenericOperationChannel<WaveletOperation>(
-        SchedulerInstance.getMediumPriorityTimer(), transformer,
+        SchedulerInstance.getMediumPriorityTimer(), sendDelayMillis, transformer,
         receiveChannel, sendService, channelListener, logger);
   }
 
@@ -24,6 +24,7 @@ import com.google.walkaround.wave.client.rpc.Rpc;
 import com.google.walkaround.wave.client.rpc.Rpc.Method;
 import com.google.walkaround.wave.client.rpc.RpcUtil;
 import com.google.walkaround.wave.shared.ContactsService;
+import com.google.walkaround.wave.shared.SharedConstants.Services;
 
 import org.waveprotocol.wave.model.util.CollectionUtils;
 import org.waveprotocol.wave.model.util.StringMap;
@@ -35,7 +36,7 @@ import org.waveprotocol.wave.model.util.StringMap;
  */
 public final class RemoteContactsService implements ContactsService {
   private static final Log LOG = Logs.create("contacts");
-  private static final String SERVICE_NAME = "contacts";
+  private static final String SERVICE_NAME = Services.CONTACTS;
 
   /** RPC worker. */
   private final Rpc rpc;
@@ -17,6 +17,8 @@
 package com.google.walkaround.wave.client.rpc;
 
 import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.http.client.Request;
 import com.google.gwt.http.client.RequestBuilder;
 import com.google.gwt.http.client.RequestCallback;
@@ -27,6 +29,8 @@ import com.google.walkaround.slob.shared.MessageException;
 import com.google.walkaround.util.client.log.Logs;
 import com.google.walkaround.util.client.log.Logs.Level;
 import com.google.walkaround.util.client.log.Logs.Log;
+import com.google.walkaround.wave.shared.SharedConstants.Batch;
+import com.google.walkaround.wave.shared.SharedConstants.Services;
 
 import org.waveprotocol.wave.client.common.util.UserAgent;
 import org.waveprotocol.wave.model.util.CollectionUtils;
@@ -34,9 +38,17 @@ import org.waveprotocol.wave.model.util.IntMap;
 import org.waveprotocol.wave.model.util.ReadableStringMap;
 import org.waveprotocol.wave.model.util.StringMap;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Ajax HTTP-Request based implementation of the Rpc interface.
  *
+ * Calls made in the same event loop iteration are sent together in one
+ * request to the batch endpoint, which saves round trips on startup and
+ * whenever several objects are active at once.  Calls to slow services are
+ * sent on their own so that they don't hold up the others.
+ *
  * @author danilatos@google.com (Daniel Danilatos)
  */
 public class AjaxRpc implements Rpc {
@@ -115,6 +127,158 @@ public class AjaxRpc implements Rpc {
     this.listener = listener;
   }
 
+  /**
+   * A call that has been made but whose response hasn't been delivered yet.
+   */
+  private final class Call {
+    private final int requestId;
+    private final Method method;
+    private final String serviceName;
+    /** Form-encoded parameters, with a trailing ampersand. */
+    private final String params;
+    private final Rpc.RpcCallback rpcCallback;
+
+    Call(int requestId, Method method, String serviceName, String params,
+        Rpc.RpcCallback rpcCallback) {
+      this.requestId = requestId;
+      this.method = method;
+      this.serviceName = serviceName;
+      this.params = params;
+      this.rpcCallback = rpcCallback;
+    }
+
+    boolean isPending() {
+      return handles.containsKey(requestId);
+    }
+
+    void onResponse(int statusCode, String data) {
+      if (!isPending()) {
+        // It's been dropped
+        log.log(Level.INFO, "RPC SuccessDrop, id=", requestId);
+        return;
+      }
+
+      // Clear it now, before callbacks
+      removeHandle();
+
+      Result result;
+      if (statusCode < 100) {
+        result = Result.RETRYABLE_FAILURE;
+        maybeSetConnectionState(ConnectionState.OFFLINE);
+      } else if (statusCode == 200) {
+        result = Result.OK;
+        maybeSetConnectionState(ConnectionState.CONNECTED);
+        consecutiveFailures = 0;
+      } else if (statusCode >= 500) {
+        result = Result.RETRYABLE_FAILURE;
+        consecutiveFailures++;
+        if (consecutiveFailures > MAX_CONSECUTIVE_FAILURES) {
+          maybeSetConnectionState(ConnectionState.OFFLINE);
+        } else {
+          maybeSetConnectionState(ConnectionState.CONNECTED);
+        }
+      } else {
+        result = Result.PERMANENT_FAILURE;
+        maybeSetConnectionState(ConnectionState.SOFT_RELOAD);
+      }
+
+      switch (result) {
+        case OK:
+          log.log(Level.INFO, "RPC Success, id=", requestId);
+          try {
+            rpcCallback.onSuccess(data);
+          } catch (MessageException e) {
+            // Semi-HACK(danilatos): Treat parse errors as login problems
+            // due to loading a login or authorization page. (It's unlikely
+            // we'd otherwise get a parse error from a 200 OK result).
+            // The simpler solution of detecting redirects is not possible
+            // with XmlHttpRequest, the web is unfortunately broken.
+
+            // TODO(danilatos) Possible alternatives:
+            // either change our server side to not require
+            // login through web.xml but to check if UserService says currentUser==null (or
+            // whatever it does if not logged in) and return a well-defined "not logged in"
+            // response instead, or to prefix all responses from the server with a fixed string
+            // (like we do with "OK" elsewhere) and assume not logged in if that prefix is
+            // missing.  We could strip off that prefix here and make it transparent to the
+            // callbacks.
+
+            maybeSetConnectionState(ConnectionState.LOGGED_OUT);
+
+            error(new Exception("RPC failed due to message exception, treating as auth failure"
+                + ", status code: " + statusCode + ", data: " + data));
+          }
+          break;
+        case RETRYABLE_FAILURE:
+          error(new Exception("RPC failed, status code: " + statusCode + ", data: " + data));
+          break;
+        case PERMANENT_FAILURE:
+          fatal(new Exception("RPC bad request, status code: " + statusCode + ", data: " + data));
+          break;
+        default:
+          throw new AssertionError("Unknown result " + result);
+      }
+    }
+
+    void onError(Throwable exception) {
+      if (!isPending()) {
+        log.log(Level.INFO, "RPC FailureDrop, id=", requestId, exception.getMessage());
+        return;
+      }
+      removeHandle();
+      error(exception);
+    }
+
+    private void fatal(Throwable e) {
+      log.log(Level.WARNING, "RPC Bad Request, id=", requestId, e.getMessage(),
+          "Request service:" + serviceName, e);
+      rpcCallback.onFatalError(e);
+    }
+
+    private void error(Throwable e) {
+      log.log(Level.WARNING, "RPC Failure, id=", requestId, e.getMessage(),
+          "Request service:" + serviceName, e);
+      rpcCallback.onConnectionError(e);
+    }
+
+    private void removeHandle() {
+      handles.remove(requestId);
+    }
+  }
+
+  /**
+   * Calls made during the current event loop iteration.  They are sent
+   * together in a finally command, in one request if there are several,
+   * except for calls that can't be batched (see {@link Batch#isBatchable}).
+   */
+  private List<Call> queuedCalls = new ArrayList<Call>();
+
+  private final ScheduledCommand sendQueuedCalls = new ScheduledCommand() {
+    @Override public void execute() {
+      List<Call> calls = new ArrayList<Call>();
+      for (Call call : queuedCalls) {
+        // Calls dropped before we got to send them don't need sending.
+        if (!call.isPending()) {
+          continue;
+        }
+        if (Batch.isBatchable(call.serviceName)) {
+          calls.add(call);
+        } else {
+          send(call);
+        }
+      }
+      queuedCalls = new ArrayList<Call>();
+      for (int i = 0; i < calls.size(); i += Batch.MAX_CALLS) {
+        List<Call> batch = calls.subList(i, Math.min(calls.size(), i + Batch.MAX_CALLS));
+        if (batch.size() == 1) {
+          send(batch.get(0));
+        } else {
+          sendBatch(batch);
+        }
+      }
+    }
+  };
+
   @Override
   public RpcHandle makeRequest(Method method, String serviceName, ReadableStringMap<String> params,
       final Rpc.RpcCallback rpcCallback) {
@@ -127,152 +291,150 @@ public class AjaxRpc implements Rpc {
       return new Handle(requestId);
     }
 
+    Handle handle = new Handle(requestId);
+    handles.put(handle.getId(), handle);
+    if (queuedCalls.isEmpty()) {
+      Scheduler.get().scheduleFinally(sendQueuedCalls);
+    }
+    queuedCalls.add(new Call(requestId, method, serviceName,
+        addParams(new StringBuilder(), params).toString(), rpcCallback));
+    return handle;
+  }
+
+  private void send(final Call call) {
     final String requestData;
     final RequestBuilder.Method httpMethod;
 
-    StringBuilder urlBuilder = new StringBuilder(rpcRoot + "/" + serviceName + "?");
+    StringBuilder urlBuilder = new StringBuilder(rpcRoot + "/" + call.serviceName + "?");
     // NOTE(danilatos): For some reason, IE6 seems not to perform some requests
     // it's already made, resulting in... no data. Inserting some
     // unique value into the request seems to fix that.
     if (UserAgent.isIE()) {
-      urlBuilder.append("_no_cache=" + requestId + "" + Duration.currentTimeMillis() + "&");
+      urlBuilder.append("_no_cache=" + call.requestId + "" + Duration.currentTimeMillis() + "&");
     }
 
-    if (method == Method.GET) {
+    if (call.method == Method.GET) {
       httpMethod = RequestBuilder.GET;
-      addParams(urlBuilder, params);
+      urlBuilder.append(call.params);
       requestData = "";
     } else {
       httpMethod = RequestBuilder.POST;
-      requestData = addParams(new StringBuilder(), params).toString();
+      requestData = call.params;
     }
 
     final String url = urlBuilder.toString();
 
     RequestBuilder r = new RequestBuilder(httpMethod, url);
-    if (method == Method.POST) {
+    if (call.method == Method.POST) {
       r.setHeader("Content-Type", "application/x-www-form-urlencoded");
       r.setHeader("X-Same-Domain", "true");
     }
 
-    log.log(Level.INFO, "RPC Request, id=", requestId, " method=", httpMethod,
+    log.log(Level.INFO, "RPC Request, id=", call.requestId, " method=", httpMethod,
         " urlSize=", url.length(), " bodySize=", requestData.length());
 
-    class RpcRequestCallback implements RequestCallback {
-      @Override public void onResponseReceived(Request request, Response response) {
-        RpcHandle handle = handles.get(requestId);
-        if (handle == null) {
-          // It's been dropped
-          log.log(Level.INFO, "RPC SuccessDrop, id=", requestId);
-          return;
+    try {
+      r.sendRequest(requestData, new RequestCallback() {
+        @Override public void onResponseReceived(Request request, Response response) {
+          call.onResponse(response.getStatusCode(), response.getText());
         }
 
-        // Clear it now, before callbacks
-        removeHandle();
+        @Override public void onError(Request request, Throwable exception) {
+          call.onError(exception);
+        }
+      });
+    } catch (RequestException e) {
+      // TODO(danilatos) Decide if this should be a badRequest.
+      call.onError(e);
+    }
+  }
 
-        int statusCode = response.getStatusCode();
-        String data = response.getText();
+  private void sendBatch(final List<Call> calls) {
+    StringBuilder b = new StringBuilder();
+    b.append(Batch.CALL_COUNT + "=" + calls.size() + "&");
+    StringBuilder ids = new StringBuilder();
+    for (int i = 0; i < calls.size(); i++) {
+      Call call = calls.get(i);
+      b.append(Batch.SERVICE_PREFIX + i + "=" + URL.encodeQueryString(call.serviceName) + "&");
+      b.append(Batch.METHOD_PREFIX + i + "=" + call.method.name() + "&");
+      b.append(Batch.PARAMS_PREFIX + i + "=" + URL.encodeQueryString(call.params) + "&");
+      ids.append(call.requestId + " ");
+    }
+    String requestData = b.toString();
 
-        Result result;
-        if (statusCode < 100) {
-          result = Result.RETRYABLE_FAILURE;
-          maybeSetConnectionState(ConnectionState.OFFLINE);
-        } else if (statusCode == 200) {
-          result = Result.OK;
-          maybeSetConnectionState(ConnectionState.CONNECTED);
-          consecutiveFailures = 0;
-        } else if (statusCode >= 500) {
-          result = Result.RETRYABLE_FAILURE;
-          consecutiveFailures++;
-          if (consecutiveFailures > MAX_CONSECUTIVE_FAILURES) {
-            maybeSetConnectionState(ConnectionState.OFFLINE);
-          } else {
-            maybeSetConnectionState(ConnectionState.CONNECTED);
-          }
-        } else {
-          result = Result.PERMANENT_FAILURE;
-          maybeSetConnectionState(ConnectionState.SOFT_RELOAD);
-        }
+    RequestBuilder r = new RequestBuilder(RequestBuilder.POST, rpcRoot + "/" + Services.BATCH);
+    r.setHeader("Content-Type", "application/x-www-form-urlencoded");
+    r.setHeader("X-Same-Domain", "true");
 
-        switch (result) {
-          case OK:
-            log.log(Level.INFO, "RPC Success, id=", requestId);
-            try {
-              rpcCallback.onSuccess(data);
-            } catch (MessageException e) {
-              // Semi-HACK(danilatos): Treat parse errors as login problems
-              // due to loading a login or authorization page. (It's unlikely
-              // we'd otherwise get a parse error from a 200 OK result).
-              // The simpler solution of detecting redirects is not possible
-              // with XmlHttpRequest, the web is unfortunately broken.
-
-              // TODO(danilatos) Possible alternatives:
-              // either change our server side to not require
-              // login through web.xml but to check if UserService says currentUser==null (or
-              // whatever it does if not logged in) and return a well-defined "not logged in"
-              // response instead, or to prefix all responses from the server with a fixed string
-              // (like we do with "OK" elsewhere) and assume not logged in if that prefix is
-              // missing.  We could strip off that prefix here and make it transparent to the
-              // callbacks.
-
-              maybeSetConnectionState(ConnectionState.LOGGED_OUT);
-
-              error(new Exception("RPC failed due to message exception, treating as auth failure"
-                  + ", status code: " + statusCode + ", data: " + data));
-            }
-            break;
-          case RETRYABLE_FAILURE:
-            error(new Exception("RPC failed, status code: " + statusCode + ", data: " + data));
-            break;
-          case PERMANENT_FAILURE:
-            fatal(new Exception("RPC bad request, status code: " + statusCode + ", data: " + data));
-            break;
-          default:
-            throw new AssertionError("Unknown result " + result);
+    log.log(Level.INFO, "RPC Batch Request, ids=", ids, " bodySize=", requestData.length());
+
+    try {
+      r.sendRequest(requestData, new RequestCallback() {
+        @Override public void onResponseReceived(Request request, Response response) {
+          int statusCode = response.getStatusCode();
+          String data = response.getText();
+          if (statusCode == 200 && deliverBatchResults(calls, data)) {
+            return;
+          }
+          // The batch as a whole failed, or we got something that is not a
+          // batch response, like a login page; each call gets to handle this
+          // as if it had been its own request.
+          for (Call call : calls) {
+            call.onResponse(statusCode, data);
+          }
         }
-      }
 
-      @Override public void onError(Request request, Throwable exception) {
-        if (!handles.containsKey(requestId)) {
-          log.log(Level.INFO, "RPC FailureDrop, id=", requestId, exception.getMessage());
-          return;
+        @Override public void onError(Request request, Throwable exception) {
+          for (Call call : calls) {
+            call.onError(exception);
+          }
         }
-        removeHandle();
-        error(exception);
+      });
+    } catch (RequestException e) {
+      for (Call call : calls) {
+        call.onError(e);
       }
+    }
+  }
 
-      private void fatal(Throwable e) {
-        log.log(Level.WARNING, "RPC Bad Request, id=", requestId, e.getMessage(),
-            "Request url:" + url, e);
-        rpcCallback.onFatalError(e);
+  /**
+   * Parses a batch response and passes each result to its call.  Returns false
+   * without delivering anything if {@code data} is not a well-formed response
+   * for {@code calls}.
+   */
+  private boolean deliverBatchResults(List<Call> calls, String data) {
+    int[] statusCodes = new int[calls.size()];
+    String[] bodies = new String[calls.size()];
+    int pos = 0;
+    for (int i = 0; i < calls.size(); i++) {
+      int space = data.indexOf(' ', pos);
+      int newline = data.indexOf('\n', pos);
+      if (space == -1 || newline == -1 || newline < space) {
+        return false;
       }
-
-      private void error(Throwable e) {
-        log.log(Level.WARNING, "RPC Failure, id=", requestId, e.getMessage(),
-            "Request url:" + url, e);
-        rpcCallback.onConnectionError(e);
+      int length;
+      try {
+        statusCodes[i] = Integer.parseInt(data.substring(pos, space));
+        length = Integer.parseInt(data.substring(space + 1, newline));
+      } catch (NumberFormatException e) {
+        return false;
       }
-
-      private void removeHandle() {
-        handles.remove(requestId);
+      pos = newline + 1;
+      if (length < 0 || pos + length > data.length()) {
+        return false;
       }
+      bodies[i] = data.substring(pos, pos + length);
+      pos += length;
     }
-
-    RpcRequestCallback innerCallback = new RpcRequestCallback();
-
-    try {
-      Request gwtReq = r.sendRequest(requestData, innerCallback);
-      Handle handle = new Handle(requestId);
-      handles.put(handle.getId(), handle);
-      return handle;
-    } catch (RequestException e) {
-      // TODO(danilatos) Decide if this should be a badRequest.
-      innerCallback.error(e);
-      return null;
+    if (pos != data.length()) {
+      return false;
     }
+    for (int i = 0; i < calls.size(); i++) {
+      calls.get(i).onResponse(statusCodes[i], bodies[i]);
+    }
+    return true;
   }
 
-
   /**
    * {@inheritDoc}
    *
@@ -17,6 +17,7 @@
 package com.google.walkaround.wave.client.rpc;
 
 import com.google.walkaround.slob.shared.MessageException;
+import com.google.walkaround.wave.shared.SharedConstants.Services;
 
 import org.waveprotocol.wave.client.common.util.JsoView;
 import org.waveprotocol.wave.model.util.CollectionUtils;
@@ -37,7 +38,7 @@ public class AttachmentInfoService {
   }
 
   private final Rpc rpc;
-  private final String serviceName = "attachmentinfo";
+  private final String serviceName = Services.ATTACHMENT_INFO;
 
   public AttachmentInfoService(Rpc rpc) {
     this.rpc = rpc;
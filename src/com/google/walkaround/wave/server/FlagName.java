@@ -40,6 +40,7 @@ public enum FlagName implements FlagDeclaration {
   XSRF_TOKEN_EXPIRY_SECONDS(Integer.class),
   STORE_SERVER(String.class),
   NUM_STORE_SERVERS(Integer.class),
+  STORE_SERVER_OUTLIER_EJECTION(Boolean.class),
   ANNOUNCEMENT_HTML(String.class),
   ANALYTICS_ACCOUNT(String.class),
   SECRET(String.class),
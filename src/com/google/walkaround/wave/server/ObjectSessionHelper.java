@@ -29,6 +29,7 @@ import com.google.walkaround.slob.shared.MessageException;
 import com.google.walkaround.slob.shared.SlobId;
 import com.google.walkaround.util.server.auth.InvalidSecurityTokenException;
 import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.auth.XsrfHelper;
 import com.google.walkaround.wave.server.auth.XsrfHelper.XsrfTokenExpiredException;
 import com.google.walkaround.wave.server.util.AbstractHandler;
@@ -49,10 +50,15 @@ public class ObjectSessionHelper {
   private static final Logger log = Logger.getLogger(ObjectSessionHelper.class.getName());
 
   private final XsrfHelper xsrfHelper;
+  private final VerifiedSessionCache verifiedSessions;
+  private final StableUserId userId;
 
   @Inject
-  public ObjectSessionHelper(XsrfHelper xsrfHelper) {
+  public ObjectSessionHelper(XsrfHelper xsrfHelper, VerifiedSessionCache verifiedSessions,
+      StableUserId userId) {
     this.xsrfHelper = xsrfHelper;
+    this.verifiedSessions = verifiedSessions;
+    this.userId = userId;
   }
 
   private String makeAction(ObjectSessionProto session) {
@@ -73,6 +79,11 @@ public class ObjectSessionHelper {
   public ObjectSession getVerifiedSession(HttpServletRequest req)
       throws InvalidSecurityTokenException, XsrfTokenExpiredException {
     String rawSessionString = AbstractHandler.requireParameter(req, Params.SESSION);
+    ObjectSession cached = verifiedSessions.get(userId, rawSessionString);
+    if (cached != null) {
+      log.fine("Signed session previously verified: " + cached);
+      return cached;
+    }
     log.info("Parsing and verifying signed session " + rawSessionString);
     SignedObjectSessionGsonImpl signedSession;
     try {
@@ -81,8 +92,11 @@ public class ObjectSessionHelper {
     } catch (MessageException e) {
       throw new BadRequestException("Failed to parse signed session", e);
     }
-    xsrfHelper.verify(makeAction(signedSession.getSession()), signedSession.getSignature());
-    return objectSessionFromProto(signedSession.getSession());
+    long expiryTime =
+        xsrfHelper.verify(makeAction(signedSession.getSession()), signedSession.getSignature());
+    ObjectSession session = objectSessionFromProto(signedSession.getSession());
+    verifiedSessions.put(userId, rawSessionString, session, expiryTime);
+    return session;
   }
 
   public static ObjectSession objectSessionFromProto(ObjectSessionProto proto) {
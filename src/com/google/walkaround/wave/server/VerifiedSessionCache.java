@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Remembers signed sessions that {@link ObjectSessionHelper} has already
+ * parsed and verified on this instance, so that the many requests a client
+ * makes with the same signed session (heartbeats, channel reconnects, deltas)
+ * don't each repeat the JSON parsing and HMAC computation.
+ *
+ * Entries are keyed by a digest of the user ID and the raw signed session
+ * string, since a signature is only valid for the user it was issued to.
+ * Each entry is dropped once the signature it came from expires.
+ */
+@Singleton
+public class VerifiedSessionCache {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(VerifiedSessionCache.class.getName());
+
+  private static final int MAX_ENTRIES = 10000;
+
+  private static class Entry {
+    private final ObjectSession session;
+    private final long expiryTimeMillis;
+
+    Entry(ObjectSession session, long expiryTimeMillis) {
+      this.session = Preconditions.checkNotNull(session, "Null session");
+      this.expiryTimeMillis = expiryTimeMillis;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> entries;
+
+  @Inject
+  public VerifiedSessionCache(
+      @Flag(FlagName.XSRF_TOKEN_EXPIRY_SECONDS) int xsrfTokenExpirySeconds) {
+    this(xsrfTokenExpirySeconds, MAX_ENTRIES);
+  }
+
+  @VisibleForTesting
+  VerifiedSessionCache(int xsrfTokenExpirySeconds, int maxEntries) {
+    entries = new MapMaker()
+        .maximumSize(maxEntries)
+        // Individual entries expire with their signature; this just makes sure
+        // nothing outlives the longest possible signature.
+        .expireAfterWrite(xsrfTokenExpirySeconds, TimeUnit.SECONDS)
+        .makeMap();
+  }
+
+  private String key(StableUserId userId, String rawSignedSession) {
+    return DigestUtils.shaHex(userId.getId() + " " + rawSignedSession);
+  }
+
+  /**
+   * Returns the session for the given signed session string if it has been
+   * verified for this user before and has not expired since, or null.
+   */
+  @Nullable public ObjectSession get(StableUserId userId, String rawSignedSession) {
+    String key = key(userId, rawSignedSession);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiryTimeMillis < System.currentTimeMillis()) {
+      entries.remove(key, entry);
+      return null;
+    }
+    return entry.session;
+  }
+
+  /**
+   * Records that {@code rawSignedSession} has been verified for this user and
+   * yields {@code session}, valid until {@code expiryTimeMillis}.
+   */
+  public void put(StableUserId userId, String rawSignedSession, ObjectSession session,
+      long expiryTimeMillis) {
+    entries.put(key(userId, rawSignedSession), new Entry(session, expiryTimeMillis));
+  }
+
+}
@@ -47,6 +47,7 @@ import com.google.inject.name.Named;
 import com.google.walkaround.slob.server.MutationLog;
 import com.google.walkaround.slob.server.AffinityMutationProcessor.StoreBackendInstanceCount;
 import com.google.walkaround.slob.server.AffinityMutationProcessor.StoreBackendName;
+import com.google.walkaround.slob.server.AffinityMutationProcessor.StoreBackendOutlierEjection;
 import com.google.walkaround.slob.server.SlobMessageRouter.SlobChannelExpirationSeconds;
 import com.google.walkaround.util.server.Util;
 import com.google.walkaround.util.server.auth.DigestUtils2.Secret;
@@ -120,6 +121,8 @@ public class WalkaroundServerModule extends AbstractModule {
         FlagName.ACCESS_CACHE_EXPIRATION_SECONDS);
     bindToFlag(String.class, StoreBackendName.class, FlagName.STORE_SERVER);
     bindToFlag(Integer.class, StoreBackendInstanceCount.class, FlagName.NUM_STORE_SERVERS);
+    bindToFlag(Boolean.class, StoreBackendOutlierEjection.class,
+        FlagName.STORE_SERVER_OUTLIER_EJECTION);
     bindToFlag(Integer.class, SlobChannelExpirationSeconds.class,
         FlagName.OBJECT_CHANNEL_EXPIRATION_SECONDS);
   }
@@ -66,10 +66,13 @@ import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.auth.UserContext;
 import com.google.walkaround.wave.server.auth.OAuthInterstitialHandler.CallbackPath;
 import com.google.walkaround.wave.server.auth.XsrfHelper.XsrfTokenExpiredException;
+import com.google.walkaround.wave.server.googleimport.BulkDeleteTaskHandler;
 import com.google.walkaround.wave.server.googleimport.ImportOverviewHandler;
 import com.google.walkaround.wave.server.googleimport.ImportTaskHandler;
 import com.google.walkaround.wave.server.googleimport.RobotApi;
+import com.google.walkaround.wave.server.googleimport.SummaryBackfillTaskHandler;
 import com.google.walkaround.wave.server.index.IndexTaskHandler;
+import com.google.walkaround.wave.server.rpc.BatchRpcHandler;
 import com.google.walkaround.wave.server.rpc.ChannelHandler;
 import com.google.walkaround.wave.server.rpc.ClientExceptionHandler;
 import com.google.walkaround.wave.server.rpc.ClientVersionHandler;
@@ -82,6 +85,7 @@ import com.google.walkaround.wave.server.rpc.SubmitDeltaHandler;
 import com.google.walkaround.wave.server.servlet.ClientHandler;
 import com.google.walkaround.wave.server.servlet.LogoutHandler;
 import com.google.walkaround.wave.server.servlet.ServerExceptionFilter;
+import com.google.walkaround.wave.server.servlet.StoreMutateBatchHandler;
 import com.google.walkaround.wave.server.servlet.StoreMutateHandler;
 import com.google.walkaround.wave.server.servlet.UndercurrentHandler;
 import com.google.walkaround.wave.server.servlet.LogoutHandler.SelfClosingPageHandler;
@@ -118,6 +122,8 @@ public class WalkaroundServletModule extends ServletModule {
   private static final String OAUTH2_CALLBACK_PATH = "authenticate";
 
   public static final String IMPORT_TASK_PATH = "/taskqueue/import";
+  public static final String IMPORT_BULK_DELETE_TASK_PATH = "/taskqueue/importdelete";
+  public static final String IMPORT_SUMMARY_TASK_PATH = "/taskqueue/importsummary";
   public static final String INDEX_TASK_PATH = "/taskqueue/index";
 
   /** Path bindings for handlers that serve exact paths only. */
@@ -138,8 +144,9 @@ public class WalkaroundServletModule extends ServletModule {
           .put("/" + Services.CONNECT, ConnectHandler.class)
           .put("/" + Services.HISTORY, HistoryHandler.class)
           .put("/" + Services.SUBMIT_DELTA, SubmitDeltaHandler.class)
-          .put("/contacts", ContactsHandler.class)
-          .put("/version", ClientVersionHandler.class)
+          .put("/" + Services.BATCH, BatchRpcHandler.class)
+          .put("/" + Services.CONTACTS, ContactsHandler.class)
+          .put("/" + Services.VERSION, ClientVersionHandler.class)
           .put("/photos", PhotosHandler.class)
           .put("/gwterr", ClientExceptionHandler.class)
 
@@ -149,7 +156,7 @@ public class WalkaroundServletModule extends ServletModule {
           .put("/uploadform", AttachmentFormHandler.class)
           .put("/download", AttachmentDownloadHandler.class)
           .put("/thumbnail", AttachmentDownloadHandler.class)
-          .put("/attachmentinfo", AttachmentMetadataHandler.class)
+          .put("/" + Services.ATTACHMENT_INFO, AttachmentMetadataHandler.class)
 
           .put("/admin", AdminHandler.class)
           .put("/admin/buildinfo", BuildinfoHandler.class)
@@ -159,6 +166,7 @@ public class WalkaroundServletModule extends ServletModule {
 
           // Backend servers. Could potentially use a separate Guice module.
           .put("/store/mutate", StoreMutateHandler.class)
+          .put("/store/mutatebatch", StoreMutateBatchHandler.class)
 
           // Indexing
           .put(INDEX_TASK_PATH, IndexTaskHandler.class)
@@ -166,6 +174,8 @@ public class WalkaroundServletModule extends ServletModule {
           // Import stuff.  Should probably also be in a separate Guice module.
           .put("/import", ImportOverviewHandler.class)
           .put(IMPORT_TASK_PATH, ImportTaskHandler.class)
+          .put(IMPORT_BULK_DELETE_TASK_PATH, BulkDeleteTaskHandler.class)
+          .put(IMPORT_SUMMARY_TASK_PATH, SummaryBackfillTaskHandler.class)
 
           .build();
 
@@ -255,17 +265,19 @@ public class WalkaroundServletModule extends ServletModule {
       filter(path).through(InteractiveAuthFilter.class);
     }
     for (String path : Arrays.asList(
-            "/connect", "/submitdelta", "/channel", "/history", "/contacts", "/photos")) {
+            "/connect", "/submitdelta", "/channel", "/history", "/contacts", "/photos",
+            "/batch")) {
       filter(path).through(RpcAuthFilter.class);
     }
   }
 
 
-  // RequestScoped because it involves parsing and crypto, so we want it cached.
-  @Provides @RequestScoped
+  // Not RequestScoped since each call in a batch has its own session;
+  // VerifiedSessionCache avoids repeating the parsing and crypto.
+  @Provides
   ObjectSession provideVerifiedSession(ObjectSessionHelper helper, HttpServletRequest req) {
     try {
-      return helper.getVerifiedSession(req);
+      return helper.getVerifiedSession(BatchRpcHandler.getCurrentCall(req));
     } catch (InvalidSecurityTokenException e) {
       throw new BadRequestException(e);
     } catch (XsrfTokenExpiredException e) {
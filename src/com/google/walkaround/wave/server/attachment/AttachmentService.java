@@ -54,7 +54,7 @@ public class AttachmentService {
 
   static final int INVALID_ID_CACHE_EXPIRY_SECONDS = 600;
 
-  private static final String MEMCACHE_TAG = "AT";
+  static final String MEMCACHE_TAG = "AT";
 
   private final RawAttachmentService rawService;
   private final BlobstoreService blobstore;
@@ -131,7 +131,9 @@ public class AttachmentService {
 
       AttachmentMetadata metadata;
       metadata = getMetadata(Arrays.asList(id), -1).get(id);
-      assert metadata != null;
+      if (metadata == null) {
+        throw new IOException("Failed to get metadata for " + id);
+      }
 
       if (!metadata.isValid()) {
         return send404(resp, id, "Attachment not found");
@@ -176,6 +178,9 @@ public class AttachmentService {
   }
 
   /**
+   * Looks up metadata in memcache, then the datastore, then the raw blobs,
+   * issuing one batch per stage for all ids not resolved by earlier stages.
+   *
    * @param ids attachment ids
    * @param maxTimeMillis Maximum time to take. -1 for indefinite. If the time
    *          runs out, some data may not be returned, so the resulting map may
@@ -187,7 +192,8 @@ public class AttachmentService {
    *         {@link AttachmentMetadata#isValid()} method returns false. Some ids
    *         may be missing due to the time limit.
    *
-   *         At least one id is guaranteed to be returned.
+   *         At least one id is returned unless looking at the raw data
+   *         failed for all ids that needed it.
    *
    * @throws IOException
    */
@@ -196,56 +202,67 @@ public class AttachmentService {
 
     Stopwatch stopwatch = new Stopwatch().start();
     Map<String, AttachmentMetadata> result = Maps.newHashMap();
-
+    // Ids we don't have metadata for yet, by key.
+    Map<BlobKey, String> remaining = Maps.newLinkedHashMap();
     for (String id : ids) {
-      // TODO(danilatos): To optimise, re-arrange the code so that
-      //   1. Query all the ids from memcache in one go
-      //   2. Those that failed, query all remaining ids from the data store in one go
-      //   3. Finally, query all remaining ids from the raw service in one go (the
-      //      raw service api should be changed to accept a list, and it needs to
-      //      query the __BlobInfo__ entities directly.
-
-      final BlobKey key = new BlobKey(id);
-
-      // First, try memcache
-      AttachmentMetadata metadata = metadataCache.get(key);
+      remaining.put(new BlobKey(id), id);
+    }
 
-      // Next, try the datastore, and save back to memcache if successfull
-      if (metadata == null) {
-        metadata = metadataDirectory.get(key);
+    // First, try memcache
+    addResults(result, remaining, metadataCache.getAll(remaining.keySet()));
 
-        if (metadata != null) {
-          metadataCache.put(key, metadata);
+    // Next, try the datastore, and save back to memcache
+    if (!remaining.isEmpty()) {
+      Map<BlobKey, AttachmentMetadata> stored = metadataDirectory.getAll(remaining.keySet());
+      if (!stored.isEmpty()) {
+        metadataCache.putAll(stored, null, MemcacheService.SetPolicy.SET_ALWAYS);
+      }
+      addResults(result, remaining, stored);
+    }
 
+    // Finally, if all else fails, use the raw data.
+    if (!remaining.isEmpty()) {
+      long rawTimeMillis = maxTimeMillis == -1 ? -1
+          : Math.max(0, maxTimeMillis - stopwatch.elapsedMillis());
+      Map<BlobKey, AttachmentMetadata> fetched =
+          rawService.getMetadata(remaining.keySet(), rawTimeMillis);
+      Map<BlobKey, AttachmentMetadata> valid = Maps.newHashMap();
+      Map<BlobKey, AttachmentMetadata> invalid = Maps.newHashMap();
+      for (Map.Entry<BlobKey, AttachmentMetadata> entry : fetched.entrySet()) {
+        if (entry.getValue().isValid()) {
+          valid.put(entry.getKey(), entry.getValue());
         } else {
-          // Finally, if all else fails, use the raw data.
-          metadata = rawService.getMetadata(key);
-
-          if (metadata == null) {
-            // This should not normally happen.
-            // Let's cache failure for now for a few minutes, but we never
-            // want to record this in the datastore.
-            metadata = AttachmentMetadata.createInvalid(key);
-            metadataCache.put(key, metadata,
-                Expiration.byDeltaSeconds(INVALID_ID_CACHE_EXPIRY_SECONDS),
-                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
-          } else {
-            metadataCache.put(key, metadata);
-            metadataDirectory.getOrAdd(metadata);
-          }
+          invalid.put(entry.getKey(), entry.getValue());
         }
       }
-
-      assert metadata != null : "Even invalid metadata should not result in null";
-      result.put(id, metadata);
-
-      if (maxTimeMillis != -1 && stopwatch.elapsedMillis() > maxTimeMillis) {
-        break;
+      if (!valid.isEmpty()) {
+        metadataCache.putAll(valid, null, MemcacheService.SetPolicy.SET_ALWAYS);
+        metadataDirectory.putAllIdempotent(valid.values());
       }
+      if (!invalid.isEmpty()) {
+        // This should not normally happen.
+        // Let's cache failure for now for a few minutes, but we never
+        // want to record this in the datastore.
+        metadataCache.putAll(invalid,
+            Expiration.byDeltaSeconds(INVALID_ID_CACHE_EXPIRY_SECONDS),
+            MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      }
+      addResults(result, remaining, fetched);
     }
 
-    assert !result.isEmpty() : "Should return at least one id";
-
+    log.info("Resolved metadata for " + result.size() + " of " + ids.size() + " ids in "
+        + stopwatch.elapsedMillis() + "ms");
     return result;
   }
+
+  private void addResults(Map<String, AttachmentMetadata> result,
+      Map<BlobKey, String> remaining, Map<BlobKey, AttachmentMetadata> found) {
+    for (Map.Entry<BlobKey, AttachmentMetadata> entry : found.entrySet()) {
+      String id = remaining.remove(entry.getKey());
+      if (id != null) {
+        assert entry.getValue() != null : "Even invalid metadata should not result in null";
+        result.put(id, entry.getValue());
+      }
+    }
+  }
 }
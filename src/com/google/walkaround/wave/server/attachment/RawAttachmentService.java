@@ -16,21 +16,43 @@
 
 package com.google.walkaround.wave.server.attachment;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesService;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.Transform;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
 import com.google.walkaround.wave.server.Flag;
 import com.google.walkaround.wave.server.FlagName;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,57 +71,161 @@ public class RawAttachmentService {
   private static final int MAX_THUMB_HEIGHT_PX = 120;
   private static final int MAX_THUMB_WIDTH_PX = 120;
 
+  /** Upper bound on concurrent image probes per call. */
+  private static final int MAX_PARALLEL_IMAGE_PROBES = 10;
+
   private final BlobstoreService blobstoreService;
   private final BlobInfoFactory blobInfoFactory;
   private final ImagesService imagesService;
+  private final CheckedDatastore datastore;
   private final int headerBytesUpperBound;
 
   @Inject
   public RawAttachmentService(BlobstoreService blobstoreService, ImagesService imagesService,
-      BlobInfoFactory blobInfoFactory,
+      BlobInfoFactory blobInfoFactory, CheckedDatastore datastore,
       @Flag(FlagName.ATTACHMENT_HEADER_BYTES_UPPER_BOUND) int headerBytesUpperBound) {
     this.blobstoreService = blobstoreService;
     this.imagesService = imagesService;
     this.blobInfoFactory = blobInfoFactory;
+    this.datastore = datastore;
     this.headerBytesUpperBound = headerBytesUpperBound;
   }
 
-  public AttachmentMetadata getMetadata(BlobKey blobKey) {
-    log.info("Fetching attachment metadata for " + blobKey);
+  /**
+   * Computes metadata for many blobs at once.  All blob infos are read with a
+   * single datastore batch get; image blobs are then probed for their
+   * dimensions in parallel.
+   *
+   * @param maxTimeMillis Maximum time to wait for the image probes, -1 for
+   *          indefinite.  Blobs whose probes have not completed by then, or
+   *          failed, are missing from the result, except that we always wait
+   *          for at least one result so that callers make progress.
+   *
+   * @return a map of blob key to metadata.  Keys for which no blob exists map
+   *         to invalid metadata (see {@link AttachmentMetadata#isValid()}).
+   */
+  public Map<BlobKey, AttachmentMetadata> getMetadata(Collection<BlobKey> blobKeys,
+      long maxTimeMillis) throws IOException {
+    Stopwatch stopwatch = new Stopwatch().start();
+    log.info("Fetching attachment metadata for " + blobKeys.size() + " blobs");
+    Map<BlobKey, AttachmentMetadata> result = Maps.newHashMap();
+    Map<BlobKey, BlobInfo> infos = loadBlobInfos(blobKeys);
+
+    List<BlobInfo> images = Lists.newArrayList();
+    for (BlobKey key : blobKeys) {
+      BlobInfo info = infos.get(key);
+      if (info == null) {
+        result.put(key, AttachmentMetadata.createInvalid(key));
+      } else if (isImage(info)) {
+        images.add(info);
+      } else {
+        result.put(key, buildMetadata(info, null));
+      }
+    }
+
+    if (images.isEmpty()) {
+      return result;
+    }
+
+    // Blob reads have no asynchronous API, so the header fetches and image
+    // probes run on a small pool of request threads.  Request threads can't
+    // outlive the request, so the pool is per call.
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(MAX_PARALLEL_IMAGE_PROBES, images.size()),
+        ThreadManager.currentRequestThreadFactory());
     try {
-      BlobInfo info = blobInfoFactory.loadBlobInfo(blobKey);
-
-      if (info != null) {
-        JSONObject data = new JSONObject();
-        data.put("size", info.getSize());
-        String mimeType = info.getContentType();
-        data.put("mimeType", mimeType);
-        data.put("filename", info.getFilename());
-
-        if (mimeType.startsWith("image/")) {
-          Image img = attemptGetImageMetadata(blobstoreService, info);
-
-          if (img != null) {
-            JSONObject imgData = new JSONObject();
-            imgData.put("width", img.getWidth());
-            imgData.put("height", img.getHeight());
-            data.put("image", imgData);
-
-            JSONObject thumbData = new JSONObject();
-            double ratio = resizeRatio(img);
-            thumbData.put("width", ratio * img.getWidth());
-            thumbData.put("height", ratio * img.getHeight());
-            data.put("thumbnail", thumbData);
+      Map<BlobKey, Future<AttachmentMetadata>> probes = Maps.newLinkedHashMap();
+      for (final BlobInfo info : images) {
+        probes.put(info.getBlobKey(), executor.submit(new Callable<AttachmentMetadata>() {
+          @Override public AttachmentMetadata call() {
+            return buildMetadata(info, attemptGetImageMetadata(blobstoreService, info));
           }
-        } else {
-          // TODO(danilatos): Thumbnails for non-images
-          log.warning("Unimplemented: Thumbnails for non-images");
+        }));
+      }
+
+      for (Map.Entry<BlobKey, Future<AttachmentMetadata>> entry : probes.entrySet()) {
+        try {
+          if (result.isEmpty() || maxTimeMillis == -1) {
+            result.put(entry.getKey(), entry.getValue().get());
+          } else {
+            long remainingMillis = maxTimeMillis - stopwatch.elapsedMillis();
+            if (remainingMillis <= 0) {
+              break;
+            }
+            result.put(entry.getKey(),
+                entry.getValue().get(remainingMillis, TimeUnit.MILLISECONDS));
+          }
+        } catch (TimeoutException e) {
+          break;
+        } catch (ExecutionException e) {
+          // Leave this blob out; the caller will ask again later.
+          log.log(Level.WARNING, "Image probe failed for " + entry.getKey(), e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while probing " + entry.getKey(), e);
         }
+      }
+    } finally {
+      // Cancels the probes we stopped waiting for.
+      executor.shutdownNow();
+    }
+
+    log.info("Fetched metadata for " + result.size() + " of " + blobKeys.size()
+        + " blobs in " + stopwatch.elapsedMillis() + "ms");
+    return result;
+  }
 
-        return new AttachmentMetadata(blobKey, data);
+  private Map<BlobKey, BlobInfo> loadBlobInfos(Collection<BlobKey> blobKeys) throws IOException {
+    final List<Key> keys = Lists.newArrayListWithCapacity(blobKeys.size());
+    for (BlobKey blobKey : blobKeys) {
+      keys.add(KeyFactory.createKey(BlobInfoFactory.KIND, blobKey.getKeyString()));
+    }
+    Map<Key, Entity> entities;
+    try {
+      entities = new RetryHelper().run(new RetryHelper.Body<Map<Key, Entity>>() {
+        @Override public Map<Key, Entity> run() throws RetryableFailure, PermanentFailure {
+          return datastore.getNontransactional(keys);
+        }
+      });
+    } catch (PermanentFailure e) {
+      throw new IOException("Failed to load blob infos", e);
+    }
+    Map<BlobKey, BlobInfo> infos = Maps.newHashMapWithExpectedSize(entities.size());
+    for (Entity entity : entities.values()) {
+      BlobInfo info = blobInfoFactory.createBlobInfo(entity);
+      infos.put(info.getBlobKey(), info);
+    }
+    return infos;
+  }
+
+  private boolean isImage(BlobInfo info) {
+    return info.getContentType().startsWith("image/");
+  }
+
+  private AttachmentMetadata buildMetadata(BlobInfo info, @Nullable Image img) {
+    try {
+      JSONObject data = new JSONObject();
+      data.put("size", info.getSize());
+      data.put("mimeType", info.getContentType());
+      data.put("filename", info.getFilename());
+
+      if (img != null) {
+        JSONObject imgData = new JSONObject();
+        imgData.put("width", img.getWidth());
+        imgData.put("height", img.getHeight());
+        data.put("image", imgData);
+
+        JSONObject thumbData = new JSONObject();
+        double ratio = resizeRatio(img);
+        thumbData.put("width", ratio * img.getWidth());
+        thumbData.put("height", ratio * img.getHeight());
+        data.put("thumbnail", thumbData);
+      } else if (!isImage(info)) {
+        // TODO(danilatos): Thumbnails for non-images
+        log.warning("Unimplemented: Thumbnails for non-images");
       }
 
-      return null;
+      return new AttachmentMetadata(info.getBlobKey(), data);
     } catch (JSONException e) {
       throw new Error(e);
     }
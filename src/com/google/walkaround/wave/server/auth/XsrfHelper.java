@@ -80,8 +80,11 @@ public class XsrfHelper {
 
   /**
    * Verifies the token matches the current user and action and has not expired.
+   *
+   * @return the time (in milliseconds since the epoch) at which the token
+   *     expires
    */
-  public void verify(String action, String token)
+  public long verify(String action, String token)
       throws XsrfTokenExpiredException, InvalidSecurityTokenException {
     String visiblePart = helper.verifyAndGetVisiblePart(makeHiddenPart(action), token);
     long tokenTime;
@@ -91,10 +94,12 @@ public class XsrfHelper {
       throw new BadRequestException(e);
     }
 
-    if (tokenTime + expiryMs < System.currentTimeMillis()) {
+    long expiryTime = tokenTime + expiryMs;
+    if (expiryTime < System.currentTimeMillis()) {
       throw new XsrfTokenExpiredException("Token expired: " + action + ", " + userId
           + ", " + token);
     }
+    return expiryTime;
   }
 
 }
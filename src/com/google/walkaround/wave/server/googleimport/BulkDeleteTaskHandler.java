@@ -0,0 +1,99 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.googleimport;
+
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.googleimport.PerUserTable.BulkDeleteKind;
+import com.google.walkaround.wave.server.util.AbstractHandler;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles task queue callbacks that delete all of a user's remote waves or
+ * tasks.  Each callback deletes one chunk in one transaction, and enqueues
+ * the next callback in the same transaction if there may be more.
+ */
+public class BulkDeleteTaskHandler extends AbstractHandler {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(BulkDeleteTaskHandler.class.getName());
+
+  public static final String USER_ID_HEADER = "X-Walkaround-Import-User-Id";
+  public static final String KIND_HEADER = "X-Walkaround-Import-Delete-Kind";
+
+  /** Entities deleted per transaction; well below the datastore's batch limit. */
+  private static final int CHUNK_SIZE = 250;
+
+  @Inject PerUserTable perUserTable;
+  @Inject CheckedDatastore datastore;
+
+  private int deleteChunk(final StableUserId userId, final BulkDeleteKind kind)
+      throws PermanentFailure {
+    return new RetryHelper().run(
+        new RetryHelper.Body<Integer>() {
+          @Override public Integer run() throws RetryableFailure, PermanentFailure {
+            CheckedTransaction tx = datastore.beginTransaction();
+            try {
+              PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+              int deleted = perUserTable.deleteSome(tx, userId, kind, CHUNK_SIZE, delta);
+              perUserTable.applySummaryDelta(tx, userId, delta);
+              if (deleted == CHUNK_SIZE) {
+                perUserTable.scheduleBulkDelete(tx, userId, kind);
+              }
+              if (deleted > 0) {
+                tx.commit();
+              }
+              return deleted;
+            } finally {
+              tx.close();
+            }
+          }
+        });
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    StableUserId userId = new StableUserId(requireParameter(req, USER_ID_HEADER));
+    BulkDeleteKind kind;
+    try {
+      kind = BulkDeleteKind.valueOf(requireParameter(req, KIND_HEADER));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Bad kind");
+    }
+    log.info("userId=" + userId + ", kind=" + kind);
+    int deleted;
+    try {
+      deleted = deleteChunk(userId, kind);
+    } catch (PermanentFailure e) {
+      throw new IOException("PermanentFailure deleting " + kind + " of " + userId, e);
+    }
+    log.info("Deleted " + deleted + " entities"
+        + (deleted == CHUNK_SIZE ? "; scheduled another chunk" : "; done"));
+  }
+
+}
@@ -181,9 +181,9 @@ public class FindRemoteWavesProcessor {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.beginTransaction();
             try {
-              for (ImportTaskPayload payload : payloads) {
-                perUserTable.addTask(tx, userId, payload);
-              }
+              PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+              perUserTable.addTasks(tx, userId, payloads, delta);
+              perUserTable.applySummaryDelta(tx, userId, delta);
               tx.commit();
             } finally {
               tx.close();
@@ -209,7 +209,9 @@ public class FindRemoteWavesProcessor {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.beginTransaction();
             try {
-              if (perUserTable.addRemoteWaves(tx, userId, instance, results)) {
+              PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+              if (perUserTable.addRemoteWaves(tx, userId, instance, results, delta)) {
+                perUserTable.applySummaryDelta(tx, userId, delta);
                 tx.commit();
               }
             } finally {
@@ -17,6 +17,7 @@
 package com.google.walkaround.wave.server.googleimport;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.net.UriEscapers;
 import com.google.gxp.base.GxpContext;
 import com.google.gxp.html.HtmlClosure;
 import com.google.inject.Inject;
@@ -55,6 +56,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -72,6 +74,9 @@ public class ImportOverviewHandler extends AbstractHandler {
 
   private static final String XSRF_ACTION = "importaction";
 
+  private static final int TASKS_PAGE_SIZE = 100;
+  private static final int WAVES_PAGE_SIZE = 100;
+
   @Inject ParticipantId participantId;
   @Inject StableUserId userId;
   @Inject XsrfHelper xsrfHelper;
@@ -84,21 +89,44 @@ public class ImportOverviewHandler extends AbstractHandler {
   @Inject PageSkinWriter pageSkinWriter;
   @Inject UserContext userContext;
 
+  private static class OverviewData {
+    // Null for users who started importing before we had summaries.
+    @Nullable final PerUserTable.Summary summary;
+    final List<String> tasksInProgress;
+    final List<ImportWaveDisplayRecord> waveDisplayRecords;
+    @Nullable final String nextCursor;
+
+    OverviewData(@Nullable PerUserTable.Summary summary, List<String> tasksInProgress,
+        List<ImportWaveDisplayRecord> waveDisplayRecords, @Nullable String nextCursor) {
+      this.summary = summary;
+      this.tasksInProgress = tasksInProgress;
+      this.waveDisplayRecords = waveDisplayRecords;
+      this.nextCursor = nextCursor;
+    }
+  }
+
+  // Only shows the first page; the rest are summarized by the total count.
   private List<String> getTasksInProgress(CheckedTransaction tx)
       throws RetryableFailure, PermanentFailure {
     ImmutableList.Builder<String> out = ImmutableList.builder();
-    List<ImportTask> tasks = perUserTable.get().getAllTasks(tx, userId);
+    List<ImportTask> tasks =
+        perUserTable.get().getTasks(tx, userId, null, TASKS_PAGE_SIZE).getItems();
     for (ImportTask task : tasks) {
       out.add(taskDispatcher.describeTask(task));
     }
     return out.build();
   }
 
-  private List<ImportWaveDisplayRecord> getWaves(CheckedTransaction tx)
-      throws RetryableFailure, PermanentFailure {
+  private Pair<List<ImportWaveDisplayRecord>, String> getWaves(CheckedTransaction tx,
+      @Nullable String cursor) throws RetryableFailure, PermanentFailure {
     ImmutableList.Builder<ImportWaveDisplayRecord> out = ImmutableList.builder();
-    List<RemoteWave> waves = perUserTable.get().getAllWaves(tx, userId);
-    for (RemoteWave wave : waves) {
+    PerUserTable.Page<RemoteWave> page;
+    try {
+      page = perUserTable.get().getWaves(tx, userId, cursor, WAVES_PAGE_SIZE);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Bad cursor: " + cursor, e);
+    }
+    for (RemoteWave wave : page.getItems()) {
       WaveId waveId = WaveId.deserialise(wave.getDigest().getWaveId());
       out.add(
           new ImportWaveDisplayRecord(
@@ -119,7 +147,7 @@ public class ImportOverviewHandler extends AbstractHandler {
               // TODO(ohler): implement this.
               null));
     }
-    return out.build();
+    return Pair.<List<ImportWaveDisplayRecord>, String>of(out.build(), page.getNextCursor());
   }
 
   private String getInstanceSelectionHtml() {
@@ -143,15 +171,17 @@ public class ImportOverviewHandler extends AbstractHandler {
     if (!userContext.hasOAuthCredentials()) {
       throw new NeedNewOAuthTokenException("No OAuth credentials: " + userContext);
     }
-    Pair<List<String>, List<ImportWaveDisplayRecord>> pair;
+    final String cursor = optionalParameter(req, "cursor", null);
+    OverviewData data;
     try {
-      pair = new RetryHelper().run(
-          new RetryHelper.Body<Pair<List<String>, List<ImportWaveDisplayRecord>>>() {
-            @Override public Pair<List<String>, List<ImportWaveDisplayRecord>> run()
-                throws RetryableFailure, PermanentFailure {
+      data = new RetryHelper().run(
+          new RetryHelper.Body<OverviewData>() {
+            @Override public OverviewData run() throws RetryableFailure, PermanentFailure {
               CheckedTransaction tx = datastore.get().beginTransaction();
               try {
-                return Pair.of(getTasksInProgress(tx), getWaves(tx));
+                Pair<List<ImportWaveDisplayRecord>, String> waves = getWaves(tx, cursor);
+                return new OverviewData(perUserTable.get().getSummary(tx, userId),
+                    getTasksInProgress(tx), waves.getFirst(), waves.getSecond());
               } finally {
                 tx.rollback();
               }
@@ -160,8 +190,14 @@ public class ImportOverviewHandler extends AbstractHandler {
     } catch (PermanentFailure e) {
       throw new IOException("PermanentFailure retrieving import records", e);
     }
-    List<String> tasksInProgress = pair.getFirst();
-    List<ImportWaveDisplayRecord> waveDisplayRecords = pair.getSecond();
+    if (data.summary == null) {
+      // Don't count here; this page is viewed repeatedly while imports run.
+      perUserTable.get().scheduleSummaryBackfill(userId);
+    }
+    String nextCursor = data.nextCursor;
+    String nextPageUrl = nextCursor == null ? null
+        : req.getServletPath() + "?cursor=" + UriEscapers.uriQueryStringEscaper(false)
+            .escape(nextCursor);
     final String instanceSelectionHtml = getInstanceSelectionHtml();
     resp.setContentType("text/html");
     resp.setCharacterEncoding("UTF-8");
@@ -174,8 +210,11 @@ public class ImportOverviewHandler extends AbstractHandler {
                 out.append(instanceSelectionHtml);
               }
             },
-            tasksInProgress,
-            waveDisplayRecords));
+            data.summary == null ? "?" : "" + data.summary.getTaskCount(),
+            data.tasksInProgress,
+            data.summary == null ? "?" : "" + data.summary.getWaveCount(),
+            data.waveDisplayRecords,
+            nextPageUrl));
   }
 
   @Override
@@ -220,7 +259,9 @@ public class ImportOverviewHandler extends AbstractHandler {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.get().beginTransaction();
             try {
-              perUserTable.get().addTask(tx, userId, payload);
+              PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+              perUserTable.get().addTask(tx, userId, payload, delta);
+              perUserTable.get().applySummaryDelta(tx, userId, delta);
               tx.commit();
             } finally {
               tx.close();
@@ -237,9 +278,9 @@ public class ImportOverviewHandler extends AbstractHandler {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.get().beginTransaction();
             try {
-              if (perUserTable.get().deleteAllTasks(tx, userId)) {
-                tx.commit();
-              }
+              perUserTable.get().scheduleBulkDelete(tx, userId,
+                  PerUserTable.BulkDeleteKind.TASKS);
+              tx.commit();
             } finally {
               tx.close();
             }
@@ -255,16 +296,16 @@ public class ImportOverviewHandler extends AbstractHandler {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.get().beginTransaction();
             try {
-              if (perUserTable.get().deleteAllWaves(tx, userId)) {
-                tx.commit();
-              }
+              perUserTable.get().scheduleBulkDelete(tx, userId,
+                  PerUserTable.BulkDeleteKind.WAVES);
+              tx.commit();
             } finally {
               tx.close();
             }
           }
         });
       } catch (PermanentFailure e) {
-        throw new IOException("Failed to delete tasks", e);
+        throw new IOException("Failed to delete waves", e);
       }
     } else {
       throw new BadRequestException("Unknown action: " + action);
@@ -17,6 +17,11 @@
 package com.google.walkaround.wave.server.googleimport;
 
 import com.google.appengine.api.taskqueue.Queue;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.walkaround.util.server.RetryHelper;
@@ -33,6 +38,9 @@ import com.google.walkaround.wave.server.auth.UserContext;
 import com.google.walkaround.wave.server.util.AbstractHandler;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -53,6 +61,22 @@ public class ImportTaskHandler extends AbstractHandler {
   public static final String USER_ID_HEADER = "X-Walkaround-Import-User-Id";
   public static final String TASK_ID_HEADER = "X-Walkaround-Import-Task-Id";
 
+  /** Upper bound on the number of tasks processed by one task queue callback. */
+  private static final int MAX_TASKS_PER_BATCH = 20;
+
+  /**
+   * How long other tasks stay claimed by a batch; longer than the task queue
+   * request deadline, so that claims only expire once their batch is done.
+   */
+  private static final long CLAIM_DURATION_MILLIS = 15 * 60 * 1000;
+
+  /**
+   * How much of the request deadline a batch leaves unused, so that the wave
+   * being imported when it stops starting new ones can finish, and the claims
+   * on the others can be released.
+   */
+  private static final long DEADLINE_RESERVE_MILLIS = 3 * 60 * 1000;
+
   @Inject AccountStore accountStore;
   @Inject UserContext userContext;
   @Inject ServletAuthHelper authHelper;
@@ -87,7 +111,9 @@ public class ImportTaskHandler extends AbstractHandler {
           @Override public void run() throws RetryableFailure, PermanentFailure {
             CheckedTransaction tx = datastore.beginTransaction();
             try {
-              perUserTable.deleteTask(tx, userId, taskId);
+              PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+              perUserTable.deleteTask(tx, userId, taskId, delta);
+              perUserTable.applySummaryDelta(tx, userId, delta);
               tx.commit();
             } finally {
               tx.close();
@@ -103,6 +129,10 @@ public class ImportTaskHandler extends AbstractHandler {
       return;
     }
     log.info("Task to process: " + taskToProcess);
+    if (taskDispatcher.get().isBatchable(taskToProcess)) {
+      handleBatch(userId, taskId);
+      return;
+    }
     taskDispatcher.get().processTask(taskToProcess);
     // If the processing returns normally, the task has been completed.  (Other
     // tasks may have been scheduled.)
@@ -116,6 +146,133 @@ public class ImportTaskHandler extends AbstractHandler {
     }
   }
 
+  private List<ImportTask> claimBatch(final StableUserId userId, final long taskId)
+      throws PermanentFailure {
+    final Predicate<ImportTask> batchable = new Predicate<ImportTask>() {
+      @Override public boolean apply(ImportTask task) {
+        return taskDispatcher.get().isBatchable(task);
+      }
+    };
+    return new RetryHelper().run(
+        new RetryHelper.Body<List<ImportTask>>() {
+          @Override public List<ImportTask> run() throws RetryableFailure, PermanentFailure {
+            CheckedTransaction tx = datastore.beginTransaction();
+            try {
+              List<ImportTask> claimed = perUserTable.claimTasks(tx, userId, taskId, batchable,
+                  MAX_TASKS_PER_BATCH, MAX_TASKS_PER_BATCH * 4,
+                  System.currentTimeMillis() + CLAIM_DURATION_MILLIS);
+              if (claimed != null && !claimed.isEmpty()) {
+                tx.commit();
+              }
+              return claimed;
+            } finally {
+              tx.close();
+            }
+          }
+        });
+  }
+
+  /**
+   * Deletes the completed tasks of the batch that are still there and releases
+   * the others.
+   */
+  private void finishBatch(final StableUserId userId, final List<ImportTask> batch,
+      final Set<ImportTask> completed, final Set<ImportTask> deleted) throws PermanentFailure {
+    new RetryHelper().run(
+        new RetryHelper.VoidBody() {
+          @Override public void run() throws RetryableFailure, PermanentFailure {
+            CheckedTransaction tx = datastore.beginTransaction();
+            try {
+              List<Long> doneIds = Lists.newArrayList();
+              for (ImportTask task : batch) {
+                if (deleted.contains(task)) {
+                  continue;
+                } else if (completed.contains(task)) {
+                  doneIds.add(task.getTaskId());
+                } else {
+                  perUserTable.unclaimTask(tx, userId, task.getTaskId());
+                }
+              }
+              if (!doneIds.isEmpty()) {
+                PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+                perUserTable.deleteTasks(tx, userId, doneIds, delta);
+                perUserTable.applySummaryDelta(tx, userId, delta);
+              }
+              tx.commit();
+            } finally {
+              tx.close();
+            }
+          }
+        });
+  }
+
+  @VisibleForTesting void handleBatch(StableUserId userId, long taskId) throws IOException {
+    handleBatch(userId, taskId, System.currentTimeMillis()
+        + ApiProxy.getCurrentEnvironment().getRemainingMillis() - DEADLINE_RESERVE_MILLIS);
+  }
+
+  /**
+   * Processes the given task together with other pending tasks of the same
+   * user that can be batched with it.  The other tasks are claimed so that
+   * their own task queue callbacks back off while we work on them.  Each task
+   * is deleted as soon as it has been completed, since importing a wave again
+   * would create a duplicate; the others are released again at the end, even
+   * if the batch fails.  No new tasks are started after
+   * {@code stopTimeMillis}.
+   */
+  @VisibleForTesting void handleBatch(final StableUserId userId, long taskId,
+      long stopTimeMillis) throws IOException {
+    List<ImportTask> batch;
+    try {
+      batch = claimBatch(userId, taskId);
+    } catch (PermanentFailure e) {
+      throw new IOException("PermanentFailure claiming tasks: " + userId + ", " + taskId, e);
+    }
+    if (batch == null) {
+      log.info("Task is gone from datastore; either already completed or cancelled");
+      return;
+    }
+    if (batch.isEmpty()) {
+      throw new TryAgainLaterException("Task is being processed as part of another batch: "
+          + userId + ", " + taskId);
+    }
+    log.info("Processing batch of " + batch.size() + " tasks");
+    final Set<ImportTask> completed = Sets.newHashSet();
+    final Set<ImportTask> deleted = Sets.newHashSet();
+    boolean batchFailed = true;
+    try {
+      completed.addAll(taskDispatcher.get().processBatch(batch, stopTimeMillis,
+          new TaskDispatcher.BatchListener() {
+            @Override public void taskCompleted(ImportTask task) {
+              completed.add(task);
+              try {
+                deleteTask(userId, task.getTaskId());
+                deleted.add(task);
+              } catch (PermanentFailure e) {
+                // finishBatch() will try again.
+                log.log(Level.WARNING, "Failed to delete completed task " + task, e);
+              }
+            }
+          }));
+      batchFailed = false;
+    } finally {
+      try {
+        finishBatch(userId, batch, completed, deleted);
+      } catch (PermanentFailure e) {
+        // The claims will expire, and the completed tasks that are left will
+        // be done again.
+        if (!batchFailed) {
+          throw new IOException("PermanentFailure finishing batch: " + userId + " " + taskId, e);
+        }
+        log.log(Level.SEVERE, "PermanentFailure finishing failed batch: " + userId + " " + taskId,
+            e);
+      }
+    }
+    if (!completed.contains(batch.get(0))) {
+      throw new IOException("Task failed; will retry: " + batch.get(0));
+    }
+  }
+
   @Override
   public void doPost(final HttpServletRequest req, final HttpServletResponse resp)
       throws IOException, ServletException {
@@ -16,8 +16,11 @@
 
 package com.google.walkaround.wave.server.googleimport;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.walkaround.proto.GoogleImport.GoogleDocument;
 import com.google.walkaround.proto.GoogleImport.GoogleWavelet;
@@ -40,6 +43,14 @@ import org.waveprotocol.wave.model.util.Pair;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +63,21 @@ public class ImportWaveProcessor {
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(ImportWaveProcessor.class.getName());
 
+  /** Upper bound on concurrent snapshot fetches per request. */
+  private static final int MAX_CONCURRENT_FETCHES = 5;
+
+  /** Minimum time between the starts of two snapshot fetches. */
+  private static final long MIN_FETCH_INTERVAL_MILLIS = 200;
+
+  /** Told about each wave as soon as it has been imported. */
+  public interface ImportListener {
+    void waveImported(ImportWaveTask task);
+  }
+
+  private static final ImportListener NULL_LISTENER = new ImportListener() {
+    @Override public void waveImported(ImportWaveTask task) {}
+  };
+
   private final RobotApi.Factory robotApiFactory;
   private final SourceInstance.Factory sourceInstanceFactory;
   private final WaveletCreator waveletCreator;
@@ -110,40 +136,184 @@ public class ImportWaveProcessor {
     return out.build();
   }
 
+  /**
+   * Spaces out the starts of remote requests made from several threads so
+   * that we don't hammer the remote API.
+   */
+  private static class Pacer {
+    private final long intervalMillis;
+    private long nextStartMillis = 0;
+
+    Pacer(long intervalMillis) {
+      this.intervalMillis = intervalMillis;
+    }
+
+    void await() throws InterruptedException {
+      long waitMillis;
+      synchronized (this) {
+        long now = System.currentTimeMillis();
+        long start = Math.max(now, nextStartMillis);
+        nextStartMillis = start + intervalMillis;
+        waitMillis = start - now;
+      }
+      if (waitMillis > 0) {
+        Thread.sleep(waitMillis);
+      }
+    }
+  }
+
   public void importWave(ImportWaveTask task) throws IOException, PermanentFailure {
-    SourceInstance instance = sourceInstanceFactory.parseUnchecked(task.getInstance());
-    WaveId waveId = WaveId.deserialise(task.getWaveId());
-    RobotApi api = robotApiFactory.create(instance.getApiUrl());
-    List<WaveletId> waveletIds = api.getWaveView(waveId);
-    log.info("Wave view for " + waveId + ": " + waveletIds);
-    // TODO(ohler): add a check that getWaveView() only returned conv wavelets,
-    // and import UDW separately.
-    for (WaveletId waveletId : waveletIds) {
-      WaveletName waveletName = WaveletName.of(waveId, waveletId);
-      Pair<GoogleWavelet, ImmutableList<GoogleDocument>> snapshot =
-          convertGooglewaveToGmail(api.getSnapshot(waveletName));
-      GoogleWavelet wavelet = snapshot.getFirst();
-      List<GoogleDocument> documents = snapshot.getSecond();
-      log.info("Got snapshot for " + waveletName + ": "
-          + wavelet.getParticipantCount() + " participants, "
-          + documents.size() + " documents");
-      List<WaveletOperation> history;
+    Throwable failure =
+        importWaves(ImmutableList.of(task), Long.MAX_VALUE, NULL_LISTENER).get(task);
+    if (failure != null) {
+      throw new IOException("Failed to import " + task, failure);
+    }
+  }
+
+  /**
+   * Imports the waves described by the given tasks.  Wave views are fetched
+   * one by one, all wavelet snapshots are then fetched concurrently, and the
+   * wavelets are converted and stored as their snapshots become available.
+   *
+   * A failure to import one wave doesn't affect the others; it is logged and
+   * returned.  Once {@code stopTimeMillis} has passed, no further waves are
+   * started, except that the first wave is always attempted so that callers
+   * make progress; the waves left out are returned with a
+   * {@link TimeoutException}.
+   *
+   * @param listener told about each wave as soon as it has been imported
+   * @return the tasks whose waves could not be imported completely, with the
+   *     cause of each failure; the waves of all other tasks have been imported
+   */
+  public Map<ImportWaveTask, Throwable> importWaves(List<ImportWaveTask> tasks,
+      long stopTimeMillis, ImportListener listener) throws PermanentFailure {
+    Map<String, RobotApi> apis = Maps.newHashMap();
+    // Wavelets of each task whose wave view we could fetch.
+    Map<ImportWaveTask, List<WaveletName>> waveletNames = Maps.newLinkedHashMap();
+    Map<ImportWaveTask, Throwable> failures = Maps.newLinkedHashMap();
+    for (ImportWaveTask task : tasks) {
+      if (task != tasks.get(0) && outOfTime(task, stopTimeMillis, failures)) {
+        continue;
+      }
+      SourceInstance instance = sourceInstanceFactory.parseUnchecked(task.getInstance());
+      RobotApi api = apis.get(instance.getApiUrl());
+      if (api == null) {
+        api = robotApiFactory.create(instance.getApiUrl());
+        apis.put(instance.getApiUrl(), api);
+      }
+      WaveId waveId = WaveId.deserialise(task.getWaveId());
+      List<WaveletId> waveletIds;
       try {
-        history = new HistorySynthesizer().synthesizeHistory(wavelet, documents);
-        log.info("Synthesized history: " + history);
-        history = convertConvHistory(history);
-        log.info("Converted synthesized history: " + history);
-        log.info("" + waveletCreator.newConvWithGeneratedId(history));
-      } catch (InvalidInputException e) {
-        throw new RuntimeException(
-            "Remote wavelet invalid: " + wavelet.getWaveId() + " " + wavelet.getWaveletId(), e);
+        waveletIds = api.getWaveView(waveId);
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Failed to fetch wave view for " + task, e);
+        failures.put(task, e);
+        continue;
+      }
+      log.info("Wave view for " + waveId + ": " + waveletIds);
+      // TODO(ohler): add a check that getWaveView() only returned conv wavelets,
+      // and import UDW separately.
+      List<WaveletName> names = Lists.newArrayList();
+      for (WaveletId waveletId : waveletIds) {
+        names.add(WaveletName.of(waveId, waveletId));
+      }
+      waveletNames.put(task, names);
+    }
+
+    int numWavelets = 0;
+    for (List<WaveletName> names : waveletNames.values()) {
+      numWavelets += names.size();
+    }
+    if (numWavelets == 0) {
+      // Waves without wavelets are trivially imported.
+      for (ImportWaveTask task : waveletNames.keySet()) {
+        listener.waveImported(task);
       }
-      // TODO(ohler): add link to imported wave to import overview
-      // TODO(ohler): import attachments
-      // TODO(ohler): make imported wave links work
-      // TODO(ohler): make imported waves recognizable as imported
-      // TODO(ohler): add the importer as an explicit participant since groups don't work
+      return failures;
     }
+    // The wave views above have been fetched on this thread, so any token
+    // refresh should have happened already and the fetch threads only read the
+    // OAuth credentials.
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(MAX_CONCURRENT_FETCHES, numWavelets),
+        ThreadManager.currentRequestThreadFactory());
+    try {
+      final Pacer pacer = new Pacer(MIN_FETCH_INTERVAL_MILLIS);
+      Map<WaveletName, Future<Pair<GoogleWavelet, ImmutableList<GoogleDocument>>>> snapshots =
+          Maps.newHashMap();
+      for (Map.Entry<ImportWaveTask, List<WaveletName>> entry : waveletNames.entrySet()) {
+        final RobotApi api = apis.get(
+            sourceInstanceFactory.parseUnchecked(entry.getKey().getInstance()).getApiUrl());
+        for (final WaveletName waveletName : entry.getValue()) {
+          snapshots.put(waveletName, executor.submit(
+              new Callable<Pair<GoogleWavelet, ImmutableList<GoogleDocument>>>() {
+                @Override public Pair<GoogleWavelet, ImmutableList<GoogleDocument>> call()
+                    throws IOException, InterruptedException {
+                  pacer.await();
+                  return convertGooglewaveToGmail(api.getSnapshot(waveletName));
+                }
+              }));
+        }
+      }
+      for (Map.Entry<ImportWaveTask, List<WaveletName>> entry : waveletNames.entrySet()) {
+        if (entry.getKey() != tasks.get(0)
+            && outOfTime(entry.getKey(), stopTimeMillis, failures)) {
+          continue;
+        }
+        try {
+          for (WaveletName waveletName : entry.getValue()) {
+            importWavelet(waveletName, snapshots.get(waveletName).get());
+          }
+          listener.waveImported(entry.getKey());
+        } catch (ExecutionException e) {
+          log.log(Level.WARNING, "Failed to fetch snapshot for " + entry.getKey(), e.getCause());
+          failures.put(entry.getKey(), e.getCause());
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Failed to import " + entry.getKey(), e);
+          failures.put(entry.getKey(), e);
+        } catch (InvalidInputException e) {
+          log.log(Level.SEVERE, "Remote wavelet invalid: " + entry.getKey(), e);
+          failures.put(entry.getKey(), e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new PermanentFailure("Interrupted while importing " + entry.getKey(), e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    log.info("Imported " + (tasks.size() - failures.size()) + " of " + tasks.size() + " waves");
+    return failures;
+  }
+
+  private boolean outOfTime(ImportWaveTask task, long stopTimeMillis,
+      Map<ImportWaveTask, Throwable> failures) {
+    if (System.currentTimeMillis() < stopTimeMillis) {
+      return false;
+    }
+    log.info("Out of time; not importing " + task);
+    failures.put(task, new TimeoutException("Out of time before import started"));
+    return true;
+  }
+
+  private void importWavelet(WaveletName waveletName,
+      Pair<GoogleWavelet, ImmutableList<GoogleDocument>> snapshot)
+      throws IOException, InvalidInputException {
+    GoogleWavelet wavelet = snapshot.getFirst();
+    List<GoogleDocument> documents = snapshot.getSecond();
+    log.info("Got snapshot for " + waveletName + ": "
+        + wavelet.getParticipantCount() + " participants, "
+        + documents.size() + " documents");
+    List<WaveletOperation> history = new HistorySynthesizer().synthesizeHistory(wavelet, documents);
+    log.info("Synthesized history: " + history.size() + " ops");
+    history = convertConvHistory(history);
+    // Large histories are split across transactions by the store.
+    log.info("" + waveletCreator.newConvWithGeneratedId(history));
+    // TODO(ohler): add link to imported wave to import overview
+    // TODO(ohler): import attachments
+    // TODO(ohler): make imported wave links work
+    // TODO(ohler): make imported waves recognizable as imported
+    // TODO(ohler): add the importer as an explicit participant since groups don't work
   }
 
 }
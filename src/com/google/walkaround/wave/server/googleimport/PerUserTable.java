@@ -16,7 +16,9 @@
 
 package com.google.walkaround.wave.server.googleimport;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
@@ -24,7 +26,9 @@ import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.walkaround.proto.ImportTaskPayload;
@@ -47,8 +51,10 @@ import org.waveprotocol.wave.model.id.WaveId;
 import org.waveprotocol.wave.model.util.Pair;
 import org.waveprotocol.wave.model.util.ValueUtils;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -74,6 +80,95 @@ public class PerUserTable {
   private static final String TASK_ENTITY_KIND = "ImportTask";
   private static final String TASK_CREATION_TIME_MILLIS_PROPERTY = "created";
   private static final String TASK_PAYLOAD_PROPERTY = "payload";
+  // Set while a task is being processed as part of a batch started by another
+  // task; see claimTasks().
+  private static final String TASK_CLAIMED_UNTIL_MILLIS_PROPERTY = "claimedUntil";
+
+  // One per user, keeping counts of the user's waves and tasks so that we
+  // don't have to scan them to display totals.
+  private static final String SUMMARY_ENTITY_KIND = "ImportSummary";
+  private static final String SUMMARY_ENTITY_NAME = "summary";
+  private static final String SUMMARY_WAVE_COUNT_PROPERTY = "waves";
+  private static final String SUMMARY_TASK_COUNT_PROPERTY = "tasks";
+
+  /** What {@link #scheduleBulkDelete} can delete. */
+  public enum BulkDeleteKind {
+    WAVES(WAVE_ENTITY_KIND),
+    TASKS(TASK_ENTITY_KIND);
+
+    private final String entityKind;
+
+    private BulkDeleteKind(String entityKind) {
+      this.entityKind = entityKind;
+    }
+  }
+
+  /** Totals for a user; see {@link #getSummary}. */
+  public static class Summary {
+    private final long waveCount;
+    private final long taskCount;
+
+    public Summary(long waveCount, long taskCount) {
+      this.waveCount = waveCount;
+      this.taskCount = taskCount;
+    }
+
+    public long getWaveCount() {
+      return waveCount;
+    }
+
+    public long getTaskCount() {
+      return taskCount;
+    }
+
+    @Override public String toString() {
+      return "Summary(" + waveCount + ", " + taskCount + ")";
+    }
+  }
+
+  /**
+   * Changes to a user's totals made by the writes of one transaction.  The
+   * methods that add or delete waves or tasks record their changes here, and
+   * the caller applies them all at once with {@link #applySummaryDelta} before
+   * committing.  Reads in a transaction don't see the transaction's own
+   * writes, so the summary can only be read and written once per transaction.
+   */
+  public static class SummaryDelta {
+    private long waveDelta = 0;
+    private long taskDelta = 0;
+
+    public boolean isEmpty() {
+      return waveDelta == 0 && taskDelta == 0;
+    }
+
+    @Override public String toString() {
+      return "SummaryDelta(" + waveDelta + ", " + taskDelta + ")";
+    }
+  }
+
+  /** One page of results, with a cursor to fetch the next page. */
+  public static class Page<T> {
+    private final ImmutableList<T> items;
+    @Nullable private final String nextCursor;
+
+    public Page(ImmutableList<T> items, @Nullable String nextCursor) {
+      this.items = Preconditions.checkNotNull(items, "Null items");
+      this.nextCursor = nextCursor;
+    }
+
+    public ImmutableList<T> getItems() {
+      return items;
+    }
+
+    /** Web-safe cursor for the next page, or null if this is the last page. */
+    @Nullable public String getNextCursor() {
+      return nextCursor;
+    }
+
+    @Override public String toString() {
+      return "Page(" + items.size() + " items, " + nextCursor + ")";
+    }
+  }
 
   private final SourceInstance.Factory sourceInstanceFactory;
   private final Queue taskQueue;
@@ -114,6 +209,115 @@ public class PerUserTable {
     return KeyFactory.createKey(makeRootKey(userId), TASK_ENTITY_KIND, taskId);
   }
 
+  private Key makeSummaryKey(StableUserId userId) {
+    return KeyFactory.createKey(makeRootKey(userId), SUMMARY_ENTITY_KIND, SUMMARY_ENTITY_NAME);
+  }
+
+  private int countEntities(CheckedTransaction tx, String kind, StableUserId userId)
+      throws RetryableFailure, PermanentFailure {
+    return tx.prepare(new Query(kind).setAncestor(makeRootKey(userId)).setKeysOnly())
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  private Entity countSummary(CheckedTransaction tx, StableUserId userId)
+      throws RetryableFailure, PermanentFailure {
+    Entity entity = new Entity(makeSummaryKey(userId));
+    DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_WAVE_COUNT_PROPERTY,
+        (long) countEntities(tx, WAVE_ENTITY_KIND, userId));
+    DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_TASK_COUNT_PROPERTY,
+        (long) countEntities(tx, TASK_ENTITY_KIND, userId));
+    log.info("Counted summary: " + entity);
+    return entity;
+  }
+
+  private Summary parseSummaryEntity(Entity entity) {
+    return new Summary(
+        DatastoreUtil.getExistingProperty(entity, SUMMARY_WAVE_COUNT_PROPERTY, Long.class),
+        DatastoreUtil.getExistingProperty(entity, SUMMARY_TASK_COUNT_PROPERTY, Long.class));
+  }
+
+  private boolean hasWavesOrTasks(CheckedTransaction tx, StableUserId userId)
+      throws RetryableFailure, PermanentFailure {
+    return !tx.prepare(new Query().setAncestor(makeRootKey(userId)).setKeysOnly())
+        .asList(FetchOptions.Builder.withLimit(1)).isEmpty();
+  }
+
+  /**
+   * Applies the changes recorded in {@code delta} to the user's totals.  Call
+   * this once per transaction, after all writes.
+   *
+   * Users who started importing before we had summaries may have too many
+   * waves to count in a transaction; for them, this schedules a backfill, which
+   * will count this transaction's writes as well, rather than adjusting
+   * anything.
+   */
+  public void applySummaryDelta(CheckedTransaction tx, StableUserId userId, SummaryDelta delta)
+      throws RetryableFailure, PermanentFailure {
+    log.info("applySummaryDelta(" + userId + ", " + delta + ")");
+    if (delta.isEmpty()) {
+      return;
+    }
+    Entity entity = tx.get(makeSummaryKey(userId));
+    if (entity == null) {
+      // The query doesn't see this transaction's writes, so a user without
+      // earlier waves or tasks starts from zero.
+      if (hasWavesOrTasks(tx, userId)) {
+        scheduleSummaryBackfill(userId);
+        return;
+      }
+      entity = new Entity(makeSummaryKey(userId));
+      DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_WAVE_COUNT_PROPERTY, 0L);
+      DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_TASK_COUNT_PROPERTY, 0L);
+    }
+    Summary old = parseSummaryEntity(entity);
+    DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_WAVE_COUNT_PROPERTY,
+        Math.max(0, old.getWaveCount() + delta.waveDelta));
+    DatastoreUtil.setNonNullUnindexedProperty(entity, SUMMARY_TASK_COUNT_PROPERTY,
+        Math.max(0, old.getTaskCount() + delta.taskDelta));
+    tx.put(entity);
+  }
+
+  /**
+   * Returns the user's totals, or null if the user started importing before we
+   * had summaries and hasn't written anything since.  In that case, the caller
+   * should {@link #scheduleSummaryBackfill}.
+   */
+  @Nullable public Summary getSummary(CheckedTransaction tx, StableUserId userId)
+      throws RetryableFailure, PermanentFailure {
+    Entity entity = tx.get(makeSummaryKey(userId));
+    Summary summary = entity == null ? null : parseSummaryEntity(entity);
+    log.info("getSummary(" + userId + "): " + summary);
+    return summary;
+  }
+
+  /**
+   * Creates the user's summary by counting, unless it exists already.  Returns
+   * true if tx needs to be committed.
+   */
+  public boolean backfillSummary(CheckedTransaction tx, StableUserId userId)
+      throws RetryableFailure, PermanentFailure {
+    log.info("backfillSummary(" + userId + ")");
+    if (tx.get(makeSummaryKey(userId)) != null) {
+      log.info("Summary exists");
+      return false;
+    }
+    tx.put(countSummary(tx, userId));
+    return true;
+  }
+
+  /**
+   * Enqueues a task that runs {@link #backfillSummary}; see
+   * {@link SummaryBackfillTaskHandler}.  Not transactional, so that read paths
+   * can use it too; running the task more than once does no harm.
+   */
+  public void scheduleSummaryBackfill(StableUserId userId) {
+    log.info("scheduleSummaryBackfill(" + userId + ")");
+    taskQueue.add(
+        TaskOptions.Builder.withUrl(WalkaroundServletModule.IMPORT_SUMMARY_TASK_PATH)
+            .method(TaskOptions.Method.POST)
+            .param(SummaryBackfillTaskHandler.USER_ID_HEADER, userId.getId()));
+  }
+
   private RemoteWave parseWaveEntity(Entity entity) {
     Pair<SourceInstance, WaveId> instanceAndWaveId = parseWaveKey(entity.getKey());
     try {
@@ -172,14 +376,15 @@ public class PerUserTable {
   }
 
   /**
-   * Adds the given remote waves.
+   * Adds the given remote waves, and records them in {@code delta}.
    *
    * Returns true if any entities were put (i.e., if a commit is needed), false
    * otherwise.
    */
   public boolean addRemoteWaves(
       CheckedTransaction tx, StableUserId userId, SourceInstance sourceInstance,
-      List<RobotSearchDigest> digests) throws RetryableFailure, PermanentFailure {
+      List<RobotSearchDigest> digests, SummaryDelta delta)
+      throws RetryableFailure, PermanentFailure {
     log.info("Adding " + digests.size() + " digests");
     Map<Key, Entity> newEntities = Maps.newHashMap();
     for (RobotSearchDigest digest : digests) {
@@ -205,88 +410,219 @@ public class PerUserTable {
     }
     log.info("Putting " + ValueUtils.abbrev("" + newEntities, 500));
     tx.put(newEntities.values());
+    delta.waveDelta += newEntities.size();
     return true;
   }
 
-  // TODO(ohler): make this scalable, e.g. by adding pagination
-  public List<RemoteWave> getAllWaves(CheckedTransaction tx, StableUserId userId)
+  private FetchOptions pageOptions(@Nullable String cursor, int pageSize) {
+    // One extra so that we know whether there is a next page.
+    FetchOptions options = FetchOptions.Builder.withLimit(pageSize + 1);
+    if (cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    return options;
+  }
+
+  @Nullable private String nextCursor(CheckedIterator i, int pageSize, int itemsRead)
       throws RetryableFailure, PermanentFailure {
-    log.info("getAllWaves(" + userId + ")");
+    if (itemsRead < pageSize) {
+      return null;
+    }
+    // Take the cursor before checking for more, so that it points just past
+    // the last item we returned.
+    Cursor cursor = i.getCursor();
+    return i.hasNext() ? cursor.toWebSafeString() : null;
+  }
+
+  /**
+   * Returns up to {@code pageSize} of the user's remote waves, most recently
+   * modified first, starting at {@code cursor} (from a previous page) or at
+   * the beginning if null.
+   *
+   * @throws IllegalArgumentException if the cursor is malformed
+   */
+  public Page<RemoteWave> getWaves(CheckedTransaction tx, StableUserId userId,
+      @Nullable String cursor, int pageSize) throws RetryableFailure, PermanentFailure {
+    log.info("getWaves(" + userId + ", " + cursor + ", " + pageSize + ")");
     CheckedIterator i = tx.prepare(new Query(WAVE_ENTITY_KIND)
         .setAncestor(makeRootKey(userId))
         .addSort(WAVE_LAST_MODIFIED_MILLIS_PROPERTY, Query.SortDirection.DESCENDING))
-        .asIterator();
+        .asIterator(pageOptions(cursor, pageSize));
     ImmutableList.Builder<RemoteWave> b = ImmutableList.builder();
-    while (i.hasNext()) {
+    int read = 0;
+    while (read < pageSize && i.hasNext()) {
       b.add(parseWaveEntity(i.next()));
+      read++;
     }
-    List<RemoteWave> out = b.build();
-    log.info("got " + out.size() + " waves");
+    Page<RemoteWave> out = new Page<RemoteWave>(b.build(), nextCursor(i, pageSize, read));
+    log.info("got " + out);
     return out;
   }
 
-  // Among other things, mutates q to make it keys-only.
-  private boolean deleteAll(CheckedTransaction tx, Query q)
-      throws RetryableFailure, PermanentFailure {
-    q.setKeysOnly();
-    CheckedIterator i = tx.prepare(q).asIterator();
-    if (!i.hasNext()) {
-      return false;
+  /**
+   * Deletes up to {@code limit} entities of the given kind, and records them
+   * in {@code delta}.  Returns the number of entities deleted; if it is
+   * nonzero, tx needs to be committed.
+   */
+  public int deleteSome(CheckedTransaction tx, StableUserId userId, BulkDeleteKind kind,
+      int limit, SummaryDelta delta) throws RetryableFailure, PermanentFailure {
+    log.info("deleteSome(" + userId + ", " + kind + ", " + limit + ")");
+    List<Entity> entities = tx.prepare(new Query(kind.entityKind)
+        .setAncestor(makeRootKey(userId))
+        .setKeysOnly())
+        .asList(FetchOptions.Builder.withLimit(limit));
+    if (entities.isEmpty()) {
+      return 0;
     }
-    while (i.hasNext()) {
-      tx.delete(i.next().getKey());
+    Key[] keys = new Key[entities.size()];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = entities.get(i).getKey();
     }
-    return true;
+    tx.delete(keys);
+    switch (kind) {
+      case WAVES:
+        delta.waveDelta -= keys.length;
+        break;
+      case TASKS:
+        delta.taskDelta -= keys.length;
+        break;
+      default:
+        throw new AssertionError("Unknown kind: " + kind);
+    }
+    return keys.length;
   }
 
-  // TODO(ohler): make this scalable, by deleting in chunks, or through the task queue
-  /** Returns true if any entities have been deleted (i.e., tx needs to be committed. */
-  public boolean deleteAllWaves(CheckedTransaction tx, StableUserId userId)
+  /**
+   * Enqueues a task that deletes all entities of the given kind, a chunk at a
+   * time; see {@link BulkDeleteTaskHandler}.
+   */
+  public void scheduleBulkDelete(CheckedTransaction tx, StableUserId userId, BulkDeleteKind kind)
       throws RetryableFailure, PermanentFailure {
-    log.info("deleteAllWaves(" + userId + ")");
-    return deleteAll(tx, new Query(WAVE_ENTITY_KIND).setAncestor(makeRootKey(userId)));
+    log.info("scheduleBulkDelete(" + userId + ", " + kind + ")");
+    tx.enqueueTask(taskQueue,
+        TaskOptions.Builder.withUrl(WalkaroundServletModule.IMPORT_BULK_DELETE_TASK_PATH)
+            .method(TaskOptions.Method.POST)
+            .param(BulkDeleteTaskHandler.USER_ID_HEADER, userId.getId())
+            .param(BulkDeleteTaskHandler.KIND_HEADER, kind.name()));
   }
 
-  /** Returns true if any entities have been deleted (i.e., tx needs to be committed. */
-  public boolean deleteAllTasks(CheckedTransaction tx, StableUserId userId)
-      throws RetryableFailure, PermanentFailure {
-    log.info("deleteAllTasks(" + userId + ")");
-    return deleteAll(tx, new Query(TASK_ENTITY_KIND).setAncestor(makeRootKey(userId)));
+  public ImportTask addTask(CheckedTransaction tx, StableUserId userId, ImportTaskPayload payload,
+      SummaryDelta delta) throws RetryableFailure, PermanentFailure {
+    return addTasks(tx, userId, ImmutableList.of(payload), delta).get(0);
   }
 
-  public ImportTask addTask(CheckedTransaction tx, StableUserId userId, ImportTaskPayload payload)
+  /** Adds a task for each payload, and records them in {@code delta}. */
+  public List<ImportTask> addTasks(CheckedTransaction tx, StableUserId userId,
+      List<ImportTaskPayload> payloads, SummaryDelta delta)
       throws RetryableFailure, PermanentFailure {
-    Entity entity = serializeTask(userId, System.currentTimeMillis(), payload);
-    tx.put(entity);
-    // Sanity check, and retrieve ID.
-    ImportTask written = parseTaskEntity(entity);
-    Assert.check(userId.equals(written.getUserId()), "User id mismatch: %s, %s", userId, written);
-    Assert.check(payload.equals(written.getPayload()),
-        "Payload mismatch: %s, %s", payload, written);
-    tx.enqueueTask(taskQueue,
-        TaskOptions.Builder.withUrl(WalkaroundServletModule.IMPORT_TASK_PATH)
-            .method(TaskOptions.Method.POST)
-            .param(ImportTaskHandler.USER_ID_HEADER, userId.getId())
-            .param(ImportTaskHandler.TASK_ID_HEADER, "" + written.getTaskId()));
-    return written;
+    ImmutableList.Builder<ImportTask> out = ImmutableList.builder();
+    for (ImportTaskPayload payload : payloads) {
+      Entity entity = serializeTask(userId, System.currentTimeMillis(), payload);
+      tx.put(entity);
+      // Sanity check, and retrieve ID.
+      ImportTask written = parseTaskEntity(entity);
+      Assert.check(userId.equals(written.getUserId()),
+          "User id mismatch: %s, %s", userId, written);
+      Assert.check(payload.equals(written.getPayload()),
+          "Payload mismatch: %s, %s", payload, written);
+      tx.enqueueTask(taskQueue,
+          TaskOptions.Builder.withUrl(WalkaroundServletModule.IMPORT_TASK_PATH)
+              .method(TaskOptions.Method.POST)
+              .param(ImportTaskHandler.USER_ID_HEADER, userId.getId())
+              .param(ImportTaskHandler.TASK_ID_HEADER, "" + written.getTaskId()));
+      out.add(written);
+    }
+    delta.taskDelta += payloads.size();
+    return out.build();
   }
 
-  public List<ImportTask> getAllTasks(CheckedTransaction tx, StableUserId userId)
-      throws RetryableFailure, PermanentFailure {
-    log.info("getAllTasks(" + userId + ")");
+  /**
+   * Returns up to {@code pageSize} of the user's tasks, oldest first, starting
+   * at {@code cursor} (from a previous page) or at the beginning if null.
+   *
+   * @throws IllegalArgumentException if the cursor is malformed
+   */
+  public Page<ImportTask> getTasks(CheckedTransaction tx, StableUserId userId,
+      @Nullable String cursor, int pageSize) throws RetryableFailure, PermanentFailure {
+    log.info("getTasks(" + userId + ", " + cursor + ", " + pageSize + ")");
     CheckedIterator i = tx.prepare(new Query(TASK_ENTITY_KIND)
         .setAncestor(makeRootKey(userId))
         .addSort(Entity.KEY_RESERVED_PROPERTY, Query.SortDirection.ASCENDING))
-        .asIterator();
+        .asIterator(pageOptions(cursor, pageSize));
     ImmutableList.Builder<ImportTask> b = ImmutableList.builder();
-    while (i.hasNext()) {
+    int read = 0;
+    while (read < pageSize && i.hasNext()) {
       b.add(parseTaskEntity(i.next()));
+      read++;
     }
-    List<ImportTask> out = b.build();
-    log.info("got " + out.size() + " tasks");
+    Page<ImportTask> out = new Page<ImportTask>(b.build(), nextCursor(i, pageSize, read));
+    log.info("got " + out);
     return out;
   }
 
+  private boolean isClaimed(Entity taskEntity, long nowMillis) {
+    Long claimedUntil = (Long) taskEntity.getProperty(TASK_CLAIMED_UNTIL_MILLIS_PROPERTY);
+    return claimedUntil != null && claimedUntil > nowMillis;
+  }
+
+  /**
+   * Claims the task {@code taskId} together with up to {@code maxTasks - 1}
+   * other unclaimed tasks of the user that satisfy {@code batchable}, until
+   * {@code claimedUntilMillis}, so that they can be processed as a batch.
+   * Only the first {@code scanLimit} tasks in id order are considered.
+   *
+   * Returns null if the task doesn't exist; an empty list if it is claimed
+   * by someone else; otherwise, the claimed tasks, starting with the given
+   * one.  In the latter case, tx needs to be committed.
+   */
+  @Nullable public List<ImportTask> claimTasks(CheckedTransaction tx, StableUserId userId,
+      long taskId, Predicate<ImportTask> batchable, int maxTasks, int scanLimit,
+      long claimedUntilMillis) throws RetryableFailure, PermanentFailure {
+    log.info("claimTasks(" + userId + ", " + taskId + ", " + maxTasks + ")");
+    long now = System.currentTimeMillis();
+    Entity own = tx.get(makeTaskKey(userId, taskId));
+    if (own == null) {
+      log.info("Task is gone");
+      return null;
+    }
+    if (isClaimed(own, now)) {
+      log.info("Task is claimed until " + own.getProperty(TASK_CLAIMED_UNTIL_MILLIS_PROPERTY));
+      return ImmutableList.of();
+    }
+    List<Entity> claimed = Lists.newArrayList(own);
+    CheckedIterator i = tx.prepare(new Query(TASK_ENTITY_KIND)
+        .setAncestor(makeRootKey(userId))
+        .addSort(Entity.KEY_RESERVED_PROPERTY, Query.SortDirection.ASCENDING))
+        .asIterator(FetchOptions.Builder.withLimit(scanLimit));
+    while (claimed.size() < maxTasks && i.hasNext()) {
+      Entity entity = i.next();
+      if (entity.getKey().getId() != taskId && !isClaimed(entity, now)
+          && batchable.apply(parseTaskEntity(entity))) {
+        claimed.add(entity);
+      }
+    }
+    ImmutableList.Builder<ImportTask> out = ImmutableList.builder();
+    for (Entity entity : claimed) {
+      DatastoreUtil.setNonNullUnindexedProperty(entity, TASK_CLAIMED_UNTIL_MILLIS_PROPERTY,
+          claimedUntilMillis);
+      out.add(parseTaskEntity(entity));
+    }
+    tx.put(claimed);
+    log.info("Claimed " + claimed.size() + " tasks");
+    return out.build();
+  }
+
+  /** Makes a task claimed by {@link #claimTasks} available to others again. */
+  public void unclaimTask(CheckedTransaction tx, StableUserId userId, long taskId)
+      throws RetryableFailure, PermanentFailure {
+    log.info("unclaimTask(" + userId + ", " + taskId + ")");
+    Entity entity = tx.get(makeTaskKey(userId, taskId));
+    if (entity != null && entity.hasProperty(TASK_CLAIMED_UNTIL_MILLIS_PROPERTY)) {
+      entity.removeProperty(TASK_CLAIMED_UNTIL_MILLIS_PROPERTY);
+      tx.put(entity);
+    }
+  }
+
   @Nullable public ImportTask getTask(CheckedTransaction tx, StableUserId userId, long taskId)
       throws RetryableFailure, PermanentFailure {
     log.info("getTask(" + userId + ", " + taskId + ")");
@@ -296,10 +632,26 @@ public class PerUserTable {
     return task;
   }
 
-  public void deleteTask(CheckedTransaction tx, StableUserId userId, long taskId)
-      throws RetryableFailure, PermanentFailure {
-    log.info("deleteTask(" + userId + ", " + taskId + ")");
-    tx.delete(makeTaskKey(userId, taskId));
+  public void deleteTask(CheckedTransaction tx, StableUserId userId, long taskId,
+      SummaryDelta delta) throws RetryableFailure, PermanentFailure {
+    deleteTasks(tx, userId, ImmutableList.of(taskId), delta);
+  }
+
+  /** Deletes the given tasks, and records the ones that existed in {@code delta}. */
+  public void deleteTasks(CheckedTransaction tx, StableUserId userId, Collection<Long> taskIds,
+      SummaryDelta delta) throws RetryableFailure, PermanentFailure {
+    log.info("deleteTasks(" + userId + ", " + taskIds + ")");
+    List<Key> keys = Lists.newArrayList();
+    for (long taskId : taskIds) {
+      keys.add(makeTaskKey(userId, taskId));
+    }
+    // Look them up first to keep the summary accurate when some are already
+    // gone.
+    Set<Key> existing = tx.get(keys).keySet();
+    if (!existing.isEmpty()) {
+      tx.delete(existing.toArray(new Key[0]));
+      delta.taskDelta -= existing.size();
+    }
   }
 
 }
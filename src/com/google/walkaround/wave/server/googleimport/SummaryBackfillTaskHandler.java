@@ -0,0 +1,79 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.googleimport;
+
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.util.AbstractHandler;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles task queue callbacks that create the import summary of a user who
+ * started importing before we had summaries, so that the overview page never
+ * has to count.
+ */
+public class SummaryBackfillTaskHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(SummaryBackfillTaskHandler.class.getName());
+
+  public static final String USER_ID_HEADER = "X-Walkaround-Import-User-Id";
+
+  @Inject PerUserTable perUserTable;
+  @Inject CheckedDatastore datastore;
+
+  private boolean backfill(final StableUserId userId) throws PermanentFailure {
+    return new RetryHelper().run(
+        new RetryHelper.Body<Boolean>() {
+          @Override public Boolean run() throws RetryableFailure, PermanentFailure {
+            CheckedTransaction tx = datastore.beginTransaction();
+            try {
+              if (perUserTable.backfillSummary(tx, userId)) {
+                tx.commit();
+                return true;
+              }
+              return false;
+            } finally {
+              tx.close();
+            }
+          }
+        });
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    StableUserId userId = new StableUserId(requireParameter(req, USER_ID_HEADER));
+    log.info("userId=" + userId);
+    boolean created;
+    try {
+      created = backfill(userId);
+    } catch (PermanentFailure e) {
+      throw new IOException("PermanentFailure backfilling summary of " + userId, e);
+    }
+    log.info(created ? "Created summary" : "Summary already existed");
+  }
+
+}
@@ -17,6 +17,9 @@
 package com.google.walkaround.wave.server.googleimport;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.walkaround.proto.FindRemoteWavesTask;
 import com.google.walkaround.proto.ImportWaveTask;
@@ -26,6 +29,8 @@ import com.google.walkaround.wave.server.gxp.SourceInstance;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -91,6 +96,55 @@ public class TaskDispatcher {
     return Collections.frequency(Arrays.asList(args), true) == 1;
   }
 
+  /** Told about each task of a batch as soon as it has been completed. */
+  public interface BatchListener {
+    void taskCompleted(ImportTask task);
+  }
+
+  /** Whether the task can be processed as part of a batch by {@link #processBatch}. */
+  public boolean isBatchable(ImportTask task) {
+    return task.getPayload().hasImportWaveTask();
+  }
+
+  /**
+   * Processes the given batchable tasks together.  Unlike
+   * {@link #processTask}, a failure of one task doesn't fail the others.
+   * No new tasks are started once {@code stopTimeMillis} has passed, except
+   * for the first one.
+   *
+   * @param listener told about each task as soon as it has been completed
+   * @return the tasks that have been completed
+   */
+  public List<ImportTask> processBatch(List<ImportTask> tasks, long stopTimeMillis,
+      final BatchListener listener) throws IOException {
+    List<ImportWaveTask> waves = Lists.newArrayList();
+    final Map<ImportWaveTask, ImportTask> tasksByWave = Maps.newHashMap();
+    for (ImportTask task : tasks) {
+      Preconditions.checkArgument(isBatchable(task), "Not batchable: %s", task);
+      waves.add(task.getPayload().getImportWaveTask());
+      tasksByWave.put(task.getPayload().getImportWaveTask(), task);
+    }
+    Map<ImportWaveTask, Throwable> failures;
+    try {
+      failures = importWaveProcessor.importWaves(waves, stopTimeMillis,
+          new ImportWaveProcessor.ImportListener() {
+            @Override public void waveImported(ImportWaveTask wave) {
+              listener.taskCompleted(tasksByWave.get(wave));
+            }
+          });
+    } catch (PermanentFailure e) {
+      throw new IOException("Permanent failure processing batch of " + tasks.size()
+          + " tasks starting with " + tasks.get(0), e);
+    }
+    ImmutableList.Builder<ImportTask> done = ImmutableList.builder();
+    for (ImportTask task : tasks) {
+      if (!failures.containsKey(task.getPayload().getImportWaveTask())) {
+        done.add(task);
+      }
+    }
+    return done.build();
+  }
+
   public void processTask(ImportTask task) throws IOException {
     Preconditions.checkArgument(exactlyOneTrue(
             task.getPayload().hasFindWavesTask(),
@@ -34,9 +34,9 @@ import com.google.appengine.api.search.StatusCode;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.walkaround.slob.server.SlobSnapshotCache.VersionedSnapshot;
 import com.google.walkaround.slob.shared.MessageException;
 import com.google.walkaround.slob.shared.SlobId;
-import com.google.walkaround.slob.shared.StateAndVersion;
 import com.google.walkaround.wave.server.model.ServerMessageSerializer;
 import com.google.walkaround.wave.server.model.TextRenderer;
 import com.google.walkaround.wave.shared.IdHack;
@@ -155,11 +155,13 @@ public class Indexer {
     // TODO(danilatos): Remove waves from the inboxes of participants that have
     // been removed from the wave.
 
-    StateAndVersion rawConv = loader.load(slobId);
+    VersionedSnapshot rawConv = loader.load(slobId);
+    if (rawConv == null) {
+      throw new IOException("Object not found: " + slobId);
+    }
     WaveletName convWaveletName = IdHack.convWaveletNameFromConvObjectId(slobId);
 
-    WaveletDataImpl convWavelet = deserializeWavelet(convWaveletName,
-        rawConv.getState().snapshot());
+    WaveletDataImpl convWavelet = deserializeWavelet(convWaveletName, rawConv.getSnapshot());
 
     if (rawConv.getVersion() != convWavelet.getVersion()) {
       throw new AssertionError("Raw version " + rawConv.getVersion() +
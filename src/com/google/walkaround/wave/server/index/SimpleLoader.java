@@ -19,8 +19,9 @@ package com.google.walkaround.wave.server.index;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.server.MutationLog;
 import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
+import com.google.walkaround.slob.server.SlobSnapshotCache;
+import com.google.walkaround.slob.server.SlobSnapshotCache.VersionedSnapshot;
 import com.google.walkaround.slob.shared.SlobId;
-import com.google.walkaround.slob.shared.StateAndVersion;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 import com.google.walkaround.util.server.appengine.CheckedDatastore;
@@ -37,21 +38,25 @@ import java.io.IOException;
 public class SimpleLoader {
   private final CheckedDatastore datastore;
   private final MutationLogFactory mutationLogFactory;
+  private final SlobSnapshotCache snapshotCache;
 
   @Inject
   public SimpleLoader(CheckedDatastore datastore,
       // XXX XXX.
-      @ConvStore MutationLogFactory mutationLogFactory) {
+      @ConvStore MutationLogFactory mutationLogFactory,
+      @ConvStore SlobSnapshotCache snapshotCache) {
     this.datastore = datastore;
     this.mutationLogFactory = mutationLogFactory;
+    this.snapshotCache = snapshotCache;
   }
 
-  public StateAndVersion load(SlobId id) throws IOException {
+  /** Returns the current snapshot of the object, or null if it doesn't exist. */
+  public VersionedSnapshot load(SlobId id) throws IOException {
     try {
       CheckedTransaction tx = datastore.beginTransaction();
       try {
         MutationLog l = mutationLogFactory.create(tx, id);
-        return l.reconstruct(null);
+        return snapshotCache.load(id, l, null);
       } finally {
         tx.rollback();
       }
@@ -51,6 +51,17 @@ public final class TextRenderer {
     return b.toString();
   }
 
+  /**
+   * Renders one document of a wavelet into text.  Concatenating this for all
+   * documents in the order of {@link ReadableWaveletData#getDocumentIds} gives
+   * {@link #renderToText}.
+   */
+  public static String renderDocumentToText(ReadableWaveletData data, String documentId) {
+    StringBuilder b = new StringBuilder();
+    render(data.getDocument(documentId).getContent().asOperation(), b);
+    return b.toString();
+  }
+
   /**
    * Renders a document as a paragraph of plain text.
    */
@@ -18,12 +18,15 @@ package com.google.walkaround.wave.server.model;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.walkaround.slob.shared.ChangeData;
 import com.google.walkaround.slob.shared.ChangeRejected;
 import com.google.walkaround.slob.shared.InvalidSnapshot;
 import com.google.walkaround.slob.shared.MessageException;
 import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.util.server.HtmlEscaper;
 import com.google.walkaround.wave.shared.IdHack;
 import com.google.walkaround.wave.shared.MessageSerializer;
 import com.google.walkaround.wave.shared.WaveSerializer;
@@ -33,12 +36,15 @@ import org.waveprotocol.wave.model.operation.OperationException;
 import org.waveprotocol.wave.model.operation.OperationPair;
 import org.waveprotocol.wave.model.operation.TransformException;
 import org.waveprotocol.wave.model.operation.wave.Transform;
+import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.wave.ParticipantId;
 import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -67,18 +73,72 @@ public class WaveObjectStoreModel implements SlobModel {
     private WaveletDataImpl wavelet;
 
     private String cachedSnapshot = null;
+    private final WaveletSnapshotBuilder snapshotBuilder = new WaveletSnapshotBuilder(serializer);
+
+    /**
+     * Text rendering of each document, as per
+     * {@link TextRenderer#renderDocumentToText}, for the documents that
+     * haven't been modified since they were last rendered.  This object
+     * outlives its transaction in the mutation log's warm state, so the
+     * renderings carry over to the next batch of deltas.
+     */
+    private final Map<String, String> renderedDocuments = Maps.newHashMap();
+    /** Documents modified since they were last rendered. */
+    private final Set<String> dirtyDocuments = Sets.newHashSet();
+    /** Text rendering of the whole wavelet; null if any document is dirty. */
+    private String cachedText = null;
 
     public WaveletObject(WaveletDataImpl initialState) {
       this.wavelet = initialState;
     }
 
+    private void markDirty(WaveletOperation op) {
+      if (op instanceof WaveletBlipOperation) {
+        // Mark dirty even if the op turns out to be invalid; it may have been
+        // partially applied.  Every change to a document, including its
+        // metadata, goes through a WaveletBlipOperation.
+        String documentId = ((WaveletBlipOperation) op).getBlipId();
+        dirtyDocuments.add(documentId);
+        snapshotBuilder.markDirty(documentId);
+        cachedText = null;
+      }
+    }
+
+    /**
+     * Renders the wavelet as text, re-rendering only the documents that were
+     * modified since the previous call.
+     */
+    private String getText() {
+      if (wavelet == null) {
+        return "";
+      }
+      if (cachedText == null) {
+        for (String id : dirtyDocuments) {
+          renderedDocuments.remove(id);
+        }
+        dirtyDocuments.clear();
+        StringBuilder b = new StringBuilder();
+        for (String id : wavelet.getDocumentIds()) {
+          String rendered = renderedDocuments.get(id);
+          if (rendered == null) {
+            rendered = TextRenderer.renderDocumentToText(wavelet, id);
+            renderedDocuments.put(id, rendered);
+          }
+          b.append(rendered);
+        }
+        renderedDocuments.keySet().retainAll(wavelet.getDocumentIds());
+        cachedText = b.toString();
+      }
+      return cachedText;
+    }
+
     @Override @Nullable
     public String snapshot() {
       if (wavelet == null) {
         return null;
       }
       if (cachedSnapshot == null) {
-        cachedSnapshot = serializer.serializeWavelet(wavelet);
+        cachedSnapshot = snapshotBuilder.serializeWavelet(wavelet);
       }
       return cachedSnapshot;
     }
@@ -101,6 +161,7 @@ public class WaveObjectStoreModel implements SlobModel {
           throw new ChangeRejected("Invalid initial op: " + op, e);
         }
       } else {
+        markDirty(op);
         try {
           op.apply(wavelet);
         } catch (OperationException e) {
@@ -112,7 +173,7 @@ public class WaveObjectStoreModel implements SlobModel {
     }
 
     @Override public String getIndexedContent() {
-      return wavelet == null ? "" : TextRenderer.renderToHtml(wavelet);
+      return HtmlEscaper.HTML_ESCAPER.escape(getText());
     }
 
     // TODO(ohler): Guarantee that the only method that will ever be called at
@@ -131,7 +192,7 @@ public class WaveObjectStoreModel implements SlobModel {
     // based on the search query, or based on which blips the user hasn't read
     // yet.  TODO(ohler): redo this when we integrate with full text search.
     @Override public String getSnippet() {
-      return TextRenderer.renderToText(wavelet);
+      return getText();
     }
 
     @Override public long getLastModifiedMillis() {
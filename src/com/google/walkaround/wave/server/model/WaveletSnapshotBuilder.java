@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.model;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.walkaround.wave.shared.WaveSerializer;
+
+import org.waveprotocol.wave.communication.gson.GsonSerializable;
+import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serializes snapshots of one wavelet as it evolves, in a format that
+ * {@link WaveSerializer#deserializeWavelet} accepts.  The JSON of each
+ * document is kept from one snapshot to the next, and only re-encoded if the
+ * document was marked dirty in the meantime; the snapshot is spliced together
+ * from these fragments.
+ *
+ * Not thread-safe.
+ */
+class WaveletSnapshotBuilder {
+
+  /**
+   * The JSON key of the document list in a wavelet snapshot.  The generated
+   * gson code keys fields by their number, and the documents are field 6 of
+   * WalkaroundWaveletSnapshot in walkaround.proto.
+   */
+  private static final String DOCUMENTS_KEY = "6";
+
+  private final WaveSerializer serializer;
+  private final Gson gson = new Gson();
+  /** JSON of each document that hasn't been modified since it was encoded. */
+  private Map<String, String> fragments = Maps.newHashMap();
+  private final Set<String> dirtyDocuments = Sets.newHashSet();
+
+  WaveletSnapshotBuilder(WaveSerializer serializer) {
+    this.serializer = serializer;
+  }
+
+  /**
+   * Records that a document has been (or may have been) modified, in its
+   * content or its metadata, since the previous snapshot.
+   */
+  void markDirty(String documentId) {
+    dirtyDocuments.add(documentId);
+  }
+
+  private JsonElement toGson(Object message) {
+    return ((GsonSerializable) message).toGson(null, gson);
+  }
+
+  String serializeWavelet(WaveletDataImpl wavelet) {
+    Preconditions.checkNotNull(wavelet.getCreator(), "Null creator");
+    for (String id : dirtyDocuments) {
+      fragments.remove(id);
+    }
+    dirtyDocuments.clear();
+    JsonObject header = (JsonObject) toGson(
+        serializer.createWaveletMessageWithoutDocuments(wavelet));
+    header.remove(DOCUMENTS_KEY);
+    Map<String, String> newFragments = Maps.newHashMap();
+    // Splice the documents in as the last member of the top-level object.
+    String headerJson = gson.toJson(header);
+    Preconditions.checkState(headerJson.endsWith("}"), "Unexpected JSON: %s", headerJson);
+    StringBuilder b = new StringBuilder(headerJson);
+    b.setLength(b.length() - 1);
+    if (!header.entrySet().isEmpty()) {
+      b.append(',');
+    }
+    b.append(gson.toJson(DOCUMENTS_KEY)).append(":[");
+    boolean first = true;
+    for (String id : wavelet.getDocumentIds()) {
+      String json = fragments.get(id);
+      if (json == null) {
+        json = gson.toJson(toGson(serializer.createDocumentMessage(wavelet.getDocument(id))));
+      }
+      newFragments.put(id, json);
+      if (!first) {
+        b.append(',');
+      }
+      first = false;
+      b.append(json);
+    }
+    b.append("]}");
+    fragments = newFragments;
+    return b.toString();
+  }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.rpc;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ObjectArrays;
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.util.server.servlet.HttpException;
+import com.google.walkaround.wave.server.util.AbstractHandler;
+import com.google.walkaround.wave.server.util.HandlerServlet;
+import com.google.walkaround.wave.shared.SharedConstants.Batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Runs several RPCs that the client issued at the same time in one HTTP
+ * request, to save round trips.  See {@link Batch} for the format.
+ *
+ * Each call is dispatched through {@link HandlerServlet} with a request that
+ * looks like the one the call would have made on its own, one after the other,
+ * and its result is written out as soon as it is available.  A failing call
+ * only fails itself, not the rest of the batch.
+ *
+ * All calls in a batch share the authentication of the batch request.  Values
+ * that depend on request parameters and may differ between calls, like the
+ * object session, have to be looked up through {@link #getCurrentCall}.
+ */
+public class BatchRpcHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(BatchRpcHandler.class.getName());
+
+  /**
+   * Calls that haven't started when less than this much of the request
+   * deadline is left are answered with 503 instead, so that the results of the
+   * calls before them, which may have committed, still reach the client.
+   */
+  private static final long DEADLINE_RESERVE_MILLIS = 15 * 1000;
+
+  private static final String CURRENT_CALL_ATTRIBUTE =
+      BatchRpcHandler.class.getName() + ".currentCall";
+
+  /**
+   * Returns the request of the batched call that is currently being
+   * dispatched, or {@code req} itself if there is none.
+   */
+  public static HttpServletRequest getCurrentCall(HttpServletRequest req) {
+    HttpServletRequest call = (HttpServletRequest) req.getAttribute(CURRENT_CALL_ATTRIBUTE);
+    return call == null ? req : call;
+  }
+
+  private static class CallRequest extends HttpServletRequestWrapper {
+    private final String method;
+    private final String requestUri;
+    private final Map<String, String[]> params;
+
+    CallRequest(HttpServletRequest batchRequest, String method, String requestUri,
+        Map<String, String[]> params) {
+      super(batchRequest);
+      this.method = method;
+      this.requestUri = requestUri;
+      this.params = Collections.unmodifiableMap(params);
+    }
+
+    @Override public String getMethod() {
+      return method;
+    }
+
+    @Override public String getRequestURI() {
+      return requestUri;
+    }
+
+    @Override public StringBuffer getRequestURL() {
+      StringBuffer url = super.getRequestURL();
+      url.setLength(url.length() - super.getRequestURI().length());
+      return url.append(requestUri);
+    }
+
+    @Override @Nullable public String getQueryString() {
+      return null;
+    }
+
+    @Override @Nullable public String getParameter(String name) {
+      String[] values = params.get(name);
+      return values == null ? null : values[0];
+    }
+
+    @Override @Nullable public String[] getParameterValues(String name) {
+      return params.get(name);
+    }
+
+    @Override public Map<String, String[]> getParameterMap() {
+      return params;
+    }
+
+    @Override public Enumeration<String> getParameterNames() {
+      return Collections.enumeration(params.keySet());
+    }
+  }
+
+  /**
+   * Collects the status and body of a call.  Headers belong to the batch
+   * response as a whole, so calls can't set their own.
+   */
+  private static class CallResponse extends HttpServletResponseWrapper {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private int status = HttpServletResponse.SC_OK;
+    @Nullable private PrintWriter writer = null;
+    @Nullable private ServletOutputStream stream = null;
+
+    CallResponse(HttpServletResponse batchResponse) {
+      super(batchResponse);
+    }
+
+    @Override public void setStatus(int status) {
+      this.status = status;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override public void setStatus(int status, String message) {
+      this.status = status;
+    }
+
+    @Override public void sendError(int status) {
+      this.status = status;
+    }
+
+    @Override public void sendError(int status, String message) {
+      resetBuffer();
+      this.status = status;
+      // Not through getWriter(), since the call may have used getOutputStream().
+      byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+      bytes.write(messageBytes, 0, messageBytes.length);
+    }
+
+    @Override public void sendRedirect(String location) {
+      // The client has no way to follow a redirect for a single call.
+      log.warning("Redirect in batched call: " + location);
+      sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Redirect in batched call");
+    }
+
+    @Override public void setContentType(String type) {}
+    @Override public void setCharacterEncoding(String charset) {}
+    @Override public void setContentLength(int length) {}
+    @Override public void setLocale(Locale locale) {}
+    @Override public void setBufferSize(int size) {}
+    @Override public void setHeader(String name, String value) {}
+    @Override public void addHeader(String name, String value) {}
+    @Override public void setIntHeader(String name, int value) {}
+    @Override public void addIntHeader(String name, int value) {}
+    @Override public void setDateHeader(String name, long date) {}
+    @Override public void addDateHeader(String name, long date) {}
+
+    @Override public String getCharacterEncoding() {
+      return "UTF-8";
+    }
+
+    @Override public boolean isCommitted() {
+      return false;
+    }
+
+    @Override public void flushBuffer() {
+      if (writer != null) {
+        writer.flush();
+      }
+    }
+
+    @Override public void resetBuffer() {
+      flushBuffer();
+      bytes.reset();
+    }
+
+    @Override public void reset() {
+      resetBuffer();
+      status = HttpServletResponse.SC_OK;
+    }
+
+    @Override public ServletOutputStream getOutputStream() {
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() already called");
+      }
+      if (stream == null) {
+        stream = new ServletOutputStream() {
+          @Override public void write(int b) {
+            bytes.write(b);
+          }
+        };
+      }
+      return stream;
+    }
+
+    @Override public PrintWriter getWriter() {
+      if (stream != null) {
+        throw new IllegalStateException("getOutputStream() already called");
+      }
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(bytes, Charsets.UTF_8));
+      }
+      return writer;
+    }
+
+    int getStatus() {
+      return status;
+    }
+
+    String getBody() {
+      flushBuffer();
+      return new String(bytes.toByteArray(), Charsets.UTF_8);
+    }
+  }
+
+  @Inject HandlerServlet handlerServlet;
+
+  @VisibleForTesting
+  static Map<String, String[]> parseParams(String encoded) {
+    Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+    for (String pair : encoded.split("&")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      int idx = pair.indexOf('=');
+      String key = decode(idx == -1 ? pair : pair.substring(0, idx));
+      String value = idx == -1 ? "" : decode(pair.substring(idx + 1));
+      String[] existing = params.get(key);
+      params.put(key, existing == null ? new String[] { value }
+          : ObjectArrays.concat(existing, value));
+    }
+    return params;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Bad parameter encoding: " + s, e);
+    }
+  }
+
+  @VisibleForTesting long getRemainingMillis() {
+    return ApiProxy.getCurrentEnvironment().getRemainingMillis();
+  }
+
+  private void writeResult(PrintWriter out, int status, String body) {
+    out.print(status + " " + body.length() + "\n" + body);
+  }
+
+  private void runCall(HttpServletRequest req, HttpServletResponse resp, int index,
+      PrintWriter out) {
+    String service = requireParameter(req, Batch.SERVICE_PREFIX + index);
+    String method = requireParameter(req, Batch.METHOD_PREFIX + index);
+    // The batch request itself goes through RpcAuthFilter, so calls to
+    // services that aren't behind it on their own (version) get checked too.
+    if (!Batch.isBatchable(service)) {
+      writeResult(out, HttpServletResponse.SC_BAD_REQUEST, "Service can't be batched: " + service);
+      return;
+    }
+    if (!"GET".equals(method) && !"POST".equals(method)) {
+      writeResult(out, HttpServletResponse.SC_BAD_REQUEST, "Bad method: " + method);
+      return;
+    }
+    CallResponse callResp = new CallResponse(resp);
+    try {
+      CallRequest callReq = new CallRequest(req, method, "/" + service,
+          parseParams(optionalParameter(req, Batch.PARAMS_PREFIX + index, "")));
+      req.setAttribute(CURRENT_CALL_ATTRIBUTE, callReq);
+      try {
+        handlerServlet.service(callReq, callResp);
+      } finally {
+        req.removeAttribute(CURRENT_CALL_ATTRIBUTE);
+      }
+    } catch (HttpException e) {
+      log.log(Level.INFO, "Batched call " + index + " to " + service + " failed", e);
+      writeResult(out, e.getResponseCode(), e.getPublicMessage());
+      return;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "Batched call " + index + " to " + service + " failed", e);
+      writeResult(out, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal server error");
+      return;
+    }
+    writeResult(out, callResp.getStatus(), callResp.getBody());
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException, ServletException {
+    int count;
+    try {
+      count = Integer.parseInt(requireParameter(req, Batch.CALL_COUNT));
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Bad call count", e);
+    }
+    if (count < 1 || count > Batch.MAX_CALLS) {
+      throw new BadRequestException("Bad call count: " + count);
+    }
+    log.info("Batch of " + count + " calls");
+    resp.setContentType("text/plain");
+    PrintWriter out = resp.getWriter();
+    for (int i = 0; i < count; i++) {
+      if (i > 0 && getRemainingMillis() < DEADLINE_RESERVE_MILLIS) {
+        log.warning("Out of time; not running call " + i);
+        writeResult(out, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Out of time in batch");
+      } else {
+        runCall(req, resp, i, out);
+      }
+      // Let the client have each result as soon as it's ready, where the
+      // serving infrastructure allows it.
+      out.flush();
+    }
+  }
+
+}
@@ -16,7 +16,9 @@
 
 package com.google.walkaround.wave.server.rpc;
 
+import com.google.common.collect.MapMaker;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.walkaround.util.server.Util;
 import com.google.walkaround.util.server.gwt.StackTraceDeobfuscator;
 import com.google.walkaround.wave.server.util.AbstractHandler;
@@ -26,6 +28,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,14 +53,69 @@ public class ClientExceptionHandler extends AbstractHandler {
     }
   }
 
+  /**
+   * Instance-wide state that keeps a storm of client exceptions (e.g. after a
+   * bad release) from making us deobfuscate and log the same stack trace over
+   * and over.
+   */
+  @Singleton
+  static class Throttle {
+    /** Identical exceptions within this period are only deobfuscated once. */
+    private static final long DEDUPE_MINUTES = 10;
+    private static final int MAX_REMEMBERED_EXCEPTIONS = 1000;
+    /** Distinct exceptions deobfuscated per minute, beyond which we log them raw. */
+    private static final int MAX_DEOBFUSCATIONS_PER_MINUTE = 60;
+
+    private final ConcurrentMap<String, AtomicInteger> recentExceptions = new MapMaker()
+        .maximumSize(MAX_REMEMBERED_EXCEPTIONS)
+        .expireAfterWrite(DEDUPE_MINUTES, TimeUnit.MINUTES)
+        .makeMap();
+
+    // Guarded by this.
+    private long windowStartMillis = 0;
+    private int deobfuscationsInWindow = 0;
+
+    @Inject Throttle() {}
+
+    /**
+     * Records an occurrence of the exception identified by {@code key} and
+     * returns how many times it has been seen recently, including this one.
+     */
+    int recordOccurrence(String key) {
+      AtomicInteger count = recentExceptions.get(key);
+      if (count == null) {
+        AtomicInteger existing = recentExceptions.putIfAbsent(key, count = new AtomicInteger());
+        if (existing != null) {
+          count = existing;
+        }
+      }
+      return count.incrementAndGet();
+    }
+
+    synchronized boolean tryAcquireDeobfuscation() {
+      long now = System.currentTimeMillis();
+      if (now - windowStartMillis >= TimeUnit.MINUTES.toMillis(1)) {
+        windowStartMillis = now;
+        deobfuscationsInWindow = 0;
+      }
+      if (deobfuscationsInWindow >= MAX_DEOBFUSCATIONS_PER_MINUTE) {
+        return false;
+      }
+      deobfuscationsInWindow++;
+      return true;
+    }
+  }
+
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(ClientExceptionHandler.class.getName());
 
   private final StackTraceDeobfuscator deobfuscator;
+  private final Throttle throttle;
 
   @Inject
-  public ClientExceptionHandler(StackTraceDeobfuscator deobfuscator) {
+  public ClientExceptionHandler(StackTraceDeobfuscator deobfuscator, Throttle throttle) {
     this.deobfuscator = deobfuscator;
+    this.throttle = throttle;
   }
 
   @Override
@@ -68,7 +128,7 @@ public class ClientExceptionHandler extends AbstractHandler {
   }
 
   private void handleData(String raw) throws JSONException {
-    log.info("raw data: " + raw);
+    log.fine("raw data: " + raw);
     JSONObject data = new JSONObject(raw);
     Level level = "SEVERE".equals(data.getString("level")) ? Level.SEVERE : Level.WARNING;
     StringBuilder b = new StringBuilder();
@@ -79,7 +139,23 @@ public class ClientExceptionHandler extends AbstractHandler {
     }
     ClientException ex = null;
     if (data.has("exception")) {
-      ex = buildException(data.getJSONObject("exception"), data.getString("strongName"));
+      JSONObject exception = data.getJSONObject("exception");
+      String strongName = data.getString("strongName");
+      // The obfuscated exception as sent identifies it well enough.
+      int occurrences = throttle.recordOccurrence(strongName + " " + exception);
+      if (occurrences > 1) {
+        // Log every occurrence so that counts in the logs stay meaningful, but
+        // cheaply, and at full level only when the count reaches a power of two.
+        boolean powerOfTwo = (occurrences & (occurrences - 1)) == 0;
+        log.log(powerOfTwo ? level : Level.INFO,
+            b + " (seen " + occurrences + " times recently; stack trace logged the first time)");
+        return;
+      }
+      if (!throttle.tryAcquireDeobfuscation()) {
+        log.log(level, b + " (too many client exceptions to deobfuscate; raw data: " + raw + ")");
+        return;
+      }
+      ex = buildException(exception, strongName);
     }
     log.log(level, b.toString(), ex);
   }
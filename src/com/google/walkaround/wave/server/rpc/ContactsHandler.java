@@ -16,20 +16,14 @@
 
 package com.google.walkaround.wave.server.rpc;
 
-import com.google.common.net.UriEscapers;
-import com.google.gdata.client.contacts.ContactsService;
-import com.google.gdata.data.Link;
-import com.google.gdata.data.contacts.ContactEntry;
-import com.google.gdata.data.contacts.ContactFeed;
-import com.google.gdata.data.extensions.Email;
-import com.google.gdata.util.ServiceException;
+import com.google.common.collect.ImmutableList;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.google.walkaround.util.server.servlet.BadRequestException;
 import com.google.walkaround.wave.server.auth.UserContext;
+import com.google.walkaround.wave.server.rpc.ContactsSnapshotCache.Contact;
 import com.google.walkaround.wave.server.util.AbstractHandler;
 import com.google.walkaround.wave.shared.SharedConstants;
 
@@ -38,7 +32,6 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.URL;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -57,40 +50,28 @@ public final class ContactsHandler extends AbstractHandler {
   private final static int MAX_SIZE =
       com.google.walkaround.wave.shared.ContactsService.MAX_SIZE;
 
-  private static final String FEED_URL = "https://www.google.com/m8/feeds/contacts/";
-  private static final String PHOTO_URL = "https://www.google.com/m8/feeds/photos/media/";
-
   @Inject ParticipantId user;
   @Inject UserContext userContext;
-  // Lazy because it will fail to instantiate if we don't have OAuth credentials.
-  @Inject Provider<ContactsService> contacts;
+  @Inject ContactsSnapshotCache snapshots;
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    String encodedAddress = UriEscapers.uriEscaper().escape(user.getAddress());
     if (!userContext.hasOAuthCredentials()) {
       // Return an empty set of contacts; the client will show unknown avatars
       // and never call PhotosHandler.
-      printJson(new ContactFeed(), encodedAddress, resp);
+      printJson(ImmutableList.<Contact>of(), resp);
       return;
     }
     Pair<Integer, Integer> range = getRange(req);
-    log.info("Fetching contacts for: " + user + ", [" + range.first + ", " + range.second + ")");
-    URL url = new URL(FEED_URL + encodedAddress + "/thin"
-        + "?start-index=" + range.first + "&max-results=" + (range.second - range.first));
-    ContactFeed results;
-    try {
-      results = contacts.get().getFeed(url, ContactFeed.class);
-    } catch (ServiceException e) {
-      throw new IOException("Contact fetch failed: ", e);
-    }
-    log.info("Fetched " + results.getEntries().size() + " contacts for " + user);
+    log.info("Getting contacts for: " + user + ", [" + range.first + ", " + range.second + ")");
+    List<Contact> results = snapshots.getRange(range.first, range.second);
+    log.info("Got " + results.size() + " contacts for " + user);
 
     // Support ?format=html for debugging.
     if ("html".equals(req.getParameter("format"))) {
-      printHtml(results, encodedAddress, resp);
+      printHtml(results, resp);
     } else {
-      printJson(results, encodedAddress, resp);
+      printJson(results, resp);
     }
   }
 
@@ -121,19 +102,17 @@ public final class ContactsHandler extends AbstractHandler {
   }
 
   /**
-   * Prints a contact feed as pretty HTML into a servlet response. This feature
-   * is only for debugging.
+   * Prints contacts as pretty HTML into a servlet response. This feature is
+   * only for debugging.
    */
-  private void printHtml(ContactFeed results, String encodedAddress, HttpServletResponse resp)
-      throws IOException {
+  private void printHtml(List<Contact> results, HttpServletResponse resp) throws IOException {
     PrintWriter pw = resp.getWriter();
     pw.println("<html>");
     pw.println("<body>");
-    for (ContactEntry e : results.getEntries()) {
+    for (Contact c : results) {
       pw.println("<p>");
-      pw.println(
-          "<img src='/photos" + shortPhotoUrl(encodedAddress, e.getContactPhotoLink()) + "'>");
-      pw.println(e.getTitle().getPlainText());
+      pw.println("<img src='/photos" + c.getPhotoPath() + "'>");
+      pw.println(c.getName());
       pw.println("</p>");
     }
     pw.println("</body>");
@@ -141,39 +120,23 @@ public final class ContactsHandler extends AbstractHandler {
   }
 
   /**
-   * Prints a contact feed as JSON into a servlet response.
+   * Prints contacts as JSON into a servlet response.
    */
-  private void printJson(ContactFeed results, String encodedAddress, HttpServletResponse resp)
-      throws IOException {
+  private void printJson(List<Contact> results, HttpServletResponse resp) throws IOException {
     // Since the fetch API is index based, this handler must return exactly one
     // result per contact entry. If a contact has 0 email addresses, then an
     // empty contact is returned, since without the email address, the
-    // information is useless. If a contact has >1 email addresses, a contact
-    // object based on just the first one is returned, due to the
-    // exactly-one-result-per-feed-entry constraint.
+    // information is useless.
     JsonArray res = new JsonArray();
-    for (ContactEntry e : results.getEntries()) {
+    for (Contact c : results) {
       JsonObject contact = new JsonObject();
-      List<Email> emails = e.getEmailAddresses();
-      if (!emails.isEmpty()) {
-        contact.add("a", new JsonPrimitive(emails.get(0).getAddress()));
-        contact.add("n", new JsonPrimitive(e.getTitle().getPlainText()));
-        contact.add("p", new JsonPrimitive(shortPhotoUrl(encodedAddress, e.getContactPhotoLink())));
+      if (c.getAddress() != null) {
+        contact.add("a", new JsonPrimitive(c.getAddress()));
+        contact.add("n", new JsonPrimitive(c.getName()));
+        contact.add("p", new JsonPrimitive(c.getPhotoPath()));
       }
       res.add(contact);
     }
     resp.getWriter().print(SharedConstants.XSSI_PREFIX + "(" + res.toString() + ")");
   }
-
-  /**
-   * Produces a possibly-shortened path for a contact's photo.
-   *
-   * @param encodedAddress url-encoded address of the viewer
-   * @param link contact link
-   */
-  private String shortPhotoUrl(String encodedAddress, Link link) {
-    String baseUrl = PHOTO_URL + encodedAddress;
-    String href = link.getHref();
-    return href.startsWith(baseUrl) ? href.substring(baseUrl.length()) : href;
-  }
 }
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.rpc;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.net.UriEscapers;
+import com.google.gdata.client.contacts.ContactsService;
+import com.google.gdata.data.DateTime;
+import com.google.gdata.data.Link;
+import com.google.gdata.data.contacts.ContactEntry;
+import com.google.gdata.data.contacts.ContactFeed;
+import com.google.gdata.data.extensions.Email;
+import com.google.gdata.util.ServiceException;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a per-user snapshot of the contacts feed in memcache, so that paging
+ * through the contacts on every client load doesn't re-fetch the whole feed.
+ * A snapshot older than {@link #REFRESH_INTERVAL_MILLIS} is brought up to date
+ * with an incremental fetch of the entries updated since the last sync.
+ *
+ * The contacts of a snapshot are stored in chunks of bounded size, with a
+ * separate header that names the current set of chunks, so that no memcache
+ * value comes near the size limit.  Memcache failures only cost a re-fetch.
+ *
+ * Concurrent requests on one instance that find no snapshot share a single
+ * full sync rather than each paging through the whole feed.
+ */
+public class ContactsSnapshotCache {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(ContactsSnapshotCache.class.getName());
+
+  private static final String FEED_URL = "https://www.google.com/m8/feeds/contacts/";
+  private static final String PHOTO_URL = "https://www.google.com/m8/feeds/photos/media/";
+
+  private static final String HEADER_MEMCACHE_TAG = "CSH";
+  private static final String CHUNK_MEMCACHE_TAG = "CSC";
+
+  private static final long REFRESH_INTERVAL_MILLIS = 5 * 60 * 1000;
+  private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+  private static final int FETCH_PAGE_SIZE = 500;
+
+  /**
+   * Contacts per memcache value.  Feed entries are reduced to a few short
+   * strings, so this keeps each chunk far below the memcache value size limit.
+   */
+  private static final int CONTACTS_PER_CHUNK = 250;
+
+  /**
+   * Users with more contacts than this are not snapshotted, to bound the
+   * memcache space and full sync time per user.
+   */
+  private static final int MAX_SNAPSHOT_SIZE = 5000;
+
+  /**
+   * One entry of the contacts feed, reduced to what the client needs.  The
+   * address is null for entries without an email address.
+   */
+  public static final class Contact implements Serializable {
+    private final String entryId;
+    @Nullable private final String address;
+    private final String name;
+    private final String photoPath;
+
+    Contact(String entryId, @Nullable String address, String name, String photoPath) {
+      this.entryId = checkNotNull(entryId, "Null entryId");
+      this.address = address;
+      this.name = checkNotNull(name, "Null name");
+      this.photoPath = checkNotNull(photoPath, "Null photoPath");
+    }
+
+    public String getEntryId() {
+      return entryId;
+    }
+
+    @Nullable public String getAddress() {
+      return address;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Possibly-shortened path for the contact's photo. */
+    public String getPhotoPath() {
+      return photoPath;
+    }
+
+    @Override public String toString() {
+      return "Contact(" + entryId + ", " + address + ", " + name + ", " + photoPath + ")";
+    }
+  }
+
+  /** One page of the contacts feed. */
+  static final class FeedPage {
+    private final List<Contact> contacts;
+    private final Set<String> deletedEntryIds;
+    private final int totalResults;
+    private final String updated;
+
+    FeedPage(List<Contact> contacts, Set<String> deletedEntryIds, int totalResults,
+        String updated) {
+      this.contacts = ImmutableList.copyOf(contacts);
+      this.deletedEntryIds = ImmutableSet.copyOf(deletedEntryIds);
+      this.totalResults = totalResults;
+      this.updated = checkNotNull(updated, "Null updated");
+    }
+
+    @Override public String toString() {
+      return "FeedPage(" + contacts.size() + " contacts, " + deletedEntryIds.size()
+          + " deleted, " + totalResults + " total, " + updated + ")";
+    }
+  }
+
+  /** Source of the user's contacts feed. */
+  interface Feed {
+    /**
+     * Fetches up to {@code maxResults} entries starting at {@code startIndex},
+     * counting from 1.  If {@code updatedMin} is not null, fetches only the
+     * entries updated since then, including deleted ones.
+     */
+    FeedPage fetch(@Nullable String updatedMin, int startIndex, int maxResults)
+        throws IOException;
+  }
+
+  /** The contacts feed of the Google Contacts API. */
+  private static class GDataFeed implements Feed {
+    private final ParticipantId user;
+    // Lazy because it will fail to instantiate if we don't have OAuth credentials.
+    private final Provider<ContactsService> contacts;
+
+    GDataFeed(ParticipantId user, Provider<ContactsService> contacts) {
+      this.user = user;
+      this.contacts = contacts;
+    }
+
+    @Override public FeedPage fetch(@Nullable String updatedMin, int startIndex,
+        int maxResults) throws IOException {
+      String query = "?start-index=" + startIndex + "&max-results=" + maxResults;
+      if (updatedMin != null) {
+        query += "&updated-min=" + UriEscapers.uriQueryStringEscaper(false).escape(updatedMin)
+            + "&showdeleted=true";
+      }
+      URL url = new URL(FEED_URL + encodedAddress() + "/thin" + query);
+      log.info("Fetching " + url);
+      ContactFeed feed;
+      try {
+        feed = contacts.get().getFeed(url, ContactFeed.class);
+      } catch (ServiceException e) {
+        throw new IOException("Contact fetch failed: ", e);
+      }
+      List<Contact> entries = Lists.newArrayList();
+      Set<String> deleted = Sets.newHashSet();
+      for (ContactEntry e : feed.getEntries()) {
+        if (e.hasDeleted()) {
+          deleted.add(e.getId());
+        } else {
+          entries.add(toContact(e));
+        }
+      }
+      DateTime updated = feed.getUpdated();
+      return new FeedPage(entries, deleted, feed.getTotalResults(),
+          (updated != null ? updated : DateTime.now()).toString());
+    }
+
+    private String encodedAddress() {
+      return UriEscapers.uriEscaper().escape(user.getAddress());
+    }
+
+    private Contact toContact(ContactEntry e) {
+      // If a contact has >1 email addresses, only the first one is kept, since
+      // the client expects exactly one result per feed entry.
+      List<Email> emails = e.getEmailAddresses();
+      return new Contact(e.getId(),
+          emails.isEmpty() ? null : emails.get(0).getAddress(),
+          e.getTitle().getPlainText(),
+          shortPhotoUrl(e.getContactPhotoLink()));
+    }
+
+    /**
+     * Produces a possibly-shortened path for a contact's photo.
+     */
+    private String shortPhotoUrl(Link link) {
+      String baseUrl = PHOTO_URL + encodedAddress();
+      String href = link.getHref();
+      return href.startsWith(baseUrl) ? href.substring(baseUrl.length()) : href;
+    }
+  }
+
+  private static final class Snapshot {
+    private final List<Contact> contacts;
+    private final String updatedMin;
+    private final long syncedAtMillis;
+
+    Snapshot(List<Contact> contacts, String updatedMin, long syncedAtMillis) {
+      this.contacts = checkNotNull(contacts, "Null contacts");
+      this.updatedMin = checkNotNull(updatedMin, "Null updatedMin");
+      this.syncedAtMillis = syncedAtMillis;
+    }
+
+    @Override public String toString() {
+      return "Snapshot(" + contacts.size() + " contacts, " + updatedMin + ", "
+          + syncedAtMillis + ")";
+    }
+  }
+
+  /**
+   * What memcache holds under the user's id.  Each write of a snapshot uses a
+   * new generation for its chunks, so a reader never mixes chunks of two
+   * different snapshots.
+   */
+  private static final class SnapshotHeader implements Serializable {
+    private final long generation;
+    private final int chunkCount;
+    private final String updatedMin;
+    private final long syncedAtMillis;
+
+    SnapshotHeader(long generation, int chunkCount, String updatedMin, long syncedAtMillis) {
+      this.generation = generation;
+      this.chunkCount = chunkCount;
+      this.updatedMin = checkNotNull(updatedMin, "Null updatedMin");
+      this.syncedAtMillis = syncedAtMillis;
+    }
+
+    @Override public String toString() {
+      return "SnapshotHeader(" + generation + ", " + chunkCount + " chunks, " + updatedMin
+          + ", " + syncedAtMillis + ")";
+    }
+  }
+
+  private static final class ChunkKey implements Serializable {
+    private final StableUserId userId;
+    private final long generation;
+    private final int index;
+
+    ChunkKey(StableUserId userId, long generation, int index) {
+      this.userId = checkNotNull(userId, "Null userId");
+      this.generation = generation;
+      this.index = index;
+    }
+
+    @Override public String toString() {
+      return "ChunkKey(" + userId + ", " + generation + ", " + index + ")";
+    }
+
+    @Override public final boolean equals(Object o) {
+      if (o == this) { return true; }
+      if (!(o instanceof ChunkKey)) { return false; }
+      ChunkKey other = (ChunkKey) o;
+      return generation == other.generation
+          && index == other.index
+          && Objects.equal(userId, other.userId);
+    }
+
+    @Override public final int hashCode() {
+      return Objects.hashCode(userId, generation, index);
+    }
+  }
+
+  /** A full sync in progress, which other requests for the same user can wait for. */
+  private static final class InFlightSync {
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Written before done is counted down.
+    private volatile boolean succeeded = false;
+    // Null if the user has too many contacts.
+    @Nullable private volatile Snapshot result = null;
+  }
+
+  /** The full syncs in progress on this instance. */
+  @Singleton
+  static class FullSyncs {
+    private final ConcurrentMap<StableUserId, InFlightSync> inFlight = Maps.newConcurrentMap();
+
+    @Inject FullSyncs() {}
+  }
+
+  private final MemcacheTable<StableUserId, SnapshotHeader> headers;
+  // ArrayList for Serializable.
+  private final MemcacheTable<ChunkKey, ArrayList<Contact>> chunks;
+  private final StableUserId userId;
+  private final ParticipantId user;
+  private final Feed feed;
+  private final FullSyncs fullSyncs;
+  private final Random random;
+  private final int contactsPerChunk;
+
+  @Inject
+  public ContactsSnapshotCache(MemcacheService memcacheService, StableUserId userId,
+      ParticipantId user, Provider<ContactsService> contacts, FullSyncs fullSyncs,
+      Random random) {
+    this(memcacheService, userId, user, new GDataFeed(user, contacts), fullSyncs, random,
+        CONTACTS_PER_CHUNK);
+  }
+
+  ContactsSnapshotCache(MemcacheService memcacheService, StableUserId userId,
+      ParticipantId user, Feed feed, FullSyncs fullSyncs, Random random,
+      int contactsPerChunk) {
+    checkArgument(contactsPerChunk > 0, "Bad contactsPerChunk: %s", contactsPerChunk);
+    this.headers = new MemcacheTable<StableUserId, SnapshotHeader>(
+        memcacheService, HEADER_MEMCACHE_TAG);
+    this.chunks = new MemcacheTable<ChunkKey, ArrayList<Contact>>(
+        memcacheService, CHUNK_MEMCACHE_TAG);
+    this.userId = userId;
+    this.user = user;
+    this.feed = feed;
+    this.fullSyncs = fullSyncs;
+    this.random = random;
+    this.contactsPerChunk = contactsPerChunk;
+  }
+
+  /**
+   * Returns the contacts in [from, to), counting from 1 like the feed does,
+   * from the user's snapshot, creating or refreshing the snapshot as needed.
+   */
+  public List<Contact> getRange(int from, int to) throws IOException {
+    return getRange(from, to, System.currentTimeMillis());
+  }
+
+  List<Contact> getRange(int from, int to, long now) throws IOException {
+    Snapshot snapshot = load();
+    if (snapshot == null) {
+      snapshot = coalescedFullSync(now);
+      if (snapshot == null) {
+        log.info("Too many contacts to snapshot for " + user + ", fetching range directly");
+        return feed.fetch(null, from, to - from).contacts;
+      }
+    } else if (now - snapshot.syncedAtMillis > REFRESH_INTERVAL_MILLIS) {
+      snapshot = incrementalSync(snapshot, now);
+      store(snapshot);
+    }
+    List<Contact> all = snapshot.contacts;
+    return ImmutableList.copyOf(
+        all.subList(Math.min(from - 1, all.size()), Math.min(to - 1, all.size())));
+  }
+
+  /**
+   * Runs a full sync and stores the result, or waits for one that is already
+   * running for the same user.  Returns null if the user has too many
+   * contacts.
+   */
+  @Nullable private Snapshot coalescedFullSync(long now) throws IOException {
+    InFlightSync ours = new InFlightSync();
+    InFlightSync theirs = fullSyncs.inFlight.putIfAbsent(userId, ours);
+    if (theirs != null) {
+      log.info("Waiting for concurrent full contacts sync for " + user);
+      try {
+        theirs.done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (theirs.succeeded) {
+        return theirs.result;
+      }
+      // The other sync failed or we were interrupted; do our own, without
+      // coalescing, to avoid waiting in a chain of failures.
+      log.info("Concurrent full contacts sync failed, syncing again");
+      return fullSyncAndStore(now);
+    }
+    try {
+      ours.result = fullSyncAndStore(now);
+      ours.succeeded = true;
+      return ours.result;
+    } finally {
+      fullSyncs.inFlight.remove(userId, ours);
+      ours.done.countDown();
+    }
+  }
+
+  @Nullable private Snapshot fullSyncAndStore(long now) throws IOException {
+    Snapshot snapshot = fullSync(now);
+    if (snapshot != null) {
+      store(snapshot);
+    }
+    return snapshot;
+  }
+
+  /** Returns null if the user has more than {@link #MAX_SNAPSHOT_SIZE} contacts. */
+  @Nullable private Snapshot fullSync(long now) throws IOException {
+    ArrayList<Contact> all = Lists.newArrayList();
+    String updatedMin = null;
+    for (int start = 1; ; start += FETCH_PAGE_SIZE) {
+      FeedPage page = feed.fetch(null, start, FETCH_PAGE_SIZE);
+      if (updatedMin == null) {
+        if (page.totalResults > MAX_SNAPSHOT_SIZE) {
+          return null;
+        }
+        updatedMin = page.updated;
+      }
+      all.addAll(page.contacts);
+      if (all.size() > MAX_SNAPSHOT_SIZE) {
+        return null;
+      }
+      if (page.contacts.size() < FETCH_PAGE_SIZE) {
+        break;
+      }
+    }
+    log.info("Full contacts sync for " + user + ": " + all.size() + " contacts");
+    return new Snapshot(all, updatedMin, now);
+  }
+
+  private Snapshot incrementalSync(Snapshot old, long now) throws IOException {
+    Map<String, Contact> updated = Maps.newLinkedHashMap();
+    Set<String> deleted = Sets.newHashSet();
+    String updatedMin = null;
+    for (int start = 1; ; start += FETCH_PAGE_SIZE) {
+      FeedPage page = feed.fetch(old.updatedMin, start, FETCH_PAGE_SIZE);
+      if (updatedMin == null) {
+        updatedMin = page.updated;
+      }
+      deleted.addAll(page.deletedEntryIds);
+      for (Contact c : page.contacts) {
+        updated.put(c.getEntryId(), c);
+      }
+      if (page.contacts.size() + page.deletedEntryIds.size() < FETCH_PAGE_SIZE) {
+        break;
+      }
+    }
+    if (updated.isEmpty() && deleted.isEmpty()) {
+      return new Snapshot(old.contacts, updatedMin, now);
+    }
+    // Existing entries keep their positions, so that the indices a client is
+    // paging through stay mostly stable; new entries go at the end.
+    List<Contact> merged = Lists.newArrayListWithCapacity(
+        old.contacts.size() + updated.size());
+    for (Contact c : old.contacts) {
+      if (deleted.contains(c.getEntryId())) {
+        continue;
+      }
+      Contact replacement = updated.remove(c.getEntryId());
+      merged.add(replacement != null ? replacement : c);
+    }
+    merged.addAll(updated.values());
+    log.info("Incremental contacts sync for " + user + ": " + deleted.size() + " deleted, "
+        + updated.size() + " added; now " + merged.size() + " contacts");
+    return new Snapshot(merged, updatedMin, now);
+  }
+
+  /** Returns null if there is no complete snapshot in memcache. */
+  @Nullable private Snapshot load() {
+    SnapshotHeader header = headers.get(userId);
+    if (header == null) {
+      return null;
+    }
+    if (header.chunkCount == 0) {
+      return new Snapshot(ImmutableList.<Contact>of(), header.updatedMin,
+          header.syncedAtMillis);
+    }
+    Set<ChunkKey> keys = Sets.newHashSet();
+    for (int i = 0; i < header.chunkCount; i++) {
+      keys.add(new ChunkKey(userId, header.generation, i));
+    }
+    Map<ChunkKey, ArrayList<Contact>> found = chunks.getAll(keys);
+    if (found.size() != keys.size()) {
+      log.info("Only " + found.size() + " of " + keys.size() + " chunks of " + header
+          + " left in memcache");
+      return null;
+    }
+    List<Contact> all = Lists.newArrayList();
+    for (int i = 0; i < header.chunkCount; i++) {
+      all.addAll(found.get(new ChunkKey(userId, header.generation, i)));
+    }
+    return new Snapshot(all, header.updatedMin, header.syncedAtMillis);
+  }
+
+  /**
+   * Writes the chunks first and the header last, so that the header only ever
+   * names chunks that have been written.  Failures are logged, not thrown; the
+   * next request will just sync again.
+   */
+  private void store(Snapshot snapshot) {
+    long generation = random.nextLong();
+    Map<ChunkKey, ArrayList<Contact>> toWrite = Maps.newHashMap();
+    List<Contact> all = snapshot.contacts;
+    for (int start = 0; start < all.size(); start += contactsPerChunk) {
+      toWrite.put(new ChunkKey(userId, generation, toWrite.size()),
+          Lists.newArrayList(all.subList(start, Math.min(start + contactsPerChunk, all.size()))));
+    }
+    Expiration expiration = Expiration.byDeltaSeconds(EXPIRATION_SECONDS);
+    try {
+      Set<ChunkKey> written = toWrite.isEmpty() ? ImmutableSet.<ChunkKey>of()
+          : chunks.putAll(toWrite, expiration, SetPolicy.SET_ALWAYS);
+      if (written.size() != toWrite.size()) {
+        log.warning("Only wrote " + written.size() + " of " + toWrite.size()
+            + " contacts snapshot chunks for " + user);
+        return;
+      }
+      headers.put(userId,
+          new SnapshotHeader(generation, toWrite.size(), snapshot.updatedMin,
+              snapshot.syncedAtMillis),
+          expiration);
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Failed to store contacts snapshot for " + user, e);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.walkaround.wave.server.util.AbstractHandler;
 import com.google.walkaround.wave.server.util.ProxyHandler;
+import com.google.walkaround.wave.server.util.ProxyResponseCache;
 
 import java.io.IOException;
 
@@ -33,6 +34,9 @@ import javax.servlet.http.HttpServletResponse;
  * @author hearnden@google.com (David Hearnden)
  */
 public final class GadgetsHandler extends AbstractHandler {
+  /** Gadget specs and their resources are small; anything bigger is suspect. */
+  private static final int MAX_BODY_BYTES = 2 * 1024 * 1024;
+
   /** Configured proxy. */
   private final ProxyHandler delegate;
 
@@ -40,8 +44,9 @@ public final class GadgetsHandler extends AbstractHandler {
   public GadgetsHandler(
       @Named("gadget serve path") String source,
       @Named("gadget server") String target,
-      URLFetchService fetch) {
-    delegate = new ProxyHandler(source, target, fetch);
+      URLFetchService fetch,
+      ProxyResponseCache cache) {
+    delegate = new ProxyHandler(source, target, fetch, cache, MAX_BODY_BYTES);
   }
 
   @Override
@@ -53,4 +58,9 @@ public final class GadgetsHandler extends AbstractHandler {
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     delegate.doPost(req, resp);
   }
+
+  @Override
+  public void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    delegate.doPut(req, resp);
+  }
 }
@@ -16,27 +16,44 @@
 
 package com.google.walkaround.wave.server.rpc;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPMethod;
 import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.net.UriEscapers;
 import com.google.inject.Inject;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
 import com.google.walkaround.wave.server.auth.OAuthedFetchService;
+import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.util.AbstractHandler;
 import com.google.walkaround.wave.server.util.ProxyHandler;
 import com.google.walkaround.wave.shared.SharedConstants;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 import java.io.IOException;
+import java.io.Serializable;
 import java.net.URL;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * Handles photo requests by proxying them to the m8 feed.
  *
+ * Photos are cached in memcache by the digest of their content, and served
+ * with an ETag and Cache-Control headers so that browsers can cache them too.
+ *
  * @author hearnden@google.com (David Hearnden)
  */
 public final class PhotosHandler extends AbstractHandler {
@@ -44,16 +61,98 @@ public final class PhotosHandler extends AbstractHandler {
   @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(PhotosHandler.class.getName());
 
+  /**
+   * How long the browser, and our mapping from photo id to content, may
+   * consider a photo current.  Contacts rarely change their photo.
+   */
+  private static final int PHOTO_ID_EXPIRATION_SECONDS = 60 * 60;
+
+  /** Content entries never go stale, since they are keyed by digest. */
+  private static final int CONTENT_EXPIRATION_SECONDS = 7 * 24 * 60 * 60;
+
+  /** Stay well within the memcache value size limit. */
+  private static final int MAX_CACHED_PHOTO_BYTES = 256 * 1024;
+
+  private static final String PHOTO_ID_MEMCACHE_TAG = "PI";
+  private static final String CONTENT_MEMCACHE_TAG = "PC";
+
+  private static class PhotoKey implements Serializable {
+    private final StableUserId userId;
+    private final String photoId;
+
+    public PhotoKey(StableUserId userId, String photoId) {
+      this.userId = checkNotNull(userId, "Null userId");
+      this.photoId = checkNotNull(photoId, "Null photoId");
+    }
+
+    @Override public String toString() {
+      return "PhotoKey(" + userId + ", " + photoId + ")";
+    }
+
+    @Override public final boolean equals(Object o) {
+      if (o == this) { return true; }
+      if (!(o instanceof PhotoKey)) { return false; }
+      PhotoKey other = (PhotoKey) o;
+      return Objects.equal(userId, other.userId)
+          && Objects.equal(photoId, other.photoId);
+    }
+
+    @Override public final int hashCode() {
+      return Objects.hashCode(userId, photoId);
+    }
+  }
+
+  private static class Photo implements Serializable {
+    @Nullable private final String contentType;
+    private final byte[] bytes;
+
+    public Photo(@Nullable String contentType, byte[] bytes) {
+      this.contentType = contentType;
+      this.bytes = checkNotNull(bytes, "Null bytes");
+    }
+
+    @Override public String toString() {
+      return "Photo(" + contentType + ", " + bytes.length + " bytes)";
+    }
+  }
+
   private final OAuthedFetchService fetch;
+  private final StableUserId userId;
+  // Maps (user, photo id) to the digest of the photo's content.  Identical
+  // photos, e.g. the same contact seen by many users, share one content entry.
+  private final MemcacheTable<PhotoKey, String> photoIds;
+  private final MemcacheTable<String, Photo> contents;
 
   @Inject
-  public PhotosHandler(OAuthedFetchService fetch) {
+  public PhotosHandler(OAuthedFetchService fetch, StableUserId userId,
+      MemcacheService memcache) {
     this.fetch = fetch;
+    this.userId = userId;
+    this.photoIds = new MemcacheTable<PhotoKey, String>(memcache, PHOTO_ID_MEMCACHE_TAG);
+    this.contents = new MemcacheTable<String, Photo>(memcache, CONTENT_MEMCACHE_TAG);
   }
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     String photoId = requireParameter(req, "photoId");
+    PhotoKey key = new PhotoKey(userId, photoId);
+    String digest = photoIds.get(key);
+    if (digest != null) {
+      if (ifNoneMatchMatches(req.getHeader("If-None-Match"), etag(digest))) {
+        log.info("Browser has current version of " + key);
+        // A 304 has to repeat the validators and caching headers of the 200
+        // it stands for, or the browser stops caching the photo.
+        setCacheHeaders(digest, resp);
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      Photo photo = contents.get(digest);
+      if (photo != null) {
+        servePhoto(digest, photo, resp);
+        return;
+      }
+    }
+
     // http://code.google.com/apis/contacts/docs/2.0/developers_guide_protocol.html#groups_feed_url
     // says "You can also substitute 'default' for the user's email address,
     // which tells the server to return the contact groups for the user whose
@@ -69,9 +168,71 @@ public final class PhotosHandler extends AbstractHandler {
       // Rather than a broken image, use the unknown avatar.
       log.info("Missing image, using default");
       resp.sendRedirect(SharedConstants.UNKNOWN_AVATAR_URL);
-    } else {
+    } else if (response.getResponseCode() != 200
+        || response.getContent() == null
+        || response.getContent().length > MAX_CACHED_PHOTO_BYTES) {
       ProxyHandler.copyResponse(response, resp);
+    } else {
+      Photo photo = new Photo(getContentType(response), response.getContent());
+      digest = DigestUtils.shaHex(photo.bytes);
+      contents.put(digest, photo, Expiration.byDeltaSeconds(CONTENT_EXPIRATION_SECONDS));
+      photoIds.put(key, digest, Expiration.byDeltaSeconds(PHOTO_ID_EXPIRATION_SECONDS));
+      servePhoto(digest, photo, resp);
+    }
+  }
+
+  private void servePhoto(String digest, Photo photo, HttpServletResponse resp)
+      throws IOException {
+    setCacheHeaders(digest, resp);
+    if (photo.contentType != null) {
+      resp.setContentType(photo.contentType);
+    }
+    resp.setContentLength(photo.bytes.length);
+    resp.getOutputStream().write(photo.bytes);
+  }
+
+  private static void setCacheHeaders(String digest, HttpServletResponse resp) {
+    resp.setHeader("ETag", etag(digest));
+    // Private since the photo is only visible through the user's contacts.
+    resp.setHeader("Cache-Control", "private, max-age=" + PHOTO_ID_EXPIRATION_SECONDS);
+  }
+
+  private static String etag(String digest) {
+    return "\"" + digest + "\"";
+  }
+
+  /**
+   * Whether an If-None-Match header matches {@code etag}.  The header is
+   * either "*" or a comma-separated list of entity tags, which may be weak
+   * ("W/" prefix); If-None-Match uses the weak comparison, so the prefix is
+   * ignored.  Our tags never contain commas.
+   */
+  @VisibleForTesting
+  static boolean ifNoneMatchMatches(@Nullable String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring("W/".length());
+      }
+      if (tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Nullable private static String getContentType(HTTPResponse response) {
+    for (HTTPHeader header : response.getHeaders()) {
+      if ("Content-Type".equalsIgnoreCase(header.getName())) {
+        return header.getValue();
+      }
     }
-    // TODO(hearnden): Do something to make the client cache photos sensibly.
+    return null;
   }
 }
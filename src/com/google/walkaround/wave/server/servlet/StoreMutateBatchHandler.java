@@ -0,0 +1,140 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.servlet;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.walkaround.proto.ServerMutateRequest;
+import com.google.walkaround.proto.ServerMutateResponse;
+import com.google.walkaround.slob.server.GsonProto;
+import com.google.walkaround.slob.server.LocalMutationProcessor;
+import com.google.walkaround.slob.server.StoreAccessChecker;
+import com.google.walkaround.slob.server.StoreMutateBatch;
+import com.google.walkaround.slob.server.StoreMutateBatch.Result;
+import com.google.walkaround.slob.server.StoreMutateBatch.Status;
+import com.google.walkaround.slob.shared.MessageException;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.ObjectSession;
+import com.google.walkaround.wave.server.ObjectSessionHelper;
+import com.google.walkaround.wave.server.ObjectStoreSelector;
+import com.google.walkaround.wave.server.util.AbstractHandler;
+
+import org.waveprotocol.wave.communication.gson.GsonSerializable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Like {@link StoreMutateHandler}, but for a batch of mutations in the format
+ * of {@link StoreMutateBatch}.  The mutations are processed concurrently, so
+ * that those for the same object can share a transaction.
+ */
+public class StoreMutateBatchHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(StoreMutateBatchHandler.class.getName());
+
+  private static final int MAX_PARALLEL_MUTATIONS = 20;
+
+  @Inject StoreAccessChecker accessChecker;
+  @Inject ObjectStoreSelector storeSelector;
+
+  private Result process(ServerMutateRequest mutateRequest) {
+    ObjectSession session;
+    try {
+      session = ObjectSessionHelper.objectSessionFromProto(mutateRequest.getSession());
+    } catch (RuntimeException e) {
+      log.log(Level.INFO, "Invalid session", e);
+      return new Result(Status.INVALID, "" + e);
+    }
+    try {
+      LocalMutationProcessor processor = storeSelector.getLocalProcessor(session.getStoreType());
+      ServerMutateResponse result = processor.mutateObject(mutateRequest);
+      log.info("Success @" + result.getResultingVersion());
+      return new Result(Status.OK, GsonProto.toJson((GsonSerializable) result));
+    } catch (BadRequestException e) {
+      log.log(Level.INFO, "Invalid mutation", e);
+      return new Result(Status.INVALID, "" + e);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Mutation failed", e);
+      return new Result(Status.FAILED, "" + e);
+    } catch (RuntimeException e) {
+      log.log(Level.SEVERE, "Mutation failed", e);
+      return new Result(Status.FAILED, "" + e);
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    accessChecker.checkPermittedStoreRequest(req);
+    List<ServerMutateRequest> mutateRequests;
+    try {
+      mutateRequests = StoreMutateBatch.decodeRequests(req.getInputStream());
+    } catch (MessageException e) {
+      throw new BadRequestException("Failed to parse request", e);
+    }
+    log.info("Processing batch of " + mutateRequests.size() + " mutations");
+
+    List<Result> results = Lists.newArrayList();
+    if (mutateRequests.size() == 1) {
+      results.add(process(mutateRequests.get(0)));
+    } else if (!mutateRequests.isEmpty()) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.min(MAX_PARALLEL_MUTATIONS, mutateRequests.size()),
+          ThreadManager.currentRequestThreadFactory());
+      try {
+        List<Future<Result>> futures = Lists.newArrayList();
+        for (final ServerMutateRequest mutateRequest : mutateRequests) {
+          futures.add(executor.submit(new Callable<Result>() {
+            @Override public Result call() {
+              return process(mutateRequest);
+            }
+          }));
+        }
+        for (Future<Result> future : futures) {
+          try {
+            results.add(future.get());
+          } catch (ExecutionException e) {
+            // process() catches everything but Errors.
+            throw new RuntimeException("Mutation threw", e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing batch", e);
+          }
+        }
+      } finally {
+        // Request threads must not outlive the request.
+        executor.shutdownNow();
+      }
+    }
+
+    resp.setStatus(200);
+    resp.setContentType(StoreMutateBatch.CONTENT_TYPE);
+    resp.getOutputStream().write(StoreMutateBatch.encodeResults(results));
+  }
+
+}
@@ -45,8 +45,14 @@ public abstract class AbstractHandler {
     throw new BadRequestException("POST not supported");
   }
 
-  // Other methods from javax.servlet.http.HttpServlet, like doPut etc., could
-  // be added here if we need them.
+  public void doPut(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException, ServletException {
+    // Perhaps this should be a 405 but who cares.
+    throw new BadRequestException("PUT not supported");
+  }
+
+  // Other methods from javax.servlet.http.HttpServlet, like doDelete etc.,
+  // could be added here if we need them.
 
 
   // TODO(ohler): Move the utilities below somewhere else.
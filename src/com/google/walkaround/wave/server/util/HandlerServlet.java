@@ -93,7 +93,14 @@ public class HandlerServlet extends HttpServlet {
     getHandler(req).doPost(req, resp);
   }
 
-  // Other methods from javax.servlet.http.HttpServlet, like doPut etc., could
-  // be added here if we need them.
+  @Override
+  public void doPut(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException, ServletException {
+    resp.setCharacterEncoding("UTF-8");
+    getHandler(req).doPut(req, resp);
+  }
+
+  // Other methods from javax.servlet.http.HttpServlet, like doDelete etc.,
+  // could be added here if we need them.
 
 }
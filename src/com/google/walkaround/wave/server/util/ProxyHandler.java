@@ -16,32 +16,51 @@
 
 package com.google.walkaround.wave.server.util;
 
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPMethod;
 import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.ResponseTooLargeException;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
  * A servlet that proxies HTTP requests synchronously to another URL.
  *
+ * Request and response bodies are held in memory only up to a fixed size;
+ * larger bodies are rejected instead of being buffered.  Optionally, GET
+ * responses that upstream allows to be cached are served from a shared
+ * {@link ProxyResponseCache}.
+ *
  * @author hearnden@google.com (David Hearnden)
  */
 public final class ProxyHandler extends AbstractHandler {
-  @SuppressWarnings("unused")
   private static final Logger log = Logger.getLogger(ProxyHandler.class.getName());
 
+  /**
+   * Upstream response headers that are passed on to the client, in lower
+   * case.  Everything else (cookies, connection and encoding details,
+   * headers that upstream uses for its own purposes) is dropped.
+   */
+  private static final ImmutableSet<String> FORWARDED_HEADERS = ImmutableSet.of(
+      "cache-control", "content-language", "content-type", "etag", "expires",
+      "last-modified");
+
   /** Part of incoming requests to rewrite. e.g., "/gadgets". */
   private final String sourceUriPrefix;
 
@@ -51,6 +70,12 @@ public final class ProxyHandler extends AbstractHandler {
   /** Fetch service.  Used in favor of HttpURLConnection for greater control. */
   private final URLFetchService fetch;
 
+  /** Shared cache for GET responses, or null to always fetch. */
+  @Nullable private final ProxyResponseCache cache;
+
+  /** Maximum size of request and response bodies. */
+  private final int maxBodyBytes;
+
   /**
    * Creates a proxy servlet.
    *
@@ -59,11 +84,24 @@ public final class ProxyHandler extends AbstractHandler {
    * @param fetch
    */
   public ProxyHandler(String sourceUriPrefix, String targetUriPrefix, URLFetchService fetch) {
+    this(sourceUriPrefix, targetUriPrefix, fetch, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a proxy servlet that serves cacheable GET responses from
+   * {@code cache} and rejects bodies larger than {@code maxBodyBytes} rather
+   * than buffering them.
+   */
+  public ProxyHandler(String sourceUriPrefix, String targetUriPrefix, URLFetchService fetch,
+      @Nullable ProxyResponseCache cache, int maxBodyBytes) {
     // To prevent silly things like fowarding to ../
     Preconditions.checkArgument(!targetUriPrefix.contains(".."));
+    Preconditions.checkArgument(maxBodyBytes > 0, "maxBodyBytes must be positive");
     this.sourceUriPrefix = sourceUriPrefix;
     this.targetUriPrefix = targetUriPrefix;
     this.fetch = fetch;
+    this.cache = cache;
+    this.maxBodyBytes = maxBodyBytes;
   }
 
   @Override
@@ -76,6 +114,15 @@ public final class ProxyHandler extends AbstractHandler {
     proxy(req, resp);
   }
 
+  @Override
+  public void doPut(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    proxy(req, resp);
+  }
+
+  private static boolean hasPayload(HTTPMethod method) {
+    return method == HTTPMethod.POST || method == HTTPMethod.PUT;
+  }
+
   private void proxy(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     if (!req.getRequestURI().startsWith(sourceUriPrefix)) {
       log.info("Not proxying request to " + req.getRequestURI()
@@ -85,34 +132,100 @@ public final class ProxyHandler extends AbstractHandler {
     String sourceUri = req.getRequestURI();
     String query = req.getQueryString() != null ? req.getQueryString() : "";
     String targetUri = targetUriPrefix + sourceUri.substring(sourceUriPrefix.length()) + query;
-    log.info("Forwarding request: " + sourceUri + query + " to " + targetUri);
 
     HTTPMethod fetchMethod = HTTPMethod.valueOf(req.getMethod());
-    HTTPRequest fetchRequest = new HTTPRequest(new URL(targetUri), fetchMethod);
-    fetchRequest.setPayload(copy(req.getInputStream(), new ByteArrayOutputStream()).toByteArray());
-    HTTPResponse fetchResponse = fetch.fetch(fetchRequest);
-    copyResponse(fetchResponse, resp);
+    boolean cacheable = cache != null && fetchMethod == HTTPMethod.GET;
+    if (cacheable) {
+      ProxyResponseCache.Entry cached = cache.get(targetUri);
+      if (cached != null) {
+        log.info("Serving " + sourceUri + query + " from cache: " + cached);
+        writeCachedResponse(cached, resp);
+        return;
+      }
+    }
+    log.info("Forwarding request: " + sourceUri + query + " to " + targetUri);
+
+    HTTPRequest fetchRequest = new HTTPRequest(new URL(targetUri), fetchMethod,
+        FetchOptions.Builder.withDefaults().disallowTruncate());
+    if (hasPayload(fetchMethod)) {
+      byte[] payload = readBounded(req.getInputStream(), maxBodyBytes);
+      if (payload == null) {
+        log.info("Request body exceeds " + maxBodyBytes + " bytes, not forwarding");
+        resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+      fetchRequest.setPayload(payload);
+    }
+    HTTPResponse fetchResponse;
+    try {
+      fetchResponse = fetch.fetch(fetchRequest);
+    } catch (ResponseTooLargeException e) {
+      log.log(Level.INFO, "Upstream response too large: " + targetUri, e);
+      resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+      return;
+    }
+    byte[] content = fetchResponse.getContent();
+    if (content != null && content.length > maxBodyBytes) {
+      log.info("Upstream response exceeds " + maxBodyBytes + " bytes: " + targetUri);
+      resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+      return;
+    }
+    if (cacheable) {
+      cache.maybePut(targetUri, fetchResponse);
+    }
+    resp.setStatus(fetchResponse.getResponseCode());
+    copyHeaders(fetchResponse.getHeaders(), resp);
+    writeContent(fetchResponse.getContent(), resp);
   }
 
+  /** Copies status and content, but no headers, of {@code from} to {@code to}. */
   public static void copyResponse(HTTPResponse from, HttpServletResponse to) throws IOException {
     to.setStatus(from.getResponseCode());
-    copy(new ByteArrayInputStream(from.getContent()), to.getOutputStream());
+    writeContent(from.getContent(), to);
+  }
+
+  private static void writeCachedResponse(ProxyResponseCache.Entry from, HttpServletResponse to)
+      throws IOException {
+    to.setStatus(from.getResponseCode());
+    copyHeaders(from.getHeaders(), to);
+    to.setHeader("Cache-Control",
+        "public, max-age=" + from.getRemainingSeconds(System.currentTimeMillis()));
+    writeContent(from.getContent(), to);
+  }
+
+  private static void copyHeaders(List<HTTPHeader> headers, HttpServletResponse to) {
+    for (HTTPHeader header : headers) {
+      if (FORWARDED_HEADERS.contains(header.getName().toLowerCase())) {
+        to.addHeader(header.getName(), header.getValue());
+      }
+    }
+  }
+
+  private static void writeContent(@Nullable byte[] content, HttpServletResponse to)
+      throws IOException {
+    if (content != null) {
+      to.setContentLength(content.length);
+      to.getOutputStream().write(content);
+    }
   }
 
   /**
-   * Transfers one stream to another. Raw streams are used rather than
-   * string-based readers/writers in case the byte format of the streams is not
-   * UTF-16.
+   * Reads the whole stream, unless it holds more than {@code limit} bytes.
+   * Raw streams are used rather than string-based readers in case the byte
+   * format of the stream is not UTF-16.
    *
-   * @return output, for convenience.
+   * @return the bytes read, or null if the limit was exceeded.
    */
-  private static <T extends OutputStream> T copy(InputStream input, T output) throws IOException {
+  @Nullable private static byte[] readBounded(InputStream input, int limit) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
     byte[] buffer = new byte[8192];
     int read;
     while ((read = input.read(buffer, 0, buffer.length)) > 0) {
+      if (output.size() + read > limit) {
+        return null;
+      }
       output.write(buffer, 0, read);
     }
-    output.flush();
-    return output;
+    return output.toByteArray();
   }
 }
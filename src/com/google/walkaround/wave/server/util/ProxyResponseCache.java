@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.util;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * In-memory cache of proxied GET responses, shared by all requests on an
+ * instance.  Only responses that upstream marks as publicly cacheable with an
+ * explicit max-age are stored, and only until that max-age runs out.  The
+ * cache is bounded by the total number of content bytes and evicts least
+ * recently used entries first.
+ */
+@Singleton
+public class ProxyResponseCache {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(ProxyResponseCache.class.getName());
+
+  /** Total content bytes held by the cache. */
+  private static final long MAX_TOTAL_BYTES = 16 * 1024 * 1024;
+
+  /** Larger responses are never cached, so that one can't flush the rest. */
+  private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+
+  /** A cached response. */
+  public static class Entry {
+    private final int responseCode;
+    private final List<HTTPHeader> headers;
+    private final byte[] content;
+    private final long expiresAtMillis;
+
+    Entry(int responseCode, List<HTTPHeader> headers, byte[] content, long expiresAtMillis) {
+      this.responseCode = responseCode;
+      this.headers = ImmutableList.copyOf(headers);
+      this.content = Preconditions.checkNotNull(content, "Null content");
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public int getResponseCode() {
+      return responseCode;
+    }
+
+    /** Upstream headers, excluding Cache-Control and Age. */
+    public List<HTTPHeader> getHeaders() {
+      return headers;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    /** Seconds for which a client may keep using this response. */
+    public long getRemainingSeconds(long nowMillis) {
+      return Math.max(0, (expiresAtMillis - nowMillis) / 1000);
+    }
+
+    boolean isExpired(long nowMillis) {
+      return nowMillis >= expiresAtMillis;
+    }
+
+    @Override public String toString() {
+      return "Entry(" + responseCode + ", " + content.length + " bytes, expires "
+          + expiresAtMillis + ")";
+    }
+  }
+
+  private final long maxTotalBytes;
+  private final int maxEntryBytes;
+  // Access-ordered, so iteration starts at the least recently used entry.
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long totalBytes = 0;
+
+  @Inject
+  public ProxyResponseCache() {
+    this(MAX_TOTAL_BYTES, MAX_ENTRY_BYTES);
+  }
+
+  ProxyResponseCache(long maxTotalBytes, int maxEntryBytes) {
+    Preconditions.checkArgument(maxEntryBytes <= maxTotalBytes,
+        "maxEntryBytes %s > maxTotalBytes %s", maxEntryBytes, maxTotalBytes);
+    this.maxTotalBytes = maxTotalBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  @Nullable public Entry get(String url) {
+    return get(url, System.currentTimeMillis());
+  }
+
+  @Nullable synchronized Entry get(String url, long nowMillis) {
+    Entry entry = entries.get(url);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.isExpired(nowMillis)) {
+      remove(url);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Stores the response to a GET of {@code url} if its headers allow it.
+   *
+   * @return true if the response was cached
+   */
+  public boolean maybePut(String url, HTTPResponse response) {
+    return maybePut(url, response.getResponseCode(), response.getHeaders(),
+        response.getContent(), System.currentTimeMillis());
+  }
+
+  boolean maybePut(String url, int responseCode, List<HTTPHeader> headers,
+      @Nullable byte[] content, long nowMillis) {
+    if (responseCode != 200) {
+      return false;
+    }
+    if (content == null || content.length > maxEntryBytes) {
+      return false;
+    }
+    long maxAgeSeconds = -1;
+    List<HTTPHeader> kept = Lists.newArrayList();
+    for (HTTPHeader header : headers) {
+      String name = header.getName();
+      if ("Cache-Control".equalsIgnoreCase(name)) {
+        maxAgeSeconds = parseSharedMaxAge(header.getValue());
+        if (maxAgeSeconds <= 0) {
+          return false;
+        }
+      } else if ("Set-Cookie".equalsIgnoreCase(name)) {
+        // Per-user; never share.
+        return false;
+      } else if ("Vary".equalsIgnoreCase(name)
+          && !"Accept-Encoding".equalsIgnoreCase(header.getValue().trim())) {
+        // We key by URL only.
+        return false;
+      } else if (!"Age".equalsIgnoreCase(name)) {
+        kept.add(header);
+      }
+    }
+    if (maxAgeSeconds <= 0) {
+      return false;
+    }
+    put(url, new Entry(responseCode, kept, content, nowMillis + maxAgeSeconds * 1000));
+    return true;
+  }
+
+  private synchronized void put(String url, Entry entry) {
+    remove(url);
+    entries.put(url, entry);
+    totalBytes += entry.getContent().length;
+    Iterator<Entry> it = entries.values().iterator();
+    while (totalBytes > maxTotalBytes && it.hasNext()) {
+      Entry evicted = it.next();
+      totalBytes -= evicted.getContent().length;
+      it.remove();
+    }
+    log.info("Cached " + url + ": " + entry + "; " + entries.size() + " entries, "
+        + totalBytes + " bytes total");
+  }
+
+  private void remove(String url) {
+    Entry old = entries.remove(url);
+    if (old != null) {
+      totalBytes -= old.getContent().length;
+    }
+  }
+
+  /**
+   * Returns the max-age a shared cache may use according to the given
+   * Cache-Control value, or -1 if shared caching is not allowed.
+   */
+  static long parseSharedMaxAge(String cacheControl) {
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim().toLowerCase();
+      if (directive.equals("private") || directive.equals("no-store")
+          || directive.startsWith("no-cache")) {
+        return -1;
+      } else if (directive.startsWith("max-age=")) {
+        maxAge = parseSeconds(directive.substring("max-age=".length()));
+      } else if (directive.startsWith("s-maxage=")) {
+        sharedMaxAge = parseSeconds(directive.substring("s-maxage=".length()));
+      }
+    }
+    return sharedMaxAge != -1 ? sharedMaxAge : maxAge;
+  }
+
+  private static long parseSeconds(String s) {
+    try {
+      return Long.parseLong(s.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return "ProxyResponseCache(" + entries.size() + " entries, " + totalBytes + " bytes)";
+  }
+}
@@ -68,6 +68,11 @@ public class ReIndexMapper extends AppEngineMapper<Key, Entity, NullWritable, Nu
               SlobId objectId = mutationLogFactory.create(tx, new SlobId(""))
                   .parseRootEntityKey(key);
               MutationLog mutationLog = mutationLogFactory.create(tx, objectId);
+              if (mutationLog.isIncomplete()) {
+                // Creation failed half-way; nothing refers to this object.
+                log.info("Skipping incomplete object " + objectId);
+                return;
+              }
               try {
                 WaveletMetadata metadata = GsonProto.fromGson(
                     new WaveletMetadataGsonImpl(), mutationLog.getMetadata());
@@ -59,6 +59,44 @@ public class SharedConstants {
     public static final String CONNECT = "connect";
     public static final String HISTORY = "history";
     public static final String SUBMIT_DELTA = "submitdelta";
+    public static final String CONTACTS = "contacts";
+    public static final String VERSION = "version";
+    public static final String ATTACHMENT_INFO = "attachmentinfo";
+    public static final String BATCH = "batch";
+  }
+
+  /**
+   * Request parameters of the {@link Services#BATCH} endpoint.  Call {@code i}
+   * of a batch has its service name in {@code SERVICE_PREFIX + i}, its method
+   * in {@code METHOD_PREFIX + i}, and its parameters, form-encoded as they
+   * would have been in a request of its own, in {@code PARAMS_PREFIX + i}.
+   *
+   * The response has one entry per call, in order, each of the form
+   * {@code <status code> <body length>\n<body>}.
+   */
+  public static class Batch {
+    private Batch() {}
+
+    public static final String CALL_COUNT = "calls";
+    public static final String SERVICE_PREFIX = "s";
+    public static final String METHOD_PREFIX = "m";
+    public static final String PARAMS_PREFIX = "p";
+
+    public static final int MAX_CALLS = 20;
+
+    /**
+     * Whether calls to the given service may be batched.  The response to a
+     * batch only arrives once all of its calls are done, so calls to services
+     * that can be slow, like contacts and attachmentinfo, are always sent on
+     * their own to avoid holding up the others.
+     */
+    public static boolean isBatchable(String service) {
+      return Services.CHANNEL.equals(service)
+          || Services.CONNECT.equals(service)
+          || Services.HISTORY.equals(service)
+          || Services.SUBMIT_DELTA.equals(service)
+          || Services.VERSION.equals(service);
+    }
   }
 
 }
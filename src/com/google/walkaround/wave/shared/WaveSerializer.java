@@ -404,12 +404,23 @@ public class WaveSerializer {
    * from wavelet.
    */
   public WalkaroundWaveletSnapshot createWaveletMessage(WaveletDataImpl waveletData) {
+    WalkaroundWaveletSnapshot wavelet = createWaveletMessageWithoutDocuments(waveletData);
+    wavelet.addAllDocument(listOfDocuments(waveletData));
+    return wavelet;
+  }
+
+  /**
+   * Like {@link #createWaveletMessage}, but leaves out the documents, for
+   * callers that serialize them separately (see
+   * {@link #createDocumentMessage}).
+   */
+  public WalkaroundWaveletSnapshot createWaveletMessageWithoutDocuments(
+      WaveletDataImpl waveletData) {
     WalkaroundWaveletSnapshot wavelet = MessageFactoryHelper.createWaveletSnapshot();
     wavelet.setVersion(waveletData.getVersion());
     wavelet.setCreator(waveletData.getCreator().getAddress());
     wavelet.setCreationTime(waveletData.getCreationTime());
     wavelet.setLastModifiedTime(waveletData.getLastModifiedTime());
-    wavelet.addAllDocument(listOfDocuments(waveletData));
     wavelet.addAllParticipant(listOfParticipantAddresses(waveletData.getParticipants()));
     return wavelet;
   }
@@ -421,7 +432,7 @@ public class WaveSerializer {
     List<WalkaroundDocumentSnapshot> documents = new ArrayList<WalkaroundDocumentSnapshot>();
     for (String name : wavelet.getDocumentIds()) {
       BlipDataImpl blip = wavelet.getDocument(name);
-      documents.add(toProtoBuf(blip));
+      documents.add(createDocumentMessage(blip));
     }
     return documents;
   }
@@ -429,7 +440,7 @@ public class WaveSerializer {
   /**
    * Serializes blip into Message.
    */
-  private WalkaroundDocumentSnapshot toProtoBuf(BlipDataImpl blip) {
+  public WalkaroundDocumentSnapshot createDocumentMessage(BlipDataImpl blip) {
     WalkaroundDocumentSnapshot document = MessageFactoryHelper.createDocumentSnapshot();
 
     document.setDocumentId(blip.getId());
@@ -297,6 +297,26 @@ public class GenericOperationChannelTest extends TestCase {
     assertTrue(c.isClean());
   }
 
+  public void testSendDelaySubmitsOpsTogether() {
+    c.disconnect();
+    channelListener = null;
+    c = new GenericOperationChannel<DocOp>(
+        g, timer, 1000, transformer, channel, service, listener, Log.DEV_NULL);
+    c.connect(0, clientSid);
+    timer.expectedMinTimeLowerBound = 1000;
+
+    // Ops sent while a delayed send is pending don't push it back.
+    localOps(1);
+    localOps(2);
+    assertFalse(service.waiting());
+    timer.run();
+    assertTrue(service.waiting());
+    server.serverReceive();
+    service.success(server.revision());
+    assertEquals(1, operationsAcked);
+    assertTrue(c.isClean());
+  }
+
   public void testSendWhileDelaying() {
     sendOpsToServer(2, false);
     timer.expectedMinTimeLowerBound = 1;
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.client;
+
+import com.google.walkaround.slob.client.ChannelTestUtil.Doc;
+import com.google.walkaround.slob.client.ChannelTestUtil.SometimesCompactingTransformer;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.document.operation.DocOp;
+import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
+
+import java.util.List;
+
+public class TransformQueueTest extends TestCase {
+
+  private DocOp insertAtStart(String text, int docSize) {
+    DocOpBuilder b = new DocOpBuilder().characters(text);
+    if (docSize > 0) {
+      b.retain(docSize);
+    }
+    return b.build();
+  }
+
+  public void testQueuedOpsCompactedAsTheyArrive() throws Exception {
+    SometimesCompactingTransformer transformer = new SometimesCompactingTransformer();
+    TransformQueue<DocOp> q = new TransformQueue<DocOp>(transformer);
+    q.init(0);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      q.clientOp(insertAtStart("a", i));
+      expected.append("a");
+      assertTrue("" + q.queuedClientOps.size(), q.queuedClientOps.size() <= 16);
+    }
+
+    List<DocOp> unacked = q.pushQueuedOpsToUnacked();
+    assertEquals(1, unacked.size());
+    Doc doc = new Doc();
+    doc.consume(unacked.get(0));
+    assertEquals(expected.toString(), doc.repr());
+  }
+
+  public void testQueuedOpsKeptWithoutCompaction() throws Exception {
+    SometimesCompactingTransformer transformer = new SometimesCompactingTransformer();
+    transformer.compact = false;
+    TransformQueue<DocOp> q = new TransformQueue<DocOp>(transformer);
+    q.init(0);
+    for (int i = 0; i < 100; i++) {
+      q.clientOp(insertAtStart("a", i));
+    }
+    assertEquals(100, q.pushQueuedOpsToUnacked().size());
+  }
+
+}
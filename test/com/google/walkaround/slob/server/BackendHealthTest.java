@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class BackendHealthTest extends TestCase {
+
+  private void recordFailures(BackendHealth health, int backend, int times) {
+    for (int i = 0; i < times; i++) {
+      health.requestStarted(backend);
+      health.requestFinished(backend, 50, true);
+    }
+  }
+
+  public void testFailingBackendEjectedAndAvoided() throws Exception {
+    BackendHealth health = new BackendHealth(4, true);
+    recordFailures(health, 2, 10);
+    assertTrue(health.isEjected(2));
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(health.chooseBackend(random) != 2);
+    }
+  }
+
+  public void testNoEjectionWhenDisabled() throws Exception {
+    BackendHealth health = new BackendHealth(4, false);
+    recordFailures(health, 2, 10);
+    assertFalse(health.isEjected(2));
+  }
+
+  public void testOccasionalFailedMutationsDontEject() throws Exception {
+    BackendHealth health = new BackendHealth(4, true);
+    for (int i = 0; i < 50; i++) {
+      health.requestStarted(2);
+      health.requestFinished(2, 50, 0.1);
+    }
+    assertFalse(health.isEjected(2));
+  }
+
+  public void testMostlyFailedBatchesEject() throws Exception {
+    BackendHealth health = new BackendHealth(4, true);
+    for (int i = 0; i < 10; i++) {
+      health.requestStarted(2);
+      health.requestFinished(2, 50, 0.9);
+    }
+    assertTrue(health.isEjected(2));
+  }
+
+  public void testEjectionCapped() throws Exception {
+    BackendHealth health = new BackendHealth(4, true);
+    for (int backend = 0; backend < 4; backend++) {
+      recordFailures(health, backend, 10);
+    }
+    int ejected = 0;
+    for (int backend = 0; backend < 4; backend++) {
+      if (health.isEjected(backend)) {
+        ejected++;
+      }
+    }
+    assertEquals(2, ejected);
+  }
+
+  public void testPrefersLessLoadedBackend() throws Exception {
+    BackendHealth health = new BackendHealth(2, true);
+    for (int i = 0; i < 20; i++) {
+      health.requestStarted(0);
+    }
+    Random random = new Random(0);
+    int chosen0 = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (health.chooseBackend(random) == 0) {
+        chosen0++;
+      }
+    }
+    // Backend 0 only wins when both random picks are 0.
+    assertTrue("" + chosen0, chosen0 < 350);
+  }
+
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.walkaround.proto.ServerMutateRequest;
+import com.google.walkaround.proto.gson.ObjectSessionProtoGsonImpl;
+import com.google.walkaround.proto.gson.ServerMutateRequestGsonImpl;
+import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
+import com.google.walkaround.slob.shared.ChangeData;
+import com.google.walkaround.slob.shared.InvalidSnapshot;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+public class LocalMutationProcessorTest extends TestCase {
+
+  /**
+   * Counts ops, and records what each transform was against and how many
+   * objects were created.
+   */
+  private static class TestModel implements SlobModel {
+    final List<List<String>> transformedAgainst = Lists.newArrayList();
+    final AtomicInteger created = new AtomicInteger();
+
+    @Override public Slob create(@Nullable final String snapshot) throws InvalidSnapshot {
+      created.incrementAndGet();
+      return new Slob() {
+        private long ops = snapshot == null ? 0 : Long.parseLong(snapshot);
+
+        @Override public String snapshot() {
+          return "" + ops;
+        }
+
+        @Override public String getIndexedContent() {
+          return "";
+        }
+
+        @Override public void apply(ChangeData<String> payload) {
+          ops++;
+        }
+      };
+    }
+
+    @Override public synchronized List<String> transform(List<ChangeData<String>> clientOps,
+        List<ChangeData<String>> serverOps) {
+      transformedAgainst.add(payloads(serverOps));
+      return payloads(clientOps);
+    }
+  }
+
+  private static class CountingMonitoringVars implements MonitoringVars {
+    private final Map<String, Long> counters = Maps.newHashMap();
+
+    @Override public void incrementCounter(String name) {
+      incrementCounter(name, 1);
+    }
+
+    @Override public synchronized void incrementCounter(String name, long increment) {
+      counters.put(name, get(name) + increment);
+    }
+
+    synchronized long get(String name) {
+      Long count = counters.get(name);
+      return count == null ? 0 : count;
+    }
+  }
+
+  private static List<String> payloads(List<ChangeData<String>> changes) {
+    ImmutableList.Builder<String> out = ImmutableList.builder();
+    for (ChangeData<String> change : changes) {
+      out.add(change.getPayload());
+    }
+    return out.build();
+  }
+
+  private static List<String> ops(String prefix, int from, int to) {
+    ImmutableList.Builder<String> out = ImmutableList.builder();
+    for (int i = from; i < to; i++) {
+      out.add("\"" + prefix + i + "\"");
+    }
+    return out.build();
+  }
+
+  private static final SlobId OBJECT = new SlobId("obj");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig());
+
+  private final TestModel model = new TestModel();
+  private final CountingMonitoringVars monitoring = new CountingMonitoringVars();
+  /** Run once, the next time a bounded range of deltas is read back. */
+  private final AtomicReference<Runnable> rangeReadHook = new AtomicReference<Runnable>();
+  private CheckedDatastore datastore;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    datastore = new CheckedDatastore(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  /** Each processor stands in for a separate server instance. */
+  private LocalMutationProcessor newProcessor(int maxLiveActors, long maxIdleMillis) {
+    final MutationLog.DeltaEntityConverter converter =
+        new MutationLog.DefaultDeltaEntityConverter();
+    MutationLogFactory mutationLogFactory = new MutationLogFactory() {
+      @Override public MutationLog create(CheckedTransaction tx, SlobId objectId) {
+        return new MutationLog("Test", "TestDelta", "TestSnapshot",
+            converter, tx, objectId, model) {
+          @Override public DeltaIterator reverseHistory(long minVersion,
+              @Nullable Long maxVersion, FetchOptions fetchOptions)
+              throws PermanentFailure, RetryableFailure {
+            Runnable hook = maxVersion == null ? null : rangeReadHook.getAndSet(null);
+            if (hook != null) {
+              hook.run();
+            }
+            return super.reverseHistory(minVersion, maxVersion, fetchOptions);
+          }
+        };
+      }
+    };
+    return new LocalMutationProcessor(model, mutationLogFactory, datastore, monitoring,
+        PreCommitHook.NO_OP, new SlobSnapshotCache(monitoring), maxLiveActors, maxIdleMillis);
+  }
+
+  private LocalMutationProcessor newProcessor() {
+    return newProcessor(100, 60 * 1000);
+  }
+
+  private long mutate(LocalMutationProcessor processor, SlobId objectId, long version,
+      List<String> payloads) throws Exception {
+    ObjectSessionProtoGsonImpl session = new ObjectSessionProtoGsonImpl();
+    session.setObjectId(objectId.getId());
+    session.setClientId("client");
+    session.setStoreType("test");
+    ServerMutateRequest req = new ServerMutateRequestGsonImpl();
+    req.setSession(session);
+    req.setVersion(version);
+    req.addAllPayload(payloads);
+    return processor.mutateObject(req).getResultingVersion();
+  }
+
+  public void testActorIsKeptBetweenRequests() throws Exception {
+    LocalMutationProcessor processor = newProcessor();
+    mutate(processor, OBJECT, 0, ops("a", 0, 1));
+    mutate(processor, OBJECT, 1, ops("a", 1, 2));
+    assertEquals(1, monitoring.get("object-actor-miss"));
+    assertEquals(1, monitoring.get("object-actor-hit"));
+    assertEquals(1, processor.getLiveActorCount());
+    mutate(processor, new SlobId("other"), 0, ops("b", 0, 1));
+    assertEquals(2, processor.getLiveActorCount());
+  }
+
+  public void testLeastRecentlyUsedActorIsEvictedOverCapacity() throws Exception {
+    LocalMutationProcessor processor = newProcessor(2, 60 * 1000);
+    mutate(processor, new SlobId("a"), 0, ops("a", 0, 1));
+    mutate(processor, new SlobId("b"), 0, ops("b", 0, 1));
+    mutate(processor, new SlobId("a"), 1, ops("a", 1, 2));
+    mutate(processor, new SlobId("c"), 0, ops("c", 0, 1));
+    assertEquals(1, monitoring.get("object-actor-evicted"));
+    assertEquals(2, processor.getLiveActorCount());
+    // b was evicted, a was not.
+    mutate(processor, new SlobId("a"), 2, ops("a", 2, 3));
+    assertEquals(2, monitoring.get("object-actor-hit"));
+    mutate(processor, new SlobId("b"), 1, ops("b", 1, 2));
+    assertEquals(4, monitoring.get("object-actor-miss"));
+  }
+
+  public void testIdleActorIsEvicted() throws Exception {
+    LocalMutationProcessor processor = newProcessor(100, 1);
+    mutate(processor, new SlobId("a"), 0, ops("a", 0, 1));
+    Thread.sleep(10);
+    mutate(processor, new SlobId("b"), 0, ops("b", 0, 1));
+    assertEquals(1, monitoring.get("object-actor-evicted"));
+    assertEquals(1, processor.getLiveActorCount());
+  }
+
+  public void testWarmStateIsReused() throws Exception {
+    LocalMutationProcessor processor = newProcessor();
+    mutate(processor, OBJECT, 0, ops("a", 0, 3));
+    assertEquals(1, monitoring.get("object-actor-warm-state-absent"));
+    assertEquals(6, mutate(processor, OBJECT, 3, ops("a", 3, 6)));
+    assertEquals(1, monitoring.get("object-actor-warm-state-hit"));
+    // Transforming against recent deltas only needs the warm tail.
+    assertEquals(7, mutate(processor, OBJECT, 4, ops("b", 0, 1)));
+    assertEquals(2, monitoring.get("object-actor-warm-state-hit"));
+    assertEquals(ImmutableList.of(ops("a", 4, 6)), model.transformedAgainst);
+  }
+
+  public void testWarmStateKeepsLiveObject() throws Exception {
+    LocalMutationProcessor processor = newProcessor();
+    mutate(processor, OBJECT, 0, ops("a", 0, 1));
+    int created = model.created.get();
+    mutate(processor, OBJECT, 1, ops("a", 1, 2));
+    mutate(processor, OBJECT, 2, ops("a", 2, 3));
+    assertEquals(2, monitoring.get("object-actor-warm-state-hit"));
+    assertEquals(created, model.created.get());
+    // A stale warm state is no use, and neither is its object.
+    mutate(newProcessor(), OBJECT, 3, ops("b", 0, 1));
+    assertEquals(5, mutate(processor, OBJECT, 4, ops("a", 3, 4)));
+    assertTrue(model.created.get() > created + 1);
+  }
+
+  public void testWarmStateIsInvalidatedByOtherWriters() throws Exception {
+    LocalMutationProcessor first = newProcessor();
+    LocalMutationProcessor second = newProcessor();
+    mutate(first, OBJECT, 0, ops("a", 0, 2));
+    mutate(second, OBJECT, 2, ops("b", 0, 2));
+    assertEquals(5, mutate(first, OBJECT, 2, ops("c", 0, 1)));
+    assertEquals(1, monitoring.get("object-actor-warm-state-stale"));
+    assertEquals(ImmutableList.of(ops("b", 0, 2)), model.transformedAgainst);
+    // The stale state was replaced with a fresh one.
+    mutate(first, OBJECT, 5, ops("c", 1, 2));
+    assertEquals(1, monitoring.get("object-actor-warm-state-hit"));
+  }
+
+  public void testDeltaRingGrowsAndWrapsAround() throws Exception {
+    mutate(newProcessor(), OBJECT, 0, ops("a", 0, 40));
+    // Well past the ring's initial capacity of 16, in both directions: the
+    // deltas on disk are added at the front, and new deltas at the back.
+    LocalMutationProcessor processor = newProcessor();
+    assertEquals(60, mutate(processor, OBJECT, 0, ops("b", 0, 20)));
+    assertEquals(ImmutableList.of(ops("a", 0, 40)), model.transformedAgainst);
+    // The warm tail is taken from the ring, so it must be in order too.
+    model.transformedAgainst.clear();
+    assertEquals(61, mutate(processor, OBJECT, 30, ops("c", 0, 1)));
+    assertEquals(1, monitoring.get("object-actor-warm-state-hit"));
+    assertEquals(ImmutableList.of(ImmutableList.builder()
+        .addAll(ops("a", 30, 40)).addAll(ops("b", 0, 20)).build()),
+        model.transformedAgainst);
+  }
+
+  public void testWaitingUpdateIsPrefetched() throws Exception {
+    mutate(newProcessor(), OBJECT, 0, ops("a", 0, 20));
+    LocalMutationProcessor processor = newProcessor();
+    assertEquals(21, mutate(processor, OBJECT, 0, ops("b", 0, 1)));
+    assertEquals(1, monitoring.get("object-update-delta-prefetch"));
+    assertEquals(ImmutableList.of(ops("a", 0, 20)), model.transformedAgainst);
+    // Nothing to fetch for an update at the current version.
+    assertEquals(22, mutate(processor, OBJECT, 21, ops("b", 1, 2)));
+    assertEquals(1, monitoring.get("object-update-delta-prefetch"));
+  }
+
+  public void testDeltasBeyondMaxTailSizeAreLoadedOnDemand() throws Exception {
+    LocalMutationProcessor writer = newProcessor();
+    for (int i = 0; i < 600; i += 100) {
+      mutate(writer, OBJECT, i, ops("a", i, i + 100));
+    }
+    // The prefetch stops at 500 deltas back; the first update of the batch
+    // loads the rest itself.
+    assertEquals(601, mutate(newProcessor(), OBJECT, 0, ops("b", 0, 1)));
+    assertEquals(1, monitoring.get("object-update-delta-prefetch"));
+    assertEquals(1, monitoring.get("submitdelta-update-too-far-in-the-past"));
+    assertEquals(ImmutableList.of(ops("a", 0, 600)), model.transformedAgainst);
+  }
+
+  public void testUpdateArrivingAfterPrefetchIsDeferred() throws Exception {
+    mutate(newProcessor(), OBJECT, 0, ops("a", 0, 20));
+    final LocalMutationProcessor processor = newProcessor();
+    final AtomicLong lateVersion = new AtomicLong(-1);
+    final AtomicReference<Throwable> lateFailure = new AtomicReference<Throwable>();
+    final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    final Thread late = new Thread() {
+      @Override public void run() {
+        ApiProxy.setEnvironmentForCurrentThread(environment);
+        try {
+          lateVersion.set(mutate(processor, OBJECT, 0, ops("c", 0, 1)));
+        } catch (Throwable t) {
+          lateFailure.set(t);
+        }
+      }
+    };
+    // While the first batch prefetches, queue an update that needs older
+    // deltas than the ones being fetched.
+    rangeReadHook.set(new Runnable() {
+      @Override public void run() {
+        late.start();
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (LockSupport.getBlocker(late) == null) {
+          assertTrue("Late update was never queued", System.currentTimeMillis() < deadline);
+          Thread.yield();
+        }
+      }
+    });
+    assertEquals(21, mutate(processor, OBJECT, 10, ops("b", 0, 1)));
+    late.join();
+    assertNull(rangeReadHook.get());
+    assertNull(lateFailure.get());
+    assertEquals(22, lateVersion.get());
+    assertEquals(1, monitoring.get("object-update-deferred-for-delta-fetch"));
+    // Once for each batch.
+    assertEquals(2, monitoring.get("object-update-delta-prefetch"));
+    assertEquals(ImmutableList.of(
+        ops("a", 10, 20),
+        ImmutableList.builder().addAll(ops("a", 0, 20)).add("\"b0\"").build()),
+        model.transformedAgainst);
+  }
+
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.appengine.api.backends.BackendServiceFactory;
+import com.google.appengine.api.channel.ChannelMessage;
+import com.google.appengine.api.channel.ChannelService;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.walkaround.proto.ObjectSessionProto;
+import com.google.walkaround.proto.ServerMutateRequest;
+import com.google.walkaround.proto.gson.ObjectSessionProtoGsonImpl;
+import com.google.walkaround.proto.gson.ServerMutateRequestGsonImpl;
+import com.google.walkaround.slob.server.MutationLog.MutationLogFactory;
+import com.google.walkaround.slob.server.SlobStore.HistoryResult;
+import com.google.walkaround.slob.shared.ChangeData;
+import com.google.walkaround.slob.shared.ClientId;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.appengine.LocalDatastoreBackend;
+import com.google.walkaround.util.server.appengine.LocalEntityStore;
+import com.google.walkaround.util.server.appengine.SimulatedLatency;
+import com.google.walkaround.util.server.auth.DigestUtils2.Secret;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+import com.google.walkaround.util.shared.RandomBase64Generator;
+import com.google.walkaround.util.shared.RandomProviderAdapter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Drives {@link SlobStore#connect}, {@link SlobStore#loadHistory} and
+ * {@link SlobStore#mutateObject} with many simulated clients spread over a
+ * number of objects, and reports throughput, latency percentiles, outcome
+ * counts and the store's monitoring counters.
+ *
+ * Everything runs in one JVM: the datastore is a {@link LocalDatastoreBackend},
+ * memcache is the local test service, and the channel service is a fake that
+ * delivers broadcasts straight into each client's inbox.  Each "processor" is
+ * a separate {@link LocalMutationProcessor} with its own caches, standing in
+ * for one affinity backend; with {@link Config#affinity} turned off, requests
+ * go to a random processor.  The model accepts any op and transforms
+ * trivially, so that what is measured is the store rather than the model.
+ *
+ * {@link SlobLoadGeneratorTest} runs it briefly.  For real measurements, run
+ * {@code ant loadtest -Dloadtest.args="--objects=20 --processors=4
+ * --durationMillis=60000 --latency=true"}; each flag sets the {@link Config}
+ * field of the same name.
+ */
+public class SlobLoadGenerator {
+
+  private static final Logger log = Logger.getLogger(SlobLoadGenerator.class.getName());
+
+  /** Parameters of a run.  The defaults make for a short, light run. */
+  public static class Config {
+    public int objects = 5;
+    public int clientsPerObject = 4;
+    /** Number of simulated affinity backends. */
+    public int processors = 1;
+    /** Whether each object's mutations always go to the same processor. */
+    public boolean affinity = true;
+    public long durationMillis = 5000;
+    /** Maximum pause between a client's submits; the actual pause is uniform. */
+    public long maxThinkMillis = 20;
+    public int opsPerSubmit = 1;
+    /** Whether to simulate typical datastore latencies. */
+    public boolean latency = false;
+    public long seed = 0;
+
+    @Override public String toString() {
+      StringBuilder b = new StringBuilder("Config(");
+      for (Field field : Config.class.getFields()) {
+        try {
+          b.append(" " + field.getName() + "=" + field.get(this));
+        } catch (IllegalAccessException e) {
+          throw new AssertionError(e);
+        }
+      }
+      return b.append(")").toString();
+    }
+  }
+
+  /** Latency samples of one stage, in microseconds. */
+  public static class Stage {
+    private final String name;
+    // Guarded by this.
+    private long[] samples = new long[64];
+    private int count = 0;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    synchronized void addSince(long startNanos) {
+      if (count == samples.length) {
+        samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = (System.nanoTime() - startNanos) / 1000;
+    }
+
+    public synchronized int getCount() {
+      return count;
+    }
+
+    /** Returns the given percentile in milliseconds, or 0 if there are no samples. */
+    synchronized double percentileMillis(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile / 100 * count) - 1;
+      return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    @Override public synchronized String toString() {
+      return String.format("%-12s n=%-8d p50=%8.1fms p90=%8.1fms p99=%8.1fms max=%8.1fms",
+          name, count, percentileMillis(50), percentileMillis(90), percentileMillis(99),
+          percentileMillis(100));
+    }
+  }
+
+  /** Outcome of a run. */
+  public static class Report {
+    public final Config config;
+    public final long elapsedMillis;
+    public final long submits;
+    public final long acked;
+    /** Submits that the store rejected as bad requests. */
+    public final long rejected;
+    /** Submits that the store asked the client to retry later. */
+    public final long backedOff;
+    /** Submits and loads that failed with an IOException. */
+    public final long errors;
+    /** Sum of the versions of all objects at the end of the run. */
+    public final long finalVersionTotal;
+    public final Stage connect;
+    public final Stage history;
+    public final Stage ack;
+    /** The {@link MonitoringVars} counters the store incremented during the run. */
+    public final Map<String, Long> counters;
+
+    private Report(SlobLoadGenerator g, long elapsedMillis, long finalVersionTotal) {
+      this.config = g.config;
+      this.elapsedMillis = elapsedMillis;
+      this.submits = g.submits.get();
+      this.acked = g.acked.get();
+      this.rejected = g.rejected.get();
+      this.backedOff = g.backedOff.get();
+      this.errors = g.errors.get();
+      this.finalVersionTotal = finalVersionTotal;
+      this.connect = g.connect;
+      this.history = g.history;
+      this.ack = g.ack;
+      ImmutableSortedMap.Builder<String, Long> b = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, AtomicLong> e : g.counters.entrySet()) {
+        b.put(e.getKey(), e.getValue().get());
+      }
+      this.counters = b.build();
+    }
+
+    @Override public String toString() {
+      return config + "\n"
+          + String.format("%d submits in %dms: %d acked (%.1f/s), %d rejected, "
+              + "%d backed off, %d errors%n", submits, elapsedMillis, acked,
+              acked * 1000.0 / Math.max(1, elapsedMillis), rejected, backedOff, errors)
+          + connect + "\n" + history + "\n" + ack + "\n" + counters;
+    }
+  }
+
+  /** Accepts any op and doesn't keep any state. */
+  private static final SlobModel MODEL = new SlobModel() {
+    @Override public Slob create(@Nullable String snapshot) {
+      return new Slob() {
+        @Override public String snapshot() {
+          return "";
+        }
+
+        @Override public String getIndexedContent() {
+          return "";
+        }
+
+        @Override public void apply(ChangeData<String> payload) {}
+      };
+    }
+
+    @Override public List<String> transform(List<ChangeData<String>> clientOps,
+        List<ChangeData<String>> serverOps) {
+      ImmutableList.Builder<String> out = ImmutableList.builder();
+      for (ChangeData<String> op : clientOps) {
+        out.add(op.getPayload());
+      }
+      return out.build();
+    }
+  };
+
+  private static final AccessChecker ALLOW_ALL = new AccessChecker() {
+    @Override public void checkCanRead(SlobId objectId) {}
+    @Override public void checkCanModify(SlobId objectId) {}
+    @Override public void checkCanCreate(SlobId objectId) {}
+  };
+
+  private static final ClientId CREATOR = new ClientId("creator");
+
+  private final Config config;
+  private final ConcurrentMap<ClientId, BlockingQueue<String>> inboxes = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, AtomicLong> counters = Maps.newConcurrentMap();
+  private final MonitoringVars monitoring = new MonitoringVars() {
+    @Override public void incrementCounter(String name) {
+      incrementCounter(name, 1);
+    }
+
+    @Override public void incrementCounter(String name, long increment) {
+      counters.putIfAbsent(name, new AtomicLong());
+      counters.get(name).addAndGet(increment);
+    }
+  };
+  private final Stage connect = new Stage("connect");
+  private final Stage history = new Stage("loadHistory");
+  private final Stage ack = new Stage("ack");
+  private final AtomicLong submits = new AtomicLong();
+  private final AtomicLong acked = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong backedOff = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  public SlobLoadGenerator(Config config) {
+    this.config = Preconditions.checkNotNull(config, "Null config");
+    Preconditions.checkArgument(config.objects > 0 && config.clientsPerObject > 0
+        && config.processors > 0 && config.opsPerSubmit > 0, "Bad config %s", config);
+  }
+
+  /**
+   * A channel service that puts each message into the recipient's inbox
+   * instead of sending it.  A proxy rather than an implementation so that it
+   * doesn't depend on which methods the SDK's interface has.
+   */
+  private ChannelService fakeChannelService() {
+    return (ChannelService) Proxy.newProxyInstance(ChannelService.class.getClassLoader(),
+        new Class<?>[] { ChannelService.class },
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            Preconditions.checkArgument(method.getName().equals("sendMessage"),
+                "Fake channel service: %s", method);
+            ChannelMessage message = (ChannelMessage) args[0];
+            BlockingQueue<String> inbox = inboxes.get(new ClientId(message.getClientId()));
+            if (inbox != null) {
+              inbox.add(message.getMessage());
+            }
+            return null;
+          }
+        });
+  }
+
+  private List<SlobStore> makeStores(CheckedDatastore datastore) {
+    final MutationLog.DeltaEntityConverter converter =
+        new MutationLog.DefaultDeltaEntityConverter();
+    MutationLogFactory mutationLogFactory = new MutationLogFactory() {
+      @Override public MutationLog create(CheckedTransaction tx, SlobId objectId) {
+        return new MutationLog("LoadTest", "LoadTestDelta", "LoadTestSnapshot",
+            converter, tx, objectId, MODEL);
+      }
+    };
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    SlobMessageRouter router = new SlobMessageRouter(memcache, fakeChannelService(), 3600);
+    Random random = new Random(config.seed);
+    RandomBase64Generator random64 = new RandomBase64Generator(new RandomProviderAdapter(random));
+    List<SlobStore> stores = Lists.newArrayList();
+    for (int i = 0; i < config.processors; i++) {
+      SlobSnapshotCache snapshotCache = new SlobSnapshotCache(monitoring);
+      LocalMutationProcessor localProcessor = new LocalMutationProcessor(MODEL,
+          mutationLogFactory, datastore, monitoring, PreCommitHook.NO_OP, snapshotCache);
+      // With zero backend instances, everything is processed by localProcessor.
+      AffinityMutationProcessor affinityProcessor = new AffinityMutationProcessor(
+          random, random64, URLFetchServiceFactory.getURLFetchService(),
+          BackendServiceFactory.getBackendService(), localProcessor, memcache,
+          Secret.of("load-test"), 0, "none", false, monitoring);
+      stores.add(new SlobStoreImpl(datastore, mutationLogFactory, router, random, random64,
+          affinityProcessor, localProcessor, ALLOW_ALL, PreCommitHook.NO_OP, snapshotCache));
+    }
+    return stores;
+  }
+
+  private static String payload(ClientId clientId, long seq) {
+    return "{\"c\":\"" + clientId.getId() + "\",\"n\":" + seq + "}";
+  }
+
+  private class SimulatedClient implements Runnable {
+    private final SlobId objectId;
+    private final ClientId clientId;
+    private final List<SlobStore> stores;
+    private final Random random;
+    private final BlockingQueue<String> inbox = new LinkedBlockingQueue<String>();
+    private final ApiProxy.Environment environment;
+    private final long deadlineMillis;
+    /** The version up to which this client has seen all ops. */
+    private long version;
+    private long seq = 0;
+
+    SimulatedClient(SlobId objectId, ClientId clientId, List<SlobStore> stores, long seed,
+        ApiProxy.Environment environment, long deadlineMillis) {
+      this.objectId = objectId;
+      this.clientId = clientId;
+      this.stores = stores;
+      this.random = new Random(seed);
+      this.environment = environment;
+      this.deadlineMillis = deadlineMillis;
+      inboxes.put(clientId, inbox);
+    }
+
+    private SlobStore store() {
+      return stores.get(config.affinity
+          ? (objectId.getId().hashCode() & Integer.MAX_VALUE) % stores.size()
+          : random.nextInt(stores.size()));
+    }
+
+    /** Applies broadcast ops; returns false if a gap was detected. */
+    private boolean drainInbox() throws JSONException {
+      boolean contiguous = true;
+      for (String message = inbox.poll(); message != null; message = inbox.poll()) {
+        JSONObject json = new JSONObject(message);
+        if (!objectId.getId().equals(json.getString("id"))) {
+          continue;
+        }
+        JSONArray changes = json.getJSONArray("m");
+        for (int i = 0; i < changes.length(); i++) {
+          long revision = changes.getJSONObject(i).getLong("revision");
+          if (revision == version + 1) {
+            version = revision;
+          } else if (revision > version + 1) {
+            contiguous = false;
+          }
+        }
+      }
+      return contiguous;
+    }
+
+    private void catchUp() throws IOException, AccessDeniedException, SlobNotFoundException {
+      long start = System.nanoTime();
+      HistoryResult result;
+      do {
+        result = store().loadHistory(objectId, version, null);
+        version += result.getData().size();
+      } while (result.hasMore());
+      history.addSince(start);
+    }
+
+    private void submit() throws AccessDeniedException, SlobNotFoundException {
+      ObjectSessionProto session = new ObjectSessionProtoGsonImpl();
+      session.setObjectId(objectId.getId());
+      session.setClientId(clientId.getId());
+      session.setStoreType("loadtest");
+      ServerMutateRequest req = new ServerMutateRequestGsonImpl();
+      req.setSession(session);
+      req.setVersion(version);
+      for (int i = 0; i < config.opsPerSubmit; i++) {
+        req.addPayload(payload(clientId, seq++));
+      }
+      submits.incrementAndGet();
+      long start = System.nanoTime();
+      try {
+        store().mutateObject(req);
+        ack.addSince(start);
+        acked.incrementAndGet();
+      } catch (BadRequestException e) {
+        rejected.incrementAndGet();
+      } catch (TryAgainLaterException e) {
+        backedOff.incrementAndGet();
+      } catch (IOException e) {
+        log.log(Level.INFO, clientId + ": submit failed", e);
+        errors.incrementAndGet();
+      }
+    }
+
+    @Override public void run() {
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      try {
+        long start = System.nanoTime();
+        version = store().connect(objectId, clientId).getFirst().getVersion();
+        connect.addSince(start);
+        while (System.currentTimeMillis() < deadlineMillis) {
+          if (!drainInbox()) {
+            try {
+              catchUp();
+            } catch (IOException e) {
+              log.log(Level.INFO, clientId + ": loadHistory failed", e);
+              errors.incrementAndGet();
+            }
+          }
+          submit();
+          Thread.sleep((long) (random.nextDouble() * config.maxThinkMillis));
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(clientId + " on " + objectId + " failed", e);
+      }
+    }
+  }
+
+  /**
+   * Runs the load.  Must be called on a thread with an App Engine API
+   * environment that provides memcache (e.g., after
+   * {@link LocalServiceTestHelper#setUp()}); client threads inherit it.
+   */
+  public Report run() throws Exception {
+    LocalEntityStore entityStore = new LocalEntityStore();
+    List<SlobStore> stores = makeStores(new CheckedDatastore(new LocalDatastoreBackend(
+        entityStore, config.latency ? SimulatedLatency.typical(config.seed)
+            : SimulatedLatency.NONE)));
+    List<SlobId> objectIds = Lists.newArrayList();
+    for (int i = 0; i < config.objects; i++) {
+      SlobId objectId = new SlobId("loadtest-" + i);
+      stores.get(0).newObject(objectId, "{}",
+          ImmutableList.of(new ChangeData<String>(CREATOR, payload(CREATOR, 0))));
+      objectIds.add(objectId);
+    }
+
+    long startMillis = System.currentTimeMillis();
+    Random seeds = new Random(config.seed);
+    List<SimulatedClient> clients = Lists.newArrayList();
+    for (SlobId objectId : objectIds) {
+      for (int i = 0; i < config.clientsPerObject; i++) {
+        clients.add(new SimulatedClient(objectId, new ClientId(objectId.getId() + "-c" + i),
+            stores, seeds.nextLong(), ApiProxy.getCurrentEnvironment(),
+            startMillis + config.durationMillis));
+      }
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(clients.size());
+    try {
+      List<Future<?>> futures = Lists.newArrayList();
+      for (SimulatedClient client : clients) {
+        futures.add(executor.submit(client));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsedMillis = System.currentTimeMillis() - startMillis;
+
+    long finalVersionTotal = 0;
+    for (SlobId objectId : objectIds) {
+      finalVersionTotal += stores.get(0).reconnect(objectId, null).getVersion();
+    }
+    entityStore.close();
+    return new Report(this, elapsedMillis, finalVersionTotal);
+  }
+
+  /** Parses flags of the form --name=value into the Config fields of the same name. */
+  private static Config parseArgs(String[] args) throws IllegalAccessException {
+    Config config = new Config();
+    for (String arg : args) {
+      Preconditions.checkArgument(arg.startsWith("--") && arg.contains("="),
+          "Expected --name=value: %s", arg);
+      String name = arg.substring(2, arg.indexOf('='));
+      String value = arg.substring(arg.indexOf('=') + 1);
+      Field field;
+      try {
+        field = Config.class.getField(name);
+      } catch (NoSuchFieldException e) {
+        throw new IllegalArgumentException("Unknown flag: " + arg, e);
+      }
+      Class<?> type = field.getType();
+      field.set(config, type == int.class ? Integer.valueOf(value)
+          : type == long.class ? Long.valueOf(value)
+          : Boolean.valueOf(value));
+    }
+    return config;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = parseArgs(args);
+    // The store logs every request at INFO, which would dominate the run.
+    Logger.getLogger("com.google.walkaround").setLevel(Level.WARNING);
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+    helper.setUp();
+    try {
+      System.out.println(new SlobLoadGenerator(config).run());
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+}
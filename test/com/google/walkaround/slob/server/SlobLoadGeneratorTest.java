@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import junit.framework.TestCase;
+
+import java.util.logging.Logger;
+
+/**
+ * Short runs of {@link SlobLoadGenerator}, to keep it working and to check
+ * that the store neither loses nor duplicates ops under concurrency.
+ */
+public class SlobLoadGeneratorTest extends TestCase {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(SlobLoadGeneratorTest.class.getName());
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private void checkRun(SlobLoadGenerator.Config config) throws Exception {
+    SlobLoadGenerator.Report report = new SlobLoadGenerator(config).run();
+    log.info("" + report);
+    assertEquals(0, report.errors);
+    assertEquals(0, report.rejected);
+    assertTrue(report.acked > 0);
+    assertEquals(report.submits,
+        report.acked + report.rejected + report.backedOff + report.errors);
+    // Each object starts with one op from its creator.
+    assertEquals(config.objects + report.acked * config.opsPerSubmit, report.finalVersionTotal);
+    assertEquals(config.objects * config.clientsPerObject, report.connect.getCount());
+  }
+
+  public void testWithAffinity() throws Exception {
+    SlobLoadGenerator.Config config = new SlobLoadGenerator.Config();
+    config.objects = 3;
+    config.clientsPerObject = 3;
+    config.processors = 2;
+    config.durationMillis = 1000;
+    checkRun(config);
+  }
+
+  public void testWithoutAffinity() throws Exception {
+    SlobLoadGenerator.Config config = new SlobLoadGenerator.Config();
+    config.objects = 2;
+    config.clientsPerObject = 4;
+    config.processors = 3;
+    config.affinity = false;
+    config.opsPerSubmit = 2;
+    config.durationMillis = 1000;
+    config.seed = 1;
+    checkRun(config);
+  }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.Maps;
+import com.google.walkaround.slob.server.SlobSnapshotCache.VersionedSnapshot;
+import com.google.walkaround.slob.shared.ChangeData;
+import com.google.walkaround.slob.shared.InvalidSnapshot;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.slob.shared.SlobModel;
+import com.google.walkaround.slob.shared.StateAndVersion;
+import com.google.walkaround.util.server.MonitoringVars;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+public class SlobSnapshotCacheTest extends TestCase {
+
+  private static class CountingMonitoringVars implements MonitoringVars {
+    private final Map<String, Long> counters = Maps.newHashMap();
+
+    @Override public void incrementCounter(String name) {
+      incrementCounter(name, 1);
+    }
+
+    @Override public synchronized void incrementCounter(String name, long increment) {
+      counters.put(name, get(name) + increment);
+    }
+
+    synchronized long get(String name) {
+      Long count = counters.get(name);
+      return count == null ? 0 : count;
+    }
+  }
+
+  private static final SlobModel MODEL = new SlobModel() {
+    @Override public Slob create(@Nullable String snapshot) throws InvalidSnapshot {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public List<String> transform(List<ChangeData<String>> clientOps,
+        List<ChangeData<String>> serverOps) {
+      throw new UnsupportedOperationException();
+    }
+  };
+
+  /**
+   * Reconstructs objects without touching the datastore, optionally holding
+   * the first reconstruction until it is released, and failing it if asked to.
+   */
+  private class FakeMutationLog extends MutationLog {
+    final AtomicInteger reconstructions = new AtomicInteger();
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    volatile boolean holdFirst = false;
+    volatile boolean failFirst = false;
+
+    FakeMutationLog() {
+      super("Test", "TestDelta", "TestSnapshot", new MutationLog.DefaultDeltaEntityConverter(),
+          tx, OBJECT, MODEL);
+    }
+
+    @Override public StateAndVersion reconstruct(@Nullable final Long atVersion)
+        throws PermanentFailure, RetryableFailure {
+      if (reconstructions.incrementAndGet() == 1) {
+        firstStarted.countDown();
+        if (holdFirst) {
+          try {
+            releaseFirst.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        if (failFirst) {
+          throw new RetryableFailure("Failing the first reconstruction");
+        }
+      }
+      return new StateAndVersion(new SlobModel.Slob() {
+        @Override public String snapshot() {
+          return "snapshot" + atVersion;
+        }
+
+        @Override public String getIndexedContent() {
+          return "";
+        }
+
+        @Override public void apply(ChangeData<String> payload) {
+          throw new UnsupportedOperationException();
+        }
+      }, atVersion);
+    }
+  }
+
+  /** Loads a version of OBJECT on another thread. */
+  private class Loader extends Thread {
+    private final MutationLog mutationLog;
+    private final long version;
+    final AtomicReference<VersionedSnapshot> result = new AtomicReference<VersionedSnapshot>();
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    Loader(MutationLog mutationLog, long version) {
+      this.mutationLog = mutationLog;
+      this.version = version;
+    }
+
+    @Override public void run() {
+      try {
+        result.set(cache.load(OBJECT, mutationLog, version));
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    }
+  }
+
+  private static final SlobId OBJECT = new SlobId("obj");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private final CountingMonitoringVars monitoring = new CountingMonitoringVars();
+  private final SlobSnapshotCache cache = new SlobSnapshotCache(monitoring);
+  // Only there because MutationLog needs one.
+  private CheckedTransaction tx;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    tx = new CheckedDatastore(DatastoreServiceFactory.getDatastoreService()).beginTransaction();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    tx.close();
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private static String chars(int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, 'x');
+    return new String(chars);
+  }
+
+  private static SlobId object(int i) {
+    return new SlobId("obj" + i);
+  }
+
+  private void awaitCounter(String name, long value) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (monitoring.get(name) < value) {
+      assertTrue("Timed out waiting for " + name, System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  public void testOnlyNewerVersionsReplaceSnapshot() throws Exception {
+    cache.put(OBJECT, new VersionedSnapshot(2, "two"));
+    cache.put(OBJECT, new VersionedSnapshot(1, "one"));
+    assertEquals("two", cache.get(OBJECT, 2).getSnapshot());
+    assertNull(cache.get(OBJECT, 1));
+    assertEquals(1, monitoring.get("slob-snapshot-cache-other-version"));
+    cache.put(OBJECT, new VersionedSnapshot(3, "three"));
+    assertNull(cache.get(OBJECT, 2));
+    assertEquals("three", cache.get(OBJECT, 3).getSnapshot());
+    assertNull(cache.get(object(1), 3));
+    assertEquals(1, monitoring.get("slob-snapshot-cache-miss"));
+  }
+
+  public void testLeastRecentlyUsedObjectIsEvictedOverCount() throws Exception {
+    for (int i = 0; i < SlobSnapshotCache.MAX_OBJECTS; i++) {
+      cache.put(object(i), new VersionedSnapshot(1, "s"));
+    }
+    // Reading object 0 makes object 1 the least recently used.
+    assertNotNull(cache.get(object(0), 1));
+    cache.put(object(SlobSnapshotCache.MAX_OBJECTS), new VersionedSnapshot(1, "s"));
+    assertNotNull(cache.get(object(0), 1));
+    assertNull(cache.get(object(1), 1));
+    assertNotNull(cache.get(object(2), 1));
+    assertNotNull(cache.get(object(SlobSnapshotCache.MAX_OBJECTS), 1));
+  }
+
+  public void testObjectsAreEvictedOverTotalSize() throws Exception {
+    String snapshot = chars(SlobSnapshotCache.MAX_SNAPSHOT_CHARS);
+    int fitting = (int) (SlobSnapshotCache.MAX_TOTAL_CHARS / snapshot.length());
+    for (int i = 0; i < fitting; i++) {
+      cache.put(object(i), new VersionedSnapshot(1, snapshot));
+    }
+    assertNotNull(cache.get(object(0), 1));
+    cache.put(object(fitting), new VersionedSnapshot(1, snapshot));
+    assertNotNull(cache.get(object(0), 1));
+    assertNull(cache.get(object(1), 1));
+    assertNotNull(cache.get(object(fitting), 1));
+    // Replacing a snapshot with a smaller one frees up space.
+    cache.put(object(0), new VersionedSnapshot(2, "small"));
+    cache.put(object(1), new VersionedSnapshot(1,
+        chars(SlobSnapshotCache.MAX_SNAPSHOT_CHARS - "small".length())));
+    assertNotNull(cache.get(object(1), 1));
+    assertNotNull(cache.get(object(2), 1));
+  }
+
+  public void testOversizedSnapshotIsNotCached() throws Exception {
+    cache.put(OBJECT, new VersionedSnapshot(1, "s"));
+    cache.put(OBJECT, new VersionedSnapshot(2, chars(SlobSnapshotCache.MAX_SNAPSHOT_CHARS + 1)));
+    assertEquals("s", cache.get(OBJECT, 1).getSnapshot());
+  }
+
+  public void testLoadUsesAndFillsCache() throws Exception {
+    FakeMutationLog mutationLog = new FakeMutationLog();
+    assertEquals("snapshot5", cache.load(OBJECT, mutationLog, 5L).getSnapshot());
+    assertEquals("snapshot5", cache.load(OBJECT, mutationLog, 5L).getSnapshot());
+    assertEquals(1, mutationLog.reconstructions.get());
+    assertEquals("snapshot5", cache.get(OBJECT, 5).getSnapshot());
+  }
+
+  public void testConcurrentLoadsAreCoalesced() throws Exception {
+    FakeMutationLog mutationLog = new FakeMutationLog();
+    mutationLog.holdFirst = true;
+    Loader first = new Loader(mutationLog, 5);
+    Loader second = new Loader(mutationLog, 5);
+    first.start();
+    mutationLog.firstStarted.await();
+    second.start();
+    awaitCounter("slob-snapshot-load-coalesced", 1);
+    mutationLog.releaseFirst.countDown();
+    first.join();
+    second.join();
+    assertNull(first.failure.get());
+    assertNull(second.failure.get());
+    assertEquals(1, mutationLog.reconstructions.get());
+    assertSame(first.result.get(), second.result.get());
+  }
+
+  public void testWaiterReconstructsItselfIfCoalescedLoadFails() throws Exception {
+    FakeMutationLog mutationLog = new FakeMutationLog();
+    mutationLog.holdFirst = true;
+    mutationLog.failFirst = true;
+    Loader first = new Loader(mutationLog, 5);
+    Loader second = new Loader(mutationLog, 5);
+    first.start();
+    mutationLog.firstStarted.await();
+    second.start();
+    awaitCounter("slob-snapshot-load-coalesced", 1);
+    mutationLog.releaseFirst.countDown();
+    first.join();
+    second.join();
+    assertTrue(first.failure.get() instanceof RetryableFailure);
+    assertNull(second.failure.get());
+    assertEquals("snapshot5", second.result.get().getSnapshot());
+    assertEquals(2, mutationLog.reconstructions.get());
+    assertEquals(1, monitoring.get("slob-snapshot-load-coalesced-failure"));
+    // The failed load doesn't stay registered.
+    assertEquals("snapshot6", cache.load(OBJECT, mutationLog, 6L).getSnapshot());
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.slob.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.walkaround.proto.ServerMutateRequest;
+import com.google.walkaround.proto.gson.ObjectSessionProtoGsonImpl;
+import com.google.walkaround.proto.gson.ServerMutateRequestGsonImpl;
+import com.google.walkaround.slob.server.StoreMutateBatch.Result;
+import com.google.walkaround.slob.server.StoreMutateBatch.Status;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class StoreMutateBatchTest extends TestCase {
+
+  private ServerMutateRequest request(String objectId, long version, String... payloads) {
+    ObjectSessionProtoGsonImpl session = new ObjectSessionProtoGsonImpl();
+    session.setObjectId(objectId);
+    session.setClientId("client");
+    session.setStoreType("conv");
+    ServerMutateRequest req = new ServerMutateRequestGsonImpl();
+    req.setSession(session);
+    req.setVersion(version);
+    req.addAllPayload(Arrays.asList(payloads));
+    return req;
+  }
+
+  public void testRequestsRoundTrip() throws Exception {
+    // Includes characters that the form-encoded transport had to escape.
+    List<ServerMutateRequest> requests = ImmutableList.of(
+        request("a", 1, "{\"x\":\"&=%\\u00e4\"}"),
+        request("b", 17, "{}", "{\"y\":[1,2]}"));
+    List<ServerMutateRequest> decoded = StoreMutateBatch.decodeRequests(
+        new ByteArrayInputStream(StoreMutateBatch.encodeRequests(requests)));
+    assertEquals(2, decoded.size());
+    for (int i = 0; i < requests.size(); i++) {
+      assertEquals(requests.get(i).getSession().getObjectId(),
+          decoded.get(i).getSession().getObjectId());
+      assertEquals(requests.get(i).getVersion(), decoded.get(i).getVersion());
+      assertEquals(requests.get(i).getPayload(), decoded.get(i).getPayload());
+    }
+  }
+
+  public void testResultsRoundTrip() throws Exception {
+    List<Result> results = ImmutableList.of(
+        new Result(Status.OK, "{\"1\":5}"),
+        new Result(Status.INVALID, "bad \u00e4"),
+        new Result(Status.FAILED, ""));
+    List<Result> decoded = StoreMutateBatch.decodeResults(
+        StoreMutateBatch.encodeResults(results));
+    assertEquals(results.size(), decoded.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(results.get(i).getStatus(), decoded.get(i).getStatus());
+      assertEquals(results.get(i).getData(), decoded.get(i).getData());
+    }
+  }
+
+  public void testTruncatedResultsRejected() throws Exception {
+    byte[] encoded = StoreMutateBatch.encodeResults(
+        ImmutableList.of(new Result(Status.OK, "{}")));
+    try {
+      StoreMutateBatch.decodeResults(Arrays.copyOf(encoded, encoded.length - 1));
+      fail();
+    } catch (IOException e) {
+      // ok
+    }
+  }
+
+}
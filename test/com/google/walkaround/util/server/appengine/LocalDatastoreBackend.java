@@ -0,0 +1,569 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.appengine;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedIterator;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedPreparedQuery;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.Evaluater;
+import com.google.walkaround.util.server.appengine.SimulatedLatency.Operation;
+
+import org.waveprotocol.wave.model.util.Pair;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CheckedDatastore.Backend} that keeps data in a
+ * {@link LocalEntityStore} instead of App Engine's datastore, for running the
+ * persistence code at scale on a single machine, e.g. to benchmark and
+ * profile it.
+ *
+ * Follows the datastore's rules where our code depends on them: a
+ * transaction may only touch one entity group, queries in a transaction must
+ * be ancestor queries, reads in a transaction don't see its own writes, and
+ * a commit fails if the entity group has been modified since the transaction
+ * first touched it.  Latency and timeouts can be injected with
+ * {@link SimulatedLatency}.
+ *
+ * Not supported: query cursors, composite index requirements,
+ * cross-group transactions, and {@link #unsafe}.  Transactional tasks are
+ * added to their queue after the commit succeeds.
+ */
+public class LocalDatastoreBackend implements CheckedDatastore.Backend {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(LocalDatastoreBackend.class.getName());
+
+  private static Key getRoot(Key key) {
+    while (key.getParent() != null) {
+      key = key.getParent();
+    }
+    return key;
+  }
+
+  private static boolean isSelfOrDescendant(Key key, Key ancestor) {
+    for (Key k = key; k != null; k = k.getParent()) {
+      if (k.equals(ancestor)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Integers are stored as longs, but callers may filter with ints.
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static int compareValues(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number) {
+      if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+        return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+      }
+      long x = ((Number) a).longValue();
+      long y = ((Number) b).longValue();
+      return x < y ? -1 : x == y ? 0 : 1;
+    }
+    return ((Comparable) a).compareTo(b);
+  }
+
+  private static boolean matchesValue(Object value, FilterOperator op, Object operand) {
+    switch (op) {
+      case EQUAL:
+        return value instanceof Number && operand instanceof Number
+            ? compareValues(value, operand) == 0 : Objects.equal(value, operand);
+      case NOT_EQUAL:
+        return !matchesValue(value, FilterOperator.EQUAL, operand);
+      case LESS_THAN:
+        return compareValues(value, operand) < 0;
+      case LESS_THAN_OR_EQUAL:
+        return compareValues(value, operand) <= 0;
+      case GREATER_THAN:
+        return compareValues(value, operand) > 0;
+      case GREATER_THAN_OR_EQUAL:
+        return compareValues(value, operand) >= 0;
+      case IN:
+        for (Object o : (Collection<?>) operand) {
+          if (matchesValue(value, FilterOperator.EQUAL, o)) {
+            return true;
+          }
+        }
+        return false;
+      default:
+        throw new AssertionError("Unknown filter operator " + op);
+    }
+  }
+
+  /** Like the datastore, a filter matches if any value of a list property does. */
+  private static boolean matches(Entity entity, FilterPredicate filter) {
+    Object value = Entity.KEY_RESERVED_PROPERTY.equals(filter.getPropertyName())
+        ? entity.getKey() : entity.getProperty(filter.getPropertyName());
+    if (value == null && !entity.hasProperty(filter.getPropertyName())) {
+      return false;
+    }
+    if (value instanceof Collection) {
+      for (Object v : (Collection<?>) value) {
+        if (matchesValue(v, filter.getOperator(), filter.getValue())) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return matchesValue(value, filter.getOperator(), filter.getValue());
+  }
+
+  private static Comparator<Entity> makeComparator(final List<SortPredicate> sorts) {
+    return new Comparator<Entity>() {
+      @Override public int compare(Entity a, Entity b) {
+        for (SortPredicate sort : sorts) {
+          int c = Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName())
+              ? a.getKey().compareTo(b.getKey())
+              : compareValues(a.getProperty(sort.getPropertyName()),
+                  b.getProperty(sort.getPropertyName()));
+          if (c != 0) {
+            return sort.getDirection() == SortDirection.ASCENDING ? c : -c;
+          }
+        }
+        return a.getKey().compareTo(b.getKey());
+      }
+    };
+  }
+
+  private class LocalPreparedQuery extends CheckedPreparedQuery {
+    private final Query q;
+
+    LocalPreparedQuery(Query q) {
+      this.q = Preconditions.checkNotNull(q, "Null q");
+    }
+
+    /** Narrows the key range using the ancestor and any key filters. */
+    private NavigableMap<Key, byte[]> getCandidates() {
+      Key from = q.getAncestor();
+      boolean fromInclusive = true;
+      Key to = null;
+      boolean toInclusive = true;
+      for (FilterPredicate filter : q.getFilterPredicates()) {
+        if (!Entity.KEY_RESERVED_PROPERTY.equals(filter.getPropertyName())) {
+          continue;
+        }
+        Key bound = (Key) filter.getValue();
+        switch (filter.getOperator()) {
+          case GREATER_THAN:
+          case GREATER_THAN_OR_EQUAL:
+            if (from == null || bound.compareTo(from) >= 0) {
+              from = bound;
+              fromInclusive = filter.getOperator() == FilterOperator.GREATER_THAN_OR_EQUAL;
+            }
+            break;
+          case LESS_THAN:
+          case LESS_THAN_OR_EQUAL:
+            if (to == null || bound.compareTo(to) <= 0) {
+              to = bound;
+              toInclusive = filter.getOperator() == FilterOperator.LESS_THAN_OR_EQUAL;
+            }
+            break;
+          default:
+            // Checked per entity below.
+            break;
+        }
+      }
+      return store.getRange(from, fromInclusive, to, toInclusive);
+    }
+
+    private List<Entity> run(FetchOptions options) {
+      Preconditions.checkArgument(options.getStartCursor() == null
+          && options.getEndCursor() == null, "Cursors not supported: %s", options);
+      latency.apply(Operation.QUERY);
+      int offset = options.getOffset() == null ? 0 : options.getOffset();
+      int limit = options.getLimit() == null ? Integer.MAX_VALUE : options.getLimit();
+      List<SortPredicate> sorts = q.getSortPredicates();
+      boolean keyOrder = sorts.isEmpty() || (sorts.size() == 1
+          && Entity.KEY_RESERVED_PROPERTY.equals(sorts.get(0).getPropertyName()));
+      boolean descending = keyOrder && !sorts.isEmpty()
+          && sorts.get(0).getDirection() == SortDirection.DESCENDING;
+      NavigableMap<Key, byte[]> candidates = getCandidates();
+      if (descending) {
+        candidates = candidates.descendingMap();
+      }
+      List<Entity> out = Lists.newArrayList();
+      int skipped = 0;
+      for (Map.Entry<Key, byte[]> entry : candidates.entrySet()) {
+        Key key = entry.getKey();
+        if (q.getAncestor() != null && !isSelfOrDescendant(key, q.getAncestor())) {
+          // Descendants are contiguous in key order, so we are done once we
+          // are past them.
+          int c = key.compareTo(q.getAncestor());
+          if (descending ? c < 0 : c > 0) {
+            break;
+          }
+          continue;
+        }
+        if (q.getKind() != null && !q.getKind().equals(key.getKind())) {
+          continue;
+        }
+        Entity entity = (Entity) LocalEntityStore.deserialize(entry.getValue());
+        boolean match = true;
+        for (FilterPredicate filter : q.getFilterPredicates()) {
+          if (!matches(entity, filter)) {
+            match = false;
+            break;
+          }
+        }
+        // Like the datastore, sorting on a property excludes entities that
+        // don't have it.
+        for (SortPredicate sort : sorts) {
+          if (!Entity.KEY_RESERVED_PROPERTY.equals(sort.getPropertyName())
+              && entity.getProperty(sort.getPropertyName()) == null) {
+            match = false;
+            break;
+          }
+        }
+        if (!match) {
+          continue;
+        }
+        if (keyOrder) {
+          if (skipped < offset) {
+            skipped++;
+            continue;
+          }
+          if (out.size() >= limit) {
+            break;
+          }
+        }
+        out.add(q.isKeysOnly() ? new Entity(key) : entity);
+      }
+      if (!keyOrder) {
+        Collections.sort(out, makeComparator(sorts));
+        out = out.subList(Math.min(offset, out.size()),
+            (int) Math.min((long) offset + limit, out.size()));
+      }
+      return ImmutableList.copyOf(out);
+    }
+
+    @Override public CheckedIterator asIterator(final FetchOptions options)
+        throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<CheckedIterator>() {
+        @Override public CheckedIterator run() {
+          final Iterator<Entity> it = LocalPreparedQuery.this.run(options).iterator();
+          return new CheckedIterator() {
+            @Override public boolean hasNext() {
+              return it.hasNext();
+            }
+
+            @Override public Entity next() {
+              return it.next();
+            }
+
+            @Override public Cursor getCursor() {
+              throw new UnsupportedOperationException("Cursors not supported");
+            }
+          };
+        }
+      });
+    }
+
+    @Override public List<Entity> asList(final FetchOptions options)
+        throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<List<Entity>>() {
+        @Override public List<Entity> run() {
+          return LocalPreparedQuery.this.run(options);
+        }
+      });
+    }
+
+    @Override public int countEntities(final FetchOptions options)
+        throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<Integer>() {
+        @Override public Integer run() {
+          return LocalPreparedQuery.this.run(options).size();
+        }
+      });
+    }
+
+    @Override public String toString() {
+      return "LocalPreparedQuery(" + q + ")";
+    }
+  }
+
+  private class LocalTransaction implements CheckedTransaction {
+    private final long id;
+    // The one entity group this transaction may touch, and its version when
+    // first touched; null until then.
+    @Nullable private Key root = null;
+    private long readVersion;
+    private final Map<Key, Entity> writes = Maps.newLinkedHashMap();
+    private final List<Pair<Queue, TaskOptions>> tasks = Lists.newArrayList();
+    private boolean active = true;
+
+    LocalTransaction(long id) {
+      this.id = id;
+    }
+
+    private void touch(Key key) {
+      Preconditions.checkState(active, "Transaction %s not active", this);
+      Key keyRoot = getRoot(key);
+      if (root == null) {
+        root = keyRoot;
+        readVersion = store.getGroupVersion(root);
+      } else if (!root.equals(keyRoot)) {
+        // Same message as the datastore's.
+        throw new IllegalArgumentException("can't operate on multiple entity groups in a "
+            + "single transaction. first entity group was " + root + " and second is " + keyRoot);
+      }
+    }
+
+    @Override
+    public Entity get(final Key key) throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<Entity>() {
+        @Override public Entity run() {
+          touch(key);
+          latency.apply(Operation.GET);
+          return store.get(key);
+        }
+      });
+    }
+
+    @Override
+    public Map<Key, Entity> get(final Iterable<Key> keys)
+        throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<Map<Key, Entity>>() {
+        @Override public Map<Key, Entity> run() {
+          Map<Key, Entity> out = Maps.newHashMap();
+          for (Key key : keys) {
+            touch(key);
+          }
+          latency.apply(Operation.GET);
+          for (Key key : keys) {
+            Entity entity = store.get(key);
+            if (entity != null) {
+              out.put(key, entity);
+            }
+          }
+          return out;
+        }
+      });
+    }
+
+    @Override
+    public CheckedPreparedQuery prepare(Query q) {
+      Preconditions.checkArgument(q.getAncestor() != null,
+          "Only ancestor queries are allowed inside transactions: %s", q);
+      touch(q.getAncestor());
+      return new LocalPreparedQuery(q);
+    }
+
+    @Override
+    public Key put(Entity e) throws PermanentFailure, RetryableFailure {
+      return put(ImmutableList.of(e)).get(0);
+    }
+
+    @Override
+    public List<Key> put(final Iterable<Entity> entities)
+        throws PermanentFailure, RetryableFailure {
+      return CheckedDatastore.safeRun(new Evaluater<List<Key>>() {
+        @Override public List<Key> run() {
+          List<Key> keys = Lists.newArrayList();
+          for (Entity e : entities) {
+            touch(e.getKey());
+            store.completeKey(e);
+            // Copy so that later modifications by the caller don't leak in.
+            writes.put(e.getKey(), e.clone());
+            keys.add(e.getKey());
+          }
+          latency.apply(Operation.PUT);
+          return keys;
+        }
+      });
+    }
+
+    @Override
+    public void delete(final Key... keys) throws PermanentFailure, RetryableFailure {
+      CheckedDatastore.safeRun(new Evaluater<Void>() {
+        @Override public Void run() {
+          for (Key key : keys) {
+            touch(key);
+            writes.put(key, null);
+          }
+          latency.apply(Operation.DELETE);
+          return null;
+        }
+      });
+    }
+
+    @Override
+    public TaskHandle enqueueTask(Queue queue, TaskOptions task) {
+      Preconditions.checkState(active, "Transaction %s not active", this);
+      tasks.add(Pair.of(queue, task));
+      return new TaskHandle(task, queue.getQueueName());
+    }
+
+    @Override
+    public void rollback() {
+      active = false;
+    }
+
+    @Override
+    public void commit() throws PermanentFailure, RetryableFailure {
+      Preconditions.checkState(active, "Transaction %s not active", this);
+      CheckedDatastore.safeRun(new Evaluater<Void>() {
+        @Override public Void run() throws PermanentFailure {
+          latency.apply(Operation.COMMIT);
+          // Like the datastore, a transaction is over after a commit attempt,
+          // successful or not.
+          active = false;
+          try {
+            store.commit(root == null ? ImmutableMap.<Key, Long>of()
+                : ImmutableMap.of(root, readVersion), writes);
+          } catch (IOException e) {
+            throw new PermanentFailure("Failed to write log for " + this, e);
+          }
+          return null;
+        }
+      });
+      for (Pair<Queue, TaskOptions> task : tasks) {
+        task.getFirst().add(task.getSecond());
+      }
+    }
+
+    @Override
+    public boolean isActive() {
+      return active;
+    }
+
+    @Override
+    public void close() {
+      if (isActive()) {
+        rollback();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "LocalTransaction(" + id + ", " + root + ", " + writes.size() + " writes)";
+    }
+  }
+
+  private final LocalEntityStore store;
+  private final SimulatedLatency latency;
+  private final AtomicLong nextTransactionId = new AtomicLong(1);
+
+  public LocalDatastoreBackend(LocalEntityStore store, SimulatedLatency latency) {
+    this.store = Preconditions.checkNotNull(store, "Null store");
+    this.latency = Preconditions.checkNotNull(latency, "Null latency");
+  }
+
+  @Override
+  public CheckedTransaction beginTransaction() throws PermanentFailure, RetryableFailure {
+    return CheckedDatastore.safeRun(new Evaluater<CheckedTransaction>() {
+      @Override public CheckedTransaction run() {
+        latency.apply(Operation.BEGIN_TRANSACTION);
+        return new LocalTransaction(nextTransactionId.getAndIncrement());
+      }
+    });
+  }
+
+  @Override
+  public CheckedPreparedQuery prepareNontransactionalQuery(Query q) {
+    return new LocalPreparedQuery(q);
+  }
+
+  @Override
+  public Map<Key, Entity> getNontransactional(final Iterable<Key> keys)
+      throws PermanentFailure, RetryableFailure {
+    return CheckedDatastore.safeRun(new Evaluater<Map<Key, Entity>>() {
+      @Override public Map<Key, Entity> run() {
+        latency.apply(Operation.GET);
+        Map<Key, Entity> out = Maps.newHashMap();
+        for (Key key : keys) {
+          Entity entity = store.get(key);
+          if (entity != null) {
+            out.put(key, entity);
+          }
+        }
+        return out;
+      }
+    });
+  }
+
+  @Override
+  public List<Key> putNontransactional(final Iterable<Entity> entities)
+      throws PermanentFailure, RetryableFailure {
+    return CheckedDatastore.safeRun(new Evaluater<List<Key>>() {
+      @Override public List<Key> run() throws PermanentFailure {
+        latency.apply(Operation.PUT);
+        // Each entity group is written atomically, but the batch is not.
+        Map<Key, Map<Key, Entity>> byGroup = Maps.newLinkedHashMap();
+        List<Key> keys = Lists.newArrayList();
+        for (Entity e : entities) {
+          store.completeKey(e);
+          Key root = getRoot(e.getKey());
+          if (!byGroup.containsKey(root)) {
+            byGroup.put(root, Maps.<Key, Entity>newLinkedHashMap());
+          }
+          byGroup.get(root).put(e.getKey(), e.clone());
+          keys.add(e.getKey());
+        }
+        try {
+          for (Map<Key, Entity> group : byGroup.values()) {
+            store.commit(ImmutableMap.<Key, Long>of(), group);
+          }
+        } catch (IOException e) {
+          throw new PermanentFailure("Failed to write log", e);
+        }
+        return keys;
+      }
+    });
+  }
+
+  @Override
+  public DatastoreService unsafe() {
+    throw new UnsupportedOperationException("No DatastoreService behind " + this);
+  }
+
+  @Override public String toString() {
+    return "LocalDatastoreBackend(" + store + ", " + latency + ")";
+  }
+}
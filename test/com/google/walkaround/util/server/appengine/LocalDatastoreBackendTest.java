@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+public class LocalDatastoreBackendTest extends TestCase {
+
+  // Only needed so that keys can be created.
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  private File file;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    file = File.createTempFile("LocalDatastoreBackendTest", ".log");
+    file.delete();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    file.delete();
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private static CheckedDatastore newDatastore(LocalEntityStore store) {
+    return new CheckedDatastore(new LocalDatastoreBackend(store, SimulatedLatency.NONE));
+  }
+
+  private Key root(String name) {
+    return KeyFactory.createKey("Root", name);
+  }
+
+  private Key child(Key parent, long id) {
+    return KeyFactory.createKey(parent, "Child", id);
+  }
+
+  private void putChildren(CheckedDatastore datastore, Key parent, int count) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    for (int i = 1; i <= count; i++) {
+      Entity e = new Entity(child(parent, i));
+      e.setProperty("n", (long) i);
+      tx.put(e);
+    }
+    tx.commit();
+  }
+
+  public void testReplay() throws Exception {
+    LocalEntityStore store = new LocalEntityStore(file, false);
+    putChildren(newDatastore(store), root("a"), 3);
+    CheckedTransaction tx = newDatastore(store).beginTransaction();
+    tx.delete(child(root("a"), 2));
+    tx.commit();
+    store.close();
+
+    CheckedDatastore reopened = newDatastore(new LocalEntityStore(file, false));
+    tx = reopened.beginTransaction();
+    assertEquals(3L, tx.get(child(root("a"), 3)).getProperty("n"));
+    assertNull(tx.get(child(root("a"), 2)));
+    tx.rollback();
+  }
+
+  public void testTornTailDiscarded() throws Exception {
+    LocalEntityStore store = new LocalEntityStore(file, false);
+    putChildren(newDatastore(store), root("a"), 1);
+    putChildren(newDatastore(store), root("b"), 1);
+    store.close();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 5);
+    raf.close();
+
+    CheckedDatastore reopened = newDatastore(new LocalEntityStore(file, false));
+    assertEquals(1, reopened.getNontransactional(
+        Arrays.asList(child(root("a"), 1), child(root("b"), 1))).size());
+  }
+
+  public void testConflictingCommitFails() throws Exception {
+    CheckedDatastore datastore = newDatastore(new LocalEntityStore());
+    CheckedTransaction tx1 = datastore.beginTransaction();
+    CheckedTransaction tx2 = datastore.beginTransaction();
+    assertNull(tx1.get(child(root("a"), 1)));
+    assertNull(tx2.get(child(root("a"), 1)));
+    tx1.put(new Entity(child(root("a"), 1)));
+    tx2.put(new Entity(child(root("a"), 1)));
+    tx1.commit();
+    try {
+      tx2.commit();
+      fail();
+    } catch (RetryableFailure e) {
+      // ok
+    }
+  }
+
+  public void testAncestorKeyRangeQuery() throws Exception {
+    CheckedDatastore datastore = newDatastore(new LocalEntityStore());
+    putChildren(datastore, root("a"), 10);
+    putChildren(datastore, root("b"), 10);
+    CheckedTransaction tx = datastore.beginTransaction();
+    List<Entity> results = tx.prepare(new Query("Child")
+        .setAncestor(root("a"))
+        .addFilter(Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN_OR_EQUAL,
+            child(root("a"), 7))
+        .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING))
+        .asList(FetchOptions.Builder.withLimit(2));
+    assertEquals(2, results.size());
+    assertEquals(child(root("a"), 7), results.get(0).getKey());
+    assertEquals(child(root("a"), 6), results.get(1).getKey());
+    assertEquals(10, tx.prepare(new Query("Child").setAncestor(root("b")))
+        .countEntities(FetchOptions.Builder.withDefaults()));
+    tx.rollback();
+  }
+
+  public void testUnsafeIsUnavailable() throws Exception {
+    try {
+      newDatastore(new LocalEntityStore()).unsafe();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // ok
+    }
+  }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * An embedded, log-structured entity store for running the datastore-backed
+ * code outside of App Engine; see {@link LocalDatastoreBackend}.
+ *
+ * All entities are held in memory, serialized, in a map sorted by key, so
+ * that the descendants of a key form a contiguous range.  Each commit is
+ * appended to a log file as one checksummed record before it is applied, and
+ * the map is rebuilt by replaying the log on startup; a torn record at the
+ * end of the log (from a crash during an append) is discarded.  When the log
+ * grows much larger than the live data, it is compacted by rewriting the live
+ * data to a new file.
+ *
+ * Concurrency control is optimistic, per entity group: a commit names the
+ * version of each entity group it read, and fails with a
+ * {@link ConcurrentModificationException} if any of them has changed since.
+ */
+public class LocalEntityStore {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(LocalEntityStore.class.getName());
+
+  /** The log is compacted when it exceeds this many times the live bytes... */
+  private static final long COMPACTION_RATIO = 3;
+  /** ...and this many bytes in absolute terms. */
+  private static final long MIN_COMPACTION_BYTES = 64 * 1024 * 1024;
+
+  private static final byte OP_PUT = 1;
+  private static final byte OP_DELETE = 2;
+
+  @Nullable private final File file;
+  private final boolean sync;
+  private final NavigableMap<Key, byte[]> entities = new ConcurrentSkipListMap<Key, byte[]>();
+  private final ConcurrentHashMap<Key, Long> groupVersions = new ConcurrentHashMap<Key, Long>();
+  private final AtomicLong nextId = new AtomicLong(1);
+  // Guarded by this.
+  @Nullable private FileOutputStream fileOut;
+  @Nullable private DataOutputStream out;
+  private long logBytes = 0;
+  private long liveBytes = 0;
+
+  /**
+   * Opens the store logged to {@code file}, creating the file if needed.  If
+   * {@code sync} is true, each commit waits for its log record to reach the
+   * disk.
+   */
+  public LocalEntityStore(File file, boolean sync) throws IOException {
+    this.file = Preconditions.checkNotNull(file, "Null file");
+    this.sync = sync;
+    replay();
+    openForAppend();
+  }
+
+  /** Creates a store that is not backed by a file. */
+  public LocalEntityStore() {
+    this.file = null;
+    this.sync = false;
+  }
+
+  private static Key getRoot(Key key) {
+    while (key.getParent() != null) {
+      key = key.getParent();
+    }
+    return key;
+  }
+
+  static byte[] serialize(Serializable object) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      ObjectOutputStream objects = new ObjectOutputStream(bytes);
+      objects.writeObject(object);
+      objects.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to serialize " + object, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Object deserialize(byte[] bytes) {
+    try {
+      return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to deserialize " + bytes.length + " bytes", e);
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException("Failed to deserialize " + bytes.length + " bytes", e);
+    }
+  }
+
+  /** Returns the current version of the entity group with the given root. */
+  public long getGroupVersion(Key root) {
+    Long version = groupVersions.get(root);
+    return version == null ? 0 : version;
+  }
+
+  /** Returns a fresh copy of the entity with the given key, or null. */
+  @Nullable public Entity get(Key key) {
+    byte[] bytes = entities.get(key);
+    return bytes == null ? null : (Entity) deserialize(bytes);
+  }
+
+  /**
+   * Returns the serialized entities with keys in the given range, in key
+   * order; the range is unbounded on either side if the bound is null.
+   */
+  public NavigableMap<Key, byte[]> getRange(@Nullable Key from, boolean fromInclusive,
+      @Nullable Key to, boolean toInclusive) {
+    if (from == null && to == null) {
+      return entities;
+    } else if (from == null) {
+      return entities.headMap(to, toInclusive);
+    } else if (to == null) {
+      return entities.tailMap(from, fromInclusive);
+    } else {
+      return entities.subMap(from, fromInclusive, to, toInclusive);
+    }
+  }
+
+  /**
+   * Gives the entity an auto-allocated id if its key is incomplete, like the
+   * datastore does on put.
+   */
+  // Key has no public API for this, and callers rely on the entity they put
+  // being updated in place, so we have to resort to reflection.
+  void completeKey(Entity entity) {
+    Key key = entity.getKey();
+    if (key.isComplete()) {
+      return;
+    }
+    try {
+      Field id = Key.class.getDeclaredField("id");
+      id.setAccessible(true);
+      id.setLong(key, nextId.getAndIncrement());
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException("Can't allocate id for " + key, e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Can't allocate id for " + key, e);
+    }
+  }
+
+  /**
+   * Atomically applies the given writes, provided that each entity group in
+   * {@code readVersions} is still at the given version.  Keys mapped to null
+   * are deleted.
+   *
+   * @throws ConcurrentModificationException if any group version has changed
+   */
+  public synchronized void commit(Map<Key, Long> readVersions, Map<Key, Entity> writes)
+      throws IOException {
+    for (Map.Entry<Key, Long> entry : readVersions.entrySet()) {
+      long current = getGroupVersion(entry.getKey());
+      if (current != entry.getValue()) {
+        throw new ConcurrentModificationException("Entity group " + entry.getKey()
+            + " modified concurrently: read version " + entry.getValue() + ", now " + current);
+      }
+    }
+    if (writes.isEmpty()) {
+      return;
+    }
+    Map<Key, byte[]> serialized = Maps.newLinkedHashMap();
+    for (Map.Entry<Key, Entity> entry : writes.entrySet()) {
+      serialized.put(entry.getKey(),
+          entry.getValue() == null ? null : serialize(entry.getValue()));
+    }
+    appendRecord(serialized);
+    apply(serialized);
+    for (Key key : writes.keySet()) {
+      Key root = getRoot(key);
+      groupVersions.put(root, getGroupVersion(root) + 1);
+    }
+    maybeCompact();
+  }
+
+  private void apply(Map<Key, byte[]> writes) {
+    for (Map.Entry<Key, byte[]> entry : writes.entrySet()) {
+      Key key = entry.getKey();
+      byte[] old = entry.getValue() == null ? entities.remove(key)
+          : entities.put(key, entry.getValue());
+      if (old != null) {
+        liveBytes -= old.length;
+      }
+      if (entry.getValue() != null) {
+        liveBytes += entry.getValue().length;
+      }
+      if (key.getId() >= nextId.get()) {
+        nextId.set(key.getId() + 1);
+      }
+    }
+  }
+
+  private static byte[] encodeRecord(Map<Key, byte[]> writes) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(writes.size());
+    for (Map.Entry<Key, byte[]> entry : writes.entrySet()) {
+      byte[] key = serialize(entry.getKey());
+      data.writeByte(entry.getValue() == null ? OP_DELETE : OP_PUT);
+      data.writeInt(key.length);
+      data.write(key);
+      if (entry.getValue() != null) {
+        data.writeInt(entry.getValue().length);
+        data.write(entry.getValue());
+      }
+    }
+    data.close();
+    return bytes.toByteArray();
+  }
+
+  private static Map<Key, byte[]> decodeRecord(byte[] record) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+    int count = data.readInt();
+    Map<Key, byte[]> writes = Maps.newLinkedHashMap();
+    for (int i = 0; i < count; i++) {
+      byte op = data.readByte();
+      byte[] key = new byte[data.readInt()];
+      data.readFully(key);
+      byte[] value = null;
+      if (op == OP_PUT) {
+        value = new byte[data.readInt()];
+        data.readFully(value);
+      } else if (op != OP_DELETE) {
+        throw new IOException("Bad op " + op + " in record");
+      }
+      writes.put((Key) deserialize(key), value);
+    }
+    return writes;
+  }
+
+  private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.writeLong(crc.getValue());
+    out.write(record);
+  }
+
+  private void appendRecord(Map<Key, byte[]> writes) throws IOException {
+    if (file == null) {
+      return;
+    }
+    byte[] record = encodeRecord(writes);
+    writeRecord(out, record);
+    out.flush();
+    if (sync) {
+      fileOut.getFD().sync();
+    }
+    logBytes += 12 + record.length;
+  }
+
+  private void openForAppend() throws IOException {
+    fileOut = new FileOutputStream(file, true);
+    out = new DataOutputStream(fileOut);
+  }
+
+  private void replay() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    long validBytes = 0;
+    int records = 0;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      while (true) {
+        byte[] record;
+        long checksum;
+        try {
+          int length = in.readInt();
+          checksum = in.readLong();
+          if (length < 0) {
+            throw new EOFException("Negative record length " + length);
+          }
+          record = new byte[length];
+          in.readFully(record);
+        } catch (EOFException e) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if (crc.getValue() != checksum) {
+          break;
+        }
+        Map<Key, byte[]> writes = decodeRecord(record);
+        apply(writes);
+        for (Key key : writes.keySet()) {
+          Key root = getRoot(key);
+          groupVersions.put(root, getGroupVersion(root) + 1);
+        }
+        validBytes += 12 + record.length;
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (validBytes < file.length()) {
+      log.warning("Discarding torn tail of " + file + ": " + (file.length() - validBytes)
+          + " bytes after " + records + " records");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(validBytes);
+      } finally {
+        raf.close();
+      }
+    }
+    logBytes = validBytes;
+    log.info("Replayed " + records + " records from " + file + ": " + entities.size()
+        + " entities, " + liveBytes + " live bytes");
+  }
+
+  private void maybeCompact() {
+    if (file != null && logBytes > MIN_COMPACTION_BYTES
+        && logBytes > COMPACTION_RATIO * liveBytes) {
+      try {
+        compact();
+      } catch (IOException e) {
+        // The old log is still intact, so we can keep going.
+        log.log(Level.WARNING, "Compaction of " + file + " failed", e);
+      }
+    }
+  }
+
+  /** Rewrites the log to contain only the live entities. */
+  public synchronized void compact() throws IOException {
+    Preconditions.checkState(file != null, "Not backed by a file");
+    File tmp = new File(file.getPath() + ".compact");
+    FileOutputStream tmpStream = new FileOutputStream(tmp);
+    DataOutputStream tmpOut = new DataOutputStream(tmpStream);
+    long newLogBytes = 0;
+    try {
+      // One record per entity keeps records small; atomicity across entities
+      // doesn't matter here since the file only becomes visible once complete.
+      for (Map.Entry<Key, byte[]> entry : entities.entrySet()) {
+        byte[] record = encodeRecord(ImmutableMap.of(entry.getKey(), entry.getValue()));
+        writeRecord(tmpOut, record);
+        newLogBytes += 12 + record.length;
+      }
+      tmpOut.flush();
+      tmpStream.getFD().sync();
+    } finally {
+      tmpOut.close();
+    }
+    out.close();
+    if (!tmp.renameTo(file)) {
+      openForAppend();
+      throw new IOException("Failed to rename " + tmp + " to " + file);
+    }
+    openForAppend();
+    log.info("Compacted " + file + " from " + logBytes + " to " + newLogBytes + " bytes");
+    logBytes = newLogBytes;
+  }
+
+  /** Closes the log file; the store must not be used afterwards. */
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  @Override public String toString() {
+    return "LocalEntityStore(" + file + ", " + entities.size() + " entities)";
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.appengine;
+
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Injects latency and timeouts into {@link LocalDatastoreBackend} operations,
+ * to make a local run behave more like the real datastore.
+ *
+ * Latencies follow a log-normal distribution given by its median and 99th
+ * percentile, which matches the long tail of RPC latencies better than a
+ * uniform or normal distribution.
+ */
+public class SimulatedLatency {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = Logger.getLogger(SimulatedLatency.class.getName());
+
+  /** The operations that latency can be injected into. */
+  public enum Operation {
+    BEGIN_TRANSACTION,
+    GET,
+    QUERY,
+    PUT,
+    DELETE,
+    COMMIT,
+  }
+
+  /** z-score of the 99th percentile of the standard normal distribution. */
+  private static final double Z_99 = 2.326;
+
+  /** Latency distribution of one operation. */
+  public static class Distribution {
+    private final double medianMillis;
+    private final double sigma;
+
+    public Distribution(double medianMillis, double p99Millis) {
+      Preconditions.checkArgument(medianMillis >= 0, "Negative median %s", medianMillis);
+      Preconditions.checkArgument(p99Millis >= medianMillis,
+          "99th percentile %s below median %s", p99Millis, medianMillis);
+      this.medianMillis = medianMillis;
+      this.sigma = medianMillis == 0 ? 0 : Math.log(p99Millis / medianMillis) / Z_99;
+    }
+
+    long sampleMillis(Random random) {
+      return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    @Override public String toString() {
+      return "Distribution(" + medianMillis + ", " + sigma + ")";
+    }
+  }
+
+  /** Injects nothing. */
+  public static final SimulatedLatency NONE =
+      new SimulatedLatency(ImmutableMap.<Operation, Distribution>of(), 0, new Random(0));
+
+  /**
+   * Latencies in the range we see for the high-replication datastore, with
+   * occasional timeouts.
+   */
+  public static SimulatedLatency typical(long seed) {
+    Map<Operation, Distribution> latencies = Maps.newEnumMap(Operation.class);
+    latencies.put(Operation.BEGIN_TRANSACTION, new Distribution(5, 30));
+    latencies.put(Operation.GET, new Distribution(10, 60));
+    latencies.put(Operation.QUERY, new Distribution(25, 150));
+    latencies.put(Operation.PUT, new Distribution(2, 10));
+    latencies.put(Operation.DELETE, new Distribution(2, 10));
+    latencies.put(Operation.COMMIT, new Distribution(40, 250));
+    return new SimulatedLatency(latencies, 0.001, new Random(seed));
+  }
+
+  private final EnumMap<Operation, Distribution> latencies;
+  private final double timeoutProbability;
+  // Guarded by itself.
+  private final Random random;
+
+  public SimulatedLatency(Map<Operation, Distribution> latencies, double timeoutProbability,
+      Random random) {
+    Preconditions.checkArgument(timeoutProbability >= 0 && timeoutProbability <= 1,
+        "Bad timeout probability %s", timeoutProbability);
+    this.latencies = latencies.isEmpty() ? Maps.newEnumMap(Operation.class)
+        : Maps.newEnumMap(latencies);
+    this.timeoutProbability = timeoutProbability;
+    this.random = Preconditions.checkNotNull(random, "Null random");
+  }
+
+  /**
+   * Sleeps for a sampled latency of the given operation, then possibly fails
+   * with a timeout.
+   */
+  public void apply(Operation op) {
+    Distribution distribution = latencies.get(op);
+    long sleepMillis;
+    boolean timeout;
+    synchronized (random) {
+      sleepMillis = distribution == null ? 0 : distribution.sampleMillis(random);
+      timeout = timeoutProbability > 0 && random.nextDouble() < timeoutProbability;
+    }
+    if (sleepMillis > 0) {
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while simulating latency of " + op, e);
+      }
+    }
+    if (timeout) {
+      throw new DatastoreTimeoutException("Simulated timeout in " + op);
+    }
+  }
+
+  @Override public String toString() {
+    return "SimulatedLatency(" + latencies + ", " + timeoutProbability + ")";
+  }
+}
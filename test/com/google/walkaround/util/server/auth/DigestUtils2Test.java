@@ -0,0 +1,40 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.auth;
+
+import com.google.walkaround.util.server.auth.DigestUtils2.Secret;
+
+import junit.framework.TestCase;
+
+public class DigestUtils2Test extends TestCase {
+
+  public void testHmacMatchesRfc2202() throws Exception {
+    Secret key = Secret.of("Jefe");
+    // Repeated to check that the reused Mac is reset between messages.
+    for (int i = 0; i < 3; i++) {
+      assertEquals("effcdf6ae5eb2fa2d27416d5f184df9c259a7c79",
+          DigestUtils2.hexHmac(key, "what do ya want for nothing?"));
+    }
+  }
+
+  public void testDifferentKeys() throws Exception {
+    String message = "what do ya want for nothing?";
+    assertFalse(DigestUtils2.hexHmac(Secret.of("Jefe"), message).equals(
+        DigestUtils2.hexHmac(Secret.of("Jeff"), message)));
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.util.server.gwt;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class SymbolIndexTest extends TestCase {
+
+  private static final String SYMBOL_MAP =
+      "# jsName, jsniIdent, className, memberName, sourceUri, sourceLine\n"
+      + "b,Lcom/example/Foo;.bar()V,com.example.Foo,bar,file:/Foo.java,12\n"
+      + "$clinit,Lcom/example/A;.$clinit()V,com.example.A,$clinit,Unknown,0\n"
+      + "aB,Lcom/example/Baz;.q()V,com.example.Baz,q,file:/Baz.java,7\n"
+      + "\u00e4,Lcom/example/U;.u()V,com.example.U,u,file:/U.java,3\n"
+      + "$clinit,Lcom/example/B;.$clinit()V,com.example.B,$clinit,Unknown,0\n";
+
+  private SymbolIndex index() throws IOException {
+    return SymbolIndex.fromSymbolMap(
+        new ByteArrayInputStream(SYMBOL_MAP.getBytes(Charsets.UTF_8)));
+  }
+
+  public void testLookup() throws Exception {
+    SymbolIndex index = index();
+    assertEquals(4, index.size());
+    assertEquals("Lcom/example/Foo;.bar()V,com.example.Foo,bar,file:/Foo.java,12",
+        index.get("b"));
+    assertEquals("Lcom/example/Baz;.q()V,com.example.Baz,q,file:/Baz.java,7", index.get("aB"));
+    assertEquals("Lcom/example/U;.u()V,com.example.U,u,file:/U.java,3", index.get("\u00e4"));
+    assertNull(index.get("a"));
+    assertNull(index.get("c"));
+    assertNull(index.get(""));
+    assertNull(SymbolIndex.EMPTY.get("b"));
+  }
+
+  public void testLaterDuplicateWins() throws Exception {
+    assertEquals("Lcom/example/B;.$clinit()V,com.example.B,$clinit,Unknown,0",
+        index().get("$clinit"));
+  }
+
+  public void testBadVersionRejected() throws Exception {
+    try {
+      SymbolIndex.fromBuffer(ByteBuffer.wrap(new byte[] { 0, 0, 0, 9, 0, 0, 0, 0 }));
+      fail();
+    } catch (IOException e) {
+      // ok
+    }
+  }
+
+}
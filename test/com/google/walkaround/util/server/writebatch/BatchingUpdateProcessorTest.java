@@ -17,6 +17,8 @@
 package com.google.walkaround.util.server.writebatch;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.walkaround.util.server.RetryHelper;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.RetryHelper.RetryStrategy;
@@ -24,6 +26,13 @@ import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
 
 import junit.framework.TestCase;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 import javax.annotation.Nullable;
 
 /**
@@ -227,4 +236,186 @@ public class BatchingUpdateProcessorTest extends TestCase {
     new TestProcessor(null, testException2, null, testException).runTest();
   }
 
+  // The tests below run updates on several threads through a processor whose
+  // transactions record what they commit, and whose first commit can be held
+  // up and made to fail.
+
+  private final List<List<String>> committedBatches =
+      Collections.synchronizedList(Lists.<List<String>>newArrayList());
+  private final List<Thread> combiners = Collections.synchronizedList(Lists.<Thread>newArrayList());
+  private final AtomicInteger commits = new AtomicInteger();
+  private final CountDownLatch firstCommitStarted = new CountDownLatch(1);
+  private final CountDownLatch releaseFirstCommit = new CountDownLatch(1);
+  private volatile boolean holdFirstCommit = false;
+  @Nullable private volatile RuntimeException firstCommitException = null;
+
+  private class RecordingTransaction implements UpdateTransaction<String, Result> {
+    private final List<String> updates = Lists.newArrayList();
+
+    @Override public Result processUpdate(String update) {
+      updates.add(update);
+      return new Result(false);
+    }
+
+    @Override public void commit() {
+      if (commits.incrementAndGet() == 1) {
+        firstCommitStarted.countDown();
+        if (holdFirstCommit) {
+          try {
+            releaseFirstCommit.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        if (firstCommitException != null) {
+          throw firstCommitException;
+        }
+      }
+      committedBatches.add(ImmutableList.copyOf(updates));
+    }
+
+    @Override public void rollback() {
+    }
+  }
+
+  private final BatchingUpdateProcessor<String, Result, RecordingTransaction> processor =
+      new BatchingUpdateProcessor<String, Result, RecordingTransaction>(
+          new TransactionFactory<Result, RecordingTransaction>() {
+            @Override public RecordingTransaction beginTransaction() {
+              combiners.add(Thread.currentThread());
+              return new RecordingTransaction();
+            }
+          },
+          RetryHelper.NO_RETRY);
+
+  private class Updater extends Thread {
+    private final List<String> updates;
+    final List<Result> results = Lists.newArrayList();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Updater(String... updates) {
+      this.updates = ImmutableList.copyOf(updates);
+    }
+
+    @Override public void run() {
+      try {
+        for (String update : updates) {
+          results.add(processor.processUpdate(update));
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    }
+  }
+
+  /** Waits until the thread has queued its update and parked. */
+  private void awaitParked(Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (LockSupport.getBlocker(thread) != processor) {
+      assertTrue("Timed out waiting for " + thread, System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private void awaitDone(Thread thread) throws InterruptedException {
+    thread.join(10 * 1000);
+    assertFalse(thread + " is stuck", thread.isAlive());
+  }
+
+  public void testCombinerHandsOffToWaitingThread() throws Exception {
+    holdFirstCommit = true;
+    Updater a = new Updater("a");
+    a.start();
+    firstCommitStarted.await();
+    Updater b = new Updater("b");
+    b.start();
+    awaitParked(b);
+    Updater c = new Updater("c");
+    c.start();
+    awaitParked(c);
+    releaseFirstCommit.countDown();
+    awaitDone(a);
+    awaitDone(b);
+    awaitDone(c);
+    for (Updater u : ImmutableList.of(a, b, c)) {
+      assertNull(u.failure.get());
+      assertEquals(ImmutableList.of(new Result(false)), u.results);
+    }
+    // a stepped down once its own update was done, and b, at the head of the
+    // queue, took over and did both its own update and c's in one batch.
+    assertEquals(ImmutableList.of(ImmutableList.of("a"), ImmutableList.of("b", "c")),
+        committedBatches);
+    assertEquals(ImmutableList.of(a, b), combiners);
+  }
+
+  public void testConcurrentUpdatesAreAllProcessed() throws Exception {
+    // Many short batches, so that threads keep enqueueing while the combiner
+    // steps down; none of them must be left behind.
+    int threads = 8;
+    int updatesPerThread = 200;
+    List<Updater> updaters = Lists.newArrayList();
+    for (int i = 0; i < threads; i++) {
+      String[] updates = new String[updatesPerThread];
+      for (int j = 0; j < updatesPerThread; j++) {
+        updates[j] = i + "-" + j;
+      }
+      updaters.add(new Updater(updates));
+    }
+    for (Updater u : updaters) {
+      u.start();
+    }
+    for (Updater u : updaters) {
+      awaitDone(u);
+      assertNull(u.failure.get());
+      assertEquals(updatesPerThread, u.results.size());
+    }
+    List<String> committed = Lists.newArrayList();
+    for (List<String> batch : committedBatches) {
+      committed.addAll(batch);
+    }
+    assertEquals(threads * updatesPerThread, committed.size());
+    // Each thread's updates are committed in the order it made them.
+    for (int i = 0; i < threads; i++) {
+      int next = 0;
+      for (String update : committed) {
+        if (update.startsWith(i + "-")) {
+          assertEquals(i + "-" + next, update);
+          next++;
+        }
+      }
+      assertEquals(updatesPerThread, next);
+    }
+  }
+
+  public void testCorruptionFailsAllWaitingThreads() throws Exception {
+    holdFirstCommit = true;
+    firstCommitException = new RuntimeException("Simulated commit failure");
+    Updater a = new Updater("a");
+    a.start();
+    firstCommitStarted.await();
+    List<Updater> waiting = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      Updater u = new Updater("w" + i);
+      u.start();
+      awaitParked(u);
+      waiting.add(u);
+    }
+    releaseFirstCommit.countDown();
+    awaitDone(a);
+    assertEquals("RuntimeException from doProcessUpdate()", a.failure.get().getMessage());
+    assertSame(firstCommitException, a.failure.get().getCause());
+    for (Updater u : waiting) {
+      awaitDone(u);
+      assertTrue(u.failure.get().getMessage().startsWith("Updater is corrupted"));
+    }
+    assertTrue(committedBatches.isEmpty());
+    // New updates fail right away.
+    try {
+      processor.processUpdate("late");
+      fail();
+    } catch (Error e) {
+      assertTrue(e.getMessage().startsWith("Updater is corrupted"));
+    }
+  }
+
 }
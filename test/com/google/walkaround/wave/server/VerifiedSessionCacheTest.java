@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server;
+
+import com.google.walkaround.slob.shared.ClientId;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import junit.framework.TestCase;
+
+public class VerifiedSessionCacheTest extends TestCase {
+
+  private static final int EXPIRY_SECONDS = 60 * 60;
+  private static final StableUserId ALICE = new StableUserId("alice");
+  private static final StableUserId BOB = new StableUserId("bob");
+  private static final String TOKEN = "signed-session";
+  private static final ObjectSession SESSION =
+      new ObjectSession(new SlobId("object"), new ClientId("client"), StoreType.CONV);
+
+  private static long inOneHour() {
+    return System.currentTimeMillis() + EXPIRY_SECONDS * 1000L;
+  }
+
+  public void testReturnsVerifiedSession() throws Exception {
+    VerifiedSessionCache cache = new VerifiedSessionCache(EXPIRY_SECONDS);
+    assertNull(cache.get(ALICE, TOKEN));
+    cache.put(ALICE, TOKEN, SESSION, inOneHour());
+    assertSame(SESSION, cache.get(ALICE, TOKEN));
+    assertNull(cache.get(ALICE, TOKEN + "x"));
+  }
+
+  public void testEntriesArePerUser() throws Exception {
+    VerifiedSessionCache cache = new VerifiedSessionCache(EXPIRY_SECONDS);
+    cache.put(ALICE, TOKEN, SESSION, inOneHour());
+    assertNull(cache.get(BOB, TOKEN));
+    assertSame(SESSION, cache.get(ALICE, TOKEN));
+  }
+
+  public void testExpiredEntryIsNotReturned() throws Exception {
+    VerifiedSessionCache cache = new VerifiedSessionCache(EXPIRY_SECONDS);
+    cache.put(ALICE, TOKEN, SESSION, System.currentTimeMillis() - 1);
+    assertNull(cache.get(ALICE, TOKEN));
+  }
+
+  public void testEntryExpiresWithItsSignature() throws Exception {
+    VerifiedSessionCache cache = new VerifiedSessionCache(EXPIRY_SECONDS);
+    cache.put(ALICE, TOKEN, SESSION, System.currentTimeMillis() + 500);
+    assertSame(SESSION, cache.get(ALICE, TOKEN));
+    Thread.sleep(600);
+    assertNull(cache.get(ALICE, TOKEN));
+  }
+
+  public void testNumberOfEntriesIsBounded() throws Exception {
+    int maxEntries = 10;
+    VerifiedSessionCache cache = new VerifiedSessionCache(EXPIRY_SECONDS, maxEntries);
+    int numPuts = 100;
+    for (int i = 0; i < numPuts; i++) {
+      cache.put(ALICE, TOKEN + i, SESSION, inOneHour());
+    }
+    int retained = 0;
+    for (int i = 0; i < numPuts; i++) {
+      if (cache.get(ALICE, TOKEN + i) != null) {
+        retained++;
+      }
+    }
+    assertTrue("" + retained, retained > 0 && retained <= maxEntries);
+    // The most recent entry is never the one evicted.
+    assertSame(SESSION, cache.get(ALICE, TOKEN + (numPuts - 1)));
+  }
+
+}
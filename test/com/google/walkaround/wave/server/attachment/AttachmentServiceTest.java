@@ -0,0 +1,187 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.attachment;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for the batched {@link AttachmentService#getMetadata} lookup.
+ */
+public class AttachmentServiceTest extends TestCase {
+
+  /**
+   * Serves metadata for the blobs in {@link #available}, leaving out all
+   * others as if their probes hadn't completed in time.
+   */
+  private static class FakeRawAttachmentService extends RawAttachmentService {
+    final Map<BlobKey, AttachmentMetadata> available = Maps.newHashMap();
+    final List<Set<BlobKey>> requestedKeys = Lists.newArrayList();
+    final List<Long> requestedTimes = Lists.newArrayList();
+
+    FakeRawAttachmentService() {
+      super(null, null, null, null, 0);
+    }
+
+    @Override public Map<BlobKey, AttachmentMetadata> getMetadata(Collection<BlobKey> blobKeys,
+        long maxTimeMillis) {
+      requestedKeys.add(ImmutableSet.copyOf(blobKeys));
+      requestedTimes.add(maxTimeMillis);
+      Map<BlobKey, AttachmentMetadata> result = Maps.newHashMap();
+      for (BlobKey key : blobKeys) {
+        if (available.containsKey(key)) {
+          result.put(key, available.get(key));
+        }
+      }
+      return result;
+    }
+  }
+
+  private static final BlobKey CACHED = new BlobKey("cached");
+  private static final BlobKey STORED = new BlobKey("stored");
+  private static final BlobKey RAW = new BlobKey("raw");
+  private static final BlobKey MISSING = new BlobKey("missing");
+  private static final BlobKey SLOW = new BlobKey("slow");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalMemcacheServiceTestConfig(),
+          new LocalDatastoreServiceTestConfig());
+
+  private FakeRawAttachmentService rawService;
+  private MetadataDirectory directory;
+  private MemcacheTable<BlobKey, AttachmentMetadata> cache;
+  private AttachmentService service;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    CheckedDatastore datastore =
+        new CheckedDatastore(DatastoreServiceFactory.getDatastoreService());
+    MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+    rawService = new FakeRawAttachmentService();
+    directory = new MetadataDirectory(datastore);
+    cache = MemcacheTable.of(memcache, AttachmentService.MEMCACHE_TAG);
+    service = new AttachmentService(rawService, null, datastore, memcache, 50000);
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private static AttachmentMetadata metadata(BlobKey key) throws Exception {
+    return new AttachmentMetadata(key,
+        new JSONObject().put("filename", key.getKeyString()).put("size", 10));
+  }
+
+  private static void assertMetadata(BlobKey key, AttachmentMetadata actual) throws Exception {
+    assertNotNull("No metadata for " + key, actual);
+    assertTrue(actual.isValid());
+    assertEquals(key, actual.getId());
+    assertEquals(metadata(key).getMetadataJsonString(), actual.getMetadataJsonString());
+  }
+
+  public void testEachStageIsOneBatchForWhatEarlierStagesMissed() throws Exception {
+    cache.put(CACHED, metadata(CACHED));
+    directory.putAllIdempotent(ImmutableList.of(metadata(STORED)));
+    rawService.available.put(RAW, metadata(RAW));
+    rawService.available.put(MISSING, AttachmentMetadata.createInvalid(MISSING));
+
+    Map<String, AttachmentMetadata> result = service.getMetadata(
+        ImmutableList.of("cached", "stored", "raw", "missing"), -1);
+
+    assertEquals(4, result.size());
+    assertMetadata(CACHED, result.get("cached"));
+    assertMetadata(STORED, result.get("stored"));
+    assertMetadata(RAW, result.get("raw"));
+    assertFalse(result.get("missing").isValid());
+    assertEquals(ImmutableList.of(ImmutableSet.of(RAW, MISSING)), rawService.requestedKeys);
+    assertEquals(ImmutableList.of(-1L), rawService.requestedTimes);
+  }
+
+  public void testResultsAreWrittenBack() throws Exception {
+    directory.putAllIdempotent(ImmutableList.of(metadata(STORED)));
+    rawService.available.put(RAW, metadata(RAW));
+    rawService.available.put(MISSING, AttachmentMetadata.createInvalid(MISSING));
+
+    service.getMetadata(ImmutableList.of("stored", "raw", "missing"), -1);
+
+    // Datastore hits go to memcache.
+    assertMetadata(STORED, cache.get(STORED));
+    // Valid raw results go to both.
+    assertMetadata(RAW, cache.get(RAW));
+    assertMetadata(RAW, directory.get(RAW));
+    // Invalid ones only to memcache.
+    assertFalse(cache.get(MISSING).isValid());
+    assertNull(directory.get(MISSING));
+
+    // A second lookup doesn't touch the raw data.
+    Map<String, AttachmentMetadata> result = service.getMetadata(
+        ImmutableList.of("stored", "raw", "missing"), -1);
+    assertEquals(3, result.size());
+    assertEquals(1, rawService.requestedKeys.size());
+  }
+
+  public void testIdsNotProbedInTimeAreLeftOutAndRetried() throws Exception {
+    rawService.available.put(RAW, metadata(RAW));
+
+    Map<String, AttachmentMetadata> result =
+        service.getMetadata(ImmutableList.of("raw", "slow"), 1000);
+
+    assertEquals(ImmutableSet.of("raw"), result.keySet());
+    assertMetadata(RAW, result.get("raw"));
+    long rawTimeMillis = rawService.requestedTimes.get(0);
+    assertTrue("" + rawTimeMillis, rawTimeMillis >= 0 && rawTimeMillis <= 1000);
+    // Nothing is recorded for the id that ran out of time.
+    assertNull(cache.get(SLOW));
+    assertNull(directory.get(SLOW));
+
+    rawService.available.put(SLOW, metadata(SLOW));
+    result = service.getMetadata(ImmutableList.of("raw", "slow"), 1000);
+
+    assertEquals(2, result.size());
+    assertMetadata(SLOW, result.get("slow"));
+    assertEquals(ImmutableSet.of(SLOW), rawService.requestedKeys.get(1));
+  }
+
+  public void testRawTimeIsNeverNegative() throws Exception {
+    service.getMetadata(ImmutableList.of("slow"), 0);
+
+    assertEquals(ImmutableList.of(0L), rawService.requestedTimes);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.walkaround.wave.server.googleimport;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.inject.util.Providers;
+import com.google.walkaround.proto.ImportTaskPayload;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.servlet.TryAgainLaterException;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+public class ImportTaskHandlerTest extends TestCase {
+
+  /**
+   * Completes all tasks except those for the given waves, and then fails the
+   * batch as a whole if asked to.
+   */
+  private class FakeTaskDispatcher extends TaskDispatcher {
+    private final Set<String> failingWaveIds;
+    List<List<ImportTask>> batches = Lists.newArrayList();
+    long stopTimeMillis = -1;
+    boolean failBatch = false;
+    // Whether each task was gone from the datastore right after it was
+    // reported as completed.
+    List<Boolean> deletedWhenReported = Lists.newArrayList();
+
+    FakeTaskDispatcher(Set<String> failingWaveIds) {
+      super(null, null, null);
+      this.failingWaveIds = failingWaveIds;
+    }
+
+    @Override public List<ImportTask> processBatch(List<ImportTask> tasks, long stopTimeMillis,
+        BatchListener listener) throws IOException {
+      batches.add(tasks);
+      this.stopTimeMillis = stopTimeMillis;
+      ImmutableList.Builder<ImportTask> done = ImmutableList.builder();
+      for (ImportTask task : tasks) {
+        if (!failingWaveIds.contains(task.getPayload().getImportWaveTask().getWaveId())) {
+          listener.taskCompleted(task);
+          try {
+            deletedWhenReported.add(getTask(task.getTaskId()) == null);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+          done.add(task);
+        }
+      }
+      if (failBatch) {
+        throw new IOException("Simulated batch failure");
+      }
+      return done.build();
+    }
+  }
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalTaskQueueTestConfig());
+
+  private CheckedDatastore datastore;
+  private PerUserTable table;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    datastore = new CheckedDatastore(DatastoreServiceFactory.getDatastoreService());
+    table = PerUserTableTest.newTable();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  private ImportTaskHandler newHandler(TaskDispatcher dispatcher) {
+    ImportTaskHandler handler = new ImportTaskHandler();
+    handler.datastore = datastore;
+    handler.perUserTable = table;
+    handler.taskDispatcher = Providers.of(dispatcher);
+    return handler;
+  }
+
+  private List<ImportTask> addImportWaveTasks(String... waveIds) throws Exception {
+    List<ImportTaskPayload> payloads = Lists.newArrayList();
+    for (String waveId : waveIds) {
+      payloads.add(PerUserTableTest.importWavePayload(waveId));
+    }
+    return PerUserTableTest.addTasks(datastore, table, payloads);
+  }
+
+  @Nullable private ImportTask getTask(long taskId) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      return table.getTask(tx, PerUserTableTest.USER, taskId);
+    } finally {
+      tx.close();
+    }
+  }
+
+  public void testBatchDeletesCompletedTasks() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b", "w+c");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(1).getTaskId());
+    assertEquals(1, dispatcher.batches.size());
+    assertEquals(tasks.get(1), dispatcher.batches.get(0).get(0));
+    assertEquals(ImmutableSet.copyOf(tasks), ImmutableSet.copyOf(dispatcher.batches.get(0)));
+    for (ImportTask task : tasks) {
+      assertNull(getTask(task.getTaskId()));
+    }
+  }
+
+  public void testBatchReleasesFailedTasks() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b", "w+c");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.of("w+c"));
+    // The task that started the batch succeeded, so the failure of another
+    // task doesn't fail the callback.
+    newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(0).getTaskId());
+    assertNull(getTask(tasks.get(0).getTaskId()));
+    assertNull(getTask(tasks.get(1).getTaskId()));
+    assertEquals(tasks.get(2), getTask(tasks.get(2).getTaskId()));
+
+    // The failed task was released, so its own callback can retry it.
+    FakeTaskDispatcher retry = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    newHandler(retry).handleBatch(PerUserTableTest.USER, tasks.get(2).getTaskId());
+    assertEquals(ImmutableList.of(ImmutableList.of(tasks.get(2))), retry.batches);
+    assertNull(getTask(tasks.get(2).getTaskId()));
+  }
+
+  public void testBatchFailsIfOwnTaskFails() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.of("w+a"));
+    try {
+      newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(0).getTaskId());
+      fail();
+    } catch (IOException e) {
+      // ok
+    }
+    assertEquals(tasks.get(0), getTask(tasks.get(0).getTaskId()));
+    assertNull(getTask(tasks.get(1).getTaskId()));
+  }
+
+  public void testClaimedTaskBacksOff() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b");
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      table.claimTasks(tx, PerUserTableTest.USER, tasks.get(0).getTaskId(),
+          PerUserTableTest.IS_IMPORT_WAVE, 10, 10, System.currentTimeMillis() + 60 * 1000);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    try {
+      newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(1).getTaskId());
+      fail();
+    } catch (TryAgainLaterException e) {
+      // ok
+    }
+    assertTrue(dispatcher.batches.isEmpty());
+    assertEquals(tasks.get(1), getTask(tasks.get(1).getTaskId()));
+  }
+
+  public void testCompletedTasksAreDeletedRightAway() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(0).getTaskId(), 1234);
+    assertEquals(1234, dispatcher.stopTimeMillis);
+    assertEquals(ImmutableList.of(true, true), dispatcher.deletedWhenReported);
+  }
+
+  public void testFailedBatchKeepsCompletedTasksDeletedAndReleasesOthers() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a", "w+b", "w+c");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.of("w+c"));
+    dispatcher.failBatch = true;
+    try {
+      newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(0).getTaskId());
+      fail();
+    } catch (IOException e) {
+      assertEquals("Simulated batch failure", e.getMessage());
+    }
+    assertNull(getTask(tasks.get(0).getTaskId()));
+    assertNull(getTask(tasks.get(1).getTaskId()));
+    assertEquals(tasks.get(2), getTask(tasks.get(2).getTaskId()));
+
+    // The task that wasn't completed was released, so its own callback
+    // doesn't have to wait for the claim to expire.
+    FakeTaskDispatcher retry = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    newHandler(retry).handleBatch(PerUserTableTest.USER, tasks.get(2).getTaskId());
+    assertEquals(ImmutableList.of(ImmutableList.of(tasks.get(2))), retry.batches);
+    assertNull(getTask(tasks.get(2).getTaskId()));
+  }
+
+  public void testMissingTaskIsIgnored() throws Exception {
+    List<ImportTask> tasks = addImportWaveTasks("w+a");
+    FakeTaskDispatcher dispatcher = new FakeTaskDispatcher(ImmutableSet.<String>of());
+    newHandler(dispatcher).handleBatch(PerUserTableTest.USER, tasks.get(0).getTaskId() + 1000);
+    assertTrue(dispatcher.batches.isEmpty());
+    assertEquals(tasks.get(0), getTask(tasks.get(0).getTaskId()));
+  }
+}
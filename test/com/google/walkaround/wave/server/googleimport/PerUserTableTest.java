@@ -0,0 +1,486 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.walkaround.wave.server.googleimport;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.walkaround.proto.ImportTaskPayload;
+import com.google.walkaround.proto.ImportWaveTask;
+import com.google.walkaround.proto.RobotSearchDigest;
+import com.google.walkaround.proto.gson.FindRemoteWavesTaskGsonImpl;
+import com.google.walkaround.proto.gson.ImportTaskPayloadGsonImpl;
+import com.google.walkaround.proto.gson.ImportWaveTaskGsonImpl;
+import com.google.walkaround.proto.gson.RobotSearchDigestGsonImpl;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.wave.server.WalkaroundServletModule;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.googleimport.PerUserTable.BulkDeleteKind;
+import com.google.walkaround.wave.server.gxp.SourceInstance;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.id.WaveId;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+public class PerUserTableTest extends TestCase {
+
+  static final StableUserId USER = new StableUserId("user");
+
+  static final Predicate<ImportTask> IS_IMPORT_WAVE = new Predicate<ImportTask>() {
+    @Override public boolean apply(ImportTask task) {
+      return task.getPayload().hasImportWaveTask();
+    }
+  };
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(),
+          new LocalTaskQueueTestConfig());
+
+  private static final SourceInstance INSTANCE = new SourceInstance() {
+    @Override public String serialize() {
+      return "instance";
+    }
+
+    @Override public String getApiUrl() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public String getShortName() {
+      return "instance";
+    }
+
+    @Override public String getLongName() {
+      return "instance";
+    }
+
+    @Override public String getWaveLink(WaveId waveId) {
+      throw new UnsupportedOperationException();
+    }
+  };
+
+  private static final SourceInstance.Factory INSTANCE_FACTORY = new SourceInstance.Factory() {
+    @Override public List<? extends SourceInstance> getInstances() {
+      return ImmutableList.of(INSTANCE);
+    }
+
+    @Override public SourceInstance parseUnchecked(String serialized) {
+      assertEquals(INSTANCE.serialize(), serialized);
+      return INSTANCE;
+    }
+  };
+
+  private CheckedDatastore datastore;
+  private PerUserTable table;
+
+  static ImportTaskPayload importWavePayload(String waveId) {
+    ImportWaveTask task = new ImportWaveTaskGsonImpl();
+    task.setInstance("instance");
+    task.setWaveId(waveId);
+    ImportTaskPayload payload = new ImportTaskPayloadGsonImpl();
+    payload.setImportWaveTask(task);
+    return payload;
+  }
+
+  static ImportTaskPayload findWavesPayload() {
+    FindRemoteWavesTaskGsonImpl task = new FindRemoteWavesTaskGsonImpl();
+    task.setInstance("instance");
+    task.setOnOrAfterDays(0);
+    task.setBeforeDays(1);
+    ImportTaskPayload payload = new ImportTaskPayloadGsonImpl();
+    payload.setFindWavesTask(task);
+    return payload;
+  }
+
+  static PerUserTable newTable() {
+    // Tasks don't refer to source instances, so no factory is needed.
+    return new PerUserTable(null, QueueFactory.getDefaultQueue());
+  }
+
+  static List<ImportTask> addTasks(CheckedDatastore datastore, PerUserTable table,
+      List<ImportTaskPayload> payloads) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+      List<ImportTask> tasks = table.addTasks(tx, USER, payloads, delta);
+      table.applySummaryDelta(tx, USER, delta);
+      tx.commit();
+      return tasks;
+    } finally {
+      tx.close();
+    }
+  }
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+    datastore = new CheckedDatastore(DatastoreServiceFactory.getDatastoreService());
+    table = new PerUserTable(INSTANCE_FACTORY, QueueFactory.getDefaultQueue());
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  @Nullable private List<ImportTask> claim(long taskId, int maxTasks, long claimedUntilMillis)
+      throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      List<ImportTask> claimed = table.claimTasks(tx, USER, taskId, IS_IMPORT_WAVE, maxTasks,
+          100, claimedUntilMillis);
+      if (claimed != null && !claimed.isEmpty()) {
+        tx.commit();
+      }
+      return claimed;
+    } finally {
+      tx.close();
+    }
+  }
+
+  private List<ImportTask> claim(long taskId, int maxTasks) throws Exception {
+    return claim(taskId, maxTasks, System.currentTimeMillis() + 60 * 1000);
+  }
+
+  private void unclaim(long taskId) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      table.unclaimTask(tx, USER, taskId);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+  }
+
+  private static Set<Long> ids(List<ImportTask> tasks) {
+    Set<Long> out = Sets.newHashSet();
+    for (ImportTask task : tasks) {
+      out.add(task.getTaskId());
+    }
+    return out;
+  }
+
+  public void testClaimTakesOwnTaskAndOtherBatchableTasks() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), findWavesPayload(), importWavePayload("w+b"),
+        importWavePayload("w+c")));
+    List<ImportTask> claimed = claim(tasks.get(2).getTaskId(), 10);
+    assertEquals(3, claimed.size());
+    assertEquals(tasks.get(2), claimed.get(0));
+    assertEquals(ImmutableSet.of(tasks.get(0).getTaskId(), tasks.get(2).getTaskId(),
+        tasks.get(3).getTaskId()), ids(claimed));
+  }
+
+  public void testClaimIsLimitedToMaxTasks() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b"), importWavePayload("w+c")));
+    List<ImportTask> first = claim(tasks.get(0).getTaskId(), 2);
+    assertEquals(2, first.size());
+    // The remaining task is not claimed, and a batch started from it doesn't
+    // take any of the claimed ones.
+    Set<Long> remaining = Sets.difference(ids(tasks), ids(first));
+    assertEquals(1, remaining.size());
+    long last = remaining.iterator().next();
+    assertEquals(ImmutableSet.of(last), ids(claim(last, 2)));
+  }
+
+  public void testClaimedTaskCannotBeClaimedAgain() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    claim(tasks.get(0).getTaskId(), 10);
+    assertEquals(ImmutableList.of(), claim(tasks.get(1).getTaskId(), 10));
+    assertEquals(ImmutableList.of(), claim(tasks.get(0).getTaskId(), 10));
+  }
+
+  public void testClaimOfMissingTaskReturnsNull() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a")));
+    assertNull(claim(tasks.get(0).getTaskId() + 1000, 10));
+  }
+
+  public void testUnclaimMakesTaskAvailableAgain() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    claim(tasks.get(0).getTaskId(), 10);
+    unclaim(tasks.get(1).getTaskId());
+    assertEquals(ImmutableList.of(tasks.get(1)), claim(tasks.get(1).getTaskId(), 10));
+  }
+
+  public void testExpiredClaimsAreIgnored() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    claim(tasks.get(0).getTaskId(), 10, System.currentTimeMillis() - 1);
+    assertEquals(ids(tasks), ids(claim(tasks.get(1).getTaskId(), 10)));
+  }
+
+  private static RobotSearchDigest digest(String waveId, long lastModifiedMillis) {
+    RobotSearchDigest digest = new RobotSearchDigestGsonImpl();
+    digest.setWaveId(WaveId.of("example.com", waveId).serialise());
+    digest.setTitle("title " + waveId);
+    digest.setSnippet("snippet");
+    digest.setLastModifiedMillis(lastModifiedMillis);
+    digest.setBlipCount(1);
+    digest.setUnreadBlipCount(0);
+    return digest;
+  }
+
+  private void addRemoteWaves(List<RobotSearchDigest> digests) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+      assertTrue(table.addRemoteWaves(tx, USER, INSTANCE, digests, delta));
+      table.applySummaryDelta(tx, USER, delta);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+  }
+
+  private void deleteTasks(List<Long> taskIds) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+      table.deleteTasks(tx, USER, taskIds, delta);
+      table.applySummaryDelta(tx, USER, delta);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+  }
+
+  private int deleteSome(BulkDeleteKind kind, int limit) throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+      int deleted = table.deleteSome(tx, USER, kind, limit, delta);
+      table.applySummaryDelta(tx, USER, delta);
+      tx.commit();
+      return deleted;
+    } finally {
+      tx.close();
+    }
+  }
+
+  @Nullable private PerUserTable.Summary getSummary() throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      return table.getSummary(tx, USER);
+    } finally {
+      tx.rollback();
+    }
+  }
+
+  private void assertSummary(long waveCount, long taskCount) throws Exception {
+    PerUserTable.Summary summary = getSummary();
+    assertNotNull(summary);
+    assertEquals(waveCount, summary.getWaveCount());
+    assertEquals(taskCount, summary.getTaskCount());
+  }
+
+  private PerUserTable.Page<ImportTask> getTasks(@Nullable String cursor, int pageSize)
+      throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      return table.getTasks(tx, USER, cursor, pageSize);
+    } finally {
+      tx.rollback();
+    }
+  }
+
+  private PerUserTable.Page<RemoteWave> getWaves(@Nullable String cursor, int pageSize)
+      throws Exception {
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      return table.getWaves(tx, USER, cursor, pageSize);
+    } finally {
+      tx.rollback();
+    }
+  }
+
+  private static List<String> titles(List<RemoteWave> waves) {
+    ImmutableList.Builder<String> out = ImmutableList.builder();
+    for (RemoteWave wave : waves) {
+      out.add(wave.getDigest().getTitle());
+    }
+    return out.build();
+  }
+
+  public void testTaskPagesFollowCursor() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b"), importWavePayload("w+c"),
+        importWavePayload("w+d"), importWavePayload("w+e")));
+    PerUserTable.Page<ImportTask> first = getTasks(null, 2);
+    assertEquals(tasks.subList(0, 2), first.getItems());
+    assertNotNull(first.getNextCursor());
+    PerUserTable.Page<ImportTask> second = getTasks(first.getNextCursor(), 2);
+    assertEquals(tasks.subList(2, 4), second.getItems());
+    assertNotNull(second.getNextCursor());
+    PerUserTable.Page<ImportTask> third = getTasks(second.getNextCursor(), 2);
+    assertEquals(tasks.subList(4, 5), third.getItems());
+    assertNull(third.getNextCursor());
+  }
+
+  public void testExactlyFullLastPageHasNoCursor() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    PerUserTable.Page<ImportTask> page = getTasks(null, 2);
+    assertEquals(tasks, page.getItems());
+    assertNull(page.getNextCursor());
+  }
+
+  public void testWavePagesAreMostRecentFirst() throws Exception {
+    addRemoteWaves(ImmutableList.of(
+        digest("w+a", 1000), digest("w+b", 3000), digest("w+c", 2000)));
+    PerUserTable.Page<RemoteWave> first = getWaves(null, 2);
+    assertEquals(ImmutableList.of("title w+b", "title w+c"), titles(first.getItems()));
+    assertEquals(INSTANCE, first.getItems().get(0).getSourceInstance());
+    PerUserTable.Page<RemoteWave> second = getWaves(first.getNextCursor(), 2);
+    assertEquals(ImmutableList.of("title w+a"), titles(second.getItems()));
+    assertNull(second.getNextCursor());
+  }
+
+  public void testBadCursorIsRejected() throws Exception {
+    try {
+      getWaves("not a cursor", 2);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // ok
+    }
+  }
+
+  public void testSummaryIsNullBeforeFirstWrite() throws Exception {
+    assertNull(getSummary());
+  }
+
+  public void testSummaryCountsAddsAndDeletes() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b"), findWavesPayload()));
+    assertSummary(0, 3);
+    addRemoteWaves(ImmutableList.of(digest("w+a", 1000), digest("w+b", 2000)));
+    assertSummary(2, 3);
+    // Waves that already exist are not counted twice.
+    addRemoteWaves(ImmutableList.of(digest("w+b", 2000), digest("w+c", 3000)));
+    assertSummary(3, 3);
+    // Tasks that are already gone are not subtracted twice.
+    deleteTasks(ImmutableList.of(tasks.get(0).getTaskId()));
+    deleteTasks(ImmutableList.of(tasks.get(0).getTaskId(), tasks.get(1).getTaskId()));
+    assertSummary(3, 1);
+    assertEquals(2, deleteSome(BulkDeleteKind.WAVES, 2));
+    assertSummary(1, 1);
+    assertEquals(1, deleteSome(BulkDeleteKind.TASKS, 10));
+    assertSummary(1, 0);
+  }
+
+  public void testBackfillCountsLegacyUsers() throws Exception {
+    addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    addRemoteWaves(ImmutableList.of(digest("w+a", 1000)));
+    // Drop the summary to simulate a user who started importing before we
+    // had summaries.
+    DatastoreService raw = DatastoreServiceFactory.getDatastoreService();
+    for (Entity summary : raw.prepare(new Query("ImportSummary").setKeysOnly()).asIterable()) {
+      raw.delete(summary.getKey());
+    }
+    assertNull(getSummary());
+
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      assertTrue(table.backfillSummary(tx, USER));
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    assertSummary(1, 2);
+
+    tx = datastore.beginTransaction();
+    try {
+      assertFalse(table.backfillSummary(tx, USER));
+    } finally {
+      tx.rollback();
+    }
+  }
+
+  private int countSummaryBackfillTasks() {
+    int count = 0;
+    for (QueueStateInfo.TaskStateInfo task : LocalTaskQueueTestConfig.getLocalTaskQueue()
+        .getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName()).getTaskInfo()) {
+      if (task.getUrl().equals(WalkaroundServletModule.IMPORT_SUMMARY_TASK_PATH)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public void testFirstWriteOfNewUserStartsSummaryFromZero() throws Exception {
+    addTasks(datastore, table, ImmutableList.of(importWavePayload("w+a")));
+    assertSummary(0, 1);
+    assertEquals(0, countSummaryBackfillTasks());
+  }
+
+  public void testFirstWriteOfLegacyUserSchedulesBackfillInsteadOfCounting() throws Exception {
+    addRemoteWaves(ImmutableList.of(digest("w+a", 1000), digest("w+b", 2000)));
+    DatastoreService raw = DatastoreServiceFactory.getDatastoreService();
+    for (Entity summary : raw.prepare(new Query("ImportSummary").setKeysOnly()).asIterable()) {
+      raw.delete(summary.getKey());
+    }
+    addTasks(datastore, table, ImmutableList.of(importWavePayload("w+a")));
+    assertNull(getSummary());
+    assertEquals(1, countSummaryBackfillTasks());
+
+    // The backfill counts the write that scheduled it.
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      assertTrue(table.backfillSummary(tx, USER));
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    assertSummary(2, 1);
+  }
+
+  public void testSeveralWritesInOneTransactionAreSummedUp() throws Exception {
+    List<ImportTask> tasks = addTasks(datastore, table, ImmutableList.of(
+        importWavePayload("w+a"), importWavePayload("w+b")));
+    CheckedTransaction tx = datastore.beginTransaction();
+    try {
+      PerUserTable.SummaryDelta delta = new PerUserTable.SummaryDelta();
+      table.addTasks(tx, USER, ImmutableList.of(importWavePayload("w+c")), delta);
+      table.addRemoteWaves(tx, USER, INSTANCE, ImmutableList.of(digest("w+a", 1000)), delta);
+      table.deleteTasks(tx, USER, ImmutableList.of(tasks.get(0).getTaskId()), delta);
+      table.applySummaryDelta(tx, USER, delta);
+      tx.commit();
+    } finally {
+      tx.close();
+    }
+    assertSummary(1, 2);
+  }
+}
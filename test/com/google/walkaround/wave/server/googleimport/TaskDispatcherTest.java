@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.walkaround.wave.server.googleimport;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.walkaround.proto.ImportWaveTask;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class TaskDispatcherTest extends TestCase {
+
+  private static final StableUserId USER = new StableUserId("user");
+
+  /** Fails the waves it is told to, and imports the others. */
+  private static class FakeImportWaveProcessor extends ImportWaveProcessor {
+    private final Map<String, Throwable> failuresByWaveId;
+    private final boolean permanentFailure;
+    List<ImportWaveTask> requested = null;
+    long requestedStopTimeMillis = -1;
+
+    FakeImportWaveProcessor(Map<String, Throwable> failuresByWaveId, boolean permanentFailure) {
+      super(null, null, null);
+      this.failuresByWaveId = failuresByWaveId;
+      this.permanentFailure = permanentFailure;
+    }
+
+    @Override public Map<ImportWaveTask, Throwable> importWaves(List<ImportWaveTask> tasks,
+        long stopTimeMillis, ImportListener listener) throws PermanentFailure {
+      requested = tasks;
+      requestedStopTimeMillis = stopTimeMillis;
+      if (permanentFailure) {
+        throw new PermanentFailure("Simulated failure");
+      }
+      ImmutableMap.Builder<ImportWaveTask, Throwable> out = ImmutableMap.builder();
+      for (ImportWaveTask task : tasks) {
+        if (failuresByWaveId.containsKey(task.getWaveId())) {
+          out.put(task, failuresByWaveId.get(task.getWaveId()));
+        } else {
+          listener.waveImported(task);
+        }
+      }
+      return out.build();
+    }
+  }
+
+  /** Records the tasks it is told about. */
+  private static class RecordingListener implements TaskDispatcher.BatchListener {
+    final List<ImportTask> completed = Lists.newArrayList();
+
+    @Override public void taskCompleted(ImportTask task) {
+      completed.add(task);
+    }
+  }
+
+  private static ImportTask task(long id, String waveId) {
+    return new ImportTask(USER, id, 0, PerUserTableTest.importWavePayload(waveId));
+  }
+
+  public void testProcessBatchReturnsCompletedTasks() throws Exception {
+    FakeImportWaveProcessor processor = new FakeImportWaveProcessor(
+        ImmutableMap.<String, Throwable>of("w+b", new IOException("b failed")), false);
+    TaskDispatcher dispatcher = new TaskDispatcher(null, null, processor);
+    ImportTask a = task(1, "w+a");
+    ImportTask b = task(2, "w+b");
+    ImportTask c = task(3, "w+c");
+    RecordingListener listener = new RecordingListener();
+    assertEquals(ImmutableList.of(a, c),
+        dispatcher.processBatch(ImmutableList.of(a, b, c), 1234, listener));
+    assertEquals(ImmutableList.of(a.getPayload().getImportWaveTask(),
+            b.getPayload().getImportWaveTask(), c.getPayload().getImportWaveTask()),
+        processor.requested);
+    assertEquals(1234, processor.requestedStopTimeMillis);
+    assertEquals(ImmutableList.of(a, c), listener.completed);
+  }
+
+  public void testProcessBatchRejectsTasksThatAreNotBatchable() throws Exception {
+    TaskDispatcher dispatcher = new TaskDispatcher(null, null,
+        new FakeImportWaveProcessor(ImmutableMap.<String, Throwable>of(), false));
+    ImportTask find = new ImportTask(USER, 2, 0, PerUserTableTest.findWavesPayload());
+    assertTrue(dispatcher.isBatchable(task(1, "w+a")));
+    assertFalse(dispatcher.isBatchable(find));
+    try {
+      dispatcher.processBatch(ImmutableList.of(task(1, "w+a"), find), Long.MAX_VALUE,
+          new RecordingListener());
+      fail();
+    } catch (IllegalArgumentException e) {
+      // ok
+    }
+  }
+
+  public void testProcessBatchPermanentFailure() throws Exception {
+    TaskDispatcher dispatcher = new TaskDispatcher(null, null,
+        new FakeImportWaveProcessor(ImmutableMap.<String, Throwable>of(), true));
+    try {
+      dispatcher.processBatch(ImmutableList.of(task(1, "w+a")), Long.MAX_VALUE,
+          new RecordingListener());
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof PermanentFailure);
+    }
+  }
+
+  public void testProcessTaskChainsImportFailure() throws Exception {
+    IOException cause = new IOException("a failed");
+    TaskDispatcher dispatcher = new TaskDispatcher(null, null,
+        new FakeImportWaveProcessor(ImmutableMap.<String, Throwable>of("w+a", cause), false));
+    try {
+      dispatcher.processTask(task(1, "w+a"));
+      fail();
+    } catch (IOException e) {
+      assertSame(cause, e.getCause());
+    }
+  }
+}
@@ -4,12 +4,17 @@ package com.google.walkaround.wave.server.model;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.walkaround.slob.shared.ChangeData;
+import com.google.walkaround.slob.shared.ChangeRejected;
 import com.google.walkaround.slob.shared.ClientId;
+import com.google.walkaround.slob.shared.SlobModel.Slob;
+import com.google.walkaround.wave.shared.IdHack;
 import com.google.walkaround.wave.shared.WaveSerializer;
 
 import junit.framework.TestCase;
 
+import org.waveprotocol.wave.model.document.operation.AnnotationBoundaryMapBuilder;
 import org.waveprotocol.wave.model.document.operation.DocOp;
 import org.waveprotocol.wave.model.document.operation.impl.DocOpBuilder;
 import org.waveprotocol.wave.model.operation.wave.BlipContentOperation;
@@ -17,6 +22,7 @@ import org.waveprotocol.wave.model.operation.wave.WaveletBlipOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperation;
 import org.waveprotocol.wave.model.operation.wave.WaveletOperationContext;
 import org.waveprotocol.wave.model.wave.ParticipantId;
+import org.waveprotocol.wave.model.wave.data.impl.WaveletDataImpl;
 
 import java.util.List;
 
@@ -39,7 +45,102 @@ public class WaveObjectStoreModelTest extends TestCase {
   private static final ClientId CLIENT_ID_1 = new ClientId("client2");
 
   private WaveletOperation waveletOp(DocOp docOp) {
-    return new WaveletBlipOperation(DOC_ID, new BlipContentOperation(DEFAULT_CONTEXT, docOp));
+    return waveletOp(DOC_ID, docOp);
+  }
+
+  private WaveletOperation waveletOp(String docId, DocOp docOp) {
+    return new WaveletBlipOperation(docId, new BlipContentOperation(DEFAULT_CONTEXT, docOp));
+  }
+
+  private void apply(Slob slob, WaveletOperation op) throws Exception {
+    slob.apply(new ChangeData<String>(CLIENT_ID_1, SERIALIZER.serializeDelta(op)));
+  }
+
+  // Compares in the format produced by WaveSerializer, since the order of
+  // JSON members in snapshots isn't significant.
+  private void assertSameWavelet(String expected, String actual) throws Exception {
+    assertEquals(
+        SERIALIZER.serializeWavelet(
+            SERIALIZER.deserializeWavelet(IdHack.FAKE_WAVELET_NAME, expected)),
+        SERIALIZER.serializeWavelet(
+            SERIALIZER.deserializeWavelet(IdHack.FAKE_WAVELET_NAME, actual)));
+  }
+
+  /**
+   * Applies {@code op} to {@code slob}, which has seen {@code history} so far,
+   * and checks that its snapshot is the same as that of a new object that
+   * has seen the same ops but never been snapshotted before.
+   */
+  private void applyAndCheckSnapshot(Slob slob, List<WaveletOperation> history,
+      WaveletOperation op) throws Exception {
+    apply(slob, op);
+    history.add(op);
+    Slob fresh = MODEL.create(null);
+    for (WaveletOperation previous : history) {
+      apply(fresh, previous);
+    }
+    assertSameWavelet(fresh.snapshot(), slob.snapshot());
+  }
+
+  public void testIncrementalSnapshot() throws Exception {
+    Slob slob = MODEL.create(null);
+    List<WaveletOperation> history = Lists.newArrayList();
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("conversation", new DocOpBuilder().characters("m").build()));
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("b+1", new DocOpBuilder().characters("one").build()));
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("b+2", new DocOpBuilder().characters("two").build()));
+    String snapshot = slob.snapshot();
+    assertSameWavelet(snapshot, MODEL.create(snapshot).snapshot());
+
+    // A blip edit.
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("b+2", new DocOpBuilder().retain(3).characters("!").build()));
+    // A manifest edit.
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("conversation", new DocOpBuilder().retain(1).characters("n").build()));
+    // A data document, like the read state in a user data wavelet.
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("m/read", new DocOpBuilder().characters("r").build()));
+    applyAndCheckSnapshot(slob, history,
+        waveletOp("m/read", new DocOpBuilder().retain(1).characters("s").build()));
+    // An annotation-only change.
+    applyAndCheckSnapshot(slob, history, waveletOp("b+1", new DocOpBuilder()
+        .annotationBoundary(new AnnotationBoundaryMapBuilder().change("k", null, "v").build())
+        .retain(3)
+        .annotationBoundary(new AnnotationBoundaryMapBuilder().end("k").build())
+        .build()));
+    assertTrue(((WaveObjectStoreModel.ReadableWaveletObject) slob).getSnippet().contains("two!"));
+  }
+
+  private void assertTextMatchesSnapshot(Slob slob) throws Exception {
+    WaveletDataImpl wavelet =
+        SERIALIZER.deserializeWavelet(IdHack.FAKE_WAVELET_NAME, slob.snapshot());
+    assertEquals(TextRenderer.renderToText(wavelet),
+        ((WaveObjectStoreModel.ReadableWaveletObject) slob).getSnippet());
+    assertEquals(TextRenderer.renderToHtml(wavelet), slob.getIndexedContent());
+  }
+
+  public void testTextFollowsDocumentChanges() throws Exception {
+    Slob slob = MODEL.create(null);
+    apply(slob, waveletOp("a", new DocOpBuilder().characters("a<").build()));
+    apply(slob, waveletOp("b", new DocOpBuilder().characters("b").build()));
+    assertTextMatchesSnapshot(slob);
+    // Only b is re-rendered; a's cached rendering has to stay in place.
+    apply(slob, waveletOp("b", new DocOpBuilder().retain(1).characters("c").build()));
+    assertTextMatchesSnapshot(slob);
+    apply(slob, waveletOp("c", new DocOpBuilder().characters("d").build()));
+    assertTextMatchesSnapshot(slob);
+    // An op that fails to apply leaves the text as it was.
+    String before = slob.getIndexedContent();
+    try {
+      apply(slob, waveletOp("a", new DocOpBuilder().retain(5).build()));
+      fail();
+    } catch (ChangeRejected e) {
+      // ok
+    }
+    assertEquals(before, slob.getIndexedContent());
   }
 
   public void testBasicTransform() throws Exception {
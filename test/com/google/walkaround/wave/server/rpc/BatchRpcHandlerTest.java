@@ -0,0 +1,265 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.rpc;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.util.HandlerServlet;
+import com.google.walkaround.wave.shared.SharedConstants.Batch;
+import com.google.walkaround.wave.shared.SharedConstants.Services;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class BatchRpcHandlerTest extends TestCase {
+
+  /** Stands in for a request of its own to the batch endpoint. */
+  private static HttpServletRequest batchRequest(final Map<String, String> params) {
+    final Map<String, Object> attributes = Maps.newHashMap();
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class },
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getParameter")) {
+              return params.get(args[0]);
+            } else if (name.equals("getAttribute")) {
+              return attributes.get(args[0]);
+            } else if (name.equals("setAttribute")) {
+              attributes.put((String) args[0], args[1]);
+              return null;
+            } else if (name.equals("removeAttribute")) {
+              attributes.remove(args[0]);
+              return null;
+            } else if (name.equals("getRequestURI")) {
+              return "/" + Services.BATCH;
+            } else if (name.equals("getRequestURL")) {
+              return new StringBuffer("http://example.com/" + Services.BATCH);
+            } else if (name.equals("toString")) {
+              return "batchRequest(" + params + ")";
+            }
+            throw new UnsupportedOperationException(name);
+          }
+        });
+  }
+
+  private static HttpServletResponse batchResponse(final StringWriter out) {
+    final PrintWriter writer = new PrintWriter(out);
+    return (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(),
+        new Class<?>[] { HttpServletResponse.class },
+        new InvocationHandler() {
+          @Override public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getWriter")) {
+              return writer;
+            } else if (name.equals("setContentType")) {
+              return null;
+            } else if (name.equals("toString")) {
+              return "batchResponse";
+            }
+            throw new UnsupportedOperationException(name);
+          }
+        });
+  }
+
+  /** The calls as they reach the handlers; see {@link FakeHandlerServlet}. */
+  private final List<HttpServletRequest> dispatched = Lists.newArrayList();
+  private final List<HttpServletRequest> currentCalls = Lists.newArrayList();
+  /** What the handler sees as left of the request deadline, per call. */
+  private final List<Long> remainingMillis = Lists.newArrayList();
+
+  /**
+   * Answers each call with its method, URI and "a" parameters, or fails it
+   * in the way its "what" parameter asks for.
+   */
+  private class FakeHandlerServlet extends HandlerServlet {
+    FakeHandlerServlet() {
+      super(null);
+    }
+
+    @Override public void service(ServletRequest servletReq, ServletResponse servletResp)
+        throws IOException, ServletException {
+      HttpServletRequest req = (HttpServletRequest) servletReq;
+      HttpServletResponse resp = (HttpServletResponse) servletResp;
+      dispatched.add(req);
+      currentCalls.add(BatchRpcHandler.getCurrentCall(req));
+      String what = req.getParameter("what");
+      if ("redirect".equals(what)) {
+        resp.sendRedirect("/elsewhere");
+      } else if ("error".equals(what)) {
+        resp.getOutputStream().write('x');
+        resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Nope");
+      } else if ("throw".equals(what)) {
+        throw new BadRequestException("Bad call");
+      } else {
+        String[] a = req.getParameterValues("a");
+        resp.getWriter().print(req.getMethod() + " " + req.getRequestURI()
+            + " " + (a == null ? null : Arrays.asList(a)));
+      }
+    }
+  }
+
+  private String runBatch(String... serviceMethodParams) throws Exception {
+    Map<String, String> params = Maps.newHashMap();
+    int calls = serviceMethodParams.length / 3;
+    params.put(Batch.CALL_COUNT, "" + calls);
+    for (int i = 0; i < calls; i++) {
+      params.put(Batch.SERVICE_PREFIX + i, serviceMethodParams[3 * i]);
+      params.put(Batch.METHOD_PREFIX + i, serviceMethodParams[3 * i + 1]);
+      if (serviceMethodParams[3 * i + 2] != null) {
+        params.put(Batch.PARAMS_PREFIX + i, serviceMethodParams[3 * i + 2]);
+      }
+    }
+    BatchRpcHandler handler = new BatchRpcHandler() {
+      @Override long getRemainingMillis() {
+        return remainingMillis.isEmpty() ? 60 * 1000 : remainingMillis.remove(0);
+      }
+    };
+    handler.handlerServlet = new FakeHandlerServlet();
+    HttpServletRequest req = batchRequest(params);
+    StringWriter out = new StringWriter();
+    handler.doPost(req, batchResponse(out));
+    // The call is only current while it is being dispatched.
+    assertSame(req, BatchRpcHandler.getCurrentCall(req));
+    return out.toString();
+  }
+
+  private static String result(int status, String body) {
+    return status + " " + body.length() + "\n" + body;
+  }
+
+  public void testParseParams() throws Exception {
+    Map<String, String[]> params = BatchRpcHandler.parseParams("a=1&b=x%20y&a=2&&c&d=");
+    assertEquals(Arrays.asList("a", "b", "c", "d"), Lists.newArrayList(params.keySet()));
+    assertEquals(Arrays.asList("1", "2"), Arrays.asList(params.get("a")));
+    assertEquals(Arrays.asList("x y"), Arrays.asList(params.get("b")));
+    assertEquals(Arrays.asList(""), Arrays.asList(params.get("c")));
+    assertEquals(Arrays.asList(""), Arrays.asList(params.get("d")));
+    assertTrue(BatchRpcHandler.parseParams("").isEmpty());
+    assertEquals(Arrays.asList("\u00e9+"),
+        Arrays.asList(BatchRpcHandler.parseParams("%C3%A9%2B=%C3%A9%2B").get("\u00e9+")));
+  }
+
+  public void testParseParamsRejectsBadEncoding() throws Exception {
+    try {
+      BatchRpcHandler.parseParams("a=%zz");
+      fail();
+    } catch (BadRequestException e) {
+      // ok
+    }
+  }
+
+  public void testCallsAreDispatchedInOrderAndFramed() throws Exception {
+    String out = runBatch(
+        Services.CONNECT, "GET", "a=1&a=%C3%A9",
+        Services.SUBMIT_DELTA, "POST", null);
+    assertEquals(
+        result(200, "GET /connect [1, \u00e9]")
+        + result(200, "POST /submitdelta null"),
+        out);
+    assertEquals(2, dispatched.size());
+    assertEquals(Arrays.asList("1", "\u00e9"),
+        Arrays.asList(dispatched.get(0).getParameterValues("a")));
+    assertNull(dispatched.get(0).getQueryString());
+    assertEquals("http://example.com/connect", dispatched.get(0).getRequestURL().toString());
+  }
+
+  public void testEachCallIsCurrentWhileDispatched() throws Exception {
+    runBatch(
+        Services.CONNECT, "GET", "a=1",
+        Services.HISTORY, "GET", "a=2");
+    assertEquals(dispatched, currentCalls);
+    assertNotSame(dispatched.get(0), dispatched.get(1));
+  }
+
+  public void testFailingCallsOnlyFailThemselves() throws Exception {
+    String out = runBatch(
+        Services.VERSION, "GET", "what=throw",
+        "admin", "GET", null,
+        Services.CONNECT, "PUT", null,
+        Services.VERSION, "GET", "what=error",
+        Services.VERSION, "GET", "what=redirect",
+        Services.CONNECT, "GET", "a=1");
+    assertEquals(
+        result(400, "Bad request: Bad call")
+        + result(400, "Service can't be batched: admin")
+        + result(400, "Bad method: PUT")
+        + result(403, "Nope")
+        + result(500, "Redirect in batched call")
+        + result(200, "GET /connect [1]"),
+        out);
+  }
+
+  public void testSlowServicesCantBeBatched() throws Exception {
+    String out = runBatch(
+        Services.CONTACTS, "GET", null,
+        Services.ATTACHMENT_INFO, "GET", null,
+        Services.VERSION, "GET", null);
+    assertEquals(
+        result(400, "Service can't be batched: contacts")
+        + result(400, "Service can't be batched: attachmentinfo")
+        + result(200, "GET /version null"),
+        out);
+  }
+
+  public void testCallsAreNotStartedCloseToDeadline() throws Exception {
+    // Checked before the second and third call.
+    remainingMillis.addAll(Arrays.asList(20 * 1000L, 5 * 1000L));
+    String out = runBatch(
+        Services.CONNECT, "GET", "a=1",
+        Services.CONNECT, "GET", "a=2",
+        Services.CONNECT, "GET", "a=3");
+    assertEquals(
+        result(200, "GET /connect [1]")
+        + result(200, "GET /connect [2]")
+        + result(503, "Out of time in batch"),
+        out);
+    assertEquals(2, dispatched.size());
+  }
+
+  public void testBadCallCountIsRejected() throws Exception {
+    for (String count : Arrays.asList("0", "" + (Batch.MAX_CALLS + 1), "x")) {
+      Map<String, String> params = Maps.newHashMap();
+      params.put(Batch.CALL_COUNT, count);
+      try {
+        new BatchRpcHandler().doPost(batchRequest(params), batchResponse(new StringWriter()));
+        fail(count);
+      } catch (BadRequestException e) {
+        // ok
+      }
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.rpc;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.rpc.ContactsSnapshotCache.Contact;
+import com.google.walkaround.wave.server.rpc.ContactsSnapshotCache.FeedPage;
+
+import junit.framework.TestCase;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+public class ContactsSnapshotCacheTest extends TestCase {
+
+  private static final long REFRESH_MILLIS = 5 * 60 * 1000;
+  private static final long NOW = 1000000000;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  /** A feed whose contents the test controls, counting the fetches. */
+  private static class FakeFeed implements ContactsSnapshotCache.Feed {
+    List<Contact> contacts = Lists.newArrayList();
+    int totalResults = -1;
+    List<Contact> updated = Lists.newArrayList();
+    Set<String> deleted = ImmutableSet.of();
+    final AtomicInteger fullFetches = new AtomicInteger();
+    final AtomicInteger incrementalFetches = new AtomicInteger();
+
+    @Override public FeedPage fetch(@Nullable String updatedMin, int startIndex, int maxResults)
+        throws IOException {
+      if (updatedMin != null) {
+        incrementalFetches.incrementAndGet();
+        return new FeedPage(updated, deleted, updated.size() + deleted.size(), "t2");
+      }
+      fullFetches.incrementAndGet();
+      int from = Math.min(startIndex - 1, contacts.size());
+      int to = Math.min(startIndex - 1 + maxResults, contacts.size());
+      return new FeedPage(contacts.subList(from, to), ImmutableSet.<String>of(),
+          totalResults != -1 ? totalResults : contacts.size(), "t1");
+    }
+  }
+
+  private final ContactsSnapshotCache.FullSyncs fullSyncs = new ContactsSnapshotCache.FullSyncs();
+
+  private static Contact contact(String id) {
+    return new Contact(id, id + "@example.com", "Name " + id, "/" + id);
+  }
+
+  private static List<Contact> contacts(int count) {
+    List<Contact> out = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      out.add(contact("c" + i));
+    }
+    return out;
+  }
+
+  private static List<String> ids(List<Contact> contacts) {
+    List<String> out = Lists.newArrayList();
+    for (Contact c : contacts) {
+      out.add(c.getEntryId());
+    }
+    return out;
+  }
+
+  private ContactsSnapshotCache newCache(ContactsSnapshotCache.Feed feed) {
+    return new ContactsSnapshotCache(MemcacheServiceFactory.getMemcacheService(),
+        new StableUserId("user"), ParticipantId.ofUnsafe("user@example.com"), feed,
+        fullSyncs, new Random(0), 3);
+  }
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    helper.setUp();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    helper.tearDown();
+    super.tearDown();
+  }
+
+  public void testPagesAreServedFromSnapshot() throws Exception {
+    FakeFeed feed = new FakeFeed();
+    feed.contacts = contacts(8);
+    assertEquals(ImmutableList.of("c0", "c1", "c2", "c3"),
+        ids(newCache(feed).getRange(1, 5, NOW)));
+    assertEquals(1, feed.fullFetches.get());
+    // A new instance, as in a later request, pages through the chunked
+    // snapshot in memcache without fetching.
+    assertEquals(ImmutableList.of("c4", "c5", "c6", "c7"),
+        ids(newCache(feed).getRange(5, 9, NOW + 1)));
+    assertEquals(ImmutableList.of("c2", "c3", "c4"),
+        ids(newCache(feed).getRange(3, 6, NOW + 1)));
+    assertEquals(ImmutableList.of(), ids(newCache(feed).getRange(9, 20, NOW + 1)));
+    assertEquals(1, feed.fullFetches.get());
+    assertEquals(0, feed.incrementalFetches.get());
+  }
+
+  public void testEmptyFeed() throws Exception {
+    FakeFeed feed = new FakeFeed();
+    assertEquals(ImmutableList.of(), ids(newCache(feed).getRange(1, 10, NOW)));
+    assertEquals(ImmutableList.of(), ids(newCache(feed).getRange(1, 10, NOW)));
+    assertEquals(1, feed.fullFetches.get());
+  }
+
+  public void testTooManyContactsFetchesRangeDirectly() throws Exception {
+    FakeFeed feed = new FakeFeed();
+    feed.contacts = contacts(10);
+    feed.totalResults = 100000;
+    assertEquals(ImmutableList.of("c2", "c3"), ids(newCache(feed).getRange(3, 5, NOW)));
+    assertEquals(2, feed.fullFetches.get());
+    assertEquals(ImmutableList.of("c2", "c3"), ids(newCache(feed).getRange(3, 5, NOW)));
+    assertEquals(4, feed.fullFetches.get());
+  }
+
+  public void testIncrementalSyncMergesInPlace() throws Exception {
+    FakeFeed feed = new FakeFeed();
+    feed.contacts = contacts(4);
+    newCache(feed).getRange(1, 10, NOW);
+    feed.updated = ImmutableList.of(
+        new Contact("c1", "new@example.com", "New name", "/c1"), contact("c9"));
+    feed.deleted = ImmutableSet.of("c2");
+
+    // Not stale yet.
+    assertEquals(ImmutableList.of("c0", "c1", "c2", "c3"),
+        ids(newCache(feed).getRange(1, 10, NOW + REFRESH_MILLIS)));
+    assertEquals(0, feed.incrementalFetches.get());
+
+    List<Contact> merged = newCache(feed).getRange(1, 10, NOW + REFRESH_MILLIS + 1);
+    assertEquals(ImmutableList.of("c0", "c1", "c3", "c9"), ids(merged));
+    assertEquals("new@example.com", merged.get(1).getAddress());
+    assertEquals(1, feed.incrementalFetches.get());
+
+    // The merged snapshot was stored and is fresh again.
+    assertEquals(ImmutableList.of("c0", "c1", "c3", "c9"),
+        ids(newCache(feed).getRange(1, 10, NOW + REFRESH_MILLIS + 2)));
+    assertEquals(1, feed.incrementalFetches.get());
+    assertEquals(1, feed.fullFetches.get());
+  }
+
+  public void testMissingSnapshotIsRebuilt() throws Exception {
+    FakeFeed feed = new FakeFeed();
+    feed.contacts = contacts(5);
+    newCache(feed).getRange(1, 2, NOW);
+    MemcacheServiceFactory.getMemcacheService().clearAll();
+    assertEquals(ImmutableList.of("c4"), ids(newCache(feed).getRange(5, 6, NOW)));
+    assertEquals(2, feed.fullFetches.get());
+  }
+
+  /**
+   * Runs getRange(1, 10) on a new thread that shares the test's API
+   * environment, recording the result or failure.
+   */
+  private class Loader extends Thread {
+    private final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    private final ContactsSnapshotCache cache;
+    volatile List<Contact> result = null;
+    volatile Exception failure = null;
+
+    Loader(ContactsSnapshotCache cache) {
+      this.cache = cache;
+    }
+
+    @Override public void run() {
+      ApiProxy.setEnvironmentForCurrentThread(environment);
+      try {
+        result = cache.getRange(1, 10, NOW);
+      } catch (Exception e) {
+        failure = e;
+      }
+    }
+  }
+
+  /** A feed whose first full fetch blocks until released, and optionally fails. */
+  private static class BlockingFeed extends FakeFeed {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean failFirst = false;
+
+    @Override public FeedPage fetch(@Nullable String updatedMin, int startIndex, int maxResults)
+        throws IOException {
+      if (started.getCount() > 0) {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        if (failFirst) {
+          fullFetches.incrementAndGet();
+          throw new IOException("Simulated failure");
+        }
+      }
+      return super.fetch(updatedMin, startIndex, maxResults);
+    }
+  }
+
+  private static boolean isWaitingForSync(Thread thread) {
+    if (thread.getState() != Thread.State.WAITING) {
+      return false;
+    }
+    for (StackTraceElement e : thread.getStackTrace()) {
+      if (e.getMethodName().equals("coalescedFullSync")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Waits until {@code thread} waits for the full sync of another thread. */
+  private static void awaitWaitingForSync(Thread thread) throws InterruptedException {
+    for (int i = 0; i < 1000 && !isWaitingForSync(thread); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(isWaitingForSync(thread));
+  }
+
+  public void testConcurrentFullSyncsAreCoalesced() throws Exception {
+    BlockingFeed feed = new BlockingFeed();
+    feed.contacts = contacts(4);
+    Loader first = new Loader(newCache(feed));
+    Loader second = new Loader(newCache(feed));
+    first.start();
+    feed.started.await();
+    second.start();
+    awaitWaitingForSync(second);
+    feed.release.countDown();
+    first.join();
+    second.join();
+    assertNull(first.failure);
+    assertNull(second.failure);
+    assertEquals(ImmutableList.of("c0", "c1", "c2", "c3"), ids(first.result));
+    assertEquals(ImmutableList.of("c0", "c1", "c2", "c3"), ids(second.result));
+    assertEquals(1, feed.fullFetches.get());
+  }
+
+  public void testWaiterSyncsItselfIfCoalescedSyncFails() throws Exception {
+    BlockingFeed feed = new BlockingFeed();
+    feed.contacts = contacts(4);
+    feed.failFirst = true;
+    Loader first = new Loader(newCache(feed));
+    Loader second = new Loader(newCache(feed));
+    first.start();
+    feed.started.await();
+    second.start();
+    awaitWaitingForSync(second);
+    feed.release.countDown();
+    first.join();
+    second.join();
+    assertTrue(first.failure instanceof IOException);
+    assertNull(second.failure);
+    assertEquals(ImmutableList.of("c0", "c1", "c2", "c3"), ids(second.result));
+    assertEquals(2, feed.fullFetches.get());
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.rpc;
+
+import junit.framework.TestCase;
+
+public class PhotosHandlerTest extends TestCase {
+
+  private static final String ETAG = "\"abc123\"";
+
+  public void testNoHeaderDoesNotMatch() throws Exception {
+    assertFalse(PhotosHandler.ifNoneMatchMatches(null, ETAG));
+    assertFalse(PhotosHandler.ifNoneMatchMatches("", ETAG));
+  }
+
+  public void testSingleTag() throws Exception {
+    assertTrue(PhotosHandler.ifNoneMatchMatches("\"abc123\"", ETAG));
+    assertFalse(PhotosHandler.ifNoneMatchMatches("\"abc124\"", ETAG));
+    // Tags are quoted; the bare digest is not the same tag.
+    assertFalse(PhotosHandler.ifNoneMatchMatches("abc123", ETAG));
+  }
+
+  public void testListOfTags() throws Exception {
+    assertTrue(PhotosHandler.ifNoneMatchMatches("\"x\", \"abc123\"", ETAG));
+    assertTrue(PhotosHandler.ifNoneMatchMatches("\"abc123\",\"y\"", ETAG));
+    assertFalse(PhotosHandler.ifNoneMatchMatches("\"x\", \"y\"", ETAG));
+  }
+
+  public void testWeakTagsMatch() throws Exception {
+    assertTrue(PhotosHandler.ifNoneMatchMatches("W/\"abc123\"", ETAG));
+    assertTrue(PhotosHandler.ifNoneMatchMatches("\"x\", W/\"abc123\"", ETAG));
+  }
+
+  public void testStarMatchesAnything() throws Exception {
+    assertTrue(PhotosHandler.ifNoneMatchMatches("*", ETAG));
+    assertTrue(PhotosHandler.ifNoneMatchMatches(" * ", ETAG));
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.walkaround.wave.server.util;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class ProxyResponseCacheTest extends TestCase {
+
+  private static final long NOW = 1000000;
+
+  private static List<HTTPHeader> headers(String cacheControl) {
+    return ImmutableList.of(
+        new HTTPHeader("Content-Type", "text/xml"),
+        new HTTPHeader("Cache-Control", cacheControl),
+        new HTTPHeader("Age", "5"));
+  }
+
+  private static byte[] bytes(int n) {
+    return new byte[n];
+  }
+
+  public void testParseSharedMaxAge() throws Exception {
+    assertEquals(60, ProxyResponseCache.parseSharedMaxAge("public, max-age=60"));
+    assertEquals(60, ProxyResponseCache.parseSharedMaxAge("max-age=60"));
+    assertEquals(300, ProxyResponseCache.parseSharedMaxAge("max-age=60, s-maxage=300"));
+    assertEquals(300, ProxyResponseCache.parseSharedMaxAge("s-maxage=300,max-age=60"));
+    assertEquals(0, ProxyResponseCache.parseSharedMaxAge("max-age=60, s-maxage=0"));
+    assertEquals(60, ProxyResponseCache.parseSharedMaxAge(" Public , MAX-AGE=60 "));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("public"));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("max-age=bogus"));
+  }
+
+  public void testParseSharedMaxAgeRejectsPrivateAndUncacheable() throws Exception {
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("private, max-age=60"));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("s-maxage=60, private"));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("no-store, max-age=60"));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("max-age=60, no-cache"));
+    assertEquals(-1, ProxyResponseCache.parseSharedMaxAge("no-cache=\"Set-Cookie\""));
+  }
+
+  public void testCachesUntilExpiry() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(100, 50);
+    assertTrue(cache.maybePut("a", 200, headers("max-age=10"), bytes(3), NOW));
+    ProxyResponseCache.Entry entry = cache.get("a", NOW + 9999);
+    assertNotNull(entry);
+    assertEquals(200, entry.getResponseCode());
+    assertEquals(3, entry.getContent().length);
+    assertEquals(0, entry.getRemainingSeconds(NOW + 9999));
+    assertEquals(5, entry.getRemainingSeconds(NOW + 5000));
+    // Cache-Control and Age are recomputed when serving.
+    assertEquals(1, entry.getHeaders().size());
+    assertEquals("Content-Type", entry.getHeaders().get(0).getName());
+    assertNull(cache.get("a", NOW + 10000));
+    assertNull(cache.get("a", NOW));
+  }
+
+  public void testDoesNotCacheUncacheableResponses() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(100, 50);
+    assertFalse(cache.maybePut("a", 404, headers("max-age=10"), bytes(3), NOW));
+    assertFalse(cache.maybePut("a", 200, headers("private, max-age=10"), bytes(3), NOW));
+    assertFalse(cache.maybePut("a", 200, headers("max-age=0"), bytes(3), NOW));
+    assertFalse(cache.maybePut("a", 200, ImmutableList.<HTTPHeader>of(), bytes(3), NOW));
+    assertFalse(cache.maybePut("a", 200, headers("max-age=10"), null, NOW));
+    assertFalse(cache.maybePut("a", 200, headers("max-age=10"), bytes(51), NOW));
+    assertFalse(cache.maybePut("a", 200,
+        ImmutableList.of(new HTTPHeader("Cache-Control", "max-age=10"),
+            new HTTPHeader("Set-Cookie", "x=y")),
+        bytes(3), NOW));
+    assertFalse(cache.maybePut("a", 200,
+        ImmutableList.of(new HTTPHeader("Cache-Control", "max-age=10"),
+            new HTTPHeader("Vary", "Cookie")),
+        bytes(3), NOW));
+    assertTrue(cache.maybePut("a", 200,
+        ImmutableList.of(new HTTPHeader("Cache-Control", "max-age=10"),
+            new HTTPHeader("Vary", "Accept-Encoding")),
+        bytes(3), NOW));
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(100, 50);
+    assertTrue(cache.maybePut("a", 200, headers("max-age=10"), bytes(40), NOW));
+    assertTrue(cache.maybePut("b", 200, headers("max-age=10"), bytes(40), NOW));
+    // Touch a, so that b is the least recently used.
+    assertNotNull(cache.get("a", NOW));
+    assertTrue(cache.maybePut("c", 200, headers("max-age=10"), bytes(40), NOW));
+    assertNotNull(cache.get("a", NOW));
+    assertNull(cache.get("b", NOW));
+    assertNotNull(cache.get("c", NOW));
+  }
+
+  public void testReplacingEntryReleasesItsBytes() throws Exception {
+    ProxyResponseCache cache = new ProxyResponseCache(100, 50);
+    assertTrue(cache.maybePut("a", 200, headers("max-age=10"), bytes(50), NOW));
+    assertTrue(cache.maybePut("b", 200, headers("max-age=10"), bytes(10), NOW));
+    assertTrue(cache.maybePut("a", 200, headers("max-age=10"), bytes(50), NOW));
+    assertTrue(cache.maybePut("a", 200, headers("max-age=10"), bytes(50), NOW));
+    assertNotNull(cache.get("b", NOW));
+    assertEquals(50, cache.get("a", NOW).getContent().length);
+  }
+}